@@ -0,0 +1,175 @@
+package fm.icelink.chat.websync4;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.IAction1;
+import fm.icelink.IFunction0;
+import fm.icelink.Log;
+
+/**
+ * AdaptiveCaptureController
+ *
+ * Walks CameraLocalMedia along the CaptureProfile ladder as load changes. In a
+ * mesh every peer adds another encode of each frame, so the controller steps
+ * down as the peer count or CPU load rises and steps back up once both have
+ * dropped, as decided by a CaptureHysteresis. The CPU load is that of the
+ * busiest thread, so a saturated encoder thread counts on a many-core phone.
+ */
+public class AdaptiveCaptureController {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AdaptiveCaptureController");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CameraLocalMedia localMedia;
+    private final IFunction0<Integer> peerCount;
+    private final ThreadCpuLoad threadCpuLoad = new ThreadCpuLoad();
+    private final CaptureHysteresis hysteresis = new CaptureHysteresis();
+
+    private ScheduledFuture<?> timer;
+    private double cpuLoad;
+    // Bumped by each change, so a failure only reverts the latest.
+    private int changeCount;
+
+    private int interval = 2000;
+    public int getInterval() {
+        return this.interval;
+    }
+    public void setInterval(int milliseconds) {
+        this.interval = milliseconds;
+    }
+
+    public double getHighCpuLoad() {
+        return hysteresis.getHighCpuLoad();
+    }
+    /**
+     * Busiest-thread CPU load, as a fraction of one core, above which to step down.
+     */
+    public void setHighCpuLoad(double load) {
+        hysteresis.setHighCpuLoad(load);
+    }
+
+    public double getLowCpuLoad() {
+        return hysteresis.getLowCpuLoad();
+    }
+    /**
+     * Busiest-thread CPU load, as a fraction of one core, below which stepping up is allowed.
+     */
+    public void setLowCpuLoad(double load) {
+        hysteresis.setLowCpuLoad(load);
+    }
+
+    public int getHoldTime() {
+        return hysteresis.getHoldTime();
+    }
+    /**
+     * Minimum time between two profile changes.
+     */
+    public void setHoldTime(int milliseconds) {
+        hysteresis.setHoldTime(milliseconds);
+    }
+
+    private OnProfileChangeListener listener;
+    public void setOnProfileChangeListener(OnProfileChangeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param localMedia The camera media to adapt.
+     * @param peerCount Returns the number of connected peers.
+     */
+    public AdaptiveCaptureController(CameraLocalMedia localMedia, IFunction0<Integer> peerCount) {
+        this.localMedia = localMedia;
+        this.peerCount = peerCount;
+    }
+
+    public synchronized CaptureProfile getProfile() {
+        return CaptureProfile.Ladder[hysteresis.getLevel()];
+    }
+
+    /**
+     * The busiest thread's CPU load at the last sample, as a fraction of one core.
+     */
+    public synchronized double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        long now = android.os.SystemClock.elapsedRealtime();
+        hysteresis.hold(now);
+        threadCpuLoad.sample(now);
+        timer = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                }
+                catch (Exception ex) {
+                    Log.error("Could not adapt capture profile.", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    private void sample() {
+        final CaptureProfile profile;
+        final int previous;
+        final int change;
+        synchronized (this) {
+            long now = android.os.SystemClock.elapsedRealtime();
+            cpuLoad = threadCpuLoad.sample(now);
+            int peers = peerCount.invoke();
+            previous = hysteresis.getLevel();
+            int level = hysteresis.sample(now, cpuLoad, peers);
+            if (level == previous) {
+                return;
+            }
+            change = ++changeCount;
+            profile = CaptureProfile.Ladder[level];
+            Log.info(String.format("Capture profile changed to %s (peers: %d, cpu: %d%%).", profile, peers, Math.round(cpuLoad * 100)));
+        }
+
+        localMedia.setCaptureProfile(profile).then(new IAction1<Object>() {
+            public void invoke(Object o) {
+                OnProfileChangeListener listener = AdaptiveCaptureController.this.listener;
+                if (listener != null) {
+                    listener.onProfileChange(profile);
+                }
+            }
+        }).fail(new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                Log.error("Could not change capture profile to " + profile + ".", ex);
+                // Go back to the level in use, so a later sample can try again.
+                synchronized (AdaptiveCaptureController.this) {
+                    if (change == changeCount) {
+                        hysteresis.setLevel(previous);
+                    }
+                }
+            }
+        });
+    }
+
+    public interface OnProfileChangeListener {
+        void onProfileChange(CaptureProfile profile);
+    }
+}
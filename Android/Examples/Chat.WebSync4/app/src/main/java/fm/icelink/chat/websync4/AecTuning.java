@@ -0,0 +1,409 @@
+package fm.icelink.chat.websync4;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioConfig;
+import fm.icelink.AudioFrame;
+import fm.icelink.AudioSink;
+import fm.icelink.DataBuffer;
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.Log;
+import fm.icelink.Promise;
+import fm.icelink.android.AudioRecordSource;
+import fm.icelink.android.AudioTrackSink;
+
+/**
+ * AecTuning
+ *
+ * Picks the echo canceller's configuration for this device. Voice needs no
+ * more than 16 kHz mono, so that is used whenever the device can play and
+ * record it, which cuts the canceller's work several times over compared to
+ * 48 kHz stereo. The echo delay is measured rather than taken from the
+ * buffer sizes: a short chirp is streamed to the speaker while recording,
+ * through the same sink and source a call uses, and DelayEstimator finds it
+ * in the capture. The result is cached on disk per device model,
+ * so the chirp plays once per model. If the measurement fails, the
+ * buffer-size estimate is used until the next launch tries again.
+ */
+public class AecTuning {
+
+    public static class Settings {
+        private int clockRate;
+        public int getClockRate() {
+            return this.clockRate;
+        }
+
+        private int channelCount;
+        public int getChannelCount() {
+            return this.channelCount;
+        }
+
+        private int delay;
+        /**
+         * The echo delay in milliseconds.
+         */
+        public int getDelay() {
+            return this.delay;
+        }
+
+        private boolean measured;
+        /**
+         * Whether the delay was measured, rather than estimated from buffer sizes.
+         */
+        public boolean getMeasured() {
+            return this.measured;
+        }
+
+        public Settings(int clockRate, int channelCount, int delay, boolean measured) {
+            this.clockRate = clockRate;
+            this.channelCount = channelCount;
+            this.delay = delay;
+            this.measured = measured;
+        }
+
+        public AudioConfig getConfig() {
+            return new AudioConfig(clockRate, channelCount);
+        }
+
+        public String toJson() throws Exception {
+            JSONObject json = new JSONObject();
+            json.put("clockRate", clockRate);
+            json.put("channelCount", channelCount);
+            json.put("delay", delay);
+            return json.toString();
+        }
+
+        public static Settings fromJson(String json) throws Exception {
+            JSONObject object = new JSONObject(json);
+            return new Settings(object.getInt("clockRate"), object.getInt("channelCount"), object.getInt("delay"), true);
+        }
+    }
+
+    private static final String cacheFileName = "aec-tuning.json";
+
+    // Chirp across the voice band, quiet enough not to startle.
+    private static final int chirpDuration = 250;
+    private static final double chirpStartFrequency = 300;
+    private static final double chirpEndFrequency = 3400;
+    private static final double chirpAmplitude = 0.3;
+
+    // Capture before the chirp starts, and the longest echo delay looked for.
+    private static final int leadIn = 100;
+    private static final int maxDelay = 500;
+    private static final int frameDuration = 20;
+    private static final int attempts = 2;
+
+    private static AecTuning instance;
+
+    public static synchronized AecTuning getInstance(Context context) {
+        if (instance == null) {
+            instance = new AecTuning(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final File cacheFile;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Settings settings;
+    private Promise<Settings> measuring;
+
+    private AecTuning(Context context) {
+        this.context = context;
+        cacheFile = new File(context.getFilesDir(), cacheFileName);
+    }
+
+    /**
+     * Loads the cached settings, without measuring.
+     *
+     * @return The settings, or null if this device model has not been measured yet.
+     */
+    public synchronized Settings getCachedSettings() {
+        if (settings == null) {
+            settings = load();
+        }
+        return settings;
+    }
+
+    /**
+     * Loads the cached settings, or measures them on a background thread.
+     * Needs the microphone permission to measure. Resolves on the main
+     * thread, with buffer-size based settings if the measurement fails.
+     */
+    public synchronized Future<Settings> getSettings() {
+        if (settings == null) {
+            settings = load();
+        }
+        if (settings != null) {
+            return Promise.resolveNow(settings);
+        }
+        if (measuring != null) {
+            return measuring;
+        }
+
+        final Promise<Settings> promise = new Promise<Settings>();
+        measuring = promise;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Settings result = measure();
+                synchronized (AecTuning.this) {
+                    measuring = null;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        promise.resolve(result);
+                    }
+                });
+            }
+        }, "AecTuning").start();
+        return promise;
+    }
+
+    private Settings measure() {
+        int clockRate = supports(16000) ? 16000 : 48000;
+        AudioConfig config = new AudioConfig(clockRate, 1);
+        Settings estimated = new Settings(clockRate, 1, AudioTrackSink.getBufferDelay(config) + AudioRecordSource.getBufferDelay(config), false);
+
+        DelayEstimator estimator = new DelayEstimator();
+        short[] chirp = DelayEstimator.createChirp(clockRate, chirpDuration, chirpStartFrequency, chirpEndFrequency, chirpAmplitude);
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            try {
+                long start = System.nanoTime();
+                int delay = measure(clockRate, chirp, estimator);
+                if (delay >= 0) {
+                    Log.info(String.format("Measured echo delay %dms at %dHz (correlation %.2f) in %dms.",
+                            delay, clockRate, estimator.getCorrelation(), (System.nanoTime() - start) / 1000000));
+                    synchronized (this) {
+                        settings = new Settings(clockRate, 1, delay, true);
+                        save();
+                        return settings;
+                    }
+                }
+                Log.warn(String.format("Echo delay measurement found no match (correlation %.2f).", estimator.getCorrelation()));
+            }
+            catch (Exception ex) {
+                Log.error("Could not measure echo delay.", ex);
+                break;
+            }
+        }
+
+        // Not cached, so the next launch tries again.
+        synchronized (this) {
+            settings = estimated;
+        }
+        return estimated;
+    }
+
+    /**
+     * Plays the chirp while recording, through the same streaming
+     * AudioTrackSink and AudioRecordSource a call uses, so their buffers are
+     * part of what is measured.
+     *
+     * @return The delay in milliseconds from handing the chirp to the speaker
+     * until it shows up in the captured audio, or -1 if it was not found.
+     */
+    private int measure(int clockRate, short[] chirp, DelayEstimator estimator) throws Exception {
+        AudioConfig config = new AudioConfig(clockRate, 1);
+        int frameSamples = clockRate * frameDuration / 1000;
+        int leadInSamples = clockRate * leadIn / 1000;
+        CaptureSink capture = new CaptureSink(clockRate, clockRate * (leadIn + maxDelay) / 1000 + chirp.length);
+        AudioRecordSource source = new AudioRecordSource(context, config);
+        AudioTrackSink sink = new AudioTrackSink(config);
+        try {
+            capture.addInput(source);
+            final CountDownLatch started = new CountDownLatch(1);
+            final Exception[] startError = new Exception[1];
+            source.start().then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object o) {
+                    started.countDown();
+                }
+            }, new IAction1<Exception>() {
+                @Override
+                public void invoke(Exception ex) {
+                    startError[0] = ex;
+                    started.countDown();
+                }
+            });
+            if (!started.await(2, TimeUnit.SECONDS) || startError[0] != null) {
+                throw new Exception("Could not open the microphone.", startError[0]);
+            }
+
+            // Feed the speaker in real time, silence first, as a call does.
+            fm.icelink.pcm.Format format = new fm.icelink.pcm.Format(clockRate, 1);
+            byte[] silence = new byte[frameSamples * 2];
+            int chirpOffset = -1;
+            int playedAt = -1;
+            int lastCount = 0;
+            long next = System.nanoTime();
+            long lastProgress = next;
+            while (!capture.isFull()) {
+                byte[] frame = silence;
+                if (chirpOffset < 0 && capture.getCount() >= leadInSamples) {
+                    // The delay is counted from here: how far the capture had got when the chirp was handed over.
+                    chirpOffset = 0;
+                    playedAt = capture.getCount();
+                }
+                if (chirpOffset >= 0 && chirpOffset < chirp.length) {
+                    frame = new byte[frameSamples * 2];
+                    for (int i = 0; i < frameSamples && chirpOffset + i < chirp.length; i++) {
+                        short sample = chirp[chirpOffset + i];
+                        frame[i * 2] = (byte) sample;
+                        frame[i * 2 + 1] = (byte) (sample >> 8);
+                    }
+                    chirpOffset += frameSamples;
+                }
+                sink.processFrame(new AudioFrame(frameDuration, new AudioBuffer(DataBuffer.wrap(frame, 0, frame.length), format)));
+
+                next += frameDuration * 1000000L;
+                long wait = (next - System.nanoTime()) / 1000000;
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                int count = capture.getCount();
+                if (count != lastCount) {
+                    lastCount = count;
+                    lastProgress = System.nanoTime();
+                } else if (System.nanoTime() - lastProgress > 2000000000L) {
+                    throw new Exception("The microphone stopped delivering audio.");
+                }
+            }
+            source.stop();
+
+            short[] captured = capture.getSamples();
+            short[] window = new short[captured.length - playedAt];
+            System.arraycopy(captured, playedAt, window, 0, window.length);
+            int lag = estimator.estimate(chirp, window, window.length - chirp.length);
+            return lag < 0 ? -1 : lag * 1000 / clockRate;
+        }
+        finally {
+            capture.destroy();
+            source.destroy();
+            sink.destroy();
+        }
+    }
+
+    /**
+     * Collects what the microphone source raises until it has enough.
+     */
+    private static class CaptureSink extends AudioSink {
+        private final short[] samples;
+        private int count;
+
+        CaptureSink(int clockRate, int length) {
+            super(new fm.icelink.pcm.Format(clockRate, 1));
+            samples = new short[length];
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized boolean isFull() {
+            return count == samples.length;
+        }
+
+        synchronized short[] getSamples() {
+            return samples;
+        }
+
+        @Override
+        protected synchronized void doProcessFrame(AudioFrame frame, AudioBuffer buffer) {
+            DataBuffer dataBuffer = buffer.getDataBuffer();
+            byte[] data = dataBuffer.getData();
+            int index = dataBuffer.getIndex();
+            int length = Math.min(dataBuffer.getLength() / 2, samples.length - count);
+            for (int i = 0; i < length; i++) {
+                samples[count++] = (short) ((data[index + i * 2] & 0xff) | (data[index + i * 2 + 1] << 8));
+            }
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "AEC Tuning Capture";
+        }
+    }
+
+    private static boolean supports(int clockRate) {
+        return AudioRecord.getMinBufferSize(clockRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT) > 0 &&
+                AudioTrack.getMinBufferSize(clockRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT) > 0;
+    }
+
+    private static String getDeviceModel() {
+        return Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    private Settings load() {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream input = new FileInputStream(cacheFile);
+            try {
+                byte[] bytes = new byte[(int) cacheFile.length()];
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int read = input.read(bytes, offset, bytes.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+
+                String json = new String(bytes, 0, offset, "UTF-8");
+                int separator = json.indexOf('\n');
+                if (separator < 0 || !json.substring(0, separator).equals(getDeviceModel())) {
+                    return null;
+                }
+                return Settings.fromJson(json.substring(separator + 1));
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not read AEC tuning cache.", ex);
+            return null;
+        }
+    }
+
+    private void save() {
+        try {
+            File temp = new File(cacheFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write((getDeviceModel() + "\n" + settings.toJson()).getBytes("UTF-8"));
+            }
+            finally {
+                output.close();
+            }
+            if (!temp.renameTo(cacheFile)) {
+                Log.error("Could not write AEC tuning cache.");
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not write AEC tuning cache.", ex);
+        }
+    }
+}
@@ -4,10 +4,6 @@ import android.content.*;
 import android.media.projection.MediaProjection;
 import android.view.*;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
 import fm.icelink.*;
 import fm.icelink.android.*;
 import fm.icelink.android.LayoutManager;
@@ -20,6 +16,20 @@ public class App {
     // This flag determines the signalling mode used.
     // Note that Manual and Auto signalling do not Interop.
     private final static boolean SIGNAL_MANUALLY = false;
+
+    // Chat typed as "/invite <name>" rings that user instead of being sent.
+    private static final String inviteCommand = "/invite ";
+
+    // Reads the ICE server cache and network state off the main thread.
+    private static final java.util.concurrent.ExecutorService networkExecutor = java.util.concurrent.Executors.newSingleThreadExecutor(new java.util.concurrent.ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IceServerManager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private Signalling signalling;
 
     private OnReceivedTextListener textListener;
@@ -40,6 +50,118 @@ public class App {
         this.name = name;
     }
 
+    private String userId;
+    /**
+     * This device's user id in the PushDirectory, the same across sessions
+     * and restarts, which invites are sent to.
+     */
+    public synchronized String getUserId() {
+        if (userId == null) {
+            java.io.File file = new java.io.File(context.getFilesDir(), "user-id");
+            try {
+                if (file.exists()) {
+                    java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(new java.io.FileInputStream(file), "UTF-8"));
+                    try {
+                        userId = reader.readLine();
+                    }
+                    finally {
+                        reader.close();
+                    }
+                }
+                if (userId == null || userId.length() == 0) {
+                    userId = fm.icelink.Guid.newGuid().toString();
+                    java.io.File temp = new java.io.File(file.getPath() + ".tmp");
+                    java.io.Writer writer = new java.io.OutputStreamWriter(new java.io.FileOutputStream(temp), "UTF-8");
+                    try {
+                        writer.write(userId);
+                    }
+                    finally {
+                        writer.close();
+                    }
+                    if (!temp.renameTo(file)) {
+                        fm.icelink.Log.error("Could not save the user id.");
+                    }
+                }
+            }
+            catch (Exception ex) {
+                fm.icelink.Log.error("Could not load the user id.", ex);
+                if (userId == null) {
+                    userId = fm.icelink.Guid.newGuid().toString();
+                }
+            }
+        }
+        return userId;
+    }
+
+    private volatile String pushToken;
+    /**
+     * The FCM token peers use to ring this device, bound in signalling as a
+     * user record and registered with the PushSender under getUserId. Falls
+     * back to the one Firebase already has.
+     */
+    public String getPushToken() {
+        if (pushToken == null) {
+            try {
+                pushToken = com.google.firebase.iid.FirebaseInstanceId.getInstance().getToken();
+            }
+            catch (Exception ex) {
+                fm.icelink.Log.error("Could not get the push token.", ex);
+            }
+        }
+        return this.pushToken;
+    }
+    public void setPushToken(String token) {
+        this.pushToken = token;
+        // Rebind a refreshed token if already in a session, and register it for invites.
+        Signalling s = signalling;
+        if (s != null && token != null) {
+            s.setPushToken(token);
+        }
+        pushDirectory.setPushToken(token);
+    }
+
+    private PushDirectory pushDirectory;
+    private boolean pushDirectoryStarted;
+    /**
+     * Where this device finds other users to ring, whichever session it is in.
+     */
+    public PushDirectory getPushDirectory() {
+        return pushDirectory;
+    }
+
+    /**
+     * Sets what registers push tokens and delivers invites; see invite. A
+     * device cannot send FCM pushes itself (that takes the server key), so
+     * there is none by default. Load runs use a LocalPushService.
+     */
+    public void setPushSender(PushSender sender) {
+        pushDirectory.setPushSender(sender);
+    }
+
+    /**
+     * Rings a user, found by name in the PushDirectory, into the current
+     * session. A name several users go by is not rung, since any of them
+     * could have picked it.
+     *
+     * @return Whether the invite was sent.
+     */
+    public boolean invite(String userName) {
+        String[] userIds = pushDirectory.findUserIds(userName);
+        if (userIds.length != 1) {
+            fm.icelink.Log.debug(String.format("%d users are called %s.", userIds.length, userName));
+            return false;
+        }
+        return pushDirectory.invite(userIds[0], new PushInvite(getSessionId(), name, null));
+    }
+
+    private boolean licensed;
+    /**
+     * Whether the IceLink key in res/raw/icelink was loaded.
+     */
+    public boolean getIsLicensed() {
+        return this.licensed;
+    }
+
     private boolean enableAudioSend;
     public boolean getEnableAudioSend() {
         return this.enableAudioSend;
@@ -97,23 +219,94 @@ public class App {
         //Secure TURN and STUN (i.e. turns and stuns schemata) are currently unsupported.
         new IceServer("turn:turn.icelink.fm:443", "test", "pa55w0rd!")
     };
+    // Add more STUN/TURN servers (e.g. one per region) to iceServers; each
+    // connection only gets the nearest ones.
+    private IceServerManager iceServerManager;
+
+    /**
+     * The probed STUN/TURN servers, nearest first.
+     */
+    public IceServerManager getIceServerManager() {
+        return iceServerManager;
+    }
 
-    private HashMap<View, RemoteMedia> mediaTable;
+    private RemoteMediaRegistry remoteMedias;
+    private PeerPresence peerPresence = new PeerPresence();
+
+    /**
+     * Connection dynamic value holding the connection's SimulcastSelector, if any.
+     */
+    public static final String SimulcastSelectorKey = StatsCollector.SimulcastSelectorKey;
 
     private String websyncServerUrl = "https://v4.websync.fm/websync.ashx"; // WebSync On-Demand
+    public String getWebsyncServerUrl() {
+        return this.websyncServerUrl;
+    }
+    public void setWebsyncServerUrl(String url) {
+        // Use LoopbackWebSyncServer.start() to run signalling in-process (e.g. load tests).
+        this.websyncServerUrl = url;
+    }
 
     private LocalMedia localMedia = null;
+    private volatile SessionRecorder sessionRecorder = null;
+    private AdaptiveCaptureController captureController = null;
+    private StatsCollector statsCollector = null;
     private LayoutManager layoutManager = null;
 
     private fm.icelink.chat.websync4.AecContext aecContext;
-    private boolean enableH264 = false;
+    private volatile boolean enableH264 = false;
+
+    // When set, local media offers a single video codec (VP8), so every peer
+    // shares one Opus and one video encode per captured frame. Off by default:
+    // it stops H.264 from being sent, so peers that only decode H.264 get no video.
+    private boolean sharedEncode = false;
+    public boolean getSharedEncode() {
+        return this.sharedEncode;
+    }
+    public void setSharedEncode(boolean sharedEncode) {
+        this.sharedEncode = sharedEncode;
+    }
+
+    // When set, local video is sent as several simulcast layers and each
+    // connection forwards the layer that fits its measured bandwidth.
+    private boolean enableSimulcast = false;
+    public boolean getEnableSimulcast() {
+        return this.enableSimulcast;
+    }
+    public void setEnableSimulcast(boolean enable) {
+        this.enableSimulcast = enable;
+    }
 
     private Context context = null;
 
+    private SessionWarmup warmup;
+
+    // When the user asked to join, for the join-to-first-frame timings.
+    private volatile long joinRequestedTime;
+    private volatile boolean joinWasWarm;
+    private volatile long joinToConnected = -1;
+    private volatile long joinToFirstFrame = -1;
+
     private App(Context context) {
         this.context = context.getApplicationContext();
 
-        mediaTable = new HashMap<>();
+        warmup = new SessionWarmup(this.context);
+
+        pushDirectory = new PushDirectory();
+
+        // Rank the ICE servers now, and again whenever the network changes.
+        // The cache is read from disk in the background.
+        iceServerManager = new IceServerManager(iceServers);
+        iceServerManager.setCacheFile(new java.io.File(this.context.getFilesDir(), "ice-servers.json"));
+        updateNetwork();
+        this.context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateNetwork();
+            }
+        }, new IntentFilter(android.net.ConnectivityManager.CONNECTIVITY_ACTION));
+
+        remoteMedias = new RemoteMediaRegistry();
 
         enableAudioSend = true;
         enableAudioReceive = true;
@@ -122,6 +315,70 @@ public class App {
 
         // Log to the console.
         fm.icelink.Log.setProvider(new fm.icelink.android.LogProvider(LogLevel.Debug));
+
+        // Load the key here rather than in SessionSelectorActivity, since a
+        // push invite can open ChatActivity directly.
+        loadLicense();
+
+        // Probe (or load the cached list of) hardware codecs before local media needs them.
+        final CodecProbe codecProbe = CodecProbe.getInstance(this.context);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                codecProbe.getSelector();
+            }
+        }, "CodecProbe").start();
+
+        // Fetch OpenH264 in the background so local media never waits for it.
+        loadOpenH264();
+    }
+
+    private void updateNetwork() {
+        networkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                iceServerManager.setNetwork(getNetworkKey());
+            }
+        });
+    }
+
+    /**
+     * Identifies the active network by type and name (SSID or APN), or "" when offline.
+     */
+    private String getNetworkKey() {
+        try {
+            android.net.ConnectivityManager manager = (android.net.ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            android.net.NetworkInfo info = manager.getActiveNetworkInfo();
+            if (info == null || !info.isConnected()) {
+                return "";
+            }
+            return info.getTypeName() + "/" + (info.getExtraInfo() != null ? info.getExtraInfo() : info.getSubtypeName());
+        }
+        catch (Exception ex) {
+            fm.icelink.Log.error("Could not identify the network.", ex);
+            return "";
+        }
+    }
+
+    private void loadLicense() {
+        try {
+            java.io.InputStream is = context.getResources().openRawResource(R.raw.icelink);
+            try {
+                java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(is));
+                StringBuilder total = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    total.append(line).append('\n');
+                }
+                fm.icelink.License.setKey(total.toString());
+                licensed = true;
+            }
+            finally {
+                is.close();
+            }
+        } catch (Exception ex) {
+            fm.icelink.Log.error("Could not load the IceLink key.", ex);
+        }
     }
 
     private static App app;
@@ -148,73 +405,151 @@ public class App {
         }
 
         // Register any remotes.
-        if (mediaTable != null && !mediaTable.isEmpty()) {
-            Iterator<Map.Entry<View, RemoteMedia>> i = mediaTable.entrySet().iterator();
-            while (i.hasNext()) {
-                Map.Entry<View, RemoteMedia> e = i.next();
-                fragment.registerForContextMenu(e.getKey());
+        for (View view : remoteMedias.getViews()) {
+            fragment.registerForContextMenu(view);
+        }
+    }
+
+    /**
+     * Connects to WebSync and readies ICE and the codecs ahead of a join.
+     * Call while the session selector is showing.
+     */
+    public void startWarmup() {
+        warmup.start(websyncServerUrl, iceServers);
+        // Probes the ICE servers if the cached ranking is stale.
+        networkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                iceServerManager.getIceServers();
             }
+        });
+    }
+
+    /**
+     * Joins the push directory once the user has a name. It stays connected
+     * across sessions, so the device can be rung after leaving one.
+     */
+    private synchronized void startPushDirectory() {
+        if (pushDirectoryStarted || name == null) {
+            return;
         }
+        pushDirectoryStarted = true;
+        pushDirectory.startAsync(websyncServerUrl, getUserId(), name, getPushToken()).fail(new IAction1<Exception>() {
+            @Override
+            public void invoke(Exception ex) {
+                fm.icelink.Log.error("Could not join the push directory.", ex);
+                synchronized (App.this) {
+                    pushDirectoryStarted = false;
+                }
+            }
+        });
+    }
+
+    public void stopWarmup() {
+        warmup.stop();
+    }
+
+    /**
+     * Starts the join timings; call when the user taps join (or accepts an invite).
+     */
+    public void markJoinRequested() {
+        joinRequestedTime = System.nanoTime();
+        joinToConnected = -1;
+        joinToFirstFrame = -1;
+    }
+
+    /**
+     * Milliseconds from the join tap to the first connected peer, or -1.
+     */
+    public long getJoinToConnected() {
+        return joinToConnected;
+    }
+
+    /**
+     * Milliseconds from the join tap to the first decoded remote video frame, or -1.
+     */
+    public long getJoinToFirstFrame() {
+        return joinToFirstFrame;
     }
 
     public Future<fm.icelink.LocalMedia> startLocalMedia(final VideoChatFragment fragment) {
-        return downloadOpenH264().then(new IFunction1<Object, Future<fm.icelink.LocalMedia>>() {
-            public Future<fm.icelink.LocalMedia> invoke(Object o) {
-                // Set up the local media.
-                aecContext = new AecContext();
+        // Start on VP8 right away if OpenH264 is still downloading; connections
+        // made after it loads negotiate H264 too.
+        loadOpenH264();
+
+        return Promise.wrapPromise(new IFunction0<Future<fm.icelink.LocalMedia>>() {
+            public Future<fm.icelink.LocalMedia> invoke() {
                 if (fm.icelink.Global.equals(fm.icelink.Platform.getInstance().getArchitecture(), fm.icelink.Architecture.X86)) {
                     aecContext = null;
+                    return createLocalMedia(fragment);
                 }
 
-                if (enableScreenShare) {
-                    localMedia = new ScreenShareLocalMedia(mediaProjection, context, enableH264, !enableAudioSend, !enableVideoSend, aecContext);
-                } else {
-                    localMedia = new CameraLocalMedia(context, enableH264, !enableAudioSend, !enableVideoSend, aecContext);
-                }
-
-                final View localView = (View)localMedia.getView();
-                // Set up the layout manager.
-                fragment.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        layoutManager = new LayoutManager(fragment.container);
-                        layoutManager.setLocalView(localView);
+                // Tune echo cancellation for this device first; the first time
+                // on a device model this measures the echo delay.
+                return AecTuning.getInstance(context).getSettings().then(new IFunction1<AecTuning.Settings, Future<fm.icelink.LocalMedia>>() {
+                    public Future<fm.icelink.LocalMedia> invoke(AecTuning.Settings settings) {
+                        aecContext = new AecContext(settings);
+                        return createLocalMedia(fragment);
                     }
                 });
+            }
+        });
+    }
+
+    private Future<fm.icelink.LocalMedia> createLocalMedia(final VideoChatFragment fragment) {
+        // H264 stays available for decoding; only the extra encoder is skipped.
+        boolean encodeH264 = SharedH264Encoder.isEncoded(enableH264, sharedEncode);
+        if (enableScreenShare) {
+            localMedia = new ScreenShareLocalMedia(mediaProjection, context, encodeH264, !enableAudioSend, !enableVideoSend, aecContext);
+        } else {
+            localMedia = new CameraLocalMedia(context, encodeH264, !enableAudioSend, !enableVideoSend, aecContext);
+        }
+
+        if (enableSimulcast && enableVideoSend) {
+            localMedia.enableSimulcast(SimulcastLayer.Defaults);
+        }
 
-                fragment.registerForContextMenu(localView);
-                localView.setOnTouchListener(fragment);
+        // One recording for the whole session; remote media is added as peers connect.
+        sessionRecorder = new SessionRecorder(new java.io.File(context.getFilesDir(), "session-" + getSessionId()).getPath());
+        sessionRecorder.addInput(localMedia.getId(), localMedia.getAudioSource(), localMedia.getVideoSource());
 
-                // Start the local media.
-                return localMedia.start();
+        final View localView = (View)localMedia.getView();
+        // Set up the layout manager.
+        fragment.getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                layoutManager = new LayoutManager(fragment.container);
+                layoutManager.setLocalView(localView);
             }
         });
-    }
 
-    private Future<Object> downloadOpenH264() {
-        return Promise.wrapPromise(new IFunction0<Future<Object>>() {
-            public Future<Object> invoke() {
-                Architecture arch = Platform.getInstance().getArchitecture();
-                if (arch == Architecture.Armv7 || arch == Architecture.Armv8) {
-                    final String libraryPath = context.getFilesDir() + "/libopenh264.so";
-                    if (!new FileStream(libraryPath).exists()) {
-                        String downloadUrl = fm.icelink.openh264.Utility.getDownloadUrl();
-                        Log.info(String.format("OpenH264 library missing. Downloading now from: %s.", downloadUrl));
-                        return HttpFileTransfer.downloadFile(downloadUrl, libraryPath).then(new IAction1<Object>() {
-                            public void invoke(Object o) {
-                                Log.info("OpenH264 library downloaded.");
-                                System.load(libraryPath);
-                                enableH264 = true;
-                            }
-                        });
-                    }
+        fragment.registerForContextMenu(localView);
+        localView.setOnTouchListener(fragment);
 
-                    System.load(libraryPath);
+        // Adapt the capture profile to the number of peers and CPU load.
+        if (localMedia instanceof CameraLocalMedia) {
+            captureController = new AdaptiveCaptureController((CameraLocalMedia) localMedia, new IFunction0<Integer>() {
+                public Integer invoke() {
+                    return remoteMedias.size();
+                }
+            });
+            captureController.start();
+        }
+
+        // Start the local media.
+        return localMedia.start();
+    }
+
+    private void loadOpenH264() {
+        Architecture arch = Platform.getInstance().getArchitecture();
+        if (arch == Architecture.Armv7 || arch == Architecture.Armv8) {
+            // Shares the running download if there is one, or resumes a failed one.
+            OpenH264Loader.getInstance(context.getFilesDir()).load().then(new IAction1<Object>() {
+                public void invoke(Object o) {
                     enableH264 = true;
                 }
-                return Promise.resolveNow(null);
-            }
-        });
+            });
+        }
     }
 
     public Future<fm.icelink.LocalMedia> stopLocalMedia() {
@@ -224,6 +559,11 @@ public class App {
                     throw new RuntimeException("Local media has already been stopped.");
                 }
 
+                if (captureController != null) {
+                    captureController.stop();
+                    captureController = null;
+                }
+
                 // Stop the local media.
                 return localMedia.stop().then(new IAction1<fm.icelink.LocalMedia>() {
                     public void invoke(fm.icelink.LocalMedia o) {
@@ -234,8 +574,14 @@ public class App {
                             layoutManager = null;
                         }
 
+                        if (sessionRecorder != null) {
+                            sessionRecorder.destroy();
+                            sessionRecorder = null;
+                        }
+
                         // Tear down the local media.
                         if (localMedia != null) {
+                            localMedia.disableSimulcast();
                             localMedia.destroy();
                             localMedia = null;
                         }
@@ -247,6 +593,11 @@ public class App {
 
     public fm.icelink.Future<Object> joinAsync(final VideoChatFragment fragment, TextChatFragment textChat) {
         textListener = textChat;
+        peerPresence.clear();
+        // A previous join that never left still holds its queue file open.
+        if (signalling != null) {
+            signalling.getOutboundQueue().close();
+        }
         if (SIGNAL_MANUALLY) {
             signalling = manualSignalling(fragment);
         }
@@ -254,6 +605,30 @@ public class App {
             signalling = autoSignalling(fragment);
         }
 
+        // Send the post-connect binds and subscribes as one batch.
+        signalling.setPipelineJoin(true);
+
+        // Keep chat that could not be published (e.g. mid-reconnect) for this session.
+        signalling.setOutboundQueue(new OutboundQueue(new java.io.File(context.getFilesDir(), "outbound-" + getSessionId() + ".queue"), 500));
+
+        // Let peers ring this device into a session (see PushInvite), and other users find it.
+        signalling.setPushToken(getPushToken());
+        startPushDirectory();
+
+        // Skip the WebSync handshake if the session selector already connected.
+        fm.websync.Client warmClient = warmup.takeClient(websyncServerUrl);
+        joinWasWarm = warmClient != null;
+        signalling.setWarmClient(warmClient);
+
+        // Sample each connection's stats; pull stats-<session>.jsonl/.prom from the app's files to inspect them.
+        if (statsCollector != null) {
+            statsCollector.stop();
+        }
+        statsCollector = new StatsCollector(signalling);
+        statsCollector.setJsonFile(new java.io.File(context.getFilesDir(), "stats-" + getSessionId() + ".jsonl"));
+        statsCollector.setPrometheusFile(new java.io.File(context.getFilesDir(), "stats-" + getSessionId() + ".prom"));
+        statsCollector.start();
+
         return signalling.joinAsync();
     }
 
@@ -293,15 +668,35 @@ public class App {
        // Create connection to remote client.
        final RemoteMedia remoteMedia = new RemoteMedia(context, enableH264, !enableAudioReceive, !enableVideoReceive, aecContext);
        final AudioStream audioStream = new AudioStream(enableAudioSend ? localMedia : null, enableAudioReceive ? remoteMedia : null);
-       final VideoStream videoStream = new VideoStream(enableVideoSend ? localMedia : null, enableVideoReceive ? remoteMedia : null);
+       // With simulcast, start new connections on the middle layer until bandwidth is measured.
+       final SimulcastSelector simulcastSelector = (enableVideoSend && localMedia.getSimulcast() != null) ? localMedia.getSimulcast().createSelector(1) : null;
+       final VideoStream videoStream = simulcastSelector != null ?
+               new VideoStream(simulcastSelector, enableVideoReceive ? remoteMedia : null) :
+               new VideoStream(enableVideoSend ? localMedia : null, enableVideoReceive ? remoteMedia : null);
 
        final Connection connection = new Connection(new Stream[]{audioStream, videoStream});
-       connection.setIceServers(iceServers);
+       connection.setIceServers(iceServerManager.getIceServers());
+       if (simulcastSelector != null) {
+           connection.setDynamicValue(SimulcastSelectorKey, simulcastSelector);
+       }
+       connection.setDynamicValue(StatsCollector.DecodeTimerKey, remoteMedia.getDecodeTimer());
+       remoteMedia.getDecodeTimer().setOnFirstFrame(new IAction0() {
+           public void invoke() {
+               if (joinToFirstFrame < 0 && joinRequestedTime != 0) {
+                   joinToFirstFrame = (System.nanoTime() - joinRequestedTime) / 1000000;
+                   Log.info("First remote video frame " + joinToFirstFrame + "ms after join (" + (joinWasWarm ? "warm" : "cold") + ").");
+               }
+           }
+       });
 
        // Add the remote view to the layout.
        layoutManager.addRemoteView(remoteMedia.getId(), remoteMedia.getView());
 
-       mediaTable.put(remoteMedia.getView(), remoteMedia);
+       remoteMedias.add(remoteClient.getInstanceId(), remoteMedia);
+       SessionRecorder recorder = sessionRecorder;
+       if (recorder != null) {
+           recorder.addInput(remoteMedia.getId(), remoteMedia.getAudioOutputs(), remoteMedia.getVideoOutput());
+       }
        fragment.registerForContextMenu(remoteMedia.getView());
        remoteMedia.getView().setOnTouchListener(fragment);
 
@@ -309,24 +704,48 @@ public class App {
            public void invoke(Connection c) {
                if (c.getState() == ConnectionState.Connected)
                {
-                   textListener.onPeerJoined(peerName);
+                   if (joinToConnected < 0 && joinRequestedTime != 0) {
+                       joinToConnected = (System.nanoTime() - joinRequestedTime) / 1000000;
+                       Log.info("First peer connected " + joinToConnected + "ms after join (" + (joinWasWarm ? "warm" : "cold") + ").");
+                   }
+                   if (peerPresence.connected(remoteClient.getInstanceId())) {
+                       textListener.onPeerJoined(peerName);
+                   }
                }
                else if (c.getState() == ConnectionState.Closing ||
                        c.getState() == ConnectionState.Failing) {
-                   // Remove the remote view from the layout.
-                   if (layoutManager.getRemoteView(remoteMedia.getId()) != null) {
-                       layoutManager.removeRemoteView(remoteMedia.getId());
-                       mediaTable.remove(remoteMedia.getView());
+                   // Remove the remote view from the layout. Only the caller
+                   // that removes the media from the registry tears it down.
+                   if (remoteMedias.remove(remoteMedia)) {
+                       SessionRecorder recorder = sessionRecorder;
+                       if (recorder != null) {
+                           recorder.removeInput(remoteMedia.getId());
+                       }
+                       if (layoutManager.getRemoteView(remoteMedia.getId()) != null) {
+                           layoutManager.removeRemoteView(remoteMedia.getId());
+                       }
                        remoteMedia.destroy();
                    }
                }
                else if (c.getState() == ConnectionState.Closed) {
-                   textListener.onPeerLeft(peerName);
+                   if (peerPresence.disconnected(remoteClient.getInstanceId())) {
+                       textListener.onPeerLeft(peerName);
+                   }
+                   // A failed connection may be reconnected, carrying on the peer's sequence; a closed one has left.
+                   signalling.peerLeft(remoteClient.getInstanceId());
+                   if (simulcastSelector != null) {
+                       simulcastSelector.destroy();
+                   }
                }
                else if (c.getState() == ConnectionState.Failed) {
-                   textListener.onPeerLeft(peerName);
-                   if (!SIGNAL_MANUALLY)
-                       signalling.reconnect(remoteClient, c);
+                   // Reconnect attempts that fail again are not new departures.
+                   if (peerPresence.disconnected(remoteClient.getInstanceId())) {
+                       textListener.onPeerLeft(peerName);
+                   }
+                   if (simulcastSelector != null) {
+                       simulcastSelector.destroy();
+                   }
+                   signalling.reconnect(remoteClient, c);
                }
            }
        });
@@ -334,12 +753,31 @@ public class App {
        return connection;
    }
 
+    /**
+     * The stats of the current session's connections, or null before joining.
+     */
+    public StatsCollector getStatsCollector() {
+        return statsCollector;
+    }
+
     public fm.icelink.Future<Object> leaveAsync() {
+        if (statsCollector != null) {
+            statsCollector.stop();
+            statsCollector = null;
+        }
+        joinRequestedTime = 0;
         return signalling.leaveAsync();
     }
 
     private boolean usingFrontVideoDevice = true;
 
+    /**
+     * The current capture profile, or null when not using the camera.
+     */
+    public CaptureProfile getCaptureProfile() {
+        return captureController == null ? null : captureController.getProfile();
+    }
+
     public void useNextVideoDevice() {
         if (localMedia != null) {
             localMedia.changeVideoSourceInput(usingFrontVideoDevice ?
@@ -374,54 +812,36 @@ public class App {
         return Promise.resolveNow();
     }
 
+    /**
+     * Records the whole session's audio, mixed into one track, whichever view
+     * the menu was opened on.
+     */
     public void setIsRecordingAudio(View v, boolean record)
     {
-        if (localMedia.getView() == v) {
-            if (localMedia.getIsRecordingAudio() != record) {
-                localMedia.toggleAudioRecording();
-            }
-        } else {
-            RemoteMedia remote = mediaTable.get(v);
-            if (remote.getIsRecordingAudio() != record) {
-                remote.toggleAudioRecording();
-            }
+        if (sessionRecorder != null) {
+            sessionRecorder.setIsRecordingAudio(record);
         }
     }
 
     public boolean getIsRecordingAudio(View v)
     {
-        if (localMedia != null && localMedia.getView() != null && localMedia.getView() == v) {
-            return localMedia.getIsRecordingAudio();
-        }
-        else if (mediaTable.get(v) != null) {
-            return mediaTable.get(v).getIsRecordingAudio();
-        }
-        else return false;
+        return sessionRecorder != null && sessionRecorder.getIsRecordingAudio();
     }
 
+    /**
+     * Records the whole session's video, tiled into one track, whichever view
+     * the menu was opened on.
+     */
     public void setIsRecordingVideo(View v, boolean record)
     {
-        if (localMedia.getView() == v) {
-            if (localMedia.getIsRecordingVideo() != record) {
-                localMedia.toggleVideoRecording();
-            }
-        } else {
-            RemoteMedia remote = mediaTable.get(v);
-            if (remote.getIsRecordingVideo() != record) {
-                remote.toggleVideoRecording();
-            }
+        if (sessionRecorder != null) {
+            sessionRecorder.setIsRecordingVideo(record);
         }
     }
 
     public boolean getIsRecordingVideo(View v)
     {
-        if (localMedia != null && localMedia.getView() != null && localMedia.getView() == v) {
-            return localMedia.getIsRecordingVideo();
-        }
-        else if (mediaTable.get(v) != null) {
-            return mediaTable.get(v).getIsRecordingVideo();
-        }
-        else return false;
+        return sessionRecorder != null && sessionRecorder.getIsRecordingVideo();
     }
 
     public void setAudioMuted(View v, boolean mute)
@@ -429,7 +849,10 @@ public class App {
         if (localMedia.getView() == v) {
             localMedia.setAudioMuted(mute);
         } else {
-            mediaTable.get(v).setAudioMuted(mute);
+            RemoteMedia remote = remoteMedias.getByView(v);
+            if (remote != null) {
+                remote.setAudioMuted(mute);
+            }
         }
     }
 
@@ -438,10 +861,10 @@ public class App {
         if (localMedia != null && localMedia.getView() != null && localMedia.getView() == v) {
             return localMedia.getAudioMuted();
         }
-        else if (mediaTable.get(v) != null) {
-            return mediaTable.get(v).getAudioMuted();
+        else {
+            RemoteMedia remote = remoteMedias.getByView(v);
+            return remote != null && remote.getAudioMuted();
         }
-        else return false;
     }
 
     public void setVideoMuted(View v, boolean mute)
@@ -449,7 +872,10 @@ public class App {
         if (localMedia.getView() == v) {
             localMedia.setVideoMuted(mute);
         } else {
-            mediaTable.get(v).setVideoMuted(mute);
+            RemoteMedia remote = remoteMedias.getByView(v);
+            if (remote != null) {
+                remote.setVideoMuted(mute);
+            }
         }
     }
 
@@ -458,14 +884,19 @@ public class App {
         if (localMedia != null && localMedia.getView() != null && localMedia.getView() == v) {
             return localMedia.getVideoMuted();
         }
-        else if (mediaTable.get(v) != null) {
-            return mediaTable.get(v).getVideoMuted();
+        else {
+            RemoteMedia remote = remoteMedias.getByView(v);
+            return remote != null && remote.getVideoMuted();
         }
-        else return false;
     }
 
     public void writeLine(String message)
     {
+        if (message.startsWith(inviteCommand)) {
+            String userName = message.substring(inviteCommand.length()).trim();
+            textListener.onReceivedText(name, invite(userName) ? "Ringing " + userName + "." : "Could not ring " + userName + ".");
+            return;
+        }
         signalling.writeLine(message);
     }
 
@@ -0,0 +1,82 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * AudioGate
+ *
+ * Decides, frame by frame, whether a stream of 16-bit PCM is speaking: a
+ * frame's RMS level must reach the threshold, and once it has the gate stays
+ * open for a short hangover so word endings are not cut. RemoteMedia uses it
+ * to keep silent peers out of the AEC output mixer; the levels match
+ * AudioMixdown's gate.
+ */
+public class AudioGate {
+
+    // About -50 dBFS.
+    private int threshold = 100;
+    private int hangoverFrames = 15;
+    private int hangover;
+
+    public synchronized int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * The RMS level (of 32767) a frame needs to open the gate. 0 passes everything.
+     */
+    public synchronized void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public synchronized int getHangoverFrames() {
+        return hangoverFrames;
+    }
+
+    /**
+     * How many frames the gate stays open after the level drops below the threshold.
+     */
+    public synchronized void setHangoverFrames(int hangoverFrames) {
+        this.hangoverFrames = hangoverFrames;
+    }
+
+    /**
+     * Measures a frame and reports whether it should be passed on.
+     */
+    public synchronized boolean process(byte[] data, int index, int length, boolean littleEndian) {
+        if (threshold <= 0) {
+            return true;
+        }
+
+        int samples = length / 2;
+        if (samples == 0) {
+            return hangover > 0;
+        }
+        long energy = 0;
+        int end = index + samples * 2;
+        if (littleEndian) {
+            for (int i = index; i < end; i += 2) {
+                int value = (short) ((data[i] & 0xff) | (data[i + 1] << 8));
+                energy += value * value;
+            }
+        } else {
+            for (int i = index; i < end; i += 2) {
+                int value = (short) ((data[i] << 8) | (data[i + 1] & 0xff));
+                energy += value * value;
+            }
+        }
+
+        // Compare squares rather than taking the root of every frame.
+        if (energy >= (long) threshold * threshold * samples) {
+            hangover = hangoverFrames;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void reset() {
+        hangover = 0;
+    }
+}
@@ -0,0 +1,308 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * AudioMixdown
+ *
+ * Mixes 16-bit PCM from any number of inputs into one stream. Each input is
+ * converted to the output rate and channel count as it arrives and queued in
+ * its own jitter buffer; read takes one frame from every input and sums them.
+ * An input joins the mix once it has jitterFrames buffered, drops back out to
+ * re-buffer when it runs dry, and never holds more than maxFrames (the oldest
+ * samples are dropped), so memory stays bounded however an input drifts.
+ *
+ * Only inputs that are speaking are summed: a frame's level must reach the
+ * gate threshold (with a short hangover so word endings are not cut), and of
+ * those only the maxSpeakers loudest are mixed. Silent inputs are still
+ * drained so they stay aligned. Mixing reuses its buffers, so reading a
+ * frame allocates nothing.
+ */
+public class AudioMixdown {
+
+    private static class Input {
+        short[] samples;
+        int start;
+        int count;
+        boolean primed;
+
+        // Per read: samples taken this frame, smoothed level, and gate state.
+        int available;
+        float level;
+        int hangover;
+        boolean speaking;
+        boolean selected;
+
+        // Resampler state: position of the next output frame, in input frames
+        // relative to the start of the next write, and the last input frame.
+        double position;
+        float[] last;
+    }
+
+    private final int clockRate;
+    private final int channelCount;
+    private final int frameSamples;
+    private final int jitterFrames;
+    private final int maxFrames;
+    private final HashMap<String, Input> inputs = new HashMap<>();
+    private final ArrayList<Input> inputList = new ArrayList<>();
+    private final int[] mix;
+
+    // About -50 dBFS.
+    private int gateThreshold = 100;
+    private int hangoverFrames = 15;
+    private int maxSpeakers = 4;
+
+    /**
+     * @param frameDuration Length of a mixed frame in milliseconds.
+     * @param jitterFrames Frames an input buffers before it is mixed.
+     * @param maxFrames Frames an input may buffer before the oldest are dropped.
+     */
+    public AudioMixdown(int clockRate, int channelCount, int frameDuration, int jitterFrames, int maxFrames) {
+        this.clockRate = clockRate;
+        this.channelCount = channelCount;
+        this.frameSamples = clockRate * frameDuration / 1000 * channelCount;
+        this.jitterFrames = jitterFrames;
+        this.maxFrames = Math.max(maxFrames, jitterFrames + 1);
+        this.mix = new int[frameSamples];
+    }
+
+    public synchronized int getGateThreshold() {
+        return gateThreshold;
+    }
+
+    /**
+     * The RMS level (of 32767) a frame needs for its input to count as speaking. 0 mixes everything.
+     */
+    public synchronized void setGateThreshold(int gateThreshold) {
+        this.gateThreshold = gateThreshold;
+    }
+
+    public synchronized int getHangoverFrames() {
+        return hangoverFrames;
+    }
+
+    /**
+     * How many frames an input keeps being mixed after it drops below the gate.
+     */
+    public synchronized void setHangoverFrames(int hangoverFrames) {
+        this.hangoverFrames = hangoverFrames;
+    }
+
+    public synchronized int getMaxSpeakers() {
+        return maxSpeakers;
+    }
+
+    /**
+     * The most inputs mixed at once; the loudest speaking ones win.
+     */
+    public synchronized void setMaxSpeakers(int maxSpeakers) {
+        this.maxSpeakers = maxSpeakers;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Size in bytes of a mixed frame.
+     */
+    public int getFrameLength() {
+        return frameSamples * 2;
+    }
+
+    public synchronized void add(String id) {
+        if (!inputs.containsKey(id)) {
+            Input input = new Input();
+            input.samples = new short[frameSamples * maxFrames];
+            input.last = new float[channelCount];
+            inputs.put(id, input);
+            inputList.add(input);
+        }
+    }
+
+    public synchronized void remove(String id) {
+        Input input = inputs.remove(id);
+        if (input != null) {
+            inputList.remove(input);
+        }
+    }
+
+    public synchronized int size() {
+        return inputs.size();
+    }
+
+    /**
+     * Queues PCM from an input. Writes for unknown inputs are ignored.
+     */
+    public synchronized void write(String id, byte[] data, int index, int length, boolean littleEndian, int inputClockRate, int inputChannelCount) {
+        Input input = inputs.get(id);
+        if (input == null || inputChannelCount <= 0 || inputClockRate <= 0) {
+            return;
+        }
+
+        int frames = length / 2 / inputChannelCount;
+        if (inputClockRate == clockRate) {
+            for (int i = 0; i < frames; i++) {
+                for (int c = 0; c < channelCount; c++) {
+                    put(input, (short) Math.round(sample(data, index, littleEndian, i, c, inputChannelCount)));
+                }
+            }
+            return;
+        }
+
+        // Linear interpolation, carrying the fractional position across writes.
+        double step = (double) inputClockRate / clockRate;
+        while (input.position < frames - 1) {
+            int i = (int) Math.floor(input.position);
+            float fraction = (float) (input.position - i);
+            for (int c = 0; c < channelCount; c++) {
+                float a = i < 0 ? input.last[c] : sample(data, index, littleEndian, i, c, inputChannelCount);
+                float b = sample(data, index, littleEndian, i + 1, c, inputChannelCount);
+                put(input, (short) Math.round(a + (b - a) * fraction));
+            }
+            input.position += step;
+        }
+        if (frames > 0) {
+            for (int c = 0; c < channelCount; c++) {
+                input.last[c] = sample(data, index, littleEndian, frames - 1, c, inputChannelCount);
+            }
+            input.position -= frames;
+        }
+    }
+
+    /**
+     * Mixes the next frame into output as little-endian 16-bit PCM. Inputs
+     * that are still buffering or not speaking contribute silence.
+     *
+     * @return The number of inputs mixed.
+     */
+    public synchronized int read(byte[] output) {
+        int size = inputList.size();
+
+        // Take a frame from every buffered input and measure it.
+        for (int n = 0; n < size; n++) {
+            Input input = inputList.get(n);
+            input.available = 0;
+            input.speaking = false;
+            input.selected = false;
+            if (!input.primed) {
+                if (input.count < frameSamples * jitterFrames) {
+                    continue;
+                }
+                input.primed = true;
+            }
+
+            input.available = Math.min(input.count, frameSamples);
+            // The frame may wrap around the end of the ring: a head run from start, then a tail from 0.
+            short[] samples = input.samples;
+            int head = Math.min(input.available, samples.length - input.start);
+            long energy = 0;
+            for (int i = input.start, end = input.start + head; i < end; i++) {
+                energy += samples[i] * samples[i];
+            }
+            for (int i = 0, end = input.available - head; i < end; i++) {
+                energy += samples[i] * samples[i];
+            }
+            float rms = (float) Math.sqrt((double) energy / frameSamples);
+            input.level = input.level * 0.5f + rms * 0.5f;
+            if (rms >= gateThreshold) {
+                input.hangover = hangoverFrames;
+                input.speaking = true;
+            } else if (input.hangover > 0) {
+                input.hangover--;
+                input.speaking = true;
+            }
+        }
+
+        // Pick the loudest speaking inputs.
+        int mixed = 0;
+        while (mixed < maxSpeakers) {
+            Input loudest = null;
+            for (int n = 0; n < size; n++) {
+                Input input = inputList.get(n);
+                if (input.available > 0 && input.speaking && !input.selected
+                        && (loudest == null || input.level > loudest.level)) {
+                    loudest = input;
+                }
+            }
+            if (loudest == null) {
+                break;
+            }
+            loudest.selected = true;
+            mixed++;
+        }
+
+        Arrays.fill(mix, 0);
+        for (int n = 0; n < size; n++) {
+            Input input = inputList.get(n);
+            if (input.selected) {
+                short[] samples = input.samples;
+                int head = Math.min(input.available, samples.length - input.start);
+                for (int i = 0; i < head; i++) {
+                    mix[i] += samples[input.start + i];
+                }
+                for (int i = head; i < input.available; i++) {
+                    mix[i] += samples[i - head];
+                }
+            }
+
+            // Silent and unselected inputs are drained too, so they stay aligned.
+            input.start = (input.start + input.available) % input.samples.length;
+            input.count -= input.available;
+            if (input.primed && input.available < frameSamples) {
+                // Ran dry; buffer up again before mixing it back in.
+                input.primed = false;
+            }
+        }
+
+        for (int i = 0; i < frameSamples; i++) {
+            int value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            output[i * 2] = (byte) value;
+            output[i * 2 + 1] = (byte) (value >> 8);
+        }
+        return mixed;
+    }
+
+    /**
+     * One sample, mapped to output channel c (mono is duplicated, extra input channels are averaged).
+     */
+    private float sample(byte[] data, int index, boolean littleEndian, int frame, int c, int inputChannelCount) {
+        if (inputChannelCount == channelCount) {
+            return read16(data, index + (frame * inputChannelCount + c) * 2, littleEndian);
+        }
+        if (inputChannelCount == 1) {
+            return read16(data, index + frame * 2, littleEndian);
+        }
+        if (channelCount == 1) {
+            float sum = 0;
+            for (int i = 0; i < inputChannelCount; i++) {
+                sum += read16(data, index + (frame * inputChannelCount + i) * 2, littleEndian);
+            }
+            return sum / inputChannelCount;
+        }
+        return read16(data, index + (frame * inputChannelCount + Math.min(c, inputChannelCount - 1)) * 2, littleEndian);
+    }
+
+    private static int read16(byte[] data, int offset, boolean littleEndian) {
+        return littleEndian ?
+                (short) ((data[offset] & 0xff) | (data[offset + 1] << 8)) :
+                (short) ((data[offset] << 8) | (data[offset + 1] & 0xff));
+    }
+
+    private void put(Input input, short value) {
+        if (input.count == input.samples.length) {
+            // Full: drop the oldest sample frame (every channel) to stay within maxFrames.
+            input.start = (input.start + channelCount) % input.samples.length;
+            input.count -= channelCount;
+        }
+        input.samples[(input.start + input.count) % input.samples.length] = value;
+        input.count++;
+    }
+}
@@ -26,15 +26,37 @@ public class AutoSignalling extends Signalling {
 
     @Override
     protected void doJoinAsync(final Promise<Object> promise) {
+        if (getPipelineJoin()) {
+            // Signalling has opened a client batch, so these are sent together.
+            whenAll(joinStage(bindUserMetadata(), "bind"),
+                    joinStage(subscribeToSessionChannel(), "sessionChannel")).then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object object) {
+                    promise.resolve(null);
+                }
+            }).fail(new IAction1<Exception>() {
+                @Override
+                public void invoke(Exception e) {
+                    promise.reject(e);
+                }
+            });
+            return;
+        }
+
         bindUserUserMetadata(userIdKey, userId).then(new IFunction1<Object, Future<Object>>() {
             @Override
             public Future<Object> invoke(Object object) {
-                return bindUserUserMetadata(userNameKey, userName);
+                return joinStage(bindUserUserMetadata(userNameKey, userName), "bind");
+            }
+        }).then(new IFunction1<Object, Future<Object>>() {
+            @Override
+            public Future<Object> invoke(Object object) {
+                return bindPushToken();
             }
         }).then(new IFunction1<Object, Future<Object>>() {
                 @Override
                 public Future<Object> invoke(Object object) {
-                    return subscribeToSessionChannel();
+                    return joinStage(subscribeToSessionChannel(), "sessionChannel");
                 }
         }).then(new IAction1<Object>() {
                 @Override
@@ -92,6 +114,11 @@ public class AutoSignalling extends Signalling {
             public Future<Object> invoke(Object object) {
                 return unbindUserMetadata(userNameKey);
             }
+        }).then(new IFunction1<Object, Future<Object>>() {
+            @Override
+            public Future<Object> invoke(Object object) {
+                return unbindPushToken();
+            }
         });
     }
 
@@ -0,0 +1,377 @@
+package fm.icelink.chat.websync4;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * BZip2InputStream
+ *
+ * Minimal bzip2 decompressor, used to unpack the OpenH264 library that Cisco
+ * distributes as .bz2. Every block CRC and the combined stream CRC are
+ * checked, so a truncated or corrupted archive fails with an IOException
+ * instead of producing a damaged library.
+ */
+public class BZip2InputStream extends InputStream {
+
+    private static final int[] crcTable = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int j = 0; j < 8; j++) {
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            }
+            crcTable[i] = c;
+        }
+    }
+
+    private static final int maxGroups = 6;
+    private static final int maxAlphaSize = 258;
+    private static final int maxCodeLength = 20;
+    private static final int groupSize = 50;
+
+    private final InputStream input;
+    private long bitBuffer;
+    private int bitCount;
+
+    private int blockSize;
+    private int[] tt;
+    private boolean streamEnded;
+    private int streamCrc;
+
+    // Decoded block state.
+    private int blockLength;
+    private int blockCrc;
+    private int computedBlockCrc;
+    private int position;
+    private int remaining;
+    private int lastByte = -1;
+    private int runLength;
+    private int repeat;
+
+    public BZip2InputStream(InputStream input) throws IOException {
+        this.input = input;
+        if (readBits(8) != 'B' || readBits(8) != 'Z' || readBits(8) != 'h') {
+            throw new IOException("Not a bzip2 stream.");
+        }
+        int level = readBits(8) - '0';
+        if (level < 1 || level > 9) {
+            throw new IOException("Invalid bzip2 block size.");
+        }
+        blockSize = level * 100000;
+        tt = new int[blockSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (repeat > 0) {
+                repeat--;
+                return emit(lastByte);
+            }
+            if (remaining == 0) {
+                if (!nextBlock()) {
+                    return -1;
+                }
+                continue;
+            }
+
+            position = tt[position];
+            int b = position & 0xff;
+            position >>>= 8;
+            remaining--;
+
+            // Undo the initial run-length encoding: four equal bytes are followed by a repeat count.
+            if (runLength == 4) {
+                runLength = 0;
+                repeat = b;
+                continue;
+            }
+            if (b == lastByte) {
+                runLength++;
+            } else {
+                runLength = 1;
+                lastByte = b;
+            }
+            return emit(b);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int b = read();
+            if (b < 0) {
+                return count == 0 ? -1 : count;
+            }
+            buffer[offset + count++] = (byte) b;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private int emit(int b) {
+        computedBlockCrc = (computedBlockCrc << 8) ^ crcTable[((computedBlockCrc >>> 24) ^ b) & 0xff];
+        return b;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (blockLength > 0) {
+            if (~computedBlockCrc != blockCrc) {
+                throw new IOException("bzip2 block CRC mismatch.");
+            }
+            streamCrc = ((streamCrc << 1) | (streamCrc >>> 31)) ^ blockCrc;
+            blockLength = 0;
+        }
+        if (streamEnded) {
+            return false;
+        }
+
+        long magic = ((long) readBits(24) << 24) | readBits(24);
+        if (magic == 0x177245385090L) {
+            int expected = readBits(32);
+            if (expected != streamCrc) {
+                throw new IOException("bzip2 stream CRC mismatch.");
+            }
+            streamEnded = true;
+            return false;
+        }
+        if (magic != 0x314159265359L) {
+            throw new IOException("Invalid bzip2 block header.");
+        }
+
+        blockCrc = readBits(32);
+        if (readBits(1) != 0) {
+            throw new IOException("Randomised bzip2 blocks are not supported.");
+        }
+        int origin = readBits(24);
+        decodeBlock(origin);
+        computedBlockCrc = -1;
+        lastByte = -1;
+        runLength = 0;
+        repeat = 0;
+        return true;
+    }
+
+    private void decodeBlock(int origin) throws IOException {
+        // Symbol map: which byte values occur in the block.
+        byte[] seqToUnseq = new byte[256];
+        int inUseCount = 0;
+        int ranges = readBits(16);
+        for (int i = 0; i < 16; i++) {
+            if ((ranges & (0x8000 >>> i)) != 0) {
+                int bits = readBits(16);
+                for (int j = 0; j < 16; j++) {
+                    if ((bits & (0x8000 >>> j)) != 0) {
+                        seqToUnseq[inUseCount++] = (byte) (i * 16 + j);
+                    }
+                }
+            }
+        }
+        if (inUseCount == 0) {
+            throw new IOException("Empty bzip2 symbol map.");
+        }
+        int alphaSize = inUseCount + 2;
+
+        // Huffman table selectors, move-to-front coded.
+        int groups = readBits(3);
+        int selectorCount = readBits(15);
+        if (groups < 2 || groups > maxGroups || selectorCount < 1) {
+            throw new IOException("Invalid bzip2 Huffman groups.");
+        }
+        byte[] mtfGroups = new byte[maxGroups];
+        for (int i = 0; i < groups; i++) {
+            mtfGroups[i] = (byte) i;
+        }
+        byte[] selectors = new byte[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            int j = 0;
+            while (readBits(1) != 0) {
+                if (++j >= groups) {
+                    throw new IOException("Invalid bzip2 selector.");
+                }
+            }
+            byte value = mtfGroups[j];
+            System.arraycopy(mtfGroups, 0, mtfGroups, 1, j);
+            mtfGroups[0] = value;
+            selectors[i] = value;
+        }
+
+        // Code lengths, delta coded, then canonical Huffman tables.
+        int[][] limit = new int[groups][maxCodeLength + 2];
+        int[][] base = new int[groups][maxCodeLength + 2];
+        int[][] perm = new int[groups][maxAlphaSize];
+        int[] minLengths = new int[groups];
+        int[] lengths = new int[maxAlphaSize];
+        for (int t = 0; t < groups; t++) {
+            int length = readBits(5);
+            for (int i = 0; i < alphaSize; i++) {
+                while (true) {
+                    if (length < 1 || length > maxCodeLength) {
+                        throw new IOException("Invalid bzip2 code length.");
+                    }
+                    if (readBits(1) == 0) {
+                        break;
+                    }
+                    length += readBits(1) == 0 ? 1 : -1;
+                }
+                lengths[i] = length;
+            }
+            minLengths[t] = createTable(lengths, alphaSize, limit[t], base[t], perm[t]);
+        }
+
+        // Huffman decode with run-length zeros (RUNA/RUNB) and move-to-front.
+        int[] counts = new int[256];
+        byte[] mtf = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            mtf[i] = (byte) i;
+        }
+
+        int endOfBlock = inUseCount + 1;
+        int length = 0;
+        int groupIndex = -1;
+        int groupRemaining = 0;
+        int run = 0;
+        int runWeight = 1;
+        int[] groupLimit = null;
+        int[] groupBase = null;
+        int[] groupPerm = null;
+        int groupMinLength = 0;
+
+        while (true) {
+            if (groupRemaining == 0) {
+                if (++groupIndex >= selectorCount) {
+                    throw new IOException("Invalid bzip2 selector index.");
+                }
+                int t = selectors[groupIndex];
+                groupLimit = limit[t];
+                groupBase = base[t];
+                groupPerm = perm[t];
+                groupMinLength = minLengths[t];
+                groupRemaining = groupSize;
+            }
+            groupRemaining--;
+
+            int n = groupMinLength;
+            int code = readBits(n);
+            while (n <= maxCodeLength && code > groupLimit[n]) {
+                n++;
+                code = (code << 1) | readBits(1);
+            }
+            if (n > maxCodeLength) {
+                throw new IOException("Invalid bzip2 Huffman code.");
+            }
+            int symbol = groupPerm[code - groupBase[n]];
+
+            if (symbol <= 1) {
+                // RUNA adds 1x, RUNB adds 2x the current weight of the run of zeros.
+                run += (symbol + 1) * runWeight;
+                runWeight <<= 1;
+                if (run > blockSize) {
+                    throw new IOException("bzip2 run exceeds block size.");
+                }
+                continue;
+            }
+
+            if (run > 0) {
+                if (length + run > blockSize) {
+                    throw new IOException("bzip2 block overflow.");
+                }
+                int value = seqToUnseq[mtf[0] & 0xff] & 0xff;
+                counts[value] += run;
+                while (run-- > 0) {
+                    tt[length++] = value;
+                }
+                run = 0;
+                runWeight = 1;
+            }
+
+            if (symbol == endOfBlock) {
+                break;
+            }
+
+            if (length >= blockSize) {
+                throw new IOException("bzip2 block overflow.");
+            }
+            int index = symbol - 1;
+            byte moved = mtf[index];
+            System.arraycopy(mtf, 0, mtf, 1, index);
+            mtf[0] = moved;
+            int value = seqToUnseq[moved & 0xff] & 0xff;
+            counts[value]++;
+            tt[length++] = value;
+        }
+
+        if (origin >= length) {
+            throw new IOException("Invalid bzip2 origin pointer.");
+        }
+
+        // Inverse Burrows-Wheeler transform: link each entry to its successor.
+        int[] starts = new int[256];
+        for (int i = 0, sum = 0; i < 256; i++) {
+            starts[i] = sum;
+            sum += counts[i];
+        }
+        for (int i = 0; i < length; i++) {
+            int value = tt[i] & 0xff;
+            tt[starts[value]++] |= i << 8;
+        }
+
+        blockLength = length;
+        position = tt[origin] >>> 8;
+        remaining = length;
+    }
+
+    private static int createTable(int[] lengths, int alphaSize, int[] limit, int[] base, int[] perm) {
+        int minLength = maxCodeLength;
+        int maxLength = 0;
+        for (int i = 0; i < alphaSize; i++) {
+            minLength = Math.min(minLength, lengths[i]);
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+
+        int p = 0;
+        for (int length = minLength; length <= maxLength; length++) {
+            for (int i = 0; i < alphaSize; i++) {
+                if (lengths[i] == length) {
+                    perm[p++] = i;
+                }
+            }
+        }
+
+        int[] counts = new int[maxCodeLength + 2];
+        for (int i = 0; i < alphaSize; i++) {
+            counts[lengths[i]]++;
+        }
+
+        // limit[n] is the largest code of length n; base[n] maps a code of length n to its index in perm.
+        int code = 0;
+        int index = 0;
+        for (int length = 0; length <= maxCodeLength; length++) {
+            base[length] = code - index;
+            code += counts[length];
+            index += counts[length];
+            limit[length] = code - 1;
+            code <<= 1;
+        }
+        limit[maxCodeLength + 1] = Integer.MAX_VALUE;
+        return minLength;
+    }
+
+    private int readBits(int count) throws IOException {
+        while (bitCount < count) {
+            int b = input.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of bzip2 stream.");
+            }
+            bitBuffer = (bitBuffer << 8) | b;
+            bitCount += 8;
+        }
+        bitCount -= count;
+        return (int) ((bitBuffer >>> bitCount) & ((1L << count) - 1));
+    }
+}
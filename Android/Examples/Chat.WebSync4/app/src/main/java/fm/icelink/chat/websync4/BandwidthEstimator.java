@@ -0,0 +1,54 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * BandwidthEstimator
+ *
+ * A loss-based estimate of the bandwidth available to send on one
+ * connection, updated once per stats sample in the manner of the loss
+ * controller in Google Congestion Control: while loss stays under 2% the
+ * estimate grows by 8% a sample, over 10% it backs off from what was
+ * actually sent in proportion to the loss, and in between, or without a
+ * loss reading, it holds.
+ */
+public class BandwidthEstimator {
+
+    private static final double lowLoss = 2;
+    private static final double highLoss = 10;
+    private static final double growth = 1.08;
+
+    private final double minKbps;
+    private final double maxKbps;
+    private double estimate;
+
+    /**
+     * @param initialKbps The estimate before the first sample.
+     * @param minKbps The lowest the estimate goes.
+     * @param maxKbps The highest the estimate goes; there is no use probing past what can be sent.
+     */
+    public BandwidthEstimator(double initialKbps, double minKbps, double maxKbps) {
+        this.minKbps = minKbps;
+        this.maxKbps = maxKbps;
+        this.estimate = Math.max(minKbps, Math.min(maxKbps, initialKbps));
+    }
+
+    public synchronized double getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @param sendKbps What was sent since the last sample.
+     * @param packetLoss Loss the remote reported on what was sent since the last sample, in
+     *                   percent, or NaN if there is nothing to tell, in which case the estimate holds.
+     * @return The updated estimate, in kbps.
+     */
+    public synchronized double update(double sendKbps, double packetLoss) {
+        if (packetLoss > highLoss) {
+            estimate = Math.min(estimate, sendKbps) * (1 - packetLoss / 200);
+        }
+        else if (packetLoss < lowLoss) {
+            estimate *= growth;
+        }
+        estimate = Math.max(minKbps, Math.min(maxKbps, estimate));
+        return estimate;
+    }
+}
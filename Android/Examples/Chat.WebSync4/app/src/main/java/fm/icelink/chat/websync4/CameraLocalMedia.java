@@ -20,7 +20,11 @@ import static android.content.Context.MEDIA_PROJECTION_SERVICE;
 
 public class CameraLocalMedia extends LocalMedia<View> {
     private CameraPreview viewSink;
-    private VideoConfig videoConfig = new VideoConfig(640, 480, 30);
+    private static final int captureWidth = 640;
+    private static final int captureHeight = 480;
+
+    private VideoConfig videoConfig = new VideoConfig(captureWidth, captureHeight, CaptureProfile.High.getFrameRate());
+    private CaptureProfile captureProfile = CaptureProfile.High;
 
     @Override
     protected ViewSink<View> createViewSink() {
@@ -45,4 +49,37 @@ public class CameraLocalMedia extends LocalMedia<View> {
     {
         return viewSink.getView();
     }
+
+    public CaptureProfile getCaptureProfile() {
+        return captureProfile;
+    }
+
+    /**
+     * Applies a capture profile. The scale takes effect on the next frame; a
+     * frame rate change restarts the camera with the new configuration.
+     *
+     * @return Future
+     */
+    public Future<Object> setCaptureProfile(CaptureProfile profile) {
+        boolean frameRateChanged = profile.getFrameRate() != captureProfile.getFrameRate();
+        captureProfile = profile;
+        setVideoScale(profile.getScale());
+
+        final VideoSource source = getVideoSource();
+        if (!frameRateChanged || !(source instanceof CameraSource)) {
+            return Promise.resolveNow(null);
+        }
+
+        videoConfig = new VideoConfig(captureWidth, captureHeight, profile.getFrameRate());
+        ((CameraSource) source).setConfig(videoConfig);
+        if (source.getState() != MediaSourceState.Started) {
+            return Promise.resolveNow(null);
+        }
+
+        return source.stop().then(new IFunction1<Object, Future<Object>>() {
+            public Future<Object> invoke(Object o) {
+                return source.start();
+            }
+        });
+    }
 }
\ No newline at end of file
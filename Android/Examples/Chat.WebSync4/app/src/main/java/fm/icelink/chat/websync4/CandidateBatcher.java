@@ -0,0 +1,129 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.IAction2;
+
+/**
+ * CandidateBatcher
+ *
+ * Collects trickled local candidates per remote user channel and hands them
+ * to the flush callback as a single JSON array, either once the batch size
+ * is reached or once the batch window has elapsed since the first queued
+ * candidate, whichever comes first.
+ */
+public class CandidateBatcher {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CandidateBatcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object lock = new Object();
+    private final HashMap<String, ArrayList<String>> pending = new HashMap<>();
+    private final HashMap<String, ScheduledFuture<?>> timers = new HashMap<>();
+    private final IAction2<String, String> onFlush;
+
+    private int batchWindow = 50;
+    public int getBatchWindow() {
+        return this.batchWindow;
+    }
+    public void setBatchWindow(int milliseconds) {
+        this.batchWindow = milliseconds;
+    }
+
+    private int batchSize = 8;
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    public void setBatchSize(int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param onFlush Invoked with the remote user channel and a JSON array of candidates.
+     */
+    public CandidateBatcher(IAction2<String, String> onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    public void add(final String channel, String candidateJson) {
+        String batch = null;
+        synchronized (lock) {
+            ArrayList<String> candidates = pending.get(channel);
+            if (candidates == null) {
+                candidates = new ArrayList<>();
+                pending.put(channel, candidates);
+            }
+            candidates.add(candidateJson);
+
+            if (batchWindow <= 0 || candidates.size() >= batchSize) {
+                batch = take(channel);
+            } else if (!timers.containsKey(channel)) {
+                timers.put(channel, scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(channel);
+                    }
+                }, batchWindow, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        if (batch != null) {
+            onFlush.invoke(channel, batch);
+        }
+    }
+
+    public void flush(String channel) {
+        String batch;
+        synchronized (lock) {
+            batch = take(channel);
+        }
+
+        if (batch != null) {
+            onFlush.invoke(channel, batch);
+        }
+    }
+
+    public void flushAll() {
+        ArrayList<String> channels;
+        synchronized (lock) {
+            channels = new ArrayList<>(pending.keySet());
+        }
+
+        for (String channel : channels) {
+            flush(channel);
+        }
+    }
+
+    private String take(String channel) {
+        ScheduledFuture<?> timer = timers.remove(channel);
+        if (timer != null) {
+            timer.cancel(false);
+        }
+
+        ArrayList<String> candidates = pending.remove(channel);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(candidates.get(i));
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,159 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * CaptureHysteresis
+ *
+ * Decides where AdaptiveCaptureController's capture profile sits on the
+ * CaptureProfile ladder, from one sample of the peer count and CPU load at a
+ * time. It steps down as the peer count or load rises and back up once both
+ * have dropped. Separate down/up thresholds, consecutive-sample counts and a
+ * hold time after each change keep it from oscillating.
+ *
+ * A step down taken for CPU rather than for peers only needs the peer count to
+ * stay below the step-down threshold to step back up, and the level remembers
+ * how much load that step saved: it only steps up when the current load plus
+ * that saving stays under the high threshold, so it does not step straight
+ * back into the load that caused the step down.
+ */
+public class CaptureHysteresis {
+
+    /**
+     * Step down from ladder level i once the peer count reaches stepDownPeers[i].
+     */
+    private static final int[] stepDownPeers = new int[] { 3, 5 };
+
+    /**
+     * Step up to ladder level i once the peer count falls to stepUpPeers[i],
+     * if the step down from it was taken for peers.
+     */
+    private static final int[] stepUpPeers = new int[] { 1, 3 };
+
+    private int level;
+    private int highCpuSamples;
+    private int lowCpuSamples;
+    private long lastChangeTime;
+
+    // Per ladder level: whether it was entered for CPU, and the load that saved.
+    private final boolean[] cpuStep = new boolean[CaptureProfile.Ladder.length];
+    private final double[] savedLoad = new double[CaptureProfile.Ladder.length];
+    private double loadBeforeStep = -1;
+
+    private double highCpuLoad = 0.75;
+    public synchronized double getHighCpuLoad() {
+        return this.highCpuLoad;
+    }
+    /**
+     * CPU load above which to step down.
+     */
+    public synchronized void setHighCpuLoad(double load) {
+        this.highCpuLoad = load;
+    }
+
+    private double lowCpuLoad = 0.45;
+    public synchronized double getLowCpuLoad() {
+        return this.lowCpuLoad;
+    }
+    /**
+     * CPU load below which stepping up is allowed.
+     */
+    public synchronized void setLowCpuLoad(double load) {
+        this.lowCpuLoad = load;
+    }
+
+    private int holdTime = 10000;
+    public synchronized int getHoldTime() {
+        return this.holdTime;
+    }
+    /**
+     * Minimum time between two profile changes.
+     */
+    public synchronized void setHoldTime(int milliseconds) {
+        this.holdTime = milliseconds;
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * Holds off the next change until holdTime after the given time, in milliseconds.
+     */
+    public synchronized void hold(long time) {
+        lastChangeTime = time;
+    }
+
+    /**
+     * Moves to a level without regard to the thresholds, e.g. back to the
+     * profile still in use after a change could not be applied.
+     */
+    public synchronized void setLevel(int level) {
+        this.level = level;
+        highCpuSamples = 0;
+        lowCpuSamples = 0;
+        loadBeforeStep = -1;
+    }
+
+    /**
+     * Feeds one sample.
+     *
+     * @param time The current time, in milliseconds.
+     * @param cpuLoad The CPU load since the last sample.
+     * @param peers The number of connected peers.
+     * @return The level after the sample.
+     */
+    public synchronized int sample(long time, double cpuLoad, int peers) {
+        if (cpuLoad > highCpuLoad) {
+            highCpuSamples++;
+            lowCpuSamples = 0;
+        }
+        else if (cpuLoad < lowCpuLoad) {
+            lowCpuSamples++;
+            highCpuSamples = 0;
+        }
+        else {
+            highCpuSamples = 0;
+            lowCpuSamples = 0;
+        }
+
+        if (loadBeforeStep >= 0) {
+            // The first full sample after a step down shows what it saved.
+            savedLoad[level] = Math.max(0, loadBeforeStep - cpuLoad);
+            loadBeforeStep = -1;
+        }
+
+        int next = level;
+        boolean forPeers = false;
+        if (level < CaptureProfile.Ladder.length - 1 && (peers >= stepDownPeers[level] || highCpuSamples >= 2)) {
+            next = level + 1;
+            forPeers = peers >= stepDownPeers[level];
+        }
+        else if (level > 0 && canStepUp(peers, cpuLoad)) {
+            next = level - 1;
+        }
+
+        if (next != level && time - lastChangeTime >= holdTime) {
+            if (next > level) {
+                cpuStep[next] = !forPeers;
+                savedLoad[next] = 0;
+                loadBeforeStep = forPeers ? -1 : cpuLoad;
+            }
+            else {
+                loadBeforeStep = -1;
+            }
+            level = next;
+            lastChangeTime = time;
+            highCpuSamples = 0;
+            lowCpuSamples = 0;
+        }
+        return level;
+    }
+
+    /**
+     * Whether to step up from the current level: the peer count allows it and
+     * the load has stayed low, with room for what the step down saved.
+     */
+    private boolean canStepUp(int peers, double cpuLoad) {
+        boolean peersAllow = peers <= stepUpPeers[level - 1] || (cpuStep[level] && peers < stepDownPeers[level - 1]);
+        return peersAllow && lowCpuSamples >= 5 && cpuLoad + savedLoad[level] < highCpuLoad;
+    }
+}
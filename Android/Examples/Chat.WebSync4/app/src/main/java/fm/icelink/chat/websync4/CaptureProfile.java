@@ -0,0 +1,45 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * CaptureProfile
+ *
+ * A step on the capture ladder used by AdaptiveCaptureController: the scale
+ * applied to captured frames before encoding and the camera frame rate.
+ */
+public class CaptureProfile {
+
+    public static final CaptureProfile High = new CaptureProfile("high", 1.0, 30);
+    public static final CaptureProfile Medium = new CaptureProfile("medium", 0.75, 24);
+    public static final CaptureProfile Low = new CaptureProfile("low", 0.5, 15);
+
+    /**
+     * Profiles from highest to lowest quality.
+     */
+    public static final CaptureProfile[] Ladder = new CaptureProfile[] { High, Medium, Low };
+
+    private String name;
+    public String getName() {
+        return this.name;
+    }
+
+    private double scale;
+    public double getScale() {
+        return this.scale;
+    }
+
+    private int frameRate;
+    public int getFrameRate() {
+        return this.frameRate;
+    }
+
+    public CaptureProfile(String name, double scale, int frameRate) {
+        this.name = name;
+        this.scale = scale;
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + Math.round(scale * 100) + "% @ " + frameRate + "fps)";
+    }
+}
@@ -28,11 +28,27 @@ public class ChatActivity extends AppCompatActivity implements VideoChatFragment
     private App app;
     private ViewPager viewPager;
     private TabLayout tabLayout;
+    private TextView badgeView;
+    private int unreadMessages = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         app = App.getInstance(this);
         super.onCreate(savedInstanceState);
+
+        // Opened from a push invite: join its session once the fragments are ready.
+        PushInvite invite = PushInvite.fromIntent(getIntent());
+        PushInvite ignoredInvite = null;
+        if (invite != null && !conferenceStarted) {
+            app.markJoinRequested();
+            app.setSessionId(invite.getSessionId());
+            if (app.getName() == null) {
+                app.setName(android.os.Build.MODEL);
+            }
+        } else if (invite != null && !invite.getSessionId().equals(app.getSessionId())) {
+            // Already in a call; the invite cannot be joined without leaving it.
+            ignoredInvite = invite;
+        }
         setContentView(R.layout.activity_chat);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
@@ -49,6 +65,7 @@ public class ChatActivity extends AppCompatActivity implements VideoChatFragment
             @Override
             public void onPageSelected(int position) {
                 if (position == PagerAdapter.TextTabIndex) {
+                    unreadMessages = 0;
                     UpdateBadge(false);
                 }
             }
@@ -67,13 +84,21 @@ public class ChatActivity extends AppCompatActivity implements VideoChatFragment
             TabLayout.Tab tab = tabLayout.getTabAt(i);
             tab.setCustomView(adapter.getTabView(i));
         }
+        badgeView = (TextView) tabLayout.getTabAt(PagerAdapter.TextTabIndex).getCustomView().findViewById(R.id.badge);
+
+        if (ignoredInvite != null) {
+            alert("%s invited you to session %s. Leave session %s to join it.",
+                    ignoredInvite.getCallerName() == null ? "Someone" : ignoredInvite.getCallerName(),
+                    ignoredInvite.getSessionId(), app.getSessionId());
+        }
     }
 
-    public void onNewMessage()
+    public void onNewMessages(int count)
     {
         int i = viewPager.getCurrentItem();
 
         if (i == PagerAdapter.VideoTabIndex) {
+            unreadMessages += count;
             UpdateBadge(true);
         }
     }
@@ -193,15 +218,8 @@ public class ChatActivity extends AppCompatActivity implements VideoChatFragment
     }
 
     private void UpdateBadge(boolean visible) {
-        View view = tabLayout.getTabAt(PagerAdapter.TextTabIndex).getCustomView();
-        TextView textView = (TextView) view.findViewById(R.id.badge);
-        textView.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
-
-        if (visible) {
-            int newNumber = Integer.parseInt(textView.getText().toString()) + 1;
-            textView.setText(Integer.toString(newNumber));
-        } else {
-            textView.setText("0");
-        }
+        // The count is kept as an int; the badge text is only ever written.
+        badgeView.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+        badgeView.setText(Integer.toString(unreadMessages));
     }
 }
\ No newline at end of file
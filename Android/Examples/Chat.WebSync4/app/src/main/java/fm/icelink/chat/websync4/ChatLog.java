@@ -0,0 +1,103 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * ChatLog
+ *
+ * Bounded, append-only chat history in a fixed-size ring buffer. It is
+ * used from the UI thread only; UiEventDispatcher already batches events
+ * from other threads into one pass per frame. Appending never copies
+ * existing history and, once the log is full, the oldest entry is
+ * overwritten. Contains no Android types.
+ */
+public class ChatLog {
+
+    public static class Entry {
+        private String name;
+        public String getName() {
+            return this.name;
+        }
+
+        private String text;
+        public String getText() {
+            return this.text;
+        }
+
+        private boolean notice;
+        /**
+         * Whether this is a notice (e.g. a peer joined) rather than a message from name.
+         */
+        public boolean getIsNotice() {
+            return this.notice;
+        }
+
+        public Entry(String name, String text, boolean notice) {
+            this.name = name;
+            this.text = text;
+            this.notice = notice;
+        }
+    }
+
+    private final Entry[] entries;
+    private int head;
+    private int count;
+    private long appended;
+
+    public ChatLog(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.entries = new Entry[capacity];
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * Adds an entry, overwriting the oldest one once the log is full.
+     */
+    public void append(Entry entry) {
+        entries[(head + count) % entries.length] = entry;
+        if (count < entries.length) {
+            count++;
+        } else {
+            head = (head + 1) % entries.length;
+        }
+        appended++;
+    }
+
+    /**
+     * The number of entries in the log, at most the capacity.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The total number of entries ever appended, including evicted ones.
+     */
+    public long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * @param index 0 for the oldest entry, size() - 1 for the newest.
+     */
+    public Entry get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + count + ".");
+        }
+        return entries[(head + index) % entries.length];
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,70 @@
+package fm.icelink.chat.websync4;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * ChatLogAdapter
+ *
+ * Shows a ChatLog in a ListView, newest entry first. Rows are recycled, so
+ * only the visible entries are ever laid out. Drain the log and call
+ * notifyDataSetChanged on the UI thread to show new entries.
+ */
+public class ChatLogAdapter extends BaseAdapter {
+
+    private final ChatLog log;
+    private final LayoutInflater inflater;
+
+    public ChatLogAdapter(ChatLog log, Context context) {
+        this.log = log;
+        this.inflater = LayoutInflater.from(context);
+    }
+
+    @Override
+    public int getCount() {
+        return log.size();
+    }
+
+    @Override
+    public ChatLog.Entry getItem(int position) {
+        return log.get(log.size() - 1 - position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // Stable across drains: the entry's absolute position in the log.
+        return log.getAppendedCount() - 1 - position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView textView = (TextView) convertView;
+        if (textView == null) {
+            textView = (TextView) inflater.inflate(R.layout.chat_log_item, parent, false);
+        }
+
+        ChatLog.Entry entry = getItem(position);
+        SpannableString line;
+        if (entry.getIsNotice()) {
+            line = new SpannableString(entry.getName() + " " + entry.getText());
+            line.setSpan(new StyleSpan(Typeface.BOLD), 0, line.length(), 0);
+        } else {
+            line = new SpannableString(entry.getName() + ": " + entry.getText());
+            line.setSpan(new StyleSpan(Typeface.BOLD), 0, entry.getName().length(), 0);
+        }
+        textView.setText(line);
+        return textView;
+    }
+}
@@ -0,0 +1,232 @@
+package fm.icelink.chat.websync4;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+import fm.icelink.IFunction0;
+import fm.icelink.Log;
+import fm.icelink.VideoDecoder;
+import fm.icelink.VideoEncoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.android.MediaCodecMimeTypes;
+import fm.icelink.android.MediaCodecUtility;
+
+/**
+ * CodecProbe
+ *
+ * Finds the hardware H.264 and VP8 codecs that can be created on this device
+ * and creates encoders and decoders from them, falling back to software when
+ * none is usable or one fails. The probe result, including codecs that failed
+ * at runtime, is cached on disk per build fingerprint so later launches skip
+ * creating every codec.
+ */
+public class CodecProbe {
+
+    private static final String[] mimeTypes = new String[] { MediaCodecMimeTypes.H264, MediaCodecMimeTypes.Vp8 };
+    private static final String cacheFileName = "codec-probe.json";
+
+    private static CodecProbe instance;
+
+    public static synchronized CodecProbe getInstance(Context context) {
+        if (instance == null) {
+            instance = new CodecProbe(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final File cacheFile;
+    private CodecSelector selector;
+
+    private CodecProbe(Context context) {
+        cacheFile = new File(context.getFilesDir(), cacheFileName);
+    }
+
+    /**
+     * Loads the cached probe result or runs the probe. Safe to call from any
+     * thread; the first caller does the work, so call it early at startup.
+     */
+    public synchronized CodecSelector getSelector() {
+        if (selector == null) {
+            selector = load();
+            if (selector == null) {
+                long start = System.nanoTime();
+                selector = probe();
+                Log.info(String.format("Probed hardware codecs in %dms.", (System.nanoTime() - start) / 1000000));
+                save();
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * Creates a hardware encoder for the MIME type.
+     *
+     * @param fallback Creates the software encoder used if the hardware one fails; may return null.
+     * @return The encoder, or null if no working hardware encoder is available.
+     */
+    public VideoEncoder createEncoder(String mimeType, VideoFormat outputFormat, IFunction0<VideoEncoder> fallback) {
+        CodecSelector.Codec codec = getSelector().select(mimeType, true);
+        MediaCodecInfo info = codec == null ? null : findInfo(MediaCodecUtility.getEncoderInfos(mimeType), codec.getName());
+        if (info == null) {
+            return null;
+        }
+
+        try {
+            return new HardwareVideoEncoder(this, info, outputFormat, fallback);
+        }
+        catch (Exception ex) {
+            Log.error("Could not create hardware encoder " + codec.getName() + ".", ex);
+            markFailed(codec.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Creates a hardware decoder for the MIME type.
+     *
+     * @param fallback Creates the software decoder used if the hardware one fails; may return null.
+     * @return The decoder, or null if no working hardware decoder is available.
+     */
+    public VideoDecoder createDecoder(String mimeType, VideoFormat inputFormat, IFunction0<VideoDecoder> fallback) {
+        CodecSelector.Codec codec = getSelector().select(mimeType, false);
+        MediaCodecInfo info = codec == null ? null : findInfo(MediaCodecUtility.getDecoderInfos(mimeType), codec.getName());
+        if (info == null) {
+            return null;
+        }
+
+        try {
+            return new HardwareVideoDecoder(this, info, inputFormat, fallback);
+        }
+        catch (Exception ex) {
+            Log.error("Could not create hardware decoder " + codec.getName() + ".", ex);
+            markFailed(codec.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Records that a codec failed so it is not selected again, now or on later launches.
+     */
+    public synchronized void markFailed(String name) {
+        if (getSelector().markFailed(name)) {
+            Log.warn("Hardware codec " + name + " failed, using software instead.");
+            save();
+        }
+    }
+
+    private static MediaCodecInfo findInfo(MediaCodecInfo[] infos, String name) {
+        if (infos != null) {
+            for (MediaCodecInfo info : infos) {
+                if (info.getName().equals(name)) {
+                    return info;
+                }
+            }
+        }
+        return null;
+    }
+
+    private CodecSelector probe() {
+        ArrayList<CodecSelector.Codec> codecs = new ArrayList<>();
+        for (String mimeType : mimeTypes) {
+            probe(codecs, MediaCodecUtility.getEncoderInfos(mimeType), mimeType, true);
+            probe(codecs, MediaCodecUtility.getDecoderInfos(mimeType), mimeType, false);
+        }
+        return new CodecSelector(codecs, new ArrayList<String>());
+    }
+
+    private void probe(ArrayList<CodecSelector.Codec> codecs, MediaCodecInfo[] infos, String mimeType, boolean encoder) {
+        if (infos == null) {
+            return;
+        }
+
+        for (MediaCodecInfo info : infos) {
+            boolean hardware = MediaCodecUtility.isHardwareAccelerated(info);
+            if (hardware && encoder && !MediaCodecUtility.hasColorFormat(info, mimeType, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)) {
+                // Encoders are fed I420 frames.
+                continue;
+            }
+            if (hardware && !canCreate(info.getName())) {
+                continue;
+            }
+            codecs.add(new CodecSelector.Codec(info.getName(), mimeType, encoder, hardware));
+        }
+    }
+
+    private static boolean canCreate(String name) {
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            return true;
+        }
+        catch (Exception ex) {
+            Log.warn("Hardware codec " + name + " could not be created.");
+            return false;
+        }
+        finally {
+            if (codec != null) {
+                codec.release();
+            }
+        }
+    }
+
+    private CodecSelector load() {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream input = new FileInputStream(cacheFile);
+            try {
+                byte[] bytes = new byte[(int) cacheFile.length()];
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int read = input.read(bytes, offset, bytes.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+
+                String json = new String(bytes, 0, offset, "UTF-8");
+                int separator = json.indexOf('\n');
+                if (separator < 0 || !json.substring(0, separator).equals(android.os.Build.FINGERPRINT)) {
+                    // The system image changed, so the codecs may have too.
+                    return null;
+                }
+                return CodecSelector.fromJson(json.substring(separator + 1));
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not read codec probe cache.", ex);
+            return null;
+        }
+    }
+
+    private void save() {
+        try {
+            File temp = new File(cacheFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write((android.os.Build.FINGERPRINT + "\n" + selector.toJson()).getBytes("UTF-8"));
+            }
+            finally {
+                output.close();
+            }
+            if (!temp.renameTo(cacheFile)) {
+                Log.error("Could not write codec probe cache.");
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not write codec probe cache.", ex);
+        }
+    }
+}
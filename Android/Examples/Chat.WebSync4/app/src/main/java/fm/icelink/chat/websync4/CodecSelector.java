@@ -0,0 +1,128 @@
+package fm.icelink.chat.websync4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * CodecSelector
+ *
+ * Chooses a hardware codec for a MIME type from a list of probed codecs.
+ * Codecs that have failed at runtime are remembered and skipped, so the
+ * caller falls back to software. Contains no Android types so the selection
+ * and its serialized form can be exercised with a fake codec list.
+ */
+public class CodecSelector {
+
+    public static class Codec {
+        private String name;
+        public String getName() {
+            return this.name;
+        }
+
+        private String mimeType;
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        private boolean encoder;
+        public boolean getIsEncoder() {
+            return this.encoder;
+        }
+
+        private boolean hardware;
+        public boolean getIsHardware() {
+            return this.hardware;
+        }
+
+        public Codec(String name, String mimeType, boolean encoder, boolean hardware) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.encoder = encoder;
+            this.hardware = hardware;
+        }
+    }
+
+    private final ArrayList<Codec> codecs;
+    private final HashSet<String> failed;
+
+    /**
+     * @param codecs Probed codecs, in order of preference.
+     * @param failed Names of codecs that failed previously.
+     */
+    public CodecSelector(List<Codec> codecs, List<String> failed) {
+        this.codecs = new ArrayList<>(codecs);
+        this.failed = new HashSet<>(failed);
+    }
+
+    /**
+     * @return The preferred working hardware codec, or null to use software.
+     */
+    public synchronized Codec select(String mimeType, boolean encoder) {
+        for (Codec codec : codecs) {
+            if (codec.getIsHardware() && codec.getIsEncoder() == encoder
+                    && codec.getMimeType().equalsIgnoreCase(mimeType) && !failed.contains(codec.getName())) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Excludes the codec from later selections.
+     *
+     * @return Whether the codec was not already marked as failed.
+     */
+    public synchronized boolean markFailed(String name) {
+        return failed.add(name);
+    }
+
+    public synchronized boolean hasFailed(String name) {
+        return failed.contains(name);
+    }
+
+    public synchronized String toJson() throws Exception {
+        JSONArray codecsJson = new JSONArray();
+        for (Codec codec : codecs) {
+            JSONObject codecJson = new JSONObject();
+            codecJson.put("name", codec.getName());
+            codecJson.put("mimeType", codec.getMimeType());
+            codecJson.put("encoder", codec.getIsEncoder());
+            codecJson.put("hardware", codec.getIsHardware());
+            codecsJson.put(codecJson);
+        }
+
+        JSONArray failedJson = new JSONArray();
+        for (String name : failed) {
+            failedJson.put(name);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("codecs", codecsJson);
+        json.put("failed", failedJson);
+        return json.toString();
+    }
+
+    public static CodecSelector fromJson(String json) throws Exception {
+        JSONObject jsonObject = new JSONObject(json);
+
+        ArrayList<Codec> codecs = new ArrayList<>();
+        JSONArray codecsJson = jsonObject.getJSONArray("codecs");
+        for (int i = 0; i < codecsJson.length(); i++) {
+            JSONObject codecJson = codecsJson.getJSONObject(i);
+            codecs.add(new Codec(codecJson.getString("name"), codecJson.getString("mimeType"),
+                    codecJson.getBoolean("encoder"), codecJson.getBoolean("hardware")));
+        }
+
+        ArrayList<String> failed = new ArrayList<>();
+        JSONArray failedJson = jsonObject.getJSONArray("failed");
+        for (int i = 0; i < failedJson.length(); i++) {
+            failed.add(failedJson.getString(i));
+        }
+
+        return new CodecSelector(codecs, failed);
+    }
+}
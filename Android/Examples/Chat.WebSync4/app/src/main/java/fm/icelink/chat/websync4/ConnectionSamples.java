@@ -0,0 +1,151 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * ConnectionSamples
+ *
+ * One connection's metric windows, for StatsCollector. Each sample's
+ * readings (round trip time, jitter) go into their StatsRing as they are;
+ * its counters (bytes, packets, frames, decode time) are turned into rates
+ * against the previous sample first. summarize computes the percentiles a
+ * report needs. Adding a sample allocates nothing. Not thread-safe.
+ */
+public class ConnectionSamples {
+
+    public static final int RoundTripTime = 0;
+    public static final int Jitter = 1;
+    public static final int PacketLoss = 2;
+    public static final int SendBitrate = 3;
+    public static final int ReceiveBitrate = 4;
+    public static final int FrameRate = 5;
+    public static final int DecodeTime = 6;
+    public static final int MetricCount = 7;
+
+    private final StatsRing[] rings = new StatsRing[MetricCount];
+    private boolean hasPrevious;
+    private long previousTime;
+    private long previousBytesSent;
+    private long previousBytesReceived;
+    private long previousPacketsLost;
+    private long previousPacketsReceived;
+    private long previousPacketsSent;
+    private long previousRemotePacketsLost;
+    private long previousFramesDecoded;
+    private long previousDecodeNanos;
+    private long previousDecodeFrames;
+    private double sendBitrate = Double.NaN;
+    private double packetLoss = Double.NaN;
+    private double sendLoss = Double.NaN;
+
+    /**
+     * @param windowSize The number of recent samples the percentiles cover.
+     */
+    public ConnectionSamples(int windowSize) {
+        for (int i = 0; i < MetricCount; i++) {
+            rings[i] = new StatsRing(windowSize);
+        }
+    }
+
+    public StatsRing getRing(int metric) {
+        return rings[metric];
+    }
+
+    /**
+     * The send bitrate of the last sample in kbps, or NaN before there were two samples.
+     */
+    public double getSendBitrate() {
+        return sendBitrate;
+    }
+
+    /**
+     * The packet loss of the last sample in percent, or NaN if nothing was received.
+     */
+    public double getPacketLoss() {
+        return packetLoss;
+    }
+
+    /**
+     * The loss the remote reported on what this connection sent, over the
+     * last sample, in percent, or NaN if nothing was sent.
+     */
+    public double getSendLoss() {
+        return sendLoss;
+    }
+
+    /**
+     * Records one sample.
+     *
+     * @param time System.nanoTime when the stats were taken.
+     * @param roundTripTime Milliseconds, or NaN if not known.
+     * @param jitter Milliseconds, or NaN if not known.
+     * @param remotePacketsLost Packets lost on the way to the remote, from its RTCP receiver reports.
+     * @return Whether rates were computed, which needs a previous sample.
+     */
+    public boolean add(long time, double roundTripTime, double jitter, long bytesSent, long bytesReceived,
+                       long packetsLost, long packetsReceived, long packetsSent, long remotePacketsLost,
+                       long framesDecoded, long decodeNanos, long decodeFrames) {
+        if (!Double.isNaN(roundTripTime)) {
+            rings[RoundTripTime].add(roundTripTime);
+        }
+        if (!Double.isNaN(jitter)) {
+            rings[Jitter].add(jitter);
+        }
+
+        // The rest are counters, so the first sample only sets the baseline.
+        boolean rated = false;
+        double seconds = (time - previousTime) / 1e9;
+        if (hasPrevious && seconds > 0) {
+            long lost = packetsLost - previousPacketsLost;
+            long received = packetsReceived - previousPacketsReceived;
+            packetLoss = Double.NaN;
+            if (lost + received > 0) {
+                packetLoss = 100.0 * Math.max(0, lost) / (lost + received);
+                rings[PacketLoss].add(packetLoss);
+            }
+            long sent = packetsSent - previousPacketsSent;
+            long remoteLost = Math.max(0, remotePacketsLost - previousRemotePacketsLost);
+            sendLoss = Double.NaN;
+            if (sent > 0) {
+                sendLoss = Math.min(100, 100.0 * remoteLost / sent);
+            }
+            sendBitrate = (bytesSent - previousBytesSent) * 8 / 1000.0 / seconds;
+            rings[SendBitrate].add(sendBitrate);
+            rings[ReceiveBitrate].add((bytesReceived - previousBytesReceived) * 8 / 1000.0 / seconds);
+            rings[FrameRate].add((framesDecoded - previousFramesDecoded) / seconds);
+            if (decodeFrames > previousDecodeFrames) {
+                rings[DecodeTime].add((decodeNanos - previousDecodeNanos) / 1e6 / (decodeFrames - previousDecodeFrames));
+            }
+            rated = true;
+        }
+
+        hasPrevious = true;
+        previousTime = time;
+        previousBytesSent = bytesSent;
+        previousBytesReceived = bytesReceived;
+        previousPacketsLost = packetsLost;
+        previousPacketsReceived = packetsReceived;
+        previousPacketsSent = packetsSent;
+        previousRemotePacketsLost = remotePacketsLost;
+        previousFramesDecoded = framesDecoded;
+        previousDecodeNanos = decodeNanos;
+        previousDecodeFrames = decodeFrames;
+        return rated;
+    }
+
+    /**
+     * Fills in each metric's percentiles and last value, NaN where there are no samples.
+     *
+     * @return The number of samples the percentiles cover.
+     */
+    public int summarize(double[] p50, double[] p95, double[] p99, double[] last) {
+        int sampleCount = 0;
+        for (int i = 0; i < MetricCount; i++) {
+            StatsRing ring = rings[i];
+            p50[i] = ring.getPercentile(50);
+            p95[i] = ring.getPercentile(95);
+            p99[i] = ring.getPercentile(99);
+            last[i] = ring.getLast();
+            sampleCount = Math.max(sampleCount, ring.getCount());
+        }
+        return sampleCount;
+    }
+}
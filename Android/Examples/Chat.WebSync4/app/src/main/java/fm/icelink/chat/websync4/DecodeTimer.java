@@ -0,0 +1,113 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * DecodeTimer
+ *
+ * Totals the time a remote video decoder spends per frame. IceLink's
+ * connection stats count decoded frames but not how long they took, so the
+ * decoders in RemoteMedia time themselves into one of these and
+ * StatsCollector reads the average over each sample interval. Written only
+ * by the decoding thread, read by the sampling thread.
+ *
+ * A software decoder decodes inside processFrame, so it times the call. A
+ * hardware decoder only queues the frame there and raises the decoded frame
+ * later from MediaCodec's output thread, so it marks each input with start
+ * and each output with finish, and the two are matched by frame timestamp.
+ */
+public class DecodeTimer {
+
+    // Inputs still waiting for their output. Frames a decoder drops are overwritten in time.
+    private static final int pendingSize = 32;
+
+    private volatile long totalNanos;
+    private volatile long frameCount;
+    private volatile fm.icelink.IAction0 onFirstFrame;
+
+    private final long[] pendingTimestamps = new long[pendingSize];
+    private final long[] pendingStarts = new long[pendingSize];
+    private final boolean[] pendingUsed = new boolean[pendingSize];
+    private int pendingNext;
+
+    /**
+     * Called on the decoding thread when the first frame has been decoded.
+     */
+    public void setOnFirstFrame(fm.icelink.IAction0 onFirstFrame) {
+        this.onFirstFrame = onFirstFrame;
+    }
+
+    /**
+     * Records one decoded frame. Call from the decoding thread only.
+     */
+    public void add(long nanos) {
+        // Single writer, so the read-modify-write does not need to be atomic.
+        totalNanos = totalNanos + nanos;
+        frameCount = frameCount + 1;
+
+        fm.icelink.IAction0 first = onFirstFrame;
+        if (first != null) {
+            onFirstFrame = null;
+            first.invoke();
+        }
+    }
+
+    /**
+     * Marks a frame going into an asynchronous decoder.
+     */
+    public void start(long timestamp) {
+        start(timestamp, System.nanoTime());
+    }
+
+    void start(long timestamp, long nanos) {
+        synchronized (pendingTimestamps) {
+            int slot = pendingNext;
+            pendingNext = (pendingNext + 1) % pendingSize;
+            pendingTimestamps[slot] = timestamp;
+            pendingStarts[slot] = nanos;
+            pendingUsed[slot] = true;
+        }
+    }
+
+    /**
+     * Marks a frame coming out of an asynchronous decoder, and records the
+     * time since the input with the same timestamp. An output with no
+     * matching input is ignored. Call from the decoder's output thread only.
+     */
+    public void finish(long timestamp) {
+        finish(timestamp, System.nanoTime());
+    }
+
+    void finish(long timestamp, long nanos) {
+        long start = -1;
+        synchronized (pendingTimestamps) {
+            // Newest first, in case a timestamp repeats.
+            for (int i = 1; i <= pendingSize; i++) {
+                int slot = (pendingNext - i + pendingSize) % pendingSize;
+                if (pendingUsed[slot] && pendingTimestamps[slot] == timestamp) {
+                    pendingUsed[slot] = false;
+                    start = pendingStarts[slot];
+                    break;
+                }
+            }
+        }
+        if (start >= 0) {
+            add(nanos - start);
+        }
+    }
+
+    /**
+     * Forgets inputs still waiting for output, e.g. when a decoder is replaced.
+     */
+    public void clearPending() {
+        synchronized (pendingTimestamps) {
+            java.util.Arrays.fill(pendingUsed, false);
+        }
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+}
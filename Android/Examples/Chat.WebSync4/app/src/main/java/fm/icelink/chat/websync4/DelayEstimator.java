@@ -0,0 +1,118 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * DelayEstimator
+ *
+ * Finds where a reference signal (e.g. a chirp sent to the speaker) appears
+ * in a captured one by normalised cross-correlation. The peak must stand
+ * clear of the noise, so a capture that never picked the reference up gives
+ * no estimate rather than a wrong one. Pure Java, so it runs on the JVM
+ * against synthetic signals as well as on the device.
+ */
+public class DelayEstimator {
+
+    /**
+     * The lowest normalised correlation accepted as a match.
+     */
+    public static final double minCorrelation = 0.3;
+
+    private int delay = -1;
+    private double correlation;
+
+    /**
+     * The lag, in samples, of the last estimate, or -1 if there was no clear match.
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * The normalised correlation (0 to 1) at the last estimate's lag.
+     */
+    public double getCorrelation() {
+        return correlation;
+    }
+
+    /**
+     * Searches lags 0 to maxLag for the reference in the capture.
+     *
+     * @return The lag in samples, or -1 if there was no clear match.
+     */
+    public int estimate(short[] reference, short[] captured, int maxLag) {
+        int length = reference.length;
+        maxLag = Math.min(maxLag, captured.length - length);
+
+        delay = -1;
+        correlation = 0;
+        if (length == 0 || maxLag < 0) {
+            return delay;
+        }
+
+        double referenceEnergy = 0;
+        for (int i = 0; i < length; i++) {
+            referenceEnergy += (double) reference[i] * reference[i];
+        }
+        if (referenceEnergy == 0) {
+            return delay;
+        }
+
+        // Energy of the capture under the reference, slid along with the lag.
+        double windowEnergy = 0;
+        for (int i = 0; i < length; i++) {
+            windowEnergy += (double) captured[i] * captured[i];
+        }
+
+        int bestLag = -1;
+        double best = 0;
+        for (int lag = 0; lag <= maxLag; lag++) {
+            if (lag > 0) {
+                double removed = captured[lag - 1];
+                double added = captured[lag + length - 1];
+                windowEnergy += added * added - removed * removed;
+            }
+            if (windowEnergy <= 0) {
+                continue;
+            }
+
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += reference[i] * captured[lag + i];
+            }
+            // The echo may come back inverted; only the magnitude matters.
+            double value = Math.abs(sum) / Math.sqrt(referenceEnergy * windowEnergy);
+            if (value > best) {
+                best = value;
+                bestLag = lag;
+            }
+        }
+
+        correlation = best;
+        if (best >= minCorrelation) {
+            delay = bestLag;
+        }
+        return delay;
+    }
+
+    /**
+     * A linear chirp from startFrequency to endFrequency, faded in and out so
+     * it does not click.
+     *
+     * @param duration Length in milliseconds.
+     * @param amplitude Peak level, 0 to 1.
+     */
+    public static short[] createChirp(int clockRate, int duration, double startFrequency, double endFrequency, double amplitude) {
+        int length = clockRate * duration / 1000;
+        short[] chirp = new short[length];
+        double seconds = (double) length / clockRate;
+        double sweep = (endFrequency - startFrequency) / seconds;
+        int fade = Math.max(1, length / 20);
+
+        for (int i = 0; i < length; i++) {
+            double t = (double) i / clockRate;
+            double phase = 2 * Math.PI * (startFrequency * t + sweep * t * t / 2);
+            double gain = Math.min(1.0, Math.min(i, length - 1 - i) / (double) fade);
+            chirp[i] = (short) Math.round(Math.sin(phase) * amplitude * gain * Short.MAX_VALUE);
+        }
+        return chirp;
+    }
+}
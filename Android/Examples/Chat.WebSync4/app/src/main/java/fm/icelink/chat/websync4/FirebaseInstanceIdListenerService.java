@@ -27,7 +27,8 @@ public class FirebaseInstanceIdListenerService extends FirebaseInstanceIdService
 
     void sendRegistrationToServer(String token)
     {
-        // Add custom implementation, as needed.
+        // Bound in signalling as this user's push token and registered with the push sender for invites.
+        App.getInstance(this).setPushToken(token);
     }
 
 
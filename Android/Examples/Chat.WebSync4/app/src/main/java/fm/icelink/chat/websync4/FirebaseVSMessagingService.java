@@ -17,27 +17,35 @@ public class FirebaseVSMessagingService extends FirebaseMessagingService {
 
     @Override
     public void onMessageReceived(RemoteMessage remoteMessage) {
-        //-----------
-        showNotification(remoteMessage.getData().get("message"));
+        PushInvite invite = PushInvite.fromData(remoteMessage.getData());
+        if (invite == null) {
+            Log.w("FirebaseVSMessaging", "Ignoring a push without a valid session ID.");
+            return;
+        }
+        showNotification(invite);
     }
 
-    private void showNotification(String message) {
-        Intent i = new Intent(this,ChatActivity.class);
-       i.putExtra("sessionId","123456");
+    private void showNotification(PushInvite invite) {
+        Intent i = invite.toIntent(this);
         i.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
 
-        PendingIntent pendingIntent = PendingIntent.getActivity(this,0,i, PendingIntent.FLAG_UPDATE_CURRENT);
+        // One notification (and pending intent) per session, so two invites do not overwrite each other's extras.
+        int requestCode = invite.getSessionId().hashCode();
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, requestCode, i, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        String title = invite.getCallerName() == null ? "Incoming call" : "Incoming call from " + invite.getCallerName();
+        String text = invite.getMessage() == null ? "Tap to join session " + invite.getSessionId() + "." : invite.getMessage();
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
                 .setAutoCancel(true)
-                .setContentTitle("InComming Call")
-                .setContentText(message)
+                .setContentTitle(title)
+                .setContentText(text)
                 .setSmallIcon(R.drawable.thumb)
                 .setContentIntent(pendingIntent);
 
         NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
-        manager.notify(0,builder.build());
+        manager.notify(requestCode, builder.build());
     }
 
 }
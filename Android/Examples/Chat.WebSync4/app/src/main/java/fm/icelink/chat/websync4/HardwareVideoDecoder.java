@@ -0,0 +1,143 @@
+package fm.icelink.chat.websync4;
+
+import android.media.MediaCodecInfo;
+
+import fm.icelink.IFunction0;
+import fm.icelink.Log;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoDecoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoPipe;
+import fm.icelink.android.MediaCodecDecoder;
+
+/**
+ * HardwareVideoDecoder
+ *
+ * MediaCodec decoder that switches to a software decoder if the hardware
+ * codec throws, and reports the failure to the CodecProbe so the codec is not
+ * selected again.
+ */
+public class HardwareVideoDecoder extends MediaCodecDecoder {
+
+    private final CodecProbe probe;
+    private final String codecName;
+    private final IFunction0<VideoDecoder> createFallback;
+    private volatile VideoDecoder fallback;
+    private boolean failed;
+
+    private volatile DecodeTimer decodeTimer;
+    /**
+     * Times each hardware decode, from the frame going into MediaCodec to its
+     * decoded frame coming out. A fallback decoder times itself.
+     */
+    public void setDecodeTimer(DecodeTimer decodeTimer) {
+        this.decodeTimer = decodeTimer;
+    }
+
+    private final OutputTap outputTap;
+
+    public HardwareVideoDecoder(CodecProbe probe, MediaCodecInfo info, VideoFormat inputFormat, IFunction0<VideoDecoder> createFallback) {
+        super(info, inputFormat, VideoFormat.getI420());
+        this.probe = probe;
+        this.codecName = info.getName();
+        this.createFallback = createFallback;
+        this.outputTap = new OutputTap();
+    }
+
+    @Override
+    protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+        VideoDecoder fallback = this.fallback;
+        if (fallback != null) {
+            fallback.processFrame(frame);
+            return;
+        }
+        if (failed) {
+            return;
+        }
+
+        try {
+            // This only queues the frame; OutputTap sees it come out decoded.
+            DecodeTimer decodeTimer = this.decodeTimer;
+            if (decodeTimer != null) {
+                decodeTimer.start(frame.getTimestamp());
+            }
+            super.doProcessFrame(frame, buffer);
+        }
+        catch (Exception ex) {
+            Log.error("Hardware decoder " + codecName + " failed.", ex);
+            failed = true;
+            probe.markFailed(codecName);
+            DecodeTimer decodeTimer = this.decodeTimer;
+            if (decodeTimer != null) {
+                decodeTimer.clearPending();
+            }
+
+            fallback = createFallback.invoke();
+            if (fallback != null) {
+                // The software decoder needs a key frame before it can produce output.
+                setNeedsKeyFrame();
+                new Relay(fallback);
+                this.fallback = fallback;
+                fallback.processFrame(frame);
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        VideoDecoder fallback = this.fallback;
+        if (fallback != null) {
+            fallback.destroy();
+        }
+        outputTap.destroy();
+        super.doDestroy();
+    }
+
+    /**
+     * Sees each decoded frame as it is raised, to finish its decode timing.
+     */
+    private class OutputTap extends VideoPipe {
+        OutputTap() {
+            super(VideoFormat.getI420());
+            addInput(HardwareVideoDecoder.this);
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            DecodeTimer decodeTimer = HardwareVideoDecoder.this.decodeTimer;
+            if (decodeTimer != null && fallback == null) {
+                decodeTimer.finish(frame.getTimestamp());
+            }
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Hardware Decoder Output Tap";
+        }
+    }
+
+    /**
+     * Raises the fallback decoder's frames as this decoder's output.
+     */
+    private class Relay extends VideoPipe {
+        Relay(VideoDecoder decoder) {
+            super((VideoFormat) decoder.getOutputFormat());
+            addInput(decoder);
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            HardwareVideoDecoder.this.raiseFrame(frame);
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Hardware Decoder Fallback Relay";
+        }
+    }
+}
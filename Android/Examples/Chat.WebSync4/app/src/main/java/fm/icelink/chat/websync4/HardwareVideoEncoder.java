@@ -0,0 +1,126 @@
+package fm.icelink.chat.websync4;
+
+import android.media.MediaCodecInfo;
+
+import fm.icelink.IAction0;
+import fm.icelink.IFunction0;
+import fm.icelink.Log;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoEncoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoPipe;
+import fm.icelink.android.MediaCodecEncoder;
+
+/**
+ * HardwareVideoEncoder
+ *
+ * MediaCodec encoder that switches to a software encoder if the hardware
+ * codec throws, and reports the failure to the CodecProbe so the codec is not
+ * selected again. Key frame requests are merged like the software encoders.
+ */
+public class HardwareVideoEncoder extends MediaCodecEncoder implements Pausable {
+
+    private final CodecProbe probe;
+    private final String codecName;
+    private final IFunction0<VideoEncoder> createFallback;
+    private final KeyFrameLimiter keyFrameLimiter;
+    private volatile VideoEncoder fallback;
+    private boolean failed;
+    private volatile boolean paused;
+
+    public HardwareVideoEncoder(CodecProbe probe, MediaCodecInfo info, VideoFormat outputFormat, IFunction0<VideoEncoder> createFallback) {
+        super(info, VideoFormat.getI420(), outputFormat);
+        this.probe = probe;
+        this.codecName = info.getName();
+        this.createFallback = createFallback;
+
+        keyFrameLimiter = new KeyFrameLimiter(new IAction0() {
+            public void invoke() {
+                HardwareVideoEncoder.super.setForceKeyFrame(true);
+            }
+        });
+        keyFrameLimiter.setMinInterval(LocalMedia.keyFrameInterval);
+    }
+
+    @Override
+    public void setForceKeyFrame(boolean forceKeyFrame) {
+        VideoEncoder fallback = this.fallback;
+        if (fallback != null) {
+            fallback.setForceKeyFrame(forceKeyFrame);
+        } else if (forceKeyFrame) {
+            keyFrameLimiter.request();
+        } else {
+            super.setForceKeyFrame(false);
+        }
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            setForceKeyFrame(true);
+        }
+    }
+
+    @Override
+    protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+        if (paused) {
+            return;
+        }
+        VideoEncoder fallback = this.fallback;
+        if (fallback != null) {
+            fallback.processFrame(frame);
+            return;
+        }
+        if (failed) {
+            return;
+        }
+
+        try {
+            super.doProcessFrame(frame, buffer);
+        }
+        catch (Exception ex) {
+            Log.error("Hardware encoder " + codecName + " failed.", ex);
+            failed = true;
+            probe.markFailed(codecName);
+
+            fallback = createFallback.invoke();
+            if (fallback != null) {
+                new Relay(fallback);
+                this.fallback = fallback;
+                fallback.processFrame(frame);
+            }
+        }
+    }
+
+    @Override
+    public void doDestroy() {
+        VideoEncoder fallback = this.fallback;
+        if (fallback != null) {
+            fallback.destroy();
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Raises the fallback encoder's frames as this encoder's output.
+     */
+    private class Relay extends VideoPipe {
+        Relay(VideoEncoder encoder) {
+            super((VideoFormat) encoder.getOutputFormat());
+            addInput(encoder);
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            HardwareVideoEncoder.this.raiseFrame(frame);
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Hardware Encoder Fallback Relay";
+        }
+    }
+}
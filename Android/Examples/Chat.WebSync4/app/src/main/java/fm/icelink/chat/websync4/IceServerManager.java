@@ -0,0 +1,680 @@
+package fm.icelink.chat.websync4;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fm.icelink.Future;
+import fm.icelink.FutureState;
+import fm.icelink.IceServer;
+import fm.icelink.Log;
+import fm.icelink.Promise;
+
+/**
+ * IceServerManager
+ *
+ * Picks the STUN/TURN servers each connection gets from a larger pool. Every
+ * server is sent a STUN Binding request, over UDP and over TCP separately
+ * for TURN servers that take both, all in parallel, and the round-trip
+ * times are ranked. Connections get only the nearest few STUN servers and,
+ * per transport, the nearest few TURN servers, so gathering does not wait
+ * on far or dead servers and relayed media takes the shortest path.
+ *
+ * Results are cached on disk for a while and keyed by network, so a
+ * network change (see setNetwork) probes again. The cache is read in the
+ * background, and until it is read or the first probe completes, the whole
+ * pool is used.
+ */
+public class IceServerManager {
+
+    public static final int Udp = 0;
+    public static final int Tcp = 1;
+
+    private static final int stunPort = 3478;
+    private static final int bindingRequest = 0x0001;
+    private static final int bindingSuccess = 0x0101;
+    private static final int magicCookie = 0x2112A442;
+
+    private static final ExecutorService probeThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IceServerManager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * One server and transport, and how it answered.
+     */
+    public static class Probe {
+        private final IceServer server;
+        private final String url;
+        private final boolean turn;
+        private final int transport;
+        private volatile double roundTripTime = -1;
+
+        Probe(IceServer server, String url, boolean turn, int transport) {
+            this.server = server;
+            this.url = url;
+            this.turn = turn;
+            this.transport = transport;
+        }
+
+        /**
+         * The server as given to connections, restricted to the probed transport for TURN.
+         */
+        public IceServer getServer() {
+            return server;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean getIsTurn() {
+            return turn;
+        }
+
+        /**
+         * Udp or Tcp.
+         */
+        public int getTransport() {
+            return transport;
+        }
+
+        /**
+         * Milliseconds, or -1 if the server did not answer.
+         */
+        public double getRoundTripTime() {
+            return roundTripTime;
+        }
+    }
+
+    private final IceServer[] pool;
+    private final Object lock = new Object();
+
+    private File cacheFile;
+    private int timeout = 1000;
+    private long ttl = 60 * 60 * 1000;
+    private int maxStunServers = 1;
+    private int maxTurnServers = 1;
+
+    private String network = "";
+    private Probe[] probes;
+    private IceServer[] selected;
+    private String probedNetwork;
+    private long probedTime;
+    private Promise<Object> loading;
+    private boolean requestedWhileLoading;
+    private Promise<IceServer[]> probing;
+
+    /**
+     * @param pool Every STUN/TURN server that may be used.
+     */
+    public IceServerManager(IceServer[] pool) {
+        this.pool = pool;
+    }
+
+    public IceServer[] getPool() {
+        return pool;
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+    /**
+     * Sets where probe results are kept between launches; null keeps them in
+     * memory only. Results already there are read in the background; if
+     * servers are asked for meanwhile and none of them are fresh, the pool is
+     * probed once they are read.
+     */
+    public void setCacheFile(File cacheFile) {
+        final Promise<Object> promise = new Promise<Object>();
+        synchronized (lock) {
+            this.cacheFile = cacheFile;
+            loading = promise;
+            requestedWhileLoading = false;
+        }
+        probeThreads.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(promise);
+            }
+        });
+    }
+
+    /**
+     * Resolves once the cache file set by setCacheFile has been read.
+     */
+    public Future<Object> getCacheLoaded() {
+        synchronized (lock) {
+            return loading == null ? Promise.<Object>resolveNow(null) : loading;
+        }
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+    /**
+     * Sets how long to wait for each server, in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+    /**
+     * Sets how long probe results are used before probing again, in milliseconds.
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public int getMaxStunServers() {
+        return maxStunServers;
+    }
+    public void setMaxStunServers(int maxStunServers) {
+        this.maxStunServers = maxStunServers;
+    }
+
+    public int getMaxTurnServers() {
+        return maxTurnServers;
+    }
+    /**
+     * Sets how many TURN servers connections get per transport.
+     */
+    public void setMaxTurnServers(int maxTurnServers) {
+        this.maxTurnServers = maxTurnServers;
+    }
+
+    public String getNetwork() {
+        return network;
+    }
+    /**
+     * Sets a key for the current network, e.g. its type and name. Results
+     * probed on another network are not used, and a change probes again.
+     */
+    public void setNetwork(String network) {
+        if (network == null) {
+            network = "";
+        }
+        synchronized (lock) {
+            if (network.equals(this.network)) {
+                return;
+            }
+            this.network = network;
+        }
+        // Probes unless there are fresh results for this network.
+        getIceServers();
+    }
+
+    /**
+     * The latest probe results, best first, or null before the first probe.
+     */
+    public Probe[] getProbes() {
+        synchronized (lock) {
+            return probes == null ? null : probes.clone();
+        }
+    }
+
+    /**
+     * The servers for a new connection: the nearest ones if probed on this
+     * network within the TTL, otherwise the whole pool while the cache is
+     * read or a probe runs.
+     */
+    public IceServer[] getIceServers() {
+        synchronized (lock) {
+            if (isFresh()) {
+                return selected;
+            }
+            if (loading != null && loading.getState() == FutureState.Pending) {
+                // The probe, if needed, starts once the cache has been read.
+                requestedWhileLoading = true;
+                return pool;
+            }
+        }
+        refresh();
+        return pool;
+    }
+
+    /**
+     * Probes the pool now, unless a probe is already running.
+     *
+     * @return The servers selected by the probe.
+     */
+    public Future<IceServer[]> refresh() {
+        final Promise<IceServer[]> promise;
+        final String probeNetwork;
+        synchronized (lock) {
+            if (probing != null) {
+                return probing;
+            }
+            promise = new Promise<IceServer[]>();
+            probing = promise;
+            probeNetwork = network;
+        }
+
+        final Probe[] candidates = createProbes(pool);
+        if (candidates.length == 0) {
+            finish(promise, probeNetwork, candidates);
+            return promise;
+        }
+
+        final long start = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger(candidates.length);
+        for (final Probe probe : candidates) {
+            probeThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe.roundTripTime = measure(probe, timeout);
+                    if (remaining.decrementAndGet() == 0) {
+                        Log.debug("Probed " + candidates.length + " ICE server transport(s) in " + (System.nanoTime() - start) / 1000000 + "ms.");
+                        finish(promise, probeNetwork, candidates);
+                    }
+                }
+            });
+        }
+        return promise;
+    }
+
+    private boolean isFresh() {
+        return selected != null && network.equals(probedNetwork) && System.currentTimeMillis() - probedTime < ttl;
+    }
+
+    private void finish(Promise<IceServer[]> promise, String probeNetwork, Probe[] candidates) {
+        Probe[] ranked = rank(candidates);
+        IceServer[] result = select(ranked, maxStunServers, maxTurnServers);
+        boolean anyAnswered = ranked.length > 0 && ranked[0].roundTripTime >= 0;
+        synchronized (lock) {
+            probing = null;
+            probes = ranked;
+            // If nothing answered the network is probably down; keep using the pool.
+            if (anyAnswered) {
+                selected = result;
+                probedNetwork = probeNetwork;
+                probedTime = System.currentTimeMillis();
+                save();
+            }
+        }
+        for (Probe probe : ranked) {
+            Log.debug(String.format("ICE server %s: %s.", probe.url,
+                    probe.roundTripTime < 0 ? "no answer" : String.format("%.1fms", probe.roundTripTime)));
+        }
+        promise.resolve(anyAnswered ? result : pool);
+    }
+
+    /**
+     * One probe per STUN server, and one per transport for TURN servers.
+     */
+    static Probe[] createProbes(IceServer[] pool) {
+        ArrayList<Probe> probes = new ArrayList<>();
+        for (IceServer server : pool) {
+            String url = server.getUrl();
+            if (url == null) {
+                continue;
+            }
+            if (url.startsWith("stun:")) {
+                probes.add(new Probe(server, url, false, Udp));
+            } else if (url.startsWith("turn:")) {
+                String transport = getTransport(url);
+                String base = url.indexOf('?') < 0 ? url : url.substring(0, url.indexOf('?'));
+                if (transport == null || transport.equals("udp")) {
+                    probes.add(new Probe(new IceServer(base + "?transport=udp", server.getUsername(), server.getPassword()), base + "?transport=udp", true, Udp));
+                }
+                if (transport == null || transport.equals("tcp")) {
+                    probes.add(new Probe(new IceServer(base + "?transport=tcp", server.getUsername(), server.getPassword()), base + "?transport=tcp", true, Tcp));
+                }
+            }
+            // Secure schemes (stuns:, turns:) are not supported by IceLink, so are not probed.
+        }
+        return probes.toArray(new Probe[probes.size()]);
+    }
+
+    /**
+     * Answered probes fastest first, then the rest.
+     */
+    static Probe[] rank(Probe[] probes) {
+        Probe[] ranked = probes.clone();
+        Arrays.sort(ranked, new Comparator<Probe>() {
+            @Override
+            public int compare(Probe a, Probe b) {
+                if (a.roundTripTime < 0 || b.roundTripTime < 0) {
+                    return (a.roundTripTime < 0 ? 1 : 0) - (b.roundTripTime < 0 ? 1 : 0);
+                }
+                return Double.compare(a.roundTripTime, b.roundTripTime);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * The best answered STUN servers, then the best answered TURN servers
+     * for UDP and for TCP, from probes ranked by rank.
+     */
+    static IceServer[] select(Probe[] ranked, int maxStun, int maxTurn) {
+        ArrayList<IceServer> servers = new ArrayList<>();
+        int stun = 0, turnUdp = 0, turnTcp = 0;
+        for (Probe probe : ranked) {
+            if (probe.roundTripTime < 0) {
+                break;
+            }
+            if (!probe.turn && stun < maxStun) {
+                servers.add(probe.server);
+                stun++;
+            } else if (probe.turn && probe.transport == Udp && turnUdp < maxTurn) {
+                servers.add(probe.server);
+                turnUdp++;
+            } else if (probe.turn && probe.transport == Tcp && turnTcp < maxTurn) {
+                servers.add(probe.server);
+                turnTcp++;
+            }
+        }
+        return servers.toArray(new IceServer[servers.size()]);
+    }
+
+    /**
+     * Sends a Binding request and times the response.
+     *
+     * @return Milliseconds, or -1 if there was no answer within the timeout.
+     */
+    static double measure(Probe probe, int timeout) {
+        String host = getHost(probe.url);
+        if (host == null) {
+            return -1;
+        }
+        try {
+            // Resolve first, so DNS is not counted in the round-trip.
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), getPort(probe.url));
+            return probe.transport == Tcp ? measureTcp(address, timeout) : measureUdp(address, timeout);
+        }
+        catch (Exception ex) {
+            Log.debug("ICE server " + probe.url + " could not be probed: " + ex.getMessage());
+            return -1;
+        }
+    }
+
+    private static double measureUdp(InetSocketAddress address, int timeout) throws Exception {
+        // Resent on a short interval, so one lost datagram does not fail the probe.
+        int attempts = 3;
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(Math.max(1, timeout / attempts));
+            byte[] transactionId = new byte[12];
+            byte[] response = new byte[548];
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                random.nextBytes(transactionId);
+                byte[] request = createBindingRequest(transactionId);
+                long start = System.nanoTime();
+                socket.send(new DatagramPacket(request, request.length, address));
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(response, response.length);
+                        socket.receive(packet);
+                        if (isBindingResponse(response, packet.getLength(), transactionId)) {
+                            return (System.nanoTime() - start) / 1e6;
+                        }
+                    }
+                }
+                catch (SocketTimeoutException ex) {
+                    // Try again.
+                }
+            }
+            return -1;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private static double measureTcp(InetSocketAddress address, int timeout) throws Exception {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+
+            byte[] transactionId = new byte[12];
+            random.nextBytes(transactionId);
+            byte[] request = createBindingRequest(transactionId);
+            OutputStream output = socket.getOutputStream();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+
+            long start = System.nanoTime();
+            output.write(request);
+            output.flush();
+
+            // STUN over TCP is framed by the header's length field.
+            byte[] header = new byte[20];
+            input.readFully(header);
+            int length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            byte[] response = Arrays.copyOf(header, 20 + length);
+            input.readFully(response, 20, length);
+            double rtt = (System.nanoTime() - start) / 1e6;
+            return isBindingResponse(response, response.length, transactionId) ? rtt : -1;
+        }
+        catch (SocketTimeoutException ex) {
+            return -1;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A Binding request with no attributes (RFC 5389 section 6).
+     */
+    static byte[] createBindingRequest(byte[] transactionId) {
+        byte[] request = new byte[20];
+        request[0] = (byte) (bindingRequest >> 8);
+        request[1] = (byte) bindingRequest;
+        request[4] = (byte) (magicCookie >> 24);
+        request[5] = (byte) (magicCookie >> 16);
+        request[6] = (byte) (magicCookie >> 8);
+        request[7] = (byte) magicCookie;
+        System.arraycopy(transactionId, 0, request, 8, 12);
+        return request;
+    }
+
+    /**
+     * Whether the message is a Binding success response to the given transaction.
+     */
+    static boolean isBindingResponse(byte[] message, int length, byte[] transactionId) {
+        if (length < 20) {
+            return false;
+        }
+        int type = ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+        int cookie = ((message[4] & 0xff) << 24) | ((message[5] & 0xff) << 16) | ((message[6] & 0xff) << 8) | (message[7] & 0xff);
+        if (type != bindingSuccess || cookie != magicCookie) {
+            return false;
+        }
+        for (int i = 0; i < 12; i++) {
+            if (message[8 + i] != transactionId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The transport= parameter of a turn: URL, lower case, or null.
+     */
+    static String getTransport(String url) {
+        int query = url.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        for (String parameter : url.substring(query + 1).split("&")) {
+            if (parameter.toLowerCase().startsWith("transport=")) {
+                return parameter.substring("transport=".length()).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The host of a stun:/turn: URL (RFC 7064/7065), or null.
+     */
+    public static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        int start = url.indexOf(':') + 1;
+        if (start == 0) {
+            return null;
+        }
+        int end = url.indexOf('?', start);
+        String hostPort = end < 0 ? url.substring(start) : url.substring(start, end);
+        if (hostPort.startsWith("[")) {
+            int close = hostPort.indexOf(']');
+            return close < 0 ? null : hostPort.substring(1, close);
+        }
+        int colon = hostPort.lastIndexOf(':');
+        String host = colon < 0 ? hostPort : hostPort.substring(0, colon);
+        return host.length() == 0 ? null : host;
+    }
+
+    /**
+     * @return The port of a stun:/turn: URL, or 3478.
+     */
+    static int getPort(String url) {
+        int end = url.indexOf('?');
+        String hostPort = end < 0 ? url : url.substring(0, end);
+        int bracket = hostPort.lastIndexOf(']');
+        int colon = hostPort.lastIndexOf(':');
+        if (colon <= bracket || colon == hostPort.indexOf(':')) {
+            return stunPort;
+        }
+        try {
+            return Integer.parseInt(hostPort.substring(colon + 1));
+        }
+        catch (NumberFormatException ex) {
+            return stunPort;
+        }
+    }
+
+    private void load(Promise<Object> promise) {
+        File file;
+        synchronized (lock) {
+            file = cacheFile;
+        }
+        try {
+            if (file != null && file.exists()) {
+                String json = read(file);
+                JsonObject cache = new JsonParser().parse(json).getAsJsonObject();
+                JsonArray urls = cache.getAsJsonArray("servers");
+                // Credentials are not cached; the pool supplies them.
+                Probe[] candidates = createProbes(pool);
+                ArrayList<IceServer> servers = new ArrayList<>();
+                for (int i = 0; i < urls.size(); i++) {
+                    String url = urls.get(i).getAsString();
+                    for (Probe probe : candidates) {
+                        if (probe.url.equals(url)) {
+                            servers.add(probe.server);
+                            break;
+                        }
+                    }
+                }
+                synchronized (lock) {
+                    // A probe that finished while the file was read is newer.
+                    if (selected == null && servers.size() == urls.size() && servers.size() > 0) {
+                        selected = servers.toArray(new IceServer[servers.size()]);
+                        probedNetwork = cache.get("network").getAsString();
+                        probedTime = cache.get("time").getAsLong();
+                    }
+                }
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not read ICE server cache.", ex);
+        }
+
+        boolean probe;
+        synchronized (lock) {
+            probe = requestedWhileLoading && !isFresh();
+        }
+        promise.resolve(null);
+        if (probe) {
+            refresh();
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(bytes, 0, offset, "UTF-8");
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            JsonArray urls = new JsonArray();
+            for (Probe probe : probes) {
+                for (IceServer server : selected) {
+                    if (server == probe.server) {
+                        urls.add(probe.url);
+                    }
+                }
+            }
+            JsonObject cache = new JsonObject();
+            cache.addProperty("network", probedNetwork);
+            cache.addProperty("time", probedTime);
+            cache.add("servers", urls);
+
+            File temp = new File(cacheFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write(cache.toString().getBytes("UTF-8"));
+            }
+            finally {
+                output.close();
+            }
+            if (!temp.renameTo(cacheFile)) {
+                Log.error("Could not write ICE server cache.");
+            }
+        }
+        catch (Exception ex) {
+            Log.error("Could not write ICE server cache.", ex);
+        }
+    }
+}
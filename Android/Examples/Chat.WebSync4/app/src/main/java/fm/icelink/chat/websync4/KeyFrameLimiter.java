@@ -0,0 +1,93 @@
+package fm.icelink.chat.websync4;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fm.icelink.IAction0;
+
+/**
+ * KeyFrameLimiter
+ *
+ * Merges key frame requests for an encoder shared by several connections.
+ * Requests are granted at most once per minimum interval. A request that
+ * arrives sooner is not dropped: one key frame is produced at the end of the
+ * interval for all of the requests that arrived in between.
+ */
+public class KeyFrameLimiter {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "KeyFrameLimiter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final IAction0 forceKeyFrame;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong keyFrameCount = new AtomicLong();
+    private long lastKeyFrame = -1;
+    private boolean pending;
+
+    private int minInterval = 1000;
+    public int getMinInterval() {
+        return this.minInterval;
+    }
+    public void setMinInterval(int milliseconds) {
+        this.minInterval = milliseconds;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getKeyFrameCount() {
+        return keyFrameCount.get();
+    }
+
+    /**
+     * @param forceKeyFrame Makes the encoder produce a key frame.
+     */
+    public KeyFrameLimiter(IAction0 forceKeyFrame) {
+        this.forceKeyFrame = forceKeyFrame;
+    }
+
+    public void request() {
+        requestCount.incrementAndGet();
+        synchronized (this) {
+            long now = now();
+            long wait = lastKeyFrame < 0 ? 0 : lastKeyFrame + minInterval - now;
+            if (wait > 0) {
+                if (!pending) {
+                    pending = true;
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (KeyFrameLimiter.this) {
+                                pending = false;
+                                lastKeyFrame = now();
+                            }
+                            raise();
+                        }
+                    }, wait, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            lastKeyFrame = now;
+        }
+        raise();
+    }
+
+    private void raise() {
+        keyFrameCount.incrementAndGet();
+        forceKeyFrame.invoke();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
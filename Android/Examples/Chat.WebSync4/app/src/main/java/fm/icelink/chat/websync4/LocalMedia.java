@@ -5,7 +5,6 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Camera;
-import android.media.MediaCodecInfo;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.view.SurfaceView;
@@ -23,20 +22,42 @@ public abstract class LocalMedia<TView> extends fm.icelink.RtcLocalMedia<TView>
     private boolean enableSoftwareH264;
     protected Context context;
 
+    /**
+     * Minimum time between key frames requested by remote peers. The encoders
+     * are shared by every connection, so requests from several peers are merged.
+     */
+    static final int keyFrameInterval = 1000;
+
 
     @Override
     protected AudioSink createAudioRecorder(AudioFormat audioFormat) {
-        return new fm.icelink.matroska.AudioSink(getId() + "-local-audio-" + audioFormat.getName().toLowerCase() + ".mkv");
+        return new SegmentedAudioRecorder(getId() + "-local-audio-" + audioFormat.getName().toLowerCase(), audioFormat);
     }
 
     @Override
     protected VideoSink createVideoRecorder(VideoFormat videoFormat) {
-        return new fm.icelink.matroska.VideoSink(getId() + "-local-video-" + videoFormat.getName().toLowerCase() + ".mkv");
+        return new SegmentedVideoRecorder(getId() + "-local-video-" + videoFormat.getName().toLowerCase(), videoFormat);
     }
 
+    private fm.icelink.yuv.ImageScaler imageScaler;
+
     @Override
     protected VideoPipe createImageScaler() {
-        return new fm.icelink.yuv.ImageScaler(1.0);
+        imageScaler = new fm.icelink.yuv.ImageScaler(1.0);
+        return imageScaler;
+    }
+
+    public double getVideoScale() {
+        return imageScaler == null ? 1.0 : imageScaler.getScale();
+    }
+
+    /**
+     * Scales captured frames before they reach the encoders. Takes effect on the next frame.
+     */
+    public void setVideoScale(double scale) {
+        if (imageScaler != null) {
+            imageScaler.setScale(scale);
+        }
     }
 
     @Override
@@ -57,7 +78,13 @@ public abstract class LocalMedia<TView> extends fm.icelink.RtcLocalMedia<TView>
     @Override
     protected VideoEncoder createH264Encoder() {
         if (enableSoftwareH264) {
-            return new fm.icelink.openh264.Encoder();
+            // Prefer a hardware encoder, keeping OpenH264 as the fallback.
+            VideoEncoder encoder = CodecProbe.getInstance(context).createEncoder(MediaCodecMimeTypes.H264, VideoFormat.getH264(), new IFunction0<VideoEncoder>() {
+                public VideoEncoder invoke() {
+                    return new SharedH264Encoder(keyFrameInterval);
+                }
+            });
+            return track(encoder != null ? encoder : new SharedH264Encoder(keyFrameInterval));
         } else {
             return null;
         }
@@ -65,7 +92,13 @@ public abstract class LocalMedia<TView> extends fm.icelink.RtcLocalMedia<TView>
 
     @Override
     protected VideoEncoder createVp8Encoder() {
-        return new fm.icelink.vp8.Encoder();
+        // Prefer a hardware encoder, keeping libvpx as the fallback.
+        VideoEncoder encoder = CodecProbe.getInstance(context).createEncoder(MediaCodecMimeTypes.Vp8, VideoFormat.getVp8(), new IFunction0<VideoEncoder>() {
+            public VideoEncoder invoke() {
+                return new SharedVp8Encoder(keyFrameInterval);
+            }
+        });
+        return track(encoder != null ? encoder : new SharedVp8Encoder(keyFrameInterval));
     }
 
     @Override
@@ -73,6 +106,62 @@ public abstract class LocalMedia<TView> extends fm.icelink.RtcLocalMedia<TView>
         return null;//new fm.icelink.vp9.Encoder();
     }
 
+    private final java.util.ArrayList<VideoEncoder> encoders = new java.util.ArrayList<>();
+
+    private VideoEncoder track(VideoEncoder encoder) {
+        synchronized (encoders) {
+            encoders.add(encoder);
+        }
+        if (simulcast != null && encoder instanceof Pausable) {
+            ((Pausable) encoder).setPaused(true);
+        }
+        return encoder;
+    }
+
+    /**
+     * Pauses or resumes the encoders fed by the capture pipeline. Simulcast
+     * layers have encoders of their own, so these only burn CPU while it is on.
+     */
+    private void setEncodersPaused(boolean paused) {
+        synchronized (encoders) {
+            for (VideoEncoder encoder : encoders) {
+                if (encoder instanceof Pausable) {
+                    ((Pausable) encoder).setPaused(paused);
+                }
+            }
+        }
+    }
+
+    private SimulcastEncoder simulcast;
+
+    /**
+     * The simulcast layers, or null when simulcast is not enabled.
+     */
+    public SimulcastEncoder getSimulcast() {
+        return simulcast;
+    }
+
+    /**
+     * Starts producing simulcast layers from the video source. Connections
+     * then take their local video from SimulcastEncoder.createSelector.
+     */
+    public SimulcastEncoder enableSimulcast(SimulcastLayer[] layers) {
+        if (simulcast == null && getVideoSource() != null) {
+            simulcast = new SimulcastEncoder(getVideoSource(), layers);
+            // Connections take their video from the layers, not the full-resolution encoders.
+            setEncodersPaused(true);
+        }
+        return simulcast;
+    }
+
+    public void disableSimulcast() {
+        if (simulcast != null) {
+            setEncodersPaused(false);
+            simulcast.destroy();
+            simulcast = null;
+        }
+    }
+
     public LocalMedia(Context context, boolean enableSoftwareH264, boolean disableAudio, boolean disableVideo, AecContext aecContext) {
         super(disableAudio, disableVideo, aecContext);
         this.enableSoftwareH264 = enableSoftwareH264;
@@ -0,0 +1,92 @@
+package fm.icelink.chat.websync4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fm.icelink.Guid;
+import fm.icelink.IAction1;
+
+/**
+ * LocalPushService
+ *
+ * An in-process stand-in for FCM, for tests and load runs without Google
+ * services (the push counterpart of LoopbackWebSyncServer). A device
+ * registers a handler and gets a token, which it registers under its user
+ * id as it would with the app server; send delivers a data payload, such
+ * as PushInvite.toData, to that user's handler on a delivery thread, as a
+ * push would arrive.
+ */
+public class LocalPushService implements PushSender {
+
+    private static final ExecutorService deliveryThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LocalPushService");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ConcurrentHashMap<String, IAction1<Map<String, String>>> devices = new ConcurrentHashMap<>();
+    // User id to token, as the app server would keep them.
+    private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    /**
+     * @param onMessage Receives each payload sent to the returned token.
+     * @return The device's push token.
+     */
+    public String register(IAction1<Map<String, String>> onMessage) {
+        String token = "local-" + Guid.newGuid().toString();
+        devices.put(token, onMessage);
+        return token;
+    }
+
+    public void unregister(String token) {
+        devices.remove(token);
+    }
+
+    @Override
+    public void register(String userId, String token) {
+        users.put(userId, token);
+    }
+
+    /**
+     * Pushes a data payload to a user's device.
+     *
+     * @return Whether the user's token is registered; unknown tokens are dropped, as FCM rejects them.
+     */
+    @Override
+    public boolean send(String userId, Map<String, String> data) {
+        String token = userId == null ? null : users.get(userId);
+        final IAction1<Map<String, String>> onMessage = token == null ? null : devices.get(token);
+        if (onMessage == null) {
+            return false;
+        }
+
+        sentCount.incrementAndGet();
+        final HashMap<String, String> copy = new HashMap<>(data);
+        deliveryThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliveredCount.incrementAndGet();
+                onMessage.invoke(copy);
+            }
+        });
+        return true;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+}
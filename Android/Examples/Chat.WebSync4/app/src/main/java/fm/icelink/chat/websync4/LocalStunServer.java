@@ -0,0 +1,277 @@
+package fm.icelink.chat.websync4;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LocalStunServer
+ *
+ * An in-process stand-in for a STUN server, for exercising IceServerManager
+ * without the network. It answers Binding requests (RFC 5389) with the
+ * sender's address over UDP and TCP on the same loopback port, and can add
+ * a delay or drop UDP to play a far server or a UDP-blocking network. It
+ * does not relay, so as a TURN URL it is only good for probing.
+ */
+public class LocalStunServer {
+
+    private static final int bindingRequest = 0x0001;
+    private static final int bindingSuccess = 0x0101;
+    private static final int magicCookie = 0x2112A442;
+    private static final int xorMappedAddress = 0x0020;
+
+    private static final ExecutorService threads = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LocalStunServer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final DatagramSocket udpSocket;
+    private final ServerSocket tcpSocket;
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile int delay;
+    private volatile boolean dropUdp;
+    private volatile boolean stopped;
+
+    private LocalStunServer(DatagramSocket udpSocket, ServerSocket tcpSocket) {
+        this.udpSocket = udpSocket;
+        this.tcpSocket = tcpSocket;
+    }
+
+    /**
+     * Starts a server on a free loopback port.
+     */
+    public static LocalStunServer start() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        // Take a free UDP port, then listen for TCP on the same one.
+        for (int attempt = 0; ; attempt++) {
+            DatagramSocket udpSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+            try {
+                ServerSocket tcpSocket = new ServerSocket();
+                tcpSocket.bind(new InetSocketAddress(loopback, udpSocket.getLocalPort()));
+                final LocalStunServer server = new LocalStunServer(udpSocket, tcpSocket);
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.serveUdp();
+                    }
+                });
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.acceptTcp();
+                    }
+                });
+                return server;
+            }
+            catch (IOException ex) {
+                udpSocket.close();
+                if (attempt == 9) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        udpSocket.close();
+        try {
+            tcpSocket.close();
+        }
+        catch (IOException ex) {
+            fm.icelink.Log.debug("Could not close the local STUN server's TCP socket.");
+        }
+    }
+
+    public int getPort() {
+        return udpSocket.getLocalPort();
+    }
+
+    /**
+     * A stun: URL for this server.
+     */
+    public String getStunUrl() {
+        return "stun:127.0.0.1:" + getPort();
+    }
+
+    /**
+     * A turn: URL for this server, for probing over UDP and TCP. It does not relay.
+     */
+    public String getTurnUrl() {
+        return "turn:127.0.0.1:" + getPort();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getDelay() {
+        return delay;
+    }
+    /**
+     * Sets how long to hold each response, in milliseconds, to play a far server.
+     */
+    public void setDelay(int delay) {
+        this.delay = delay;
+    }
+
+    public boolean getDropUdp() {
+        return dropUdp;
+    }
+    /**
+     * Sets whether to ignore UDP requests, to play a network that blocks UDP.
+     */
+    public void setDropUdp(boolean dropUdp) {
+        this.dropUdp = dropUdp;
+    }
+
+    private void serveUdp() {
+        byte[] buffer = new byte[548];
+        while (!stopped) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                udpSocket.receive(packet);
+                if (dropUdp) {
+                    continue;
+                }
+                final byte[] response = createResponse(buffer, packet.getLength(), (InetSocketAddress) packet.getSocketAddress());
+                if (response == null) {
+                    continue;
+                }
+                final InetSocketAddress sender = (InetSocketAddress) packet.getSocketAddress();
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            hold();
+                            udpSocket.send(new DatagramPacket(response, response.length, sender));
+                        }
+                        catch (Exception ex) {
+                            fm.icelink.Log.debug("Local STUN server could not answer over UDP.");
+                        }
+                    }
+                });
+            }
+            catch (IOException ex) {
+                if (!stopped) {
+                    fm.icelink.Log.error("Local STUN server UDP receive failed.", ex);
+                }
+            }
+        }
+    }
+
+    private void acceptTcp() {
+        while (!stopped) {
+            try {
+                final Socket socket = tcpSocket.accept();
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveTcp(socket);
+                    }
+                });
+            }
+            catch (IOException ex) {
+                if (!stopped) {
+                    fm.icelink.Log.error("Local STUN server TCP accept failed.", ex);
+                }
+            }
+        }
+    }
+
+    private void serveTcp(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            while (!stopped) {
+                byte[] header = new byte[20];
+                input.readFully(header);
+                int length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+                byte[] request = java.util.Arrays.copyOf(header, 20 + length);
+                input.readFully(request, 20, length);
+
+                byte[] response = createResponse(request, request.length, (InetSocketAddress) socket.getRemoteSocketAddress());
+                if (response != null) {
+                    hold();
+                    output.write(response);
+                    output.flush();
+                }
+            }
+        }
+        catch (Exception ex) {
+            // The client closed the connection.
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+                fm.icelink.Log.debug("Could not close a local STUN server connection.");
+            }
+        }
+    }
+
+    private void hold() throws InterruptedException {
+        int delay = this.delay;
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * A Binding success response with XOR-MAPPED-ADDRESS, or null if the
+     * message is not a Binding request.
+     */
+    private byte[] createResponse(byte[] request, int length, InetSocketAddress sender) {
+        if (length < 20) {
+            return null;
+        }
+        int type = ((request[0] & 0xff) << 8) | (request[1] & 0xff);
+        int cookie = ((request[4] & 0xff) << 24) | ((request[5] & 0xff) << 16) | ((request[6] & 0xff) << 8) | (request[7] & 0xff);
+        if (type != bindingRequest || cookie != magicCookie) {
+            return null;
+        }
+        requestCount.incrementAndGet();
+
+        byte[] address = sender.getAddress().getAddress();
+        int attributeLength = 4 + address.length;
+        byte[] response = new byte[20 + 4 + attributeLength];
+        response[0] = (byte) (bindingSuccess >> 8);
+        response[1] = (byte) bindingSuccess;
+        response[2] = (byte) ((4 + attributeLength) >> 8);
+        response[3] = (byte) (4 + attributeLength);
+        // Magic cookie and transaction id, as in the request.
+        System.arraycopy(request, 4, response, 4, 16);
+
+        int offset = 20;
+        response[offset++] = (byte) (xorMappedAddress >> 8);
+        response[offset++] = (byte) xorMappedAddress;
+        response[offset++] = (byte) (attributeLength >> 8);
+        response[offset++] = (byte) attributeLength;
+        response[offset++] = 0;
+        response[offset++] = (byte) (address.length == 4 ? 0x01 : 0x02);
+        int port = sender.getPort() ^ (magicCookie >>> 16);
+        response[offset++] = (byte) (port >> 8);
+        response[offset++] = (byte) port;
+        // The address is XORed with the cookie, and for IPv6 the transaction id after it.
+        for (int i = 0; i < address.length; i++) {
+            response[offset++] = (byte) (address[i] ^ request[4 + i]);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,576 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fm.EmptyFunction;
+import fm.Guid;
+import fm.NullableGuid;
+import fm.NullableInteger;
+import fm.SingleAction;
+import fm.websync.ConnectionType;
+import fm.websync.HttpMessageTransfer;
+import fm.websync.Message;
+import fm.websync.MessageRequestArgs;
+import fm.websync.MessageResponseArgs;
+import fm.websync.MessageTransfer;
+import fm.websync.MessageTransferFactory;
+import fm.websync.MetaChannels;
+import fm.websync.NotifyingClient;
+import fm.websync.PublishingClient;
+import fm.websync.Record;
+import fm.websync.SubscribedClient;
+import fm.websync.subscribers.Base;
+import fm.websync.subscribers.SubscriberChange;
+import fm.websync.subscribers.SubscriberChangeType;
+
+/**
+ * LoopbackWebSyncServer
+ *
+ * An in-process stand-in for a WebSync server. It is plugged into the WebSync
+ * client through MessageTransferFactory, so any Client created with the
+ * server's URL exchanges Bayeux messages with this class instead of the network.
+ *
+ * Implements the handshake, connect (long-poll), bind/unbind, subscribe/unsubscribe,
+ * publish, notify and disconnect semantics Signalling relies on, including the
+ * subscribers extension (/fm/subscribers) used for client-subscribe notifications.
+ */
+public class LoopbackWebSyncServer {
+
+    public static final String DefaultUrl = "http://loopback.websync/websync.ashx";
+
+    private static final String subscribersPrefix = Base._subscribersChannelPrefix;
+
+    private static final HashMap<String, LoopbackWebSyncServer> servers = new HashMap<>();
+    private static EmptyFunction<MessageTransfer> defaultCreateHttpMessageTransfer;
+
+    private static final ExecutorService transferThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LoopbackWebSyncServer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String url;
+    private final Object lock = new Object();
+    private final HashMap<Guid, LoopbackClient> clients = new HashMap<>();
+    private final HashMap<String, LinkedHashSet<LoopbackClient>> subscriptions = new HashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong publishCount = new AtomicLong();
+    private final AtomicLong deliveryCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+
+    private int connectTimeout = 5000;
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+    public void setConnectTimeout(int milliseconds) {
+        this.connectTimeout = milliseconds;
+    }
+
+    private volatile int latency;
+    public int getLatency() {
+        return this.latency;
+    }
+    /**
+     * Sets how long each request batch is held before it is processed, in
+     * milliseconds, to play a server some distance away.
+     */
+    public void setLatency(int milliseconds) {
+        this.latency = milliseconds;
+    }
+
+    private volatile boolean offline;
+    public boolean getOffline() {
+        return this.offline;
+    }
+    /**
+     * Sets whether requests fail as if the network were down, to inject
+     * failures. Clients are kept, so they can carry on once it is back.
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Number of HTTP-equivalent round-trips (message batches) received.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getPublishCount() {
+        return publishCount.get();
+    }
+
+    public long getDeliveryCount() {
+        return deliveryCount.get();
+    }
+
+    /**
+     * Number of bytes the request and response batches would take as the
+     * JSON bodies of the HTTP transfer, headers aside.
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public int getClientCount() {
+        synchronized (lock) {
+            return clients.size();
+        }
+    }
+
+    private LoopbackWebSyncServer(String url) {
+        this.url = url;
+    }
+
+    public static LoopbackWebSyncServer start() {
+        return start(DefaultUrl);
+    }
+
+    /**
+     * Starts a loopback server for the given URL. Clients created with
+     * this URL will be served in-process; every other URL keeps using
+     * the default HTTP transfer.
+     */
+    public static LoopbackWebSyncServer start(String url) {
+        synchronized (servers) {
+            LoopbackWebSyncServer server = servers.get(url);
+            if (server == null) {
+                server = new LoopbackWebSyncServer(url);
+                servers.put(url, server);
+            }
+
+            if (defaultCreateHttpMessageTransfer == null) {
+                defaultCreateHttpMessageTransfer = MessageTransferFactory.getCreateHttpMessageTransfer();
+                MessageTransferFactory.setCreateHttpMessageTransfer(new EmptyFunction<MessageTransfer>() {
+                    public MessageTransfer invoke() {
+                        return new LoopbackMessageTransfer();
+                    }
+                });
+            }
+            return server;
+        }
+    }
+
+    public void stop() {
+        synchronized (servers) {
+            servers.remove(url);
+        }
+
+        // Pending long-polls time out and their next connect is rejected.
+        synchronized (lock) {
+            clients.clear();
+            subscriptions.clear();
+        }
+    }
+
+    public static boolean isLoopbackUrl(String url) {
+        synchronized (servers) {
+            return servers.containsKey(url);
+        }
+    }
+
+    private static LoopbackWebSyncServer getServer(String requestUrl) {
+        // The client may append a query string to the request URL.
+        int query = requestUrl.indexOf('?');
+        String url = query < 0 ? requestUrl : requestUrl.substring(0, query);
+        synchronized (servers) {
+            return servers.get(url);
+        }
+    }
+
+    /**
+     * Processes one request batch, returning the response batch.
+     */
+    Message[] process(Message[] requests) throws Exception {
+        requestCount.incrementAndGet();
+        byteCount.addAndGet(Message.toJsonMultiple(requests).getBytes("UTF-8").length);
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (offline) {
+            throw new java.io.IOException("Loopback server is offline.");
+        }
+
+        ArrayList<Message> responses = new ArrayList<>();
+        LoopbackClient streamClient = null;
+        for (Message request : requests) {
+            String bayeuxChannel = request.getBayeuxChannel();
+            if (MetaChannels._handshake.equals(bayeuxChannel)) {
+                responses.add(handshake(request));
+            } else if (MetaChannels._connect.equals(bayeuxChannel)) {
+                streamClient = getClient(request);
+                responses.add(respond(request, streamClient != null ? null : "Unknown client."));
+            } else if (MetaChannels._disconnect.equals(bayeuxChannel)) {
+                responses.add(disconnect(request));
+            } else if (MetaChannels._bind.equals(bayeuxChannel)) {
+                responses.add(bind(request));
+            } else if (MetaChannels._unbind.equals(bayeuxChannel)) {
+                responses.add(unbind(request));
+            } else if (MetaChannels._subscribe.equals(bayeuxChannel)) {
+                responses.add(subscribe(request));
+            } else if (MetaChannels._unsubscribe.equals(bayeuxChannel)) {
+                responses.add(unsubscribe(request));
+            } else if (MetaChannels._notify.equals(bayeuxChannel)) {
+                responses.add(notify(request));
+            } else if (MetaChannels.isServiceChannel(bayeuxChannel)) {
+                responses.add(respond(request, null));
+            } else {
+                responses.add(publish(request));
+            }
+        }
+
+        if (streamClient != null) {
+            // Long-poll until something arrives for this client.
+            Message first = streamClient.queue.poll(connectTimeout, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                responses.add(first);
+                ArrayList<Message> rest = new ArrayList<>();
+                streamClient.queue.drainTo(rest);
+                responses.addAll(rest);
+            }
+        }
+
+        Message[] responseArray = responses.toArray(new Message[responses.size()]);
+        byteCount.addAndGet(Message.toJsonMultiple(responseArray).getBytes("UTF-8").length);
+        return responseArray;
+    }
+
+    private Message respond(Message request, String error) throws Exception {
+        Message response = new Message(request.getBayeuxChannel());
+        response.setValidate(false);
+        response.setId(request.getId());
+        response.setClientId(request.getClientId());
+        response.setChannels(request.getChannels());
+        response.setSuccessful(error == null);
+        response.setError(error);
+        return response;
+    }
+
+    private Message handshake(Message request) throws Exception {
+        LoopbackClient client = new LoopbackClient(Guid.newGuid());
+        synchronized (lock) {
+            clients.put(client.clientId, client);
+        }
+
+        Message response = respond(request, null);
+        response.setClientId(new NullableGuid(client.clientId));
+        response.setSessionId(new NullableGuid(Guid.newGuid()));
+        response.setVersion(request.getVersion());
+        response.setSupportedConnectionTypes(new ConnectionType[] { ConnectionType.LongPolling });
+        response.setServerTimeout(new NullableInteger(connectTimeout));
+        return response;
+    }
+
+    private Message disconnect(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client != null) {
+            ArrayList<String> channels;
+            synchronized (lock) {
+                clients.remove(client.clientId);
+                channels = new ArrayList<>(client.channels);
+            }
+            removeSubscriptions(client, channels.toArray(new String[channels.size()]));
+        }
+        return respond(request, null);
+    }
+
+    private Message bind(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        synchronized (lock) {
+            for (Record record : request.getRecords()) {
+                client.records.put(record.getKey(), record);
+            }
+        }
+
+        Message response = respond(request, null);
+        response.setRecords(request.getRecords());
+        return response;
+    }
+
+    private Message unbind(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        synchronized (lock) {
+            for (Record record : request.getRecords()) {
+                client.records.remove(record.getKey());
+            }
+        }
+
+        Message response = respond(request, null);
+        response.setRecords(request.getRecords());
+        return response;
+    }
+
+    private Message subscribe(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        HashMap<String, SubscribedClient[]> existing = new HashMap<>();
+        ArrayList<LoopbackClient[]> watchers = new ArrayList<>();
+        ArrayList<String> watchedChannels = new ArrayList<>();
+        SubscribedClient self;
+        synchronized (lock) {
+            self = client.toSubscribedClient();
+            for (String channel : request.getChannels()) {
+                getSubscribers(channel).add(client);
+                client.channels.add(channel);
+
+                if (!channel.startsWith(subscribersPrefix)) {
+                    LinkedHashSet<LoopbackClient> subscribers = getSubscribers(channel);
+                    ArrayList<SubscribedClient> others = new ArrayList<>();
+                    for (LoopbackClient subscriber : subscribers) {
+                        if (subscriber != client) {
+                            others.add(subscriber.toSubscribedClient());
+                        }
+                    }
+                    existing.put(channel, others.toArray(new SubscribedClient[others.size()]));
+
+                    LinkedHashSet<LoopbackClient> channelWatchers = getSubscribers(subscribersPrefix + channel);
+                    watchers.add(channelWatchers.toArray(new LoopbackClient[channelWatchers.size()]));
+                    watchedChannels.add(channel);
+                }
+            }
+        }
+
+        for (int i = 0; i < watchedChannels.size(); i++) {
+            notifySubscriberChange(watchedChannels.get(i), watchers.get(i), client, self, SubscriberChangeType.Subscribe);
+        }
+
+        Message response = respond(request, null);
+        Base.setSubscribedClients(response, existing);
+        return response;
+    }
+
+    private Message unsubscribe(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        removeSubscriptions(client, request.getChannels());
+        return respond(request, null);
+    }
+
+    private void removeSubscriptions(LoopbackClient client, String[] channels) throws Exception {
+        ArrayList<LoopbackClient[]> watchers = new ArrayList<>();
+        ArrayList<String> watchedChannels = new ArrayList<>();
+        SubscribedClient self;
+        synchronized (lock) {
+            self = client.toSubscribedClient();
+            for (String channel : channels) {
+                getSubscribers(channel).remove(client);
+                client.channels.remove(channel);
+
+                if (!channel.startsWith(subscribersPrefix)) {
+                    LinkedHashSet<LoopbackClient> channelWatchers = getSubscribers(subscribersPrefix + channel);
+                    watchers.add(channelWatchers.toArray(new LoopbackClient[channelWatchers.size()]));
+                    watchedChannels.add(channel);
+                }
+            }
+        }
+
+        for (int i = 0; i < watchedChannels.size(); i++) {
+            notifySubscriberChange(watchedChannels.get(i), watchers.get(i), client, self, SubscriberChangeType.Unsubscribe);
+        }
+    }
+
+    private void notifySubscriberChange(String channel, LoopbackClient[] watchers, LoopbackClient changed, SubscribedClient changedClient, SubscriberChangeType type) throws Exception {
+        SubscriberChange change = new SubscriberChange();
+        change.setClient(changedClient);
+        change.setType(type);
+        String changeJson = change.toJson();
+
+        for (LoopbackClient watcher : watchers) {
+            if (watcher == changed) {
+                continue;
+            }
+            Message message = new Message(subscribersPrefix + channel);
+            message.setValidate(false);
+            message.setChannel(subscribersPrefix + channel);
+            message.setDataJson(changeJson);
+            deliver(watcher, message);
+        }
+    }
+
+    private Message publish(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        publishCount.incrementAndGet();
+
+        String channel = request.getChannel() != null ? request.getChannel() : request.getBayeuxChannel();
+        LoopbackClient[] subscribers;
+        PublishingClient publishingClient;
+        synchronized (lock) {
+            LinkedHashSet<LoopbackClient> set = getSubscribers(channel);
+            subscribers = set.toArray(new LoopbackClient[set.size()]);
+            publishingClient = new PublishingClient(new NullableGuid(client.clientId), new HashMap<>(client.records));
+        }
+
+        for (LoopbackClient subscriber : subscribers) {
+            Message message = new Message(channel);
+            message.setValidate(false);
+            message.setChannel(channel);
+            message.setDataJson(request.getDataJson());
+            message.setTag(request.getTag());
+            message.setPublishingClient(publishingClient);
+            deliver(subscriber, message);
+        }
+
+        Message response = respond(request, null);
+        response.setChannel(channel);
+        response.setTag(request.getTag());
+        return response;
+    }
+
+    private Message notify(Message request) throws Exception {
+        LoopbackClient client = getClient(request);
+        if (client == null) {
+            return respond(request, "Unknown client.");
+        }
+
+        LoopbackClient target;
+        NotifyingClient notifyingClient;
+        synchronized (lock) {
+            target = clients.get(request.getNotifyClientId().getValue());
+            notifyingClient = new NotifyingClient(new NullableGuid(client.clientId), new HashMap<>(client.records));
+        }
+        if (target == null) {
+            return respond(request, "Unknown notify client.");
+        }
+
+        Message message = new Message(MetaChannels._notify);
+        message.setValidate(false);
+        message.setDataJson(request.getDataJson());
+        message.setTag(request.getTag());
+        message.setNotifyingClient(notifyingClient);
+        deliver(target, message);
+
+        return respond(request, null);
+    }
+
+    private void deliver(LoopbackClient client, Message message) {
+        deliveryCount.incrementAndGet();
+        client.queue.offer(message);
+    }
+
+    private LoopbackClient getClient(Message request) {
+        if (request.getClientId() == null || request.getClientId().getValue() == null) {
+            return null;
+        }
+        synchronized (lock) {
+            return clients.get(request.getClientId().getValue());
+        }
+    }
+
+    private LinkedHashSet<LoopbackClient> getSubscribers(String channel) {
+        LinkedHashSet<LoopbackClient> subscribers = subscriptions.get(channel);
+        if (subscribers == null) {
+            subscribers = new LinkedHashSet<>();
+            subscriptions.put(channel, subscribers);
+        }
+        return subscribers;
+    }
+
+    private static class LoopbackClient {
+        final Guid clientId;
+        final LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+        final LinkedHashSet<String> channels = new LinkedHashSet<>();
+        final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+
+        LoopbackClient(Guid clientId) {
+            this.clientId = clientId;
+        }
+
+        SubscribedClient toSubscribedClient() {
+            return new SubscribedClient(clientId, new HashMap<>(records));
+        }
+    }
+
+    /**
+     * Routes requests for registered loopback URLs to the matching server,
+     * and everything else to the default HTTP transfer.
+     */
+    private static class LoopbackMessageTransfer extends MessageTransfer {
+        private MessageTransfer fallback;
+
+        private MessageTransfer getFallback() {
+            if (fallback == null) {
+                fallback = defaultCreateHttpMessageTransfer != null ? defaultCreateHttpMessageTransfer.invoke() : new HttpMessageTransfer();
+            }
+            return fallback;
+        }
+
+        @Override
+        public MessageResponseArgs sendMessages(MessageRequestArgs requestArgs) throws Exception {
+            LoopbackWebSyncServer server = getServer(requestArgs.getUrl());
+            if (server == null) {
+                return getFallback().sendMessages(requestArgs);
+            }
+
+            MessageResponseArgs responseArgs = new MessageResponseArgs(requestArgs);
+            responseArgs.setHeaders(new HashMap<String, String>());
+            try {
+                responseArgs.setMessages(server.process(requestArgs.getMessages()));
+            } catch (Exception ex) {
+                responseArgs.setException(ex);
+            }
+            return responseArgs;
+        }
+
+        @Override
+        public void sendMessagesAsync(final MessageRequestArgs requestArgs, final SingleAction<MessageResponseArgs> callback) throws Exception {
+            if (getServer(requestArgs.getUrl()) == null) {
+                getFallback().sendMessagesAsync(requestArgs, callback);
+                return;
+            }
+
+            transferThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.invoke(sendMessages(requestArgs));
+                    } catch (Exception ex) {
+                        fm.icelink.Log.error("Loopback WebSync transfer failed.", ex);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            if (fallback != null) {
+                fallback.shutdown();
+            }
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package fm.icelink.chat.websync4;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import java.util.HashSet;
+
 import fm.SingleAction;
 import fm.icelink.Candidate;
 import fm.icelink.Connection;
+import fm.icelink.ConnectionState;
 import fm.icelink.Future;
+import fm.icelink.FutureState;
 import fm.icelink.IAction1;
 import fm.icelink.IAction2;
+import fm.icelink.IFunction0;
 import fm.icelink.IFunction1;
 import fm.icelink.Log;
 import fm.icelink.Promise;
@@ -33,12 +41,33 @@ public class ManualSignalling extends Signalling {
     private String offerTag = "offer";
     private String answerTag = "answer";
     private String candidateTag = "candidate";
+    private String remoteUserIdKey = "remoteUserId";
     private String userChannel;
 
+    // Remote users whose reconnect offer this peer is waiting for.
+    private final HashSet<String> awaitingOffer = new HashSet<>();
+
     protected Connection connectionInUserChannel;
 
+    private CandidateBatcher candidateBatcher;
+    public CandidateBatcher getCandidateBatcher() {
+        return this.candidateBatcher;
+    }
+
+    private Reconnector reconnector = new Reconnector();
+    public Reconnector getReconnector() {
+        return this.reconnector;
+    }
+
     public ManualSignalling (String serverUrl, String sessionId, String userName, IFunction1<PeerClient, Connection> createConnection, IAction2<String, String>  onReceivedText) {
         super(serverUrl, sessionId, userName, createConnection, onReceivedText);
+
+        candidateBatcher = new CandidateBatcher(new IAction2<String, String>() {
+            @Override
+            public void invoke(String channel, String candidatesJson) {
+                publishCandidates(channel, candidatesJson);
+            }
+        });
     }
 
     protected void defineChannels()
@@ -57,20 +86,43 @@ public class ManualSignalling extends Signalling {
      * @param promise The connection promise created by joinAsync method.
      */
     protected void doJoinAsync(final Promise<Object> promise) {
+        if (getPipelineJoin()) {
+            // Signalling has opened a client batch, so these are sent together.
+            whenAll(joinStage(bindUserMetadata(), "bind"),
+                    joinStage(subscribeToUserChannel(), "userChannel"),
+                    joinStage(subscribeToSessionChannel(), "sessionChannel")).then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object object) {
+                    promise.resolve(null);
+                }
+            }).fail(new IAction1<Exception>() {
+                @Override
+                public void invoke(Exception e) {
+                    promise.reject(e);
+                }
+            });
+            return;
+        }
+
         bindUserUserMetadata(userIdKey, userId).then(new IFunction1<Object, Future<Object>>() {
             @Override
             public Future<Object> invoke(Object object) {
-                return bindUserUserMetadata(userNameKey, userName);
+                return joinStage(bindUserUserMetadata(userNameKey, userName), "bind");
+            }
+        }).then(new IFunction1<Object, Future<Object>>() {
+            @Override
+            public Future<Object> invoke(Object object) {
+                return bindPushToken();
             }
         }).then(new IFunction1<Object, Future<Object>>() {
             @Override
             public Future<Object> invoke(Object object) {
-                return subscribeToUserChannel();
+                return joinStage(subscribeToUserChannel(), "userChannel");
             }
         }).then(new IFunction1<Object, Future<Object>>() {
             @Override
             public Future<Object> invoke(Object object) {
-                return subscribeToSessionChannel();
+                return joinStage(subscribeToSessionChannel(), "sessionChannel");
             }
         }).then(new IAction1<Object>() {
             @Override
@@ -89,6 +141,11 @@ public class ManualSignalling extends Signalling {
      * Handles unsubscribe for the user and session channels.
      */
     protected Future<Object> doLeaveAsync() {
+        reconnector.cancelAll();
+        synchronized (awaitingOffer) {
+            awaitingOffer.clear();
+        }
+        candidateBatcher.flushAll();
         return unsubscribeFromChannel(sessionChannel).then(new IFunction1<Object, Future<Object>>() {
             @Override
             public Future<Object> invoke(Object object) {
@@ -104,6 +161,11 @@ public class ManualSignalling extends Signalling {
             public Future<Object> invoke(Object object) {
                 return unbindUserMetadata(userNameKey);
             }
+        }).then(new IFunction1<Object, Future<Object>>() {
+            @Override
+            public Future<Object> invoke(Object object) {
+                return unbindPushToken();
+            }
         });
     }
 
@@ -124,10 +186,10 @@ public class ManualSignalling extends Signalling {
                 setOnReceive(new fm.SingleAction<SubscribeReceiveArgs>(){
                     public void invoke(SubscribeReceiveArgs e) {
                         try {
-                            String remoteClientId = e.getClient().getClientId().toString();
+                            String remoteClientId = e.getPublishingClient().getClientId().toString();
                             final String remoteUserId = Serializer.deserializeString(e.getPublishingClient().getBoundRecords().get(userIdKey).getValueJson());
 
-                            connectionInUserChannel = connections.getById(remoteClientId);
+                            connectionInUserChannel = getConnection(remoteClientId, remoteUserId);
                             if (e.getTag().equals(candidateTag)) {
                                 if (connectionInUserChannel == null) {
                                     connectionInUserChannel = createConnectionAndWireOnLocalCandidate(new PeerClient(e.getPublishingClient().getClientId().toString(), e.getPublishingClient().getBoundRecords()), remoteUserId);
@@ -135,63 +197,77 @@ public class ManualSignalling extends Signalling {
                                     connections.add(connectionInUserChannel);
                                 }
 
-                                Log.info("Received candidate from remote peer.");
+                                Log.info("Received candidates from remote peer.");
 
-                                connectionInUserChannel.addRemoteCandidate(Candidate.fromJson(e.getDataJson())).fail(new IAction1<Exception>() {
-                                    @Override
-                                    public void invoke(Exception e) {
-                                        Log.error("Could not process candidate from remote peer.", e);
-                                    }
-                                });
+                                for (Candidate candidate : parseCandidates(e.getDataJson())) {
+                                    connectionInUserChannel.addRemoteCandidate(candidate).fail(new IAction1<Exception>() {
+                                        @Override
+                                        public void invoke(Exception e) {
+                                            Log.error("Could not process candidate from remote peer.", e);
+                                        }
+                                    });
+                                }
                             }
                             else if (e.getTag().equals(offerTag)) {
 
                                 Log.info("Received offer from remote peer.");
 
-                                if (connectionInUserChannel == null) {
+                                synchronized (awaitingOffer) {
+                                    awaitingOffer.remove(remoteUserId);
+                                }
+                                if (connectionInUserChannel != null && connectionInUserChannel.getRemoteDescription() != null) {
+                                    // A new offer on an already negotiated connection means the peer is reconnecting.
+                                    Log.info("Remote peer is reconnecting, replacing its connection.");
+                                    reconnector.cancel(remoteUserId);
+                                    connections.remove(connectionInUserChannel);
+                                    connectionInUserChannel.close();
+                                    connectionInUserChannel = null;
+                                }
 
+                                if (connectionInUserChannel == null) {
                                     connectionInUserChannel = createConnectionAndWireOnLocalCandidate(new PeerClient(e.getPublishingClient().getClientId().toString(), e.getPublishingClient().getBoundRecords()), remoteUserId);
                                     connectionInUserChannel.setId(remoteClientId);
                                     connections.add(connectionInUserChannel);
+                                }
 
-                                    connectionInUserChannel.setRemoteDescription(SessionDescription.fromJson(e.getDataJson())).then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
-                                        @Override
-                                        public Future<SessionDescription> invoke(SessionDescription offer) {
-                                            return connectionInUserChannel.createAnswer();
-                                        }
-                                    }).then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
-                                        @Override
-                                        public Future<SessionDescription> invoke(SessionDescription answer) {
-                                            return connectionInUserChannel.setLocalDescription(answer);
-                                        }
-                                    }).then(new IAction1<SessionDescription>() {
-                                        @Override
-                                        public void invoke(SessionDescription answer) {
-                                            try {
-                                                client.publish(new PublishArgs(remoteUserChannel(remoteUserId), answer.toJson(), answerTag){{
-                                                    setOnSuccess(new fm.SingleAction<PublishSuccessArgs>() {
-                                                        public void invoke(PublishSuccessArgs e) {
-                                                            promise.resolve(null);
-                                                        }
-                                                    });
-                                                    setOnFailure(new fm.SingleAction<PublishFailureArgs>() {
-                                                        public void invoke(PublishFailureArgs e) {
-                                                            promise.reject(e.getException());
-                                                        }
-                                                    });
-                                                }});
-                                            }
-                                            catch (Exception ex){
-                                                Log.error(ex.getMessage());
-                                            }
+                                final Connection connection = connectionInUserChannel;
+                                connection.setRemoteDescription(SessionDescription.fromJson(e.getDataJson())).then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
+                                    @Override
+                                    public Future<SessionDescription> invoke(SessionDescription offer) {
+                                        return connection.createAnswer();
+                                    }
+                                }).then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
+                                    @Override
+                                    public Future<SessionDescription> invoke(SessionDescription answer) {
+                                        return connection.setLocalDescription(answer);
+                                    }
+                                }).then(new IAction1<SessionDescription>() {
+                                    @Override
+                                    public void invoke(SessionDescription answer) {
+                                        try {
+                                            client.publish(new PublishArgs(remoteUserChannel(remoteUserId), answer.toJson(), answerTag){{
+                                                setOnSuccess(new fm.SingleAction<PublishSuccessArgs>() {
+                                                    public void invoke(PublishSuccessArgs e) {
+                                                        Log.info("Published answer to remote peer.");
+                                                    }
+                                                });
+                                                setOnFailure(new fm.SingleAction<PublishFailureArgs>() {
+                                                    public void invoke(PublishFailureArgs e) {
+                                                        Log.error("Could not publish answer to remote peer.", e.getException());
+                                                    }
+                                                });
+                                            }});
                                         }
-                                    }).fail(new IAction1<Exception>() {
-                                        @Override
-                                        public void invoke(Exception e) {
-                                            Log.error("Could not process offer from remote peer.", e);
+                                        catch (Exception ex){
+                                            Log.error(ex.getMessage());
                                         }
-                                    });
-                                }
+                                    }
+                                }).fail(new IAction1<Exception>() {
+                                    @Override
+                                    public void invoke(Exception e) {
+                                        Log.error("Could not process offer from remote peer.", e);
+                                    }
+                                });
                             }
                             else if (e.getTag().equals(answerTag)) {
                                 if (connectionInUserChannel != null) {
@@ -237,7 +313,7 @@ public class ManualSignalling extends Signalling {
         try {
             SubscribeArgs args = new SubscribeArgs(sessionChannel){{
                 setOnSuccess(new fm.SingleAction<SubscribeSuccessArgs>() {
-                    public void invoke(PublishSuccessArgs e) {
+                    public void invoke(SubscribeSuccessArgs e) {
                         promise.resolve(null);
                     }
                 });
@@ -249,46 +325,33 @@ public class ManualSignalling extends Signalling {
             }};
             fm.websync.subscribers.SubscribeArgsExtensions.setOnClientSubscribe(args, new SingleAction<ClientSubscribeArgs>(){
                 public void invoke(ClientSubscribeArgs e) {
-                    String remoteClientId = e.getClient().getClientId().toString();
+                    String remoteClientId = e.getSubscribedClient().getClientId().toString();
                     final String remoteUserId = Serializer.deserializeString(e.getSubscribedClient().getBoundRecords().get(userIdKey).getValueJson());
 
+                    if (isReconnecting(remoteUserId)) {
+                        // The remote client is back from an outage under a new client id, and the
+                        // reconnect offer, not a second one from here, renegotiates the connection.
+                        Log.info("Remote peer subscribed again while reconnecting.");
+                        return;
+                    }
+
                     final Connection connection = createConnectionAndWireOnLocalCandidate(new PeerClient(e.getSubscribedClient().getClientId().toString(), e.getSubscribedClient().getBoundRecords()), remoteUserId);
                     connection.setId(remoteClientId);
                     connections.add(connection);
 
-                    connection.createOffer().then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
-                        @Override
-                        public Future<SessionDescription> invoke(SessionDescription offer) {
-                            return connection.setLocalDescription(offer);
-                        }
-                    }).then(new IAction1<SessionDescription>() {
-                        @Override
-                        public void invoke(SessionDescription offer) {
-                            try {
-                                client.publish(new PublishArgs(remoteUserChannel(remoteUserId), offer.toJson(), offerTag){{
-                                    setOnSuccess(new fm.SingleAction<PublishSuccessArgs>() {
-                                        public void invoke(PublishSuccessArgs publishSuccessArgs) {
-                                            Log.info("Published offer to remote peer.");
-                                        }
-                                    });
-                                    setOnFailure(new fm.SingleAction<PublishFailureArgs>() {
-                                        public void invoke(PublishFailureArgs publishFailureArgs) {
-                                            Log.error("Could not publish offer to remote peer.", publishFailureArgs.getException());
-                                        }
-                                    });
-                                }});
-                            }
-                            catch (Exception ex) {
-                                Log.error(ex.getMessage());
-                            }
-                        }
-                    });
+                    publishOffer(connection, remoteUserId);
                 }
             });
 
             fm.websync.subscribers.SubscribeArgsExtensions.setOnClientUnsubscribe(args, new SingleAction<ClientUnsubscribeArgs>(){
                 public void invoke(ClientUnsubscribeArgs e) {
-                    String remoteClientId = e.getClient().getClientId().toString();
+                    String remoteClientId = e.getUnsubscribedClient().getClientId().toString();
+                    String remoteUserId = Serializer.deserializeString(e.getUnsubscribedClient().getBoundRecords().get(userIdKey).getValueJson());
+
+                    reconnector.cancel(remoteUserId);
+                    synchronized (awaitingOffer) {
+                        awaitingOffer.remove(remoteUserId);
+                    }
 
                     Connection connection = connections.getById(remoteClientId);
                     if (connection != null) {
@@ -307,33 +370,203 @@ public class ManualSignalling extends Signalling {
 
     private Connection createConnectionAndWireOnLocalCandidate(PeerClient remoteClient, final String remoteUserId) {
         final Connection connection = createConnection.invoke(remoteClient);
+        connection.setDynamicValue(remoteUserIdKey, remoteUserId);
         connection.addOnLocalCandidate(new IAction2<Connection, Candidate>() {
             @Override
             public void invoke(Connection conn, Candidate candidate) {
+                candidateBatcher.add(remoteUserChannel(remoteUserId), candidate.toJson());
+            }
+        });
+
+        return connection;
+    }
+
+    /**
+     * Looks up the connection to a remote client. A client that lost the
+     * server during an outage comes back under a new client id, so failing
+     * that, a connection to the same remote user is taken over under the new id.
+     */
+    private Connection getConnection(String remoteClientId, String remoteUserId) {
+        Connection connection = connections.getById(remoteClientId);
+        if (connection != null) {
+            return connection;
+        }
+        for (Connection c : connections.getValues()) {
+            if (remoteUserId.equals(c.getDynamicValue(remoteUserIdKey))) {
+                connections.remove(c);
+                c.setId(remoteClientId);
+                connections.add(c);
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private boolean isReconnecting(String remoteUserId) {
+        synchronized (awaitingOffer) {
+            if (awaitingOffer.contains(remoteUserId)) {
+                return true;
+            }
+        }
+        return reconnector.isReconnecting(remoteUserId);
+    }
+
+    private Future<Object> publishOffer(final Connection connection, final String remoteUserId) {
+        final Promise<Object> promise = new Promise<Object>();
+        connection.createOffer().then(new IFunction1<SessionDescription, Future<SessionDescription>>() {
+            @Override
+            public Future<SessionDescription> invoke(SessionDescription offer) {
+                return connection.setLocalDescription(offer);
+            }
+        }).then(new IAction1<SessionDescription>() {
+            @Override
+            public void invoke(SessionDescription offer) {
                 try {
-                    client.publish(new PublishArgs(remoteUserChannel(remoteUserId), candidate.toJson(), candidateTag){{
-                        setOnSuccess(new SingleAction<PublishSuccessArgs>(){
+                    client.publish(new PublishArgs(remoteUserChannel(remoteUserId), offer.toJson(), offerTag){{
+                        setOnSuccess(new fm.SingleAction<PublishSuccessArgs>() {
                             public void invoke(PublishSuccessArgs publishSuccessArgs) {
-                                Log.info("Published candidate to remote peer.");
+                                Log.info("Published offer to remote peer.");
+                                promise.resolve(null);
                             }
                         });
-                        setOnFailure(new SingleAction<PublishFailureArgs>(){
-                            public void invoke(PublishFailureArgs publishSuccessArgs) {
-                                Log.error("Could not publish candidate to remote peer.", publishSuccessArgs.getException());
+                        setOnFailure(new fm.SingleAction<PublishFailureArgs>() {
+                            public void invoke(PublishFailureArgs publishFailureArgs) {
+                                Log.error("Could not publish offer to remote peer.", publishFailureArgs.getException());
+                                promise.reject(publishFailureArgs.getException());
                             }
                         });
                     }});
                 }
                 catch (Exception ex) {
-                    Log.error("Could not publish candidate to remote peer.");
+                    Log.error(ex.getMessage());
+                    promise.reject(ex);
                 }
             }
+        }).fail(new IAction1<Exception>() {
+            @Override
+            public void invoke(Exception e) {
+                Log.error("Could not create offer for remote peer.", e);
+                promise.reject(e);
+            }
         });
+        return promise;
+    }
 
-        return connection;
+    private void publishCandidates(String channel, String candidatesJson) {
+        try {
+            client.publish(new PublishArgs(channel, candidatesJson, candidateTag){{
+                setOnSuccess(new SingleAction<PublishSuccessArgs>(){
+                    public void invoke(PublishSuccessArgs publishSuccessArgs) {
+                        Log.info("Published candidates to remote peer.");
+                    }
+                });
+                setOnFailure(new SingleAction<PublishFailureArgs>(){
+                    public void invoke(PublishFailureArgs publishFailureArgs) {
+                        Log.error("Could not publish candidates to remote peer.", publishFailureArgs.getException());
+                    }
+                });
+            }});
+        }
+        catch (Exception ex) {
+            Log.error("Could not publish candidates to remote peer.");
+        }
     }
 
-    public void reconnect(PeerClient remoteClient, Connection connection) {
-        // TODO
+    /**
+     * Accepts either a single candidate or a batched JSON array of candidates.
+     */
+    static Candidate[] parseCandidates(String dataJson) throws Exception {
+        if (!dataJson.trim().startsWith("[")) {
+            return new Candidate[] { Candidate.fromJson(dataJson) };
+        }
+
+        JsonArray array = new JsonParser().parse(dataJson).getAsJsonArray();
+        Candidate[] candidates = new Candidate[array.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = Candidate.fromJson(array.get(i).toString());
+        }
+        return candidates;
+    }
+
+    /**
+     * Replaces a failed connection by negotiating a new one over the user channel.
+     * To avoid both peers offering at once, only the peer with the greater userId
+     * re-offers; the other drops the failed connection and waits for that offer.
+     * Attempts are retried with backoff by the Reconnector, keyed by the remote
+     * userId, since the remote client id changes if the server lost it meanwhile.
+     */
+    public void reconnect(final PeerClient remoteClient, Connection connection) {
+        final String remoteClientId = connection.getId();
+        final String remoteUserId;
+        try {
+            remoteUserId = Serializer.deserializeString(remoteClient.getBoundRecords().get(userIdKey).getValueJson());
+        }
+        catch (Exception ex) {
+            Log.error("Could not reconnect to remote peer.", ex);
+            return;
+        }
+
+        if (connections.getById(remoteClientId) == connection) {
+            connections.remove(connection);
+        }
+
+        if (userId.compareTo(remoteUserId) < 0) {
+            Log.info("Waiting for remote peer to reconnect.");
+            synchronized (awaitingOffer) {
+                awaitingOffer.add(remoteUserId);
+            }
+            return;
+        }
+
+        reconnector.reconnect(remoteUserId, new IFunction0<Future<Object>>() {
+            @Override
+            public Future<Object> invoke() {
+                return reconnectAttempt(remoteClient, remoteClientId, remoteUserId);
+            }
+        });
+    }
+
+    /**
+     * Offers a new connection to the remote peer. Resolves once it is connected
+     * and rejects if it fails or closes first.
+     */
+    private Future<Object> reconnectAttempt(PeerClient remoteClient, String remoteClientId, String remoteUserId) {
+        final Promise<Object> promise = new Promise<Object>();
+
+        Connection previous = getConnection(remoteClientId, remoteUserId);
+        if (previous != null) {
+            connections.remove(previous);
+            previous.close();
+        }
+
+        final Connection connection = createConnectionAndWireOnLocalCandidate(remoteClient, remoteUserId);
+        connection.setId(remoteClientId);
+        connection.addOnStateChange(new IAction1<Connection>() {
+            @Override
+            public void invoke(Connection c) {
+                if (promise.getState() != FutureState.Pending) {
+                    return;
+                }
+                if (c.getState() == ConnectionState.Connected) {
+                    promise.resolve(null);
+                }
+                else if (c.getState() == ConnectionState.Failed || c.getState() == ConnectionState.Closed) {
+                    promise.reject(new Exception("Connection " + c.getState().toString().toLowerCase() + " while reconnecting."));
+                }
+            }
+        });
+        connections.add(connection);
+
+        publishOffer(connection, remoteUserId).fail(new IAction1<Exception>() {
+            @Override
+            public void invoke(Exception e) {
+                connections.remove(connection);
+                connection.close();
+                if (promise.getState() == FutureState.Pending) {
+                    promise.reject(e);
+                }
+            }
+        });
+        return promise;
     }
 }
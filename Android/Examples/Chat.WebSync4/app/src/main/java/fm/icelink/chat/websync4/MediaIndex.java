@@ -0,0 +1,131 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * MediaIndex
+ *
+ * Indexes media by view, by media id and by peer id as one set of entries.
+ * Adds and removes take a lock, copy the indexes and publish the copy as one
+ * immutable snapshot, so lookups never lock and no caller sees media that is
+ * only partly added or removed. Writes happen once per connection; lookups
+ * happen on the UI thread for every layout pass.
+ */
+class MediaIndex<M> {
+
+    private static class Entry {
+        final String peerId;
+        final String id;
+        final Object view;
+
+        Entry(String peerId, String id, Object view) {
+            this.peerId = peerId;
+            this.id = id;
+            this.view = view;
+        }
+    }
+
+    private static class Snapshot<M> {
+        final LinkedHashMap<M, Entry> entries;
+        final HashMap<Object, M> byView;
+        final HashMap<String, M> byId;
+        final HashMap<String, M> byPeer;
+
+        Snapshot() {
+            this.entries = new LinkedHashMap<>();
+            this.byView = new HashMap<>();
+            this.byId = new HashMap<>();
+            this.byPeer = new HashMap<>();
+        }
+
+        Snapshot(Snapshot<M> snapshot) {
+            this.entries = new LinkedHashMap<>(snapshot.entries);
+            this.byView = new HashMap<>(snapshot.byView);
+            this.byId = new HashMap<>(snapshot.byId);
+            this.byPeer = new HashMap<>(snapshot.byPeer);
+        }
+    }
+
+    private final Object lock = new Object();
+    private volatile Snapshot<M> snapshot = new Snapshot<>();
+
+    /**
+     * Adds media for a peer. Lookups by peer return the most recent one.
+     */
+    public void add(String peerId, String id, Object view, M media) {
+        synchronized (lock) {
+            Snapshot<M> next = new Snapshot<>(snapshot);
+            Entry previous = next.entries.put(media, new Entry(peerId, id, view));
+            if (previous != null) {
+                removeIndexes(next, media, previous);
+            }
+            next.byId.put(id, media);
+            next.byView.put(view, media);
+            next.byPeer.put(peerId, media);
+            snapshot = next;
+        }
+    }
+
+    /**
+     * @return Whether this call removed the media.
+     */
+    public boolean remove(M media) {
+        synchronized (lock) {
+            if (!snapshot.entries.containsKey(media)) {
+                return false;
+            }
+            Snapshot<M> next = new Snapshot<>(snapshot);
+            removeIndexes(next, media, next.entries.remove(media));
+            snapshot = next;
+            return true;
+        }
+    }
+
+    private static <M> void removeIndexes(Snapshot<M> snapshot, M media, Entry entry) {
+        if (snapshot.byId.get(entry.id) == media) {
+            snapshot.byId.remove(entry.id);
+        }
+        if (snapshot.byView.get(entry.view) == media) {
+            snapshot.byView.remove(entry.view);
+        }
+        if (snapshot.byPeer.get(entry.peerId) == media) {
+            snapshot.byPeer.remove(entry.peerId);
+        }
+    }
+
+    public M getByView(Object view) {
+        return snapshot.byView.get(view);
+    }
+
+    public M getById(String id) {
+        return snapshot.byId.get(id);
+    }
+
+    public M getByPeer(String peerId) {
+        return snapshot.byPeer.get(peerId);
+    }
+
+    public boolean contains(M media) {
+        return snapshot.entries.containsKey(media);
+    }
+
+    public List<Object> getViews() {
+        Snapshot<M> snapshot = this.snapshot;
+        ArrayList<Object> views = new ArrayList<>(snapshot.entries.size());
+        for (Entry entry : snapshot.entries.values()) {
+            views.add(entry.view);
+        }
+        return views;
+    }
+
+    public List<M> getAll() {
+        return new ArrayList<M>(snapshot.entries.keySet());
+    }
+
+    public int size() {
+        return snapshot.entries.size();
+    }
+}
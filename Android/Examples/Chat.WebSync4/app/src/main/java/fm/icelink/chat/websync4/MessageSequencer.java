@@ -0,0 +1,81 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/**
+ * MessageSequencer
+ *
+ * Receiver side of OutboundQueue. Tracks the last sequence number delivered
+ * per sender, drops duplicates and holds messages that arrive ahead of a gap
+ * until the gap is filled. At most maxHeld messages are held per sender; past
+ * that the gap is given up on and delivery resumes from the oldest held one.
+ * The first message seen from a sender sets its starting point, since a
+ * receiver may join after the sender's first messages. Deliveries can still
+ * overtake each other on the way in, so a message from before that point
+ * is delivered late rather than dropped, once.
+ */
+public class MessageSequencer<T> {
+
+    private static class Sender<T> {
+        long firstSequence;
+        long lastSequence;
+        TreeMap<Long, T> held = new TreeMap<>();
+        // Sequences from before the starting point that have been delivered.
+        HashSet<Long> early = new HashSet<>();
+    }
+
+    private final HashMap<String, Sender<T>> senders = new HashMap<>();
+    private final int maxHeld;
+
+    public MessageSequencer(int maxHeld) {
+        this.maxHeld = maxHeld;
+    }
+
+    /**
+     * @return The messages now deliverable, in order; empty for a duplicate or a held message.
+     */
+    public synchronized ArrayList<T> accept(String senderId, long sequence, T message) {
+        ArrayList<T> ready = new ArrayList<>();
+
+        Sender<T> sender = senders.get(senderId);
+        if (sender == null) {
+            sender = new Sender<>();
+            sender.firstSequence = sequence;
+            sender.lastSequence = sequence - 1;
+            senders.put(senderId, sender);
+        }
+
+        if (sequence < sender.firstSequence) {
+            if (sender.early.size() < maxHeld && sender.early.add(sequence)) {
+                ready.add(message);
+            }
+            return ready;
+        }
+
+        if (sequence <= sender.lastSequence || sender.held.containsKey(sequence)) {
+            // Duplicate, e.g. resent after a reconnect.
+            return ready;
+        }
+
+        sender.held.put(sequence, message);
+        if (sender.held.size() > maxHeld) {
+            // Give up on the gap.
+            sender.lastSequence = sender.held.firstKey() - 1;
+        }
+        while (!sender.held.isEmpty() && sender.held.firstKey() == sender.lastSequence + 1) {
+            sender.lastSequence++;
+            ready.add(sender.held.pollFirstEntry().getValue());
+        }
+        return ready;
+    }
+
+    /**
+     * Forgets a sender, e.g. once it has left.
+     */
+    public synchronized void remove(String senderId) {
+        senders.remove(senderId);
+    }
+}
@@ -0,0 +1,351 @@
+package fm.icelink.chat.websync4;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+
+import fm.icelink.Future;
+import fm.icelink.Log;
+import fm.icelink.Promise;
+
+/**
+ * OpenH264Loader
+ *
+ * Downloads and loads the OpenH264 library on a background thread so local
+ * media never waits for it. The compressed archive is downloaded to a .part
+ * file and an interrupted download resumes with an HTTP Range request. The
+ * archive is only unpacked into place (via a temporary file and a rename)
+ * once its length and its SHA-256 match, and the bzip2 CRCs and the ELF
+ * header of what it unpacks to check out.
+ */
+public class OpenH264Loader {
+
+    private static final String libraryFileName = "libopenh264.so";
+    private static final int maxAttempts = 5;
+    private static final int retryDelay = 2000;
+    private static final int timeout = 15000;
+
+    /**
+     * SHA-256 of libopenh264-1.6.0-android19.so.bz2, the archive behind
+     * Utility.getDownloadUrl() on Android. It has to be taken from the
+     * archive Cisco publishes; until it is, every download is refused.
+     */
+    static final String androidArchiveSha256 = "";
+
+    private static OpenH264Loader instance;
+
+    public static synchronized OpenH264Loader getInstance(File directory) {
+        if (instance == null) {
+            instance = new OpenH264Loader(directory, fm.icelink.openh264.Utility.getDownloadUrl(), androidArchiveSha256);
+        }
+        return instance;
+    }
+
+    private final File library;
+    private final File archive;
+    private final File partial;
+    private final String url;
+    private final String archiveSha256;
+
+    private Promise<Object> promise;
+    private volatile boolean loaded;
+
+    /**
+     * @param archiveSha256 Hex SHA-256 of the archive at url; an archive that does not match is discarded.
+     */
+    public OpenH264Loader(File directory, String url, String archiveSha256) {
+        if (archiveSha256 == null) {
+            throw new IllegalArgumentException("The OpenH264 archive SHA-256 is required.");
+        }
+        this.library = new File(directory, libraryFileName);
+        this.archive = new File(directory, libraryFileName + ".bz2");
+        this.partial = new File(directory, libraryFileName + ".bz2.part");
+        this.url = url;
+        this.archiveSha256 = archiveSha256;
+    }
+
+    public String getArchiveSha256() {
+        return archiveSha256;
+    }
+
+    File getArchive() {
+        return archive;
+    }
+
+    File getPartial() {
+        return partial;
+    }
+
+    File getLibrary() {
+        return library;
+    }
+
+    public String getLibraryPath() {
+        return library.getAbsolutePath();
+    }
+
+    /**
+     * Whether the library has been loaded into the process.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Starts loading the library, downloading it first if needed. Calls made
+     * while a load is running share its result; after a failure the next
+     * call tries again, resuming any partial download.
+     */
+    public synchronized Future<Object> load() {
+        if (promise != null) {
+            return promise;
+        }
+
+        final Promise<Object> promise = new Promise<Object>();
+        this.promise = promise;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadLibrary();
+                    loaded = true;
+                    promise.resolve(null);
+                }
+                catch (Throwable t) {
+                    // System.load reports failures as errors.
+                    Exception ex = t instanceof Exception ? (Exception) t : new Exception(t.getMessage(), t);
+                    Log.error("Could not load OpenH264 library.", ex);
+                    synchronized (OpenH264Loader.this) {
+                        OpenH264Loader.this.promise = null;
+                    }
+                    promise.reject(ex);
+                }
+            }
+        }, "OpenH264Loader");
+        thread.setDaemon(true);
+        thread.start();
+        return promise;
+    }
+
+    private void loadLibrary() throws Exception {
+        if (library.exists()) {
+            try {
+                checkElf(library);
+                System.load(library.getAbsolutePath());
+                return;
+            }
+            catch (Throwable ex) {
+                Log.warn("OpenH264 library is damaged, downloading it again.");
+                library.delete();
+            }
+        }
+
+        install();
+        System.load(library.getAbsolutePath());
+    }
+
+    /**
+     * Downloads the archive, checks its SHA-256 and unpacks it into place.
+     * A bad archive is deleted so the next attempt starts from scratch.
+     */
+    void install() throws Exception {
+        long start = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                download();
+                break;
+            }
+            catch (IOException ex) {
+                if (attempt == maxAttempts) {
+                    throw ex;
+                }
+                Log.warn(String.format("OpenH264 download attempt %d failed (%s), retrying.", attempt, ex.getMessage()));
+                Thread.sleep(retryDelay * attempt);
+            }
+        }
+
+        File temp = new File(library.getPath() + ".tmp");
+        try {
+            String actual = sha256(archive);
+            if (!actual.equalsIgnoreCase(archiveSha256)) {
+                throw new IOException(String.format("OpenH264 archive checksum mismatch (got %s).", actual));
+            }
+            unpack(archive, temp);
+            checkElf(temp);
+        }
+        catch (Exception ex) {
+            // The archive itself is bad; start from scratch next time.
+            temp.delete();
+            archive.delete();
+            throw ex;
+        }
+        if (!temp.renameTo(library)) {
+            temp.delete();
+            throw new IOException("Could not move OpenH264 library into place.");
+        }
+        archive.delete();
+        Log.info(String.format("OpenH264 library downloaded in %dms.", (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Downloads the archive, resuming from the partial file if there is one.
+     * Leaves whatever arrived in the partial file and throws if the transfer
+     * is cut short.
+     */
+    void download() throws IOException {
+        if (archive.exists()) {
+            return;
+        }
+
+        long offset = partial.length();
+        Log.info(offset == 0
+                ? String.format("Downloading OpenH264 library from %s.", url)
+                : String.format("Resuming OpenH264 library download from %s at byte %d.", url, offset));
+
+        long total;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                total = parseTotal(connection.getHeaderField("Content-Range"));
+            }
+            else if (status == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range; start over.
+                offset = 0;
+                total = connection.getContentLength();
+            }
+            else if (status == 416 && offset > 0) {
+                // Range not satisfiable: the partial file is complete or stale.
+                partial.delete();
+                throw new IOException("Partial download is out of range.");
+            }
+            else {
+                throw new IOException("Unexpected HTTP status " + status + ".");
+            }
+
+            RandomAccessFile output = new RandomAccessFile(partial, "rw");
+            try {
+                output.setLength(offset);
+                output.seek(offset);
+                InputStream input = connection.getInputStream();
+                try {
+                    byte[] buffer = new byte[16384];
+                    int read;
+                    while ((read = input.read(buffer)) >= 0) {
+                        output.write(buffer, 0, read);
+                    }
+                }
+                finally {
+                    input.close();
+                }
+                output.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+
+        long length = partial.length();
+        if (total >= 0 && length != total) {
+            if (length > total) {
+                partial.delete();
+            }
+            throw new IOException(String.format("Downloaded %d of %d bytes.", length, total));
+        }
+        if (!partial.renameTo(archive)) {
+            throw new IOException("Could not complete OpenH264 download.");
+        }
+    }
+
+    private static long parseTotal(String contentRange) {
+        // bytes <first>-<last>/<total>
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                }
+                catch (NumberFormatException ex) { }
+            }
+        }
+        return -1;
+    }
+
+    private static void unpack(File source, File target) throws IOException {
+        // The bzip2 stream checks its own block and stream CRCs as it is read.
+        InputStream input = new BZip2InputStream(new BufferedInputStream(new FileInputStream(source)));
+        try {
+            FileOutputStream output = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[16384];
+                int read;
+                while ((read = input.read(buffer, 0, buffer.length)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+                output.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private static String sha256(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16384];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            input.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static void checkElf(File file) throws IOException {
+        byte[] header = new byte[4];
+        int headerLength = 0;
+        InputStream input = new FileInputStream(file);
+        try {
+            int read;
+            while (headerLength < header.length && (read = input.read(header, headerLength, header.length - headerLength)) >= 0) {
+                headerLength += read;
+            }
+        }
+        finally {
+            input.close();
+        }
+
+        if (headerLength < 4 || header[0] != 0x7f || header[1] != 'E' || header[2] != 'L' || header[3] != 'F') {
+            throw new IOException("OpenH264 library is not an ELF file.");
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package fm.icelink.chat.websync4;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import fm.icelink.Guid;
+import fm.icelink.Log;
+
+/**
+ * OutboundQueue
+ *
+ * Holds published messages until the server acknowledges them, so a publish
+ * that fails during a reconnect is sent again instead of being dropped. Each
+ * message is stamped with this queue's sender id and the next sequence
+ * number, which lets receivers (see MessageSequencer) drop duplicates and
+ * restore order. When backed by a file, messages and acknowledgements are
+ * appended to it and the file is compacted once mostly acknowledged, so
+ * unsent messages survive a restart. The queue holds at most maxMessages;
+ * beyond that the oldest are dropped.
+ */
+public class OutboundQueue {
+
+    public static final String senderIdKey = "senderId";
+    public static final String sequenceKey = "seq";
+
+    public static class Message {
+        private long sequence;
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        private String channel;
+        public String getChannel() {
+            return this.channel;
+        }
+
+        private String json;
+        /**
+         * The payload with the sender id and sequence number added.
+         */
+        public String getJson() {
+            return this.json;
+        }
+
+        public Message(long sequence, String channel, String json) {
+            this.sequence = sequence;
+            this.channel = channel;
+            this.json = json;
+        }
+    }
+
+    private static final String ackPrefix = "ack\t";
+
+    private final File file;
+    private final int maxMessages;
+    private final TreeMap<Long, Message> pending = new TreeMap<>();
+    private String senderId;
+    private String senderIdJson;
+    private long nextSequence = 1;
+    private int fileRecords;
+    private Writer writer;
+
+    /**
+     * @param file Where to persist unacknowledged messages, or null to keep them in memory only.
+     * @param maxMessages The most unacknowledged messages to keep.
+     */
+    public OutboundQueue(File file, int maxMessages) {
+        this.file = file;
+        this.maxMessages = maxMessages;
+
+        if (file != null) {
+            try {
+                load();
+            }
+            catch (Exception ex) {
+                Log.error("Could not read outbound queue, starting empty.", ex);
+                pending.clear();
+                senderId = null;
+            }
+        }
+        if (senderId == null) {
+            senderId = Guid.newGuid().toString();
+            nextSequence = 1;
+            rewrite();
+        }
+        senderIdJson = quote(senderId);
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Stamps and stores a message.
+     *
+     * @param json A JSON object payload.
+     */
+    public synchronized Message enqueue(String channel, String json) {
+        long sequence = nextSequence++;
+        String body = json.trim().substring(1).trim();
+        String stamped = "{\"" + senderIdKey + "\":" + senderIdJson + ",\"" + sequenceKey + "\":" + sequence
+                + (body.startsWith("}") ? "" : ",") + body;
+
+        Message message = new Message(sequence, channel, stamped);
+        pending.put(sequence, message);
+        append(sequence + "\t" + channel + "\t" + stamped);
+
+        while (pending.size() > maxMessages) {
+            Map.Entry<Long, Message> oldest = pending.pollFirstEntry();
+            Log.warn(String.format("Outbound queue full, dropping message %d.", oldest.getKey()));
+            append(ackPrefix + oldest.getKey());
+        }
+        return message;
+    }
+
+    /**
+     * Unacknowledged messages, oldest first.
+     */
+    public synchronized ArrayList<Message> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Removes a message once the server has accepted it.
+     */
+    public synchronized void acknowledge(long sequence) {
+        if (pending.remove(sequence) != null) {
+            append(ackPrefix + sequence);
+            if (fileRecords > 64 && fileRecords > pending.size() * 4) {
+                rewrite();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            senderId = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                fileRecords++;
+                try {
+                    if (line.startsWith(ackPrefix)) {
+                        long sequence = Long.parseLong(line.substring(ackPrefix.length()));
+                        pending.remove(sequence);
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                        continue;
+                    }
+
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length == 3 && fields[2].endsWith("}")) {
+                        long sequence = Long.parseLong(fields[0]);
+                        pending.put(sequence, new Message(sequence, fields[1], fields[2]));
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                    }
+                }
+                catch (NumberFormatException ex) {
+                    // A crash can leave the last record half-written.
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        if (senderId != null && senderId.length() == 0) {
+            senderId = null;
+        }
+        if (pending.size() > 0) {
+            Log.info(String.format("Outbound queue restored %d unsent messages.", pending.size()));
+        }
+    }
+
+    private void append(String record) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            }
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+            fileRecords++;
+        }
+        catch (IOException ex) {
+            Log.error("Could not write outbound queue.", ex);
+            closeWriter();
+        }
+    }
+
+    private void rewrite() {
+        if (file == null) {
+            return;
+        }
+
+        closeWriter();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Writer output = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                output.write(senderId);
+                output.write('\n');
+                // Keep a record of the highest sequence so it survives even if every message is acknowledged.
+                output.write(ackPrefix + (nextSequence - 1));
+                output.write('\n');
+                for (Message message : pending.values()) {
+                    output.write(message.getSequence() + "\t" + message.getChannel() + "\t" + message.getJson());
+                    output.write('\n');
+                }
+            }
+            finally {
+                output.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file.getName() + ".");
+            }
+            fileRecords = pending.size() + 1;
+        }
+        catch (IOException ex) {
+            Log.error("Could not compact outbound queue.", ex);
+        }
+    }
+
+    private static String quote(String value) {
+        StringWriter output = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(output);
+            writer.setLenient(true);
+            writer.value(value);
+            writer.close();
+        }
+        catch (IOException ex) {
+            // A StringWriter does not throw.
+            throw new IllegalStateException(ex);
+        }
+        return output.toString();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            }
+            catch (IOException ex) { }
+            writer = null;
+        }
+    }
+}
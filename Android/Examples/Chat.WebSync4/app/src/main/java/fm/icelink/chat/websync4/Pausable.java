@@ -0,0 +1,10 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * Pausable
+ *
+ * An encoder that can skip frames while nothing uses its output.
+ */
+interface Pausable {
+    void setPaused(boolean paused);
+}
@@ -0,0 +1,47 @@
+package fm.icelink.chat.websync4;
+
+import java.util.HashSet;
+
+/**
+ * PeerPresence
+ *
+ * Tracks which remote peers are in the session, so each is reported as
+ * joined once and as left once, however many connections it goes through.
+ * A failed connection is replaced by reconnect attempts, each a connection
+ * of its own that may fail again; only the first failure of a connected
+ * peer means it has left.
+ */
+public class PeerPresence {
+
+    private final HashSet<String> peers = new HashSet<>();
+
+    /**
+     * Call when a connection to the peer reaches Connected.
+     *
+     * @return Whether the peer has just joined.
+     */
+    public synchronized boolean connected(String peerId) {
+        return peers.add(peerId);
+    }
+
+    /**
+     * Call when a connection to the peer fails or closes.
+     *
+     * @return Whether the peer has just left.
+     */
+    public synchronized boolean disconnected(String peerId) {
+        return peers.remove(peerId);
+    }
+
+    public synchronized boolean contains(String peerId) {
+        return peers.contains(peerId);
+    }
+
+    public synchronized int getCount() {
+        return peers.size();
+    }
+
+    public synchronized void clear() {
+        peers.clear();
+    }
+}
@@ -0,0 +1,340 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fm.SingleAction;
+import fm.icelink.FutureState;
+import fm.icelink.Future;
+import fm.icelink.Log;
+import fm.icelink.Promise;
+import fm.icelink.Serializer;
+import fm.websync.BindArgs;
+import fm.websync.Client;
+import fm.websync.ConnectArgs;
+import fm.websync.ConnectFailureArgs;
+import fm.websync.ConnectSuccessArgs;
+import fm.websync.DisconnectArgs;
+import fm.websync.DisconnectCompleteArgs;
+import fm.websync.Record;
+import fm.websync.SubscribeArgs;
+import fm.websync.SubscribeFailureArgs;
+import fm.websync.SubscribeSuccessArgs;
+import fm.websync.SubscribedClient;
+import fm.websync.subscribers.ClientSubscribeArgs;
+import fm.websync.subscribers.SubscribeArgsExtensions;
+import fm.websync.subscribers.SubscribeSuccessArgsExtensions;
+
+/**
+ * PushDirectory
+ *
+ * Where users find each other outside any session: each device keeps a
+ * WebSync client subscribed to one well-known channel with its user id and
+ * name bound, so every other subscriber learns them from the subscribers
+ * extension. Push tokens are not bound here. A device registers its token
+ * with the PushSender under its user id, and invite rings a user id through
+ * it. Users are remembered after they go offline, which is when they need
+ * ringing, but only in memory, for at most maxUsers and maxAge.
+ */
+public class PushDirectory {
+
+    public static final String defaultChannel = "/push-directory";
+
+    private static final String userIdKey = "userId";
+    private static final String userNameKey = "userName";
+
+    private static class User {
+        String userName;
+        long lastSeen;
+    }
+
+    private final String channel;
+    // User id to user, least recently seen first.
+    private final LinkedHashMap<String, User> users = new LinkedHashMap<>();
+    private PushSender pushSender;
+    private Client client;
+    private String userId;
+    private String userName;
+    private volatile String pushToken;
+
+    private int maxUsers = 256;
+    public int getMaxUsers() {
+        return this.maxUsers;
+    }
+    /**
+     * Sets how many users to remember; the least recently seen go first.
+     */
+    public void setMaxUsers(int maxUsers) {
+        this.maxUsers = maxUsers;
+    }
+
+    private long maxAge = 7L * 24 * 60 * 60 * 1000;
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+    /**
+     * Sets how long a user is remembered after last being seen, in milliseconds.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public PushDirectory() {
+        this(defaultChannel);
+    }
+
+    public PushDirectory(String channel) {
+        this.channel = channel;
+    }
+
+    public PushSender getPushSender() {
+        return this.pushSender;
+    }
+    /**
+     * Sets what registers this device's token and delivers invites, e.g. a
+     * LocalPushService. Set before starting.
+     */
+    public void setPushSender(PushSender pushSender) {
+        this.pushSender = pushSender;
+    }
+
+    public String getPushToken() {
+        return this.pushToken;
+    }
+    /**
+     * Sets this device's token. Once started, a new token is registered
+     * straight away, so invites stop going to the old one.
+     */
+    public void setPushToken(String pushToken) {
+        this.pushToken = pushToken;
+        register();
+    }
+
+    /**
+     * A user's name, or null if the user has not been seen within maxAge.
+     */
+    public String getUserName(String userId) {
+        synchronized (users) {
+            expire();
+            User user = users.get(userId);
+            return user == null ? null : user.userName;
+        }
+    }
+
+    /**
+     * Every remembered user, least recently seen first.
+     */
+    public String[] getUserIds() {
+        synchronized (users) {
+            expire();
+            return users.keySet().toArray(new String[users.size()]);
+        }
+    }
+
+    /**
+     * The users going by a name. Names are chosen freely, so there may be
+     * more than one.
+     */
+    public String[] findUserIds(String userName) {
+        ArrayList<String> found = new ArrayList<>();
+        synchronized (users) {
+            expire();
+            for (Map.Entry<String, User> entry : users.entrySet()) {
+                if (entry.getValue().userName.equals(userName)) {
+                    found.add(entry.getKey());
+                }
+            }
+        }
+        return found.toArray(new String[found.size()]);
+    }
+
+    /**
+     * Registers this device's token, then connects, binds its user id and
+     * name and subscribes to the directory channel, in one batch once
+     * connected.
+     *
+     * @param userId This device's user id, the same across sessions and restarts.
+     * @return Future resolved once subscribed.
+     */
+    public Future<Object> startAsync(String serverUrl, String userId, String userName, String pushToken) {
+        this.userId = userId;
+        this.userName = userName;
+        this.pushToken = pushToken;
+        register();
+
+        final Promise<Object> promise = new Promise<Object>();
+        try {
+            client = new Client(serverUrl);
+            if (LoopbackWebSyncServer.isLoopbackUrl(serverUrl)) {
+                // The loopback server only speaks long-polling.
+                client.setDisableWebSockets(true);
+            }
+            client.connect(new ConnectArgs() {{
+                setOnSuccess(new SingleAction<ConnectSuccessArgs>() {
+                    public void invoke(ConnectSuccessArgs e) {
+                        // The client restores its binds and subscription on reconnect.
+                        if (!e.getIsReconnect()) {
+                            subscribe(promise);
+                        }
+                    }
+                });
+                setOnFailure(new SingleAction<ConnectFailureArgs>() {
+                    public void invoke(ConnectFailureArgs e) {
+                        if (promise.getState() == FutureState.Pending) {
+                            promise.reject(e.getException());
+                        }
+                    }
+                });
+            }});
+        }
+        catch (Exception ex) {
+            promise.reject(ex);
+        }
+        return promise;
+    }
+
+    public Future<Object> stopAsync() {
+        final Promise<Object> promise = new Promise<Object>();
+        Client client = this.client;
+        if (client == null) {
+            promise.resolve(null);
+            return promise;
+        }
+        try {
+            client.disconnect(new DisconnectArgs() {{
+                setOnComplete(new SingleAction<DisconnectCompleteArgs>() {
+                    public void invoke(DisconnectCompleteArgs e) {
+                        promise.resolve(null);
+                    }
+                });
+            }});
+        }
+        catch (Exception ex) {
+            promise.reject(ex);
+        }
+        return promise;
+    }
+
+    /**
+     * Rings a user into a session.
+     *
+     * @return Whether the sender knew the user's token and accepted the push.
+     */
+    public boolean invite(String userId, PushInvite invite) {
+        PushSender sender = pushSender;
+        if (sender == null) {
+            Log.debug("No push sender to ring " + userId + ".");
+            return false;
+        }
+        return sender.send(userId, invite.toData());
+    }
+
+    private void register() {
+        PushSender sender = pushSender;
+        String token = pushToken;
+        if (sender != null && userId != null && token != null) {
+            sender.register(userId, token);
+        }
+    }
+
+    private void subscribe(final Promise<Object> promise) {
+        client.startBatch();
+        try {
+            // Bound from a callback, so the client would not restore these after a reconnect by default.
+            client.bind(new BindArgs(new Record[] {
+                new Record(userIdKey, Serializer.serializeString(userId)),
+                new Record(userNameKey, Serializer.serializeString(userName))
+            }) {{
+                setAutoRebind(new fm.NullableBoolean(true));
+            }});
+            SubscribeArgs args = new SubscribeArgs(channel) {{
+                setAutoResubscribe(new fm.NullableBoolean(true));
+                setOnSuccess(new SingleAction<SubscribeSuccessArgs>() {
+                    public void invoke(SubscribeSuccessArgs e) {
+                        try {
+                            SubscribedClient[] others = SubscribeSuccessArgsExtensions.getSubscribedClients(e).get(channel);
+                            if (others != null) {
+                                for (SubscribedClient other : others) {
+                                    learn(other.getBoundRecords());
+                                }
+                            }
+                        }
+                        catch (Exception ex) {
+                            Log.error("Could not read the push directory.", ex);
+                        }
+                        promise.resolve(null);
+                    }
+                });
+                setOnFailure(new SingleAction<SubscribeFailureArgs>() {
+                    public void invoke(SubscribeFailureArgs e) {
+                        if (promise.getState() == FutureState.Pending) {
+                            promise.reject(e.getException());
+                        }
+                    }
+                });
+            }};
+            SubscribeArgsExtensions.setOnClientSubscribe(args, new SingleAction<ClientSubscribeArgs>() {
+                public void invoke(ClientSubscribeArgs e) {
+                    learn(e.getSubscribedClient().getBoundRecords());
+                }
+            });
+            client.subscribe(args);
+        }
+        catch (Exception ex) {
+            promise.reject(ex);
+        }
+        finally {
+            try {
+                client.endBatch();
+            }
+            catch (Exception ex) {
+                if (promise.getState() == FutureState.Pending) {
+                    promise.reject(ex);
+                }
+            }
+        }
+    }
+
+    private void learn(HashMap<String, Record> records) {
+        if (records == null) {
+            return;
+        }
+        Record id = records.get(userIdKey);
+        Record name = records.get(userNameKey);
+        if (id == null || name == null) {
+            return;
+        }
+        String userId = Serializer.deserializeString(id.getValueJson());
+        String userName = Serializer.deserializeString(name.getValueJson());
+        if (userId == null || userName == null) {
+            return;
+        }
+
+        synchronized (users) {
+            User user = users.remove(userId);
+            if (user == null) {
+                user = new User();
+            }
+            user.userName = userName;
+            user.lastSeen = System.currentTimeMillis();
+            users.put(userId, user);
+
+            Iterator<User> oldest = users.values().iterator();
+            while (users.size() > maxUsers) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - maxAge;
+        Iterator<User> oldest = users.values().iterator();
+        while (oldest.hasNext() && oldest.next().lastSeen < cutoff) {
+            oldest.remove();
+        }
+    }
+}
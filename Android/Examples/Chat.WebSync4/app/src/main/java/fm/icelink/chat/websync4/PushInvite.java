@@ -0,0 +1,102 @@
+package fm.icelink.chat.websync4;
+
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PushInvite
+ *
+ * The data payload of an incoming call push: the session to join, who is
+ * calling and an optional message. Sent through FCM (or LocalPushService)
+ * to a peer's push token, which peers find as a bound record (see
+ * Signalling.getPushToken). Opening its intent starts ChatActivity straight
+ * into the session.
+ */
+public class PushInvite {
+
+    public static final String sessionIdKey = "sessionId";
+    public static final String callerNameKey = "callerName";
+    public static final String messageKey = "message";
+
+    private String sessionId;
+    public String getSessionId() {
+        return this.sessionId;
+    }
+
+    private String callerName;
+    public String getCallerName() {
+        return this.callerName;
+    }
+
+    private String message;
+    public String getMessage() {
+        return this.message;
+    }
+
+    public PushInvite(String sessionId, String callerName, String message) {
+        this.sessionId = sessionId;
+        this.callerName = callerName;
+        this.message = message;
+    }
+
+    /**
+     * Session ids are the 6 digits SessionSelectorActivity accepts.
+     */
+    public static boolean isValidSessionId(String sessionId) {
+        if (sessionId == null || sessionId.length() != 6) {
+            return false;
+        }
+        for (int i = 0; i < sessionId.length(); i++) {
+            if (!Character.isDigit(sessionId.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Map<String, String> toData() {
+        HashMap<String, String> data = new HashMap<>();
+        data.put(sessionIdKey, sessionId);
+        if (callerName != null) {
+            data.put(callerNameKey, callerName);
+        }
+        if (message != null) {
+            data.put(messageKey, message);
+        }
+        return data;
+    }
+
+    /**
+     * @return The invite, or null if the payload has no valid session id.
+     */
+    public static PushInvite fromData(Map<String, String> data) {
+        if (data == null || !isValidSessionId(data.get(sessionIdKey))) {
+            return null;
+        }
+        return new PushInvite(data.get(sessionIdKey), data.get(callerNameKey), data.get(messageKey));
+    }
+
+    /**
+     * An intent that opens ChatActivity and joins the session.
+     */
+    public Intent toIntent(Context context) {
+        Intent intent = new Intent(context, ChatActivity.class);
+        intent.putExtra(sessionIdKey, sessionId);
+        intent.putExtra(callerNameKey, callerName);
+        intent.putExtra(messageKey, message);
+        return intent;
+    }
+
+    /**
+     * @return The invite an intent was made from, or null.
+     */
+    public static PushInvite fromIntent(Intent intent) {
+        if (intent == null || !isValidSessionId(intent.getStringExtra(sessionIdKey))) {
+            return null;
+        }
+        return new PushInvite(intent.getStringExtra(sessionIdKey), intent.getStringExtra(callerNameKey), intent.getStringExtra(messageKey));
+    }
+}
@@ -0,0 +1,24 @@
+package fm.icelink.chat.websync4;
+
+import java.util.Map;
+
+/**
+ * PushSender
+ *
+ * The app server's side of push: a device registers its push token under
+ * its user id, and a payload, such as PushInvite.toData, is sent to a user
+ * id, so tokens never pass between devices. LocalPushService is the
+ * in-process implementation; a deployment that rings real devices keeps
+ * the registrations on its server and sends through FCM from there.
+ */
+public interface PushSender {
+    /**
+     * Sets the token a user id is rung at, replacing any earlier one.
+     */
+    void register(String userId, String token);
+
+    /**
+     * @return Whether a token is registered for the user id and the push was accepted for delivery.
+     */
+    boolean send(String userId, Map<String, String> data);
+}
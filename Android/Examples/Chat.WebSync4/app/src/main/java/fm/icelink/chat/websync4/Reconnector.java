@@ -0,0 +1,262 @@
+package fm.icelink.chat.websync4;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.IFunction0;
+import fm.icelink.Log;
+
+/**
+ * Reconnector
+ *
+ * Retries a reconnect operation per peer with jittered exponential backoff.
+ * At most one attempt is in flight per peer; further requests for a peer
+ * that is already reconnecting are ignored until its sequence ends.
+ */
+public class Reconnector {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Reconnector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object lock = new Object();
+    private final HashMap<String, Sequence> sequences = new HashMap<>();
+    private final Random random = new Random();
+
+    private int initialDelay = 500;
+    public int getInitialDelay() {
+        return this.initialDelay;
+    }
+    public void setInitialDelay(int milliseconds) {
+        this.initialDelay = milliseconds;
+    }
+
+    private int maxDelay = 30000;
+    public int getMaxDelay() {
+        return this.maxDelay;
+    }
+    public void setMaxDelay(int milliseconds) {
+        this.maxDelay = milliseconds;
+    }
+
+    private double jitter = 0.5;
+    public double getJitter() {
+        return this.jitter;
+    }
+    /**
+     * Fraction of each delay that is randomised, between 0 (none) and 1.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    private int maxAttempts = 8;
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    private OnReconnectListener listener;
+    public void setOnReconnectListener(OnReconnectListener listener) {
+        this.listener = listener;
+    }
+
+    private class Sequence {
+        final String peerId;
+        final IFunction0<Future<Object>> attempt;
+        final long startTime = System.nanoTime();
+        int attempts;
+        ScheduledFuture<?> timer;
+        boolean cancelled;
+
+        Sequence(String peerId, IFunction0<Future<Object>> attempt) {
+            this.peerId = peerId;
+            this.attempt = attempt;
+        }
+    }
+
+    /**
+     * Starts reconnecting the peer unless a sequence is already running for it.
+     *
+     * @param peerId Key identifying the remote peer.
+     * @param attempt Starts one reconnect attempt; the future resolves once the peer is connected again.
+     * @return Whether a new sequence was started.
+     */
+    public boolean reconnect(String peerId, IFunction0<Future<Object>> attempt) {
+        Sequence sequence;
+        synchronized (lock) {
+            if (sequences.containsKey(peerId)) {
+                return false;
+            }
+            sequence = new Sequence(peerId, attempt);
+            sequences.put(peerId, sequence);
+        }
+
+        schedule(sequence, 0);
+        return true;
+    }
+
+    public boolean isReconnecting(String peerId) {
+        synchronized (lock) {
+            return sequences.containsKey(peerId);
+        }
+    }
+
+    public void cancel(String peerId) {
+        synchronized (lock) {
+            Sequence sequence = sequences.remove(peerId);
+            if (sequence != null) {
+                sequence.cancelled = true;
+                if (sequence.timer != null) {
+                    sequence.timer.cancel(false);
+                }
+            }
+        }
+    }
+
+    public void cancelAll() {
+        synchronized (lock) {
+            for (Sequence sequence : sequences.values()) {
+                sequence.cancelled = true;
+                if (sequence.timer != null) {
+                    sequence.timer.cancel(false);
+                }
+            }
+            sequences.clear();
+        }
+    }
+
+    /**
+     * Backoff before the given attempt (1-based): initialDelay * 2^(attempt - 2),
+     * capped at maxDelay, with the jittered fraction drawn uniformly.
+     */
+    private int delayFor(int attempt) {
+        if (attempt <= 1) {
+            return 0;
+        }
+        double delay = Math.min((double) maxDelay, initialDelay * Math.pow(2, attempt - 2));
+        double jittered;
+        synchronized (random) {
+            jittered = delay * (1 - jitter) + delay * jitter * random.nextDouble();
+        }
+        return (int) jittered;
+    }
+
+    private void schedule(final Sequence sequence, int delay) {
+        synchronized (lock) {
+            if (sequence.cancelled) {
+                return;
+            }
+            sequence.attempts++;
+            sequence.timer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    start(sequence);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        OnReconnectListener listener = this.listener;
+        if (listener != null) {
+            listener.onReconnectScheduled(sequence.peerId, sequence.attempts, delay);
+        }
+    }
+
+    private void start(final Sequence sequence) {
+        final int attempt;
+        synchronized (lock) {
+            if (sequence.cancelled) {
+                return;
+            }
+            attempt = sequence.attempts;
+        }
+
+        Log.info("Reconnecting to peer " + sequence.peerId + " (attempt " + attempt + ").");
+
+        Future<Object> future;
+        try {
+            future = sequence.attempt.invoke();
+        }
+        catch (Exception ex) {
+            failed(sequence, attempt, ex);
+            return;
+        }
+
+        future.then(new IAction1<Object>() {
+            @Override
+            public void invoke(Object o) {
+                succeeded(sequence, attempt);
+            }
+        }).fail(new IAction1<Exception>() {
+            @Override
+            public void invoke(Exception ex) {
+                failed(sequence, attempt, ex);
+            }
+        });
+    }
+
+    private void succeeded(Sequence sequence, int attempt) {
+        synchronized (lock) {
+            if (sequences.get(sequence.peerId) != sequence) {
+                return;
+            }
+            sequences.remove(sequence.peerId);
+        }
+
+        long elapsed = (System.nanoTime() - sequence.startTime) / 1000000;
+        Log.info("Reconnected to peer " + sequence.peerId + " after " + attempt + " attempt(s) in " + elapsed + "ms.");
+
+        OnReconnectListener listener = this.listener;
+        if (listener != null) {
+            listener.onReconnectSucceeded(sequence.peerId, attempt, elapsed);
+        }
+    }
+
+    private void failed(Sequence sequence, int attempt, Exception ex) {
+        boolean abandon;
+        synchronized (lock) {
+            if (sequences.get(sequence.peerId) != sequence) {
+                return;
+            }
+            abandon = attempt >= maxAttempts;
+            if (abandon) {
+                sequences.remove(sequence.peerId);
+            }
+        }
+
+        Log.warn("Reconnect attempt " + attempt + " to peer " + sequence.peerId + " failed: " + (ex == null ? "" : ex.getMessage()));
+
+        OnReconnectListener listener = this.listener;
+        if (listener != null) {
+            listener.onReconnectFailed(sequence.peerId, attempt, ex);
+            if (abandon) {
+                listener.onReconnectAbandoned(sequence.peerId, attempt);
+            }
+        }
+
+        if (!abandon) {
+            schedule(sequence, delayFor(attempt + 1));
+        }
+    }
+
+    public interface OnReconnectListener {
+        void onReconnectScheduled(String peerId, int attempt, int delay);
+        void onReconnectFailed(String peerId, int attempt, Exception exception);
+        void onReconnectSucceeded(String peerId, int attempts, long elapsed);
+        void onReconnectAbandoned(String peerId, int attempts);
+    }
+}
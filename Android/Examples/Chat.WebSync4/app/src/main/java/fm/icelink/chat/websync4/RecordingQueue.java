@@ -0,0 +1,228 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import fm.icelink.Log;
+
+/**
+ * RecordingQueue
+ *
+ * Bounded hand-off from a media thread to the recording I/O thread. Offering
+ * a frame never blocks: once capacity frames are waiting, frames are dropped
+ * instead. Non-key frames go first. An incoming key frame makes room by
+ * evicting the newest waiting non-key frame, and only evicts the oldest key
+ * frame when nothing else is left. After a non-key frame is dropped, later
+ * non-key frames are dropped too until the next key frame, since they could
+ * not be decoded anyway. Each recorder has its own queue, and a queue has at
+ * most one drain task on the shared I/O thread, so a slow disk costs memory
+ * only up to capacity and never adds latency to the call.
+ */
+public class RecordingQueue {
+
+    /**
+     * A frame waiting to be written.
+     */
+    public interface Task {
+        void write();
+
+        /**
+         * Called instead of write when the frame is dropped, to release its buffers.
+         */
+        void discard();
+    }
+
+    private static class Entry {
+        final Task task;
+        final boolean keyFrame;
+
+        Entry(Task task, boolean keyFrame) {
+            this.task = task;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    // Frames one drain task writes before yielding the I/O thread to other recorders.
+    private static final int drainBatch = 16;
+
+    private final String name;
+    private final int capacity;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private boolean draining;
+    private boolean dropUntilKeyFrame;
+    private Runnable onDrained;
+    private boolean closed;
+
+    private long queuedCount;
+    private long droppedCount;
+    private long writtenCount;
+
+    /**
+     * @param name Used in log messages.
+     * @param capacity The most frames waiting to be written.
+     */
+    public RecordingQueue(String name, int capacity) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Frames waiting to be written right now.
+     */
+    public synchronized int getPendingCount() {
+        return entries.size();
+    }
+
+    /**
+     * Frames accepted into the queue so far.
+     */
+    public synchronized long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Frames dropped so far, whether refused or evicted.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Frames written so far.
+     */
+    public synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * Queues a frame for the I/O thread.
+     *
+     * @param keyFrame Whether the frame can be decoded on its own. Pass true for audio.
+     * @return Whether it was queued; if not, it has already been discarded.
+     */
+    public boolean offer(Task task, boolean keyFrame) {
+        Task evicted = null;
+        boolean accepted;
+        boolean drain = false;
+
+        synchronized (this) {
+            if (closed || (!keyFrame && dropUntilKeyFrame)) {
+                accepted = false;
+            } else if (entries.size() < capacity) {
+                accepted = true;
+            } else if (!keyFrame) {
+                dropUntilKeyFrame = true;
+                accepted = false;
+            } else {
+                evicted = evict();
+                accepted = true;
+            }
+
+            if (accepted) {
+                if (keyFrame) {
+                    dropUntilKeyFrame = false;
+                }
+                entries.addLast(new Entry(task, keyFrame));
+                queuedCount++;
+                if (!draining) {
+                    draining = true;
+                    drain = true;
+                }
+            } else {
+                droppedCount++;
+            }
+        }
+
+        if (evicted != null) {
+            evicted.discard();
+        }
+        if (!accepted) {
+            task.discard();
+        }
+        if (drain) {
+            RecordingSegments.execute(drainer);
+        }
+        return accepted;
+    }
+
+    /**
+     * Runs onClosed on the I/O thread once every queued frame is written; later offers are dropped.
+     */
+    public void close(Runnable onClosed) {
+        boolean runNow;
+        synchronized (this) {
+            closed = true;
+            onDrained = onClosed;
+            runNow = !draining;
+            if (runNow) {
+                draining = true;
+            }
+        }
+        if (runNow) {
+            RecordingSegments.execute(drainer);
+        }
+    }
+
+    // Makes room for a key frame; call while locked with the queue full.
+    private Task evict() {
+        // The newest non-key frame is the one the fewest queued frames depend on.
+        Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.keyFrame) {
+                iterator.remove();
+                droppedCount++;
+                return entry.task;
+            }
+        }
+        droppedCount++;
+        return entries.pollFirst().task;
+    }
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            for (int written = 0; ; written++) {
+                if (written == drainBatch) {
+                    RecordingSegments.execute(this);
+                    return;
+                }
+
+                Entry entry;
+                Runnable closing = null;
+                synchronized (RecordingQueue.this) {
+                    entry = entries.pollFirst();
+                    if (entry == null) {
+                        draining = false;
+                        closing = onDrained;
+                        onDrained = null;
+                    }
+                }
+
+                if (entry == null) {
+                    if (closing != null) {
+                        if (getDroppedCount() > 0) {
+                            Log.warn(String.format("%s dropped %d of %d frames to keep up with storage.", name, getDroppedCount(), getDroppedCount() + getWrittenCount()));
+                        }
+                        closing.run();
+                    }
+                    return;
+                }
+
+                try {
+                    entry.task.write();
+                }
+                catch (Exception ex) {
+                    Log.error(name + " could not write a frame.", ex);
+                }
+                synchronized (RecordingQueue.this) {
+                    writtenCount++;
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,123 @@
+package fm.icelink.chat.websync4;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import fm.icelink.Log;
+
+/**
+ * RecordingSegments
+ *
+ * Segment bookkeeping shared by the segmented recorders: names the segment
+ * files, decides when the current segment is full (by size or duration) and
+ * syncs a finished segment to disk. Also owns the single I/O thread every
+ * recorder writes on, so recording never touches storage from a media
+ * thread. Apart from the executor, only call from that thread.
+ */
+public class RecordingSegments {
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RecordingWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Runs a task on the recording I/O thread.
+     */
+    public static void execute(Runnable task) {
+        writer.execute(task);
+    }
+
+    private final String basePath;
+    private final long maxBytes;
+    private final long maxDuration;
+
+    private int index;
+    private long bytes;
+    private long startTime;
+    private String path;
+
+    /**
+     * @param basePath Segment files are named basePath-0001.mkv, basePath-0002.mkv, ...
+     * @param maxBytes Roll once a segment holds this many bytes of media.
+     * @param maxDuration Roll once a segment spans this many milliseconds.
+     */
+    public RecordingSegments(String basePath, long maxBytes, long maxDuration) {
+        this.basePath = basePath;
+        this.maxBytes = maxBytes;
+        this.maxDuration = maxDuration;
+    }
+
+    /**
+     * The path of the current segment, or null before the first one.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Whether a new segment should start before a frame. Only roll at frames
+     * that can start a segment (key frames), so every segment plays on its own.
+     */
+    public boolean shouldRoll(boolean canStartSegment) {
+        if (path == null) {
+            return true;
+        }
+        if (!canStartSegment) {
+            return false;
+        }
+        return bytes >= maxBytes || (System.nanoTime() - startTime) / 1000000 >= maxDuration;
+    }
+
+    /**
+     * Starts the next segment.
+     *
+     * @return Its path.
+     */
+    public String next() {
+        index++;
+        bytes = 0;
+        startTime = System.nanoTime();
+        path = String.format(Locale.US, "%s-%04d.mkv", basePath, index);
+        return path;
+    }
+
+    public void add(int length) {
+        bytes += length;
+    }
+
+    /**
+     * Flushes a closed segment file to storage, so a crash loses at most the
+     * segment being written.
+     */
+    public static void sync(String path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            FileOutputStream stream = new FileOutputStream(path, true);
+            try {
+                stream.getFD().sync();
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException ex) {
+            Log.error("Could not sync recording segment " + path + ".", ex);
+        }
+    }
+}
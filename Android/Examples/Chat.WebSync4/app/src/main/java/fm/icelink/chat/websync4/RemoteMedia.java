@@ -1,10 +1,11 @@
 package fm.icelink.chat.websync4;
 
 import android.content.Context;
-import android.media.MediaCodecInfo;
 import android.view.View;
 import android.widget.FrameLayout;
 
+import java.util.ArrayList;
+
 import fm.icelink.*;
 import fm.icelink.android.*;
 import fm.icelink.yuv.ImageConverter;
@@ -12,6 +13,7 @@ import fm.icelink.yuv.ImageConverter;
 public class RemoteMedia extends fm.icelink.RtcRemoteMedia<FrameLayout> {
 
     private boolean enableSoftwareH264;
+    private boolean gateAudio;
     private Context context;
 
     @Override
@@ -21,22 +23,100 @@ public class RemoteMedia extends fm.icelink.RtcRemoteMedia<FrameLayout> {
 
     @Override
     protected AudioSink createAudioRecorder(AudioFormat audioFormat) {
-        return new fm.icelink.matroska.AudioSink(getId() + "-remote-audio-" + audioFormat.getName().toLowerCase() + ".mkv");
+        return new SegmentedAudioRecorder(getId() + "-remote-audio-" + audioFormat.getName().toLowerCase(), audioFormat);
     }
 
     @Override
     protected VideoSink createVideoRecorder(VideoFormat videoFormat) {
-        return new fm.icelink.matroska.VideoSink(getId() + "-remote-video-" + videoFormat.getName().toLowerCase() + ".mkv");
+        return new SegmentedVideoRecorder(getId() + "-remote-video-" + videoFormat.getName().toLowerCase(), videoFormat);
+    }
+
+    private final DecodeTimer decodeTimer = new DecodeTimer();
+    /**
+     * Time spent decoding video, for StatsCollector.
+     */
+    public DecodeTimer getDecodeTimer() {
+        return decodeTimer;
+    }
+
+    private VideoPipe imageConverter;
+    private final ArrayList<AudioDecoder> audioDecoders = new ArrayList<>();
+
+    /**
+     * The decoded audio of every codec that may be negotiated, for taps such
+     * as SessionRecorder. Only the negotiated codec's decoder raises frames.
+     */
+    public IAudioOutput[] getAudioOutputs() {
+        synchronized (audioDecoders) {
+            return audioDecoders.toArray(new IAudioOutput[audioDecoders.size()]);
+        }
+    }
+
+    private AudioDecoder tapped(AudioDecoder decoder) {
+        if (decoder != null) {
+            synchronized (audioDecoders) {
+                audioDecoders.add(decoder);
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * The decoded video as it goes to the view, for taps such as SessionRecorder.
+     */
+    public IVideoOutput getVideoOutput() {
+        return imageConverter;
     }
 
     @Override
     protected VideoPipe createImageConverter(VideoFormat videoFormat) {
-        return new fm.icelink.yuv.ImageConverter(videoFormat);
+        imageConverter = new fm.icelink.yuv.ImageConverter(videoFormat);
+        return imageConverter;
     }
 
     @Override
     protected AudioDecoder createOpusDecoder(AudioConfig audioConfig) {
-        return new fm.icelink.opus.Decoder(audioConfig);
+        return tapped(new fm.icelink.opus.Decoder(audioConfig));
+    }
+
+    @Override
+    protected AudioPipe createSoundConverter(AudioConfig audioConfig) {
+        if (!gateAudio) {
+            return super.createSoundConverter(audioConfig);
+        }
+
+        // With AEC the converted audio goes to AecContext's shared output mixer, which
+        // sums every peer; a peer that is not speaking is kept out of it here. Gating
+        // after the decoders leaves their output whole for taps such as SessionRecorder.
+        final AudioGate gate = new AudioGate();
+        return new SoundConverter(audioConfig) {
+            @Override
+            public void raiseFrame(AudioFrame frame) {
+                AudioBuffer buffer = frame.getLastBuffer();
+                if (buffer != null) {
+                    DataBuffer dataBuffer = buffer.getDataBuffer();
+                    if (!gate.process(dataBuffer.getData(), dataBuffer.getIndex(), dataBuffer.getLength(), ((AudioFormat) buffer.getFormat()).getLittleEndian())) {
+                        return;
+                    }
+                }
+                super.raiseFrame(frame);
+            }
+        };
+    }
+
+    @Override
+    protected AudioDecoder createG722Decoder(AudioConfig audioConfig) {
+        return tapped(super.createG722Decoder(audioConfig));
+    }
+
+    @Override
+    protected AudioDecoder createPcmuDecoder(AudioConfig audioConfig) {
+        return tapped(super.createPcmuDecoder(audioConfig));
+    }
+
+    @Override
+    protected AudioDecoder createPcmaDecoder(AudioConfig audioConfig) {
+        return tapped(super.createPcmaDecoder(audioConfig));
     }
 
     @Override
@@ -46,8 +126,18 @@ public class RemoteMedia extends fm.icelink.RtcRemoteMedia<FrameLayout> {
 
     @Override
     protected VideoDecoder createH264Decoder() {
+        // A hardware decoder can receive H.264 even without OpenH264.
+        VideoDecoder decoder = CodecProbe.getInstance(context).createDecoder(MediaCodecMimeTypes.H264, VideoFormat.getH264(), new IFunction0<VideoDecoder>() {
+            public VideoDecoder invoke() {
+                return enableSoftwareH264 ? createOpenH264Decoder() : null;
+            }
+        });
+        if (decoder != null) {
+            return timed(decoder);
+        }
+
         if (enableSoftwareH264) {
-            return new fm.icelink.openh264.Decoder();
+            return createOpenH264Decoder();
         } else {
             return null;
         }
@@ -55,7 +145,42 @@ public class RemoteMedia extends fm.icelink.RtcRemoteMedia<FrameLayout> {
 
     @Override
     protected VideoDecoder createVp8Decoder() {
-        return new fm.icelink.vp8.Decoder();
+        VideoDecoder decoder = CodecProbe.getInstance(context).createDecoder(MediaCodecMimeTypes.Vp8, VideoFormat.getVp8(), new IFunction0<VideoDecoder>() {
+            public VideoDecoder invoke() {
+                return createLibVpxDecoder();
+            }
+        });
+        return decoder != null ? timed(decoder) : createLibVpxDecoder();
+    }
+
+    private VideoDecoder timed(VideoDecoder decoder) {
+        if (decoder instanceof HardwareVideoDecoder) {
+            ((HardwareVideoDecoder) decoder).setDecodeTimer(decodeTimer);
+        }
+        return decoder;
+    }
+
+    // Software decoders decode in processFrame, so timing the call times the decode.
+    private VideoDecoder createOpenH264Decoder() {
+        return new fm.icelink.openh264.Decoder() {
+            @Override
+            protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+                long start = System.nanoTime();
+                super.doProcessFrame(frame, buffer);
+                decodeTimer.add(System.nanoTime() - start);
+            }
+        };
+    }
+
+    private VideoDecoder createLibVpxDecoder() {
+        return new fm.icelink.vp8.Decoder() {
+            @Override
+            protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+                long start = System.nanoTime();
+                super.doProcessFrame(frame, buffer);
+                decodeTimer.add(System.nanoTime() - start);
+            }
+        };
     }
 
     @Override
@@ -67,6 +192,7 @@ public class RemoteMedia extends fm.icelink.RtcRemoteMedia<FrameLayout> {
         super(disableAudio, disableVideo, aecContext);
         this.context = context;
         this.enableSoftwareH264 = enableSoftwareH264;
+        this.gateAudio = aecContext != null;
 
         super.initialize();
     }
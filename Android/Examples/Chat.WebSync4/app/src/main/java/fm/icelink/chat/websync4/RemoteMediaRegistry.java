@@ -0,0 +1,70 @@
+package fm.icelink.chat.websync4;
+
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RemoteMediaRegistry
+ *
+ * Thread-safe index of the remote media in a session by view, by media id and
+ * by peer id. Connection state changes add and remove entries from IceLink
+ * threads while the UI thread looks them up, so all of them go through one
+ * MediaIndex, whose lookups never lock. Removal is atomic: exactly one caller
+ * of remove wins and owns tearing the media down.
+ */
+public class RemoteMediaRegistry {
+
+    private final MediaIndex<RemoteMedia> index = new MediaIndex<>();
+
+    /**
+     * Registers remote media for a peer. A peer that reconnects may briefly have
+     * two media registered; lookups by peer return the most recent one.
+     */
+    public void add(String peerId, RemoteMedia media) {
+        index.add(peerId, media.getId(), media.getView(), media);
+    }
+
+    /**
+     * Removes the media from every index.
+     *
+     * @return Whether this call removed it, in which case the caller should destroy it.
+     */
+    public boolean remove(RemoteMedia media) {
+        return index.remove(media);
+    }
+
+    public RemoteMedia getByView(View view) {
+        return view == null ? null : index.getByView(view);
+    }
+
+    public RemoteMedia getById(String id) {
+        return id == null ? null : index.getById(id);
+    }
+
+    public RemoteMedia getByPeer(String peerId) {
+        return peerId == null ? null : index.getByPeer(peerId);
+    }
+
+    public List<View> getViews() {
+        List<Object> views = index.getViews();
+        ArrayList<View> result = new ArrayList<>(views.size());
+        for (Object view : views) {
+            result.add((View) view);
+        }
+        return result;
+    }
+
+    public List<RemoteMedia> getAll() {
+        return index.getAll();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.size() == 0;
+    }
+}
@@ -0,0 +1,98 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioFormat;
+import fm.icelink.AudioFrame;
+import fm.icelink.AudioSink;
+import fm.icelink.DataBuffer;
+
+/**
+ * SegmentedAudioRecorder
+ *
+ * Audio counterpart of SegmentedVideoRecorder: writes on the recording I/O
+ * thread through a bounded RecordingQueue and rolls to a new Matroska
+ * segment once the size or duration limit is reached. Every audio frame can
+ * start a segment.
+ */
+public class SegmentedAudioRecorder extends AudioSink {
+
+    // Five seconds of 20 ms frames.
+    public static final int defaultQueueCapacity = 250;
+
+    private final RecordingSegments segments;
+    private final RecordingQueue queue;
+    private fm.icelink.matroska.AudioSink sink;
+
+    /**
+     * @param basePath Path of the recording without extension; segments are numbered.
+     */
+    public SegmentedAudioRecorder(String basePath, AudioFormat format) {
+        this(basePath, format, SegmentedVideoRecorder.defaultMaxSegmentBytes, SegmentedVideoRecorder.defaultMaxSegmentDuration);
+    }
+
+    public SegmentedAudioRecorder(String basePath, AudioFormat format, long maxSegmentBytes, long maxSegmentDuration) {
+        super(format);
+        this.segments = new RecordingSegments(basePath, maxSegmentBytes, maxSegmentDuration);
+        this.queue = new RecordingQueue("Audio recorder " + basePath, defaultQueueCapacity);
+    }
+
+    @Override
+    public String getLabel() {
+        return "Segmented Audio Recorder";
+    }
+
+    @Override
+    protected void doProcessFrame(final AudioFrame frame, AudioBuffer buffer) {
+        final DataBuffer dataBuffer = buffer.getDataBuffer();
+        final int length = dataBuffer.getLength();
+
+        // Hold the pooled buffer until the I/O thread has written or dropped it.
+        dataBuffer.keep();
+        queue.offer(new RecordingQueue.Task() {
+            @Override
+            public void write() {
+                try {
+                    if (segments.shouldRoll(true)) {
+                        close();
+                        sink = new fm.icelink.matroska.AudioSink(segments.next());
+                    }
+                    sink.processFrame(frame);
+                    segments.add(length);
+                }
+                finally {
+                    dataBuffer.free();
+                }
+            }
+
+            @Override
+            public void discard() {
+                dataBuffer.free();
+            }
+        }, true);
+    }
+
+    @Override
+    protected void doDestroy() {
+        queue.close(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Counters for frames queued, dropped and written.
+     */
+    public RecordingQueue getQueue() {
+        return queue;
+    }
+
+    private void close() {
+        if (sink != null) {
+            sink.destroy();
+            sink = null;
+            RecordingSegments.sync(segments.getPath());
+        }
+    }
+}
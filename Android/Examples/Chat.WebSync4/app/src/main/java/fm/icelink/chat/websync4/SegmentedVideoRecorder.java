@@ -0,0 +1,142 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.DataBuffer;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoSink;
+
+/**
+ * SegmentedVideoRecorder
+ *
+ * Records a video stream to a series of Matroska segments instead of one
+ * ever-growing file. Frames are handed to the recording I/O thread through a
+ * RecordingQueue without copying (the pooled buffer is kept until written
+ * or dropped), so a slow disk drops frames rather than stalling the call.
+ * A new segment is started at the first key frame after the size or
+ * duration limit, with the finished segment synced to disk.
+ */
+public class SegmentedVideoRecorder extends VideoSink {
+
+    public static final long defaultMaxSegmentBytes = 32 * 1024 * 1024;
+    public static final long defaultMaxSegmentDuration = 5 * 60 * 1000;
+    // About two seconds at 30 fps.
+    public static final int defaultQueueCapacity = 60;
+
+    private final RecordingSegments segments;
+    private final RecordingQueue queue;
+    private final String formatName;
+    private fm.icelink.matroska.VideoSink sink;
+
+    /**
+     * @param basePath Path of the recording without extension; segments are numbered.
+     */
+    public SegmentedVideoRecorder(String basePath, VideoFormat format) {
+        this(basePath, format, defaultMaxSegmentBytes, defaultMaxSegmentDuration);
+    }
+
+    public SegmentedVideoRecorder(String basePath, VideoFormat format, long maxSegmentBytes, long maxSegmentDuration) {
+        super(format);
+        this.segments = new RecordingSegments(basePath, maxSegmentBytes, maxSegmentDuration);
+        this.queue = new RecordingQueue("Video recorder " + basePath, defaultQueueCapacity);
+        this.formatName = format.getName();
+    }
+
+    @Override
+    public String getLabel() {
+        return "Segmented Video Recorder";
+    }
+
+    @Override
+    protected void doProcessFrame(final VideoFrame frame, final VideoBuffer buffer) {
+        final DataBuffer dataBuffer = buffer.getDataBuffer();
+        final boolean keyFrame = isKeyFrame(formatName, dataBuffer);
+        final int length = dataBuffer.getLength();
+
+        // Hold the pooled buffer until the I/O thread has written or dropped it.
+        buffer.keep();
+        queue.offer(new RecordingQueue.Task() {
+            @Override
+            public void write() {
+                try {
+                    if (segments.shouldRoll(keyFrame)) {
+                        roll();
+                    }
+                    sink.processFrame(frame);
+                    segments.add(length);
+                }
+                finally {
+                    buffer.free();
+                }
+            }
+
+            @Override
+            public void discard() {
+                buffer.free();
+            }
+        }, keyFrame);
+    }
+
+    @Override
+    protected void doDestroy() {
+        queue.close(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    private void roll() {
+        close();
+        sink = new fm.icelink.matroska.VideoSink(segments.next());
+    }
+
+    /**
+     * Counters for frames queued, dropped and written.
+     */
+    public RecordingQueue getQueue() {
+        return queue;
+    }
+
+    private void close() {
+        if (sink != null) {
+            sink.destroy();
+            sink = null;
+            RecordingSegments.sync(segments.getPath());
+        }
+    }
+
+    /**
+     * Whether an encoded frame can start a segment. Formats this does not
+     * understand are treated as always starting one.
+     */
+    static boolean isKeyFrame(String formatName, DataBuffer dataBuffer) {
+        byte[] data = dataBuffer.getData();
+        int index = dataBuffer.getIndex();
+        int length = dataBuffer.getLength();
+
+        if (formatName.equalsIgnoreCase(VideoFormat.getVp8Name())) {
+            // VP8 frame tag: the lowest bit is 0 for a key frame.
+            return length > 0 && (data[index] & 0x01) == 0;
+        }
+
+        if (formatName.equalsIgnoreCase(VideoFormat.getH264Name())) {
+            // Annex B: look for an IDR slice (5) or a sequence parameter set (7).
+            boolean foundStartCode = false;
+            for (int i = index; i + 3 < index + length; i++) {
+                if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                    foundStartCode = true;
+                    int type = data[i + 3] & 0x1f;
+                    if (type == 5 || type == 7) {
+                        return true;
+                    }
+                    i += 2;
+                }
+            }
+            return !foundStartCode;
+        }
+
+        return true;
+    }
+}
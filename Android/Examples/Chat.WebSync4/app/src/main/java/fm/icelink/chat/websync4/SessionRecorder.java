@@ -0,0 +1,437 @@
+package fm.icelink.chat.websync4;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.*;
+
+/**
+ * SessionRecorder
+ *
+ * Records a whole session as one mixed audio track and one tiled video
+ * track, instead of a recording per local and remote media. Every input's
+ * decoded audio goes through an AudioMixdown (which aligns the inputs in
+ * bounded jitter buffers) and its video into a VideoCompositor; a clock
+ * thread then takes one mixed frame every frameDuration and one composite
+ * every video frame interval, encodes them once and writes them through the
+ * segmented recorders. However many peers join, there is one encoder and
+ * one open file per track.
+ */
+public class SessionRecorder {
+
+    public static final int clockRate = 48000;
+    public static final int channelCount = 2;
+    public static final int frameDuration = 20;
+    public static final int jitterFrames = 3;
+    public static final int maxJitterFrames = 10;
+
+    public static final int width = 640;
+    public static final int height = 480;
+    public static final int frameRate = 15;
+    public static final int keyFrameInterval = 2000;
+
+    private static final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SessionRecorder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Frames each clock cycles through (see FramePool).
+    private static final int pooledFrames = 4;
+
+    private static class Input {
+        IAudioOutput[] audioOutputs;
+        IVideoOutput videoOutput;
+        AudioTap[] audioTaps;
+        VideoPipe videoConverter;
+        VideoTap videoTap;
+    }
+
+    private final String basePath;
+    private final HashMap<String, Input> inputs = new HashMap<>();
+    private final AudioMixdown mixdown = new AudioMixdown(clockRate, channelCount, frameDuration, jitterFrames, maxJitterFrames);
+    private final VideoCompositor compositor = new VideoCompositor(width, height);
+
+    private MixedAudioSource audioSource;
+    private AudioEncoder audioEncoder;
+    private SegmentedAudioRecorder audioRecorder;
+    private ScheduledFuture<?> audioClock;
+
+    private CompositeVideoSource videoSource;
+    private VideoEncoder videoEncoder;
+    private SegmentedVideoRecorder videoRecorder;
+    private ScheduledFuture<?> videoClock;
+
+    /**
+     * @param basePath Path of the recording without extension; the audio and video segments are named from it.
+     */
+    public SessionRecorder(String basePath) {
+        this.basePath = basePath;
+    }
+
+    /**
+     * Adds local or remote media to the recording. Either output may be null.
+     */
+    public synchronized void addInput(String id, IAudioOutput audioOutput, IVideoOutput videoOutput) {
+        addInput(id, audioOutput == null ? null : new IAudioOutput[] { audioOutput }, videoOutput);
+    }
+
+    /**
+     * Adds media whose audio may come from any of several decoders, one per
+     * codec, as with RemoteMedia. They share the input's place in the mix.
+     */
+    public synchronized void addInput(String id, IAudioOutput[] audioOutputs, IVideoOutput videoOutput) {
+        if (inputs.containsKey(id)) {
+            return;
+        }
+
+        Input input = new Input();
+        input.audioOutputs = audioOutputs;
+        input.videoOutput = videoOutput;
+        inputs.put(id, input);
+
+        if (audioRecorder != null) {
+            attachAudio(id, input);
+        }
+        if (videoRecorder != null) {
+            attachVideo(id, input);
+        }
+    }
+
+    /**
+     * Removes media from the recording, e.g. before it is destroyed.
+     */
+    public synchronized void removeInput(String id) {
+        Input input = inputs.remove(id);
+        if (input != null) {
+            detachAudio(id, input);
+            detachVideo(id, input);
+        }
+    }
+
+    public synchronized boolean getIsRecordingAudio() {
+        return audioRecorder != null;
+    }
+
+    public synchronized void setIsRecordingAudio(boolean record) {
+        if (record == getIsRecordingAudio()) {
+            return;
+        }
+
+        if (record) {
+            audioSource = new MixedAudioSource();
+            audioEncoder = new fm.icelink.opus.Encoder(new AudioConfig(clockRate, channelCount));
+            audioEncoder.addInput(audioSource);
+            audioRecorder = new SegmentedAudioRecorder(basePath + "-audio-" + AudioFormat.getOpusName().toLowerCase(), (AudioFormat) audioEncoder.getOutputFormat());
+            audioRecorder.addInput(audioEncoder);
+            audioSource.start();
+
+            for (String id : inputs.keySet()) {
+                attachAudio(id, inputs.get(id));
+            }
+
+            final MixedAudioSource source = audioSource;
+            final FramePool frames = new FramePool(mixdown.getFrameLength());
+            audioClock = clock.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] frame = frames.next();
+                    mixdown.read(frame);
+                    source.raiseFrame(frame);
+                }
+            }, frameDuration, frameDuration, TimeUnit.MILLISECONDS);
+        } else {
+            audioClock.cancel(false);
+            audioClock = null;
+            for (String id : inputs.keySet()) {
+                detachAudio(id, inputs.get(id));
+            }
+            audioSource.destroy();
+            audioEncoder.destroy();
+            audioRecorder.destroy();
+            audioSource = null;
+            audioEncoder = null;
+            audioRecorder = null;
+        }
+    }
+
+    public synchronized boolean getIsRecordingVideo() {
+        return videoRecorder != null;
+    }
+
+    public synchronized void setIsRecordingVideo(boolean record) {
+        if (record == getIsRecordingVideo()) {
+            return;
+        }
+
+        if (record) {
+            videoSource = new CompositeVideoSource();
+            videoEncoder = new fm.icelink.vp8.Encoder(videoSource);
+            videoRecorder = new SegmentedVideoRecorder(basePath + "-video-" + VideoFormat.getVp8Name().toLowerCase(), (VideoFormat) videoEncoder.getOutputFormat());
+            videoRecorder.addInput(videoEncoder);
+            videoSource.start();
+
+            for (String id : inputs.keySet()) {
+                attachVideo(id, inputs.get(id));
+            }
+
+            final CompositeVideoSource source = videoSource;
+            final VideoEncoder encoder = videoEncoder;
+            final int interval = 1000 / frameRate;
+            final FramePool frames = new FramePool(compositor.getFrameLength());
+            videoClock = clock.scheduleAtFixedRate(new Runnable() {
+                private int frameCount;
+
+                @Override
+                public void run() {
+                    // Regular key frames let the recorder roll segments on time.
+                    if (frameCount++ % (keyFrameInterval / interval) == 0) {
+                        encoder.setForceKeyFrame(true);
+                    }
+                    byte[] frame = frames.next();
+                    compositor.compose(frame);
+                    source.raiseFrame(frame);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            videoClock.cancel(false);
+            videoClock = null;
+            for (String id : inputs.keySet()) {
+                detachVideo(id, inputs.get(id));
+            }
+            videoSource.destroy();
+            videoEncoder.destroy();
+            videoRecorder.destroy();
+            videoSource = null;
+            videoEncoder = null;
+            videoRecorder = null;
+        }
+    }
+
+    /**
+     * Stops recording and forgets every input.
+     */
+    public synchronized void destroy() {
+        setIsRecordingAudio(false);
+        setIsRecordingVideo(false);
+        inputs.clear();
+    }
+
+    private void attachAudio(String id, Input input) {
+        if (input.audioOutputs != null && input.audioTaps == null) {
+            mixdown.add(id);
+            input.audioTaps = new AudioTap[input.audioOutputs.length];
+            for (int i = 0; i < input.audioOutputs.length; i++) {
+                input.audioTaps[i] = new AudioTap(id, input.audioOutputs[i]);
+            }
+        }
+    }
+
+    private void detachAudio(String id, Input input) {
+        if (input.audioTaps != null) {
+            for (AudioTap audioTap : input.audioTaps) {
+                audioTap.destroy();
+            }
+            input.audioTaps = null;
+        }
+        mixdown.remove(id);
+    }
+
+    private void attachVideo(String id, Input input) {
+        if (input.videoOutput == null || input.videoTap != null) {
+            return;
+        }
+
+        compositor.add(id);
+        IVideoOutput output = input.videoOutput;
+        VideoFormat format = (VideoFormat) output.getOutputFormat();
+        if (format == null || !format.getName().equalsIgnoreCase(VideoFormat.getI420Name())) {
+            input.videoConverter = new fm.icelink.yuv.ImageConverter(VideoFormat.getI420());
+            input.videoConverter.addInput(output);
+            output = input.videoConverter;
+        }
+        input.videoTap = new VideoTap(id, output);
+    }
+
+    private void detachVideo(String id, Input input) {
+        if (input.videoTap != null) {
+            input.videoTap.destroy();
+            input.videoTap = null;
+        }
+        if (input.videoConverter != null) {
+            input.videoConverter.destroy();
+            input.videoConverter = null;
+        }
+        compositor.remove(id);
+    }
+
+    /**
+     * Frame arrays reused in turn by a clock. The encoder consumes each frame
+     * before raiseFrame returns; the spares cover one that holds on to its
+     * last input for a frame or two.
+     */
+    private static class FramePool {
+        private final byte[][] frames = new byte[pooledFrames][];
+        private int next;
+
+        FramePool(int length) {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new byte[length];
+            }
+        }
+
+        // Only called from the clock thread.
+        byte[] next() {
+            byte[] frame = frames[next];
+            next = (next + 1) % frames.length;
+            return frame;
+        }
+    }
+
+    /**
+     * Hands an input's decoded audio to the mixdown.
+     */
+    private class AudioTap extends AudioSink {
+        private final String id;
+
+        AudioTap(String id, IAudioOutput output) {
+            super((AudioFormat) output.getOutputFormat());
+            this.id = id;
+            addInput(output);
+        }
+
+        @Override
+        protected void doProcessFrame(AudioFrame frame, AudioBuffer buffer) {
+            AudioFormat format = (AudioFormat) buffer.getFormat();
+            DataBuffer dataBuffer = buffer.getDataBuffer();
+            mixdown.write(id, dataBuffer.getData(), dataBuffer.getIndex(), dataBuffer.getLength(),
+                    format.getLittleEndian(), format.getClockRate(), format.getChannelCount());
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Session Recorder Audio Tap";
+        }
+    }
+
+    /**
+     * Draws an input's decoded video into its tile of the composite.
+     */
+    private class VideoTap extends VideoSink {
+        private final String id;
+
+        VideoTap(String id, IVideoOutput output) {
+            super(VideoFormat.getI420());
+            this.id = id;
+            addInput(output);
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            int frameWidth = buffer.getWidth();
+            int frameHeight = buffer.getHeight();
+            int[] strides = buffer.getStrides();
+            DataBuffer[] dataBuffers = buffer.getDataBuffers();
+
+            byte[][] planes = new byte[3][];
+            int[] offsets = new int[3];
+            int[] planeStrides = strides.length >= 3 ?
+                    new int[] { strides[0], strides[1], strides[2] } :
+                    new int[] { strides[0], strides[0] / 2, strides[0] / 2 };
+
+            if (dataBuffers.length >= 3) {
+                for (int i = 0; i < 3; i++) {
+                    planes[i] = dataBuffers[i].getData();
+                    offsets[i] = dataBuffers[i].getIndex();
+                }
+            } else {
+                // One buffer with the planes back to back.
+                DataBuffer dataBuffer = dataBuffers[0];
+                planes[0] = planes[1] = planes[2] = dataBuffer.getData();
+                offsets[0] = dataBuffer.getIndex();
+                offsets[1] = offsets[0] + planeStrides[0] * frameHeight;
+                offsets[2] = offsets[1] + planeStrides[1] * (frameHeight / 2);
+            }
+
+            compositor.update(id, planes, offsets, planeStrides, frameWidth, frameHeight);
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Session Recorder Video Tap";
+        }
+    }
+
+    /**
+     * Raises the mixed audio into the encoder.
+     */
+    private static class MixedAudioSource extends AudioSource {
+        private final AudioFormat format;
+
+        MixedAudioSource() {
+            this(new fm.icelink.pcm.Format(clockRate, channelCount));
+        }
+
+        private MixedAudioSource(AudioFormat format) {
+            super(format);
+            this.format = format;
+        }
+
+        void raiseFrame(byte[] data) {
+            raiseFrame(new AudioFrame(frameDuration, new AudioBuffer(DataBuffer.wrap(data, 0, data.length), format)));
+        }
+
+        @Override
+        protected Future<Object> doStart() {
+            return Promise.resolveNow(null);
+        }
+
+        @Override
+        protected Future<Object> doStop() {
+            return Promise.resolveNow(null);
+        }
+
+        public String getLabel() {
+            return "Session Recorder Audio Mix";
+        }
+    }
+
+    /**
+     * Raises the composite video into the encoder.
+     */
+    private static class CompositeVideoSource extends VideoSource {
+
+        CompositeVideoSource() {
+            super(VideoFormat.getI420());
+        }
+
+        void raiseFrame(byte[] data) {
+            raiseFrame(new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(data, 0, data.length), VideoFormat.getI420())));
+        }
+
+        @Override
+        protected Future<Object> doStart() {
+            return Promise.resolveNow(null);
+        }
+
+        @Override
+        protected Future<Object> doStop() {
+            return Promise.resolveNow(null);
+        }
+
+        public String getLabel() {
+            return "Session Recorder Video Composite";
+        }
+    }
+}
@@ -12,9 +12,6 @@ import android.util.Log;
 import android.view.*;
 import android.widget.*;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.List;
 
 import com.google.firebase.iid.FirebaseInstanceId;
@@ -110,22 +107,11 @@ public class SessionSelectorActivity extends AppCompatActivity {
 
         try
         {
-            try {
-                InputStream is = getResources().openRawResource(R.raw.icelink);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-                StringBuilder total = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    total.append(line).append('\n');
-                }
-                fm.icelink.License.setKey(total.toString());
-                is.close();
-            } catch (Exception ex) {
+            app = App.getInstance(this);
+            if (!app.getIsLicensed()) {
                 alert("Invalid icelink key.");
             }
 
-            app = App.getInstance(this);
-
             // Create a random 6 digit number for the new session ID.
             sessionText.setText(String.valueOf(new fm.icelink.Randomizer().next(100000, 999999)));
             sessionText.setFilters(new InputFilter[] { new InputFilter.LengthFilter(6) });
@@ -231,6 +217,25 @@ public class SessionSelectorActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        // Get the connect, ICE and codec setup out of the way before join is tapped.
+        if (app != null) {
+            app.startWarmup();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        if (app != null) {
+            app.stopWarmup();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -254,6 +259,7 @@ public class SessionSelectorActivity extends AppCompatActivity {
         {
             if (name.length() > 0)
             {
+                app.markJoinRequested();
                 app.setSessionId(sessionId);
                 app.setName(name);
                 app.setEnableScreenShare(screenShareCheckBox.isChecked());
@@ -0,0 +1,237 @@
+package fm.icelink.chat.websync4;
+
+import android.content.Context;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Architecture;
+import fm.icelink.AudioConfig;
+import fm.icelink.IceServer;
+import fm.icelink.Log;
+import fm.icelink.Platform;
+import fm.websync.Client;
+import fm.websync.ConnectArgs;
+import fm.websync.ConnectFailureArgs;
+import fm.websync.ConnectSuccessArgs;
+
+/**
+ * SessionWarmup
+ *
+ * Does the slow parts of joining while the user is still choosing a
+ * session: connects a WebSync client, resolves the ICE servers' host names,
+ * loads and exercises the software codecs and loads the cached echo
+ * cancellation settings. The echo delay is never measured here, as that
+ * plays a chirp; a device without settings measures when a call starts. On
+ * join, Signalling takes over the connected client, so it starts with the
+ * subscribes instead of the handshake. A client that is not taken within
+ * a grace period after the session selector is left is disconnected.
+ */
+public class SessionWarmup {
+
+    private static final int releaseDelay = 30000;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SessionWarmup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Context context;
+    private final Object lock = new Object();
+
+    private String serverUrl;
+    private Client client;
+    private long startTime;
+    private ScheduledFuture<?> release;
+    private boolean mediaWarmed;
+
+    public SessionWarmup(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts warming up for the given server, or keeps an earlier warm-up
+     * going. Call when the session selector becomes visible.
+     */
+    public void start(String serverUrl, final IceServer[] iceServers) {
+        synchronized (lock) {
+            if (release != null) {
+                release.cancel(false);
+                release = null;
+            }
+            if (client != null && serverUrl.equals(this.serverUrl)) {
+                return;
+            }
+            disconnect();
+
+            this.serverUrl = serverUrl;
+            startTime = System.nanoTime();
+            try {
+                final Client warm = new Client(serverUrl);
+                if (LoopbackWebSyncServer.isLoopbackUrl(serverUrl)) {
+                    warm.setDisableWebSockets(true);
+                }
+                warm.connect(new ConnectArgs() {{
+                    setOnSuccess(new fm.SingleAction<ConnectSuccessArgs>() {
+                        public void invoke(ConnectSuccessArgs e) {
+                            if (!e.getIsReconnect()) {
+                                Log.debug("Warm-up connected to WebSync after " + (System.nanoTime() - startTime) / 1000000 + "ms.");
+                            }
+                        }
+                    });
+                    setOnFailure(new fm.SingleAction<ConnectFailureArgs>() {
+                        public void invoke(ConnectFailureArgs e) {
+                            // The join connects a client of its own.
+                            Log.debug("Warm-up could not connect to WebSync.");
+                            synchronized (lock) {
+                                if (client == warm) {
+                                    client = null;
+                                }
+                            }
+                        }
+                    });
+                }});
+                client = warm;
+            }
+            catch (Exception ex) {
+                Log.error("Could not start the WebSync warm-up.", ex);
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolve(iceServers);
+                warmMedia();
+            }
+        });
+    }
+
+    /**
+     * Call when the session selector is left. The client stays connected
+     * for a while, so a join that was tapped can still take it.
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (client == null || release != null) {
+                return;
+            }
+            release = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        release = null;
+                        disconnect();
+                    }
+                }
+            }, releaseDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes the warm client, if it is connected to the given server. The
+     * caller owns it from here on.
+     *
+     * @return The client, or null if there is none to take.
+     */
+    public Client takeClient(String serverUrl) {
+        synchronized (lock) {
+            if (client == null || !serverUrl.equals(this.serverUrl)) {
+                return null;
+            }
+            if (release != null) {
+                release.cancel(false);
+                release = null;
+            }
+            if (!client.getIsConnected()) {
+                // Still handshaking. Signalling connects a client of its own, so stop this one.
+                disconnect();
+                return null;
+            }
+            Client taken = client;
+            client = null;
+            return taken;
+        }
+    }
+
+    private void disconnect() {
+        if (client != null) {
+            try {
+                client.disconnect();
+            }
+            catch (Exception ex) {
+                Log.debug("Could not disconnect the warm-up client.");
+            }
+            client = null;
+        }
+    }
+
+    /**
+     * Resolves the STUN/TURN host names, so candidate gathering does not
+     * wait on DNS. The addresses stay in the system resolver's cache.
+     */
+    private void resolve(IceServer[] iceServers) {
+        if (iceServers == null) {
+            return;
+        }
+        for (IceServer iceServer : iceServers) {
+            String host = IceServerManager.getHost(iceServer.getUrl());
+            if (host == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                InetAddress.getAllByName(host);
+                Log.debug("Warm-up resolved " + host + " in " + (System.nanoTime() - start) / 1000000 + "ms.");
+            }
+            catch (Exception ex) {
+                Log.debug("Warm-up could not resolve " + host + ".");
+            }
+        }
+    }
+
+    /**
+     * Loads the codecs' native libraries and runs their setup once, and
+     * reads the cached echo cancellation settings, which otherwise happen
+     * in series before local media starts.
+     */
+    private void warmMedia() {
+        synchronized (lock) {
+            if (mediaWarmed) {
+                return;
+            }
+            mediaWarmed = true;
+        }
+
+        long start = System.nanoTime();
+        try {
+            fm.icelink.opus.Encoder opusEncoder = new fm.icelink.opus.Encoder(new AudioConfig(48000, 2));
+            opusEncoder.destroy();
+            fm.icelink.opus.Decoder opusDecoder = new fm.icelink.opus.Decoder(new AudioConfig(48000, 2));
+            opusDecoder.destroy();
+            fm.icelink.vp8.Encoder vp8Encoder = new fm.icelink.vp8.Encoder();
+            vp8Encoder.destroy();
+            fm.icelink.vp8.Decoder vp8Decoder = new fm.icelink.vp8.Decoder();
+            vp8Decoder.destroy();
+            Log.debug("Warm-up initialized the codecs in " + (System.nanoTime() - start) / 1000000 + "ms.");
+        }
+        catch (Exception ex) {
+            Log.error("Could not initialize the codecs ahead of time.", ex);
+        }
+
+        // App skips echo cancellation on x86 too.
+        if (!fm.icelink.Global.equals(Platform.getInstance().getArchitecture(), Architecture.X86)) {
+            if (AecTuning.getInstance(context).getCachedSettings() == null) {
+                Log.debug("Warm-up found no echo cancellation settings; they are measured when a call starts.");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.IAction0;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoFrame;
+
+/**
+ * SharedH264Encoder
+ *
+ * OpenH264 encoder whose key frame requests go through a KeyFrameLimiter,
+ * so the connections sharing it get one key frame for a burst of requests.
+ */
+public class SharedH264Encoder extends fm.icelink.openh264.Encoder implements Pausable {
+    private final KeyFrameLimiter keyFrameLimiter;
+    private volatile boolean paused;
+
+    public SharedH264Encoder(int keyFrameInterval) {
+        keyFrameLimiter = new KeyFrameLimiter(new IAction0() {
+            public void invoke() {
+                SharedH264Encoder.super.setForceKeyFrame(true);
+            }
+        });
+        keyFrameLimiter.setMinInterval(keyFrameInterval);
+    }
+
+    /**
+     * Whether local media runs an H.264 encoder next to VP8. With
+     * App.sharedEncode it does not, so all peers share one video encode.
+     */
+    public static boolean isEncoded(boolean enableH264, boolean sharedEncode) {
+        return enableH264 && !sharedEncode;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            keyFrameLimiter.request();
+        }
+    }
+
+    @Override
+    protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+        if (!paused) {
+            super.doProcessFrame(frame, buffer);
+        }
+    }
+
+    @Override
+    public void setForceKeyFrame(boolean forceKeyFrame) {
+        if (forceKeyFrame) {
+            keyFrameLimiter.request();
+        } else {
+            super.setForceKeyFrame(false);
+        }
+    }
+}
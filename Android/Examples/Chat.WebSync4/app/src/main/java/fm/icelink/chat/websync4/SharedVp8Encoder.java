@@ -0,0 +1,64 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.IAction0;
+import fm.icelink.IVideoOutput;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoFrame;
+
+/**
+ * SharedVp8Encoder
+ *
+ * VP8 encoder whose key frame requests go through a KeyFrameLimiter, so the
+ * connections sharing it get one key frame for a burst of requests.
+ */
+public class SharedVp8Encoder extends fm.icelink.vp8.Encoder implements Pausable {
+    private KeyFrameLimiter keyFrameLimiter;
+    private volatile boolean paused;
+
+    public SharedVp8Encoder(int keyFrameInterval) {
+        super();
+        initialize(keyFrameInterval);
+    }
+
+    public SharedVp8Encoder(IVideoOutput input, int keyFrameInterval) {
+        super(input);
+        initialize(keyFrameInterval);
+    }
+
+    private void initialize(int keyFrameInterval) {
+        keyFrameLimiter = new KeyFrameLimiter(new IAction0() {
+            public void invoke() {
+                SharedVp8Encoder.super.setForceKeyFrame(true);
+            }
+        });
+        keyFrameLimiter.setMinInterval(keyFrameInterval);
+    }
+
+    public void requestKeyFrame() {
+        keyFrameLimiter.request();
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            // Decoders that missed frames need a fresh start.
+            keyFrameLimiter.request();
+        }
+    }
+
+    @Override
+    protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+        if (!paused) {
+            super.doProcessFrame(frame, buffer);
+        }
+    }
+
+    @Override
+    public void setForceKeyFrame(boolean forceKeyFrame) {
+        if (forceKeyFrame) {
+            keyFrameLimiter.request();
+        } else {
+            super.setForceKeyFrame(false);
+        }
+    }
+}
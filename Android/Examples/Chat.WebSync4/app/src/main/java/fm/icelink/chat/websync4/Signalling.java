@@ -1,7 +1,9 @@
 package fm.icelink.chat.websync4;
 
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.HashMap;
 
+import fm.NullableBoolean;
 import fm.SingleAction;
 import fm.icelink.Connection;
 import fm.icelink.ConnectionCollection;
@@ -28,15 +30,22 @@ import fm.websync.ConnectSuccessArgs;
 import fm.websync.DisconnectArgs;
 import fm.websync.DisconnectCompleteArgs;
 import fm.websync.PublishArgs;
+import fm.websync.PublishFailureArgs;
+import fm.websync.PublishSuccessArgs;
+import fm.websync.PublishingClient;
 import fm.websync.Record;
 import fm.websync.SubscribeArgs;
+import fm.websync.StateRestoredArgs;
 import fm.websync.SubscribeFailureArgs;
 import fm.websync.SubscribeReceiveArgs;
+import fm.websync.StreamFailureArgs;
 import fm.websync.SubscribeSuccessArgs;
 import fm.websync.UnbindArgs;
 import fm.websync.UnbindFailureArgs;
 import fm.websync.UnbindSuccessArgs;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Signalling
  *
@@ -54,12 +63,111 @@ public abstract class Signalling {
     protected String metadataChannel;
     protected String userIdKey = "userId";
     protected String userNameKey = "userName";
+    protected String pushTokenKey = "pushToken";
     protected String textMessageKey = "textMsg";
     protected IFunction1<PeerClient, Connection> createConnection;
     private IAction2<String, String> onReceivedText;
+    private TextBatcher textBatcher;
+    private OutboundQueue outboundQueue = new OutboundQueue(null, 500);
+    private MessageSequencer<ArrayList<String>> textSequencer = new MessageSequencer<ArrayList<String>>(32);
+    // WebSync client id (PeerClient instance id) to the OutboundQueue sender id it publishes with.
+    private final HashMap<String, String> textSenders = new HashMap<>();
+    // One publish batch in flight at a time, so a sender's messages reach the server in sequence.
+    private final Object publishLock = new Object();
+    private int publishesInFlight;
+    private int publishGeneration;
+    private boolean publishFailed;
+    private volatile boolean connected;
     protected Client client;
     protected ConnectionCollection connections;
 
+    private boolean pipelineJoin = false;
+    public boolean getPipelineJoin() {
+        return this.pipelineJoin;
+    }
+    /**
+     * When set, the metadata subscribe, the user metadata bind and the
+     * channel subscribes are sent to the server as a single batch once
+     * connected, instead of one round-trip each.
+     */
+    public void setPipelineJoin(boolean pipelineJoin) {
+        this.pipelineJoin = pipelineJoin;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+    /**
+     * Sets the queue that holds chat messages until the server accepts them.
+     * Set it before joining; by default messages are only kept in memory.
+     * leaveAsync closes it.
+     */
+    public void setOutboundQueue(OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    /**
+     * Forgets a peer's chat ordering state once it has left the session.
+     */
+    public void peerLeft(String instanceId) {
+        String senderId;
+        synchronized (textSenders) {
+            senderId = textSenders.remove(instanceId);
+        }
+        if (senderId != null) {
+            textSequencer.remove(senderId);
+        }
+    }
+
+    private volatile String pushToken;
+    public String getPushToken() {
+        return this.pushToken;
+    }
+    /**
+     * Sets this device's push (FCM) token. It is bound as a record next to
+     * userId and userName, so peers can ring this device with a PushInvite.
+     * A token set after joining, e.g. a refreshed one, is bound straight away.
+     */
+    public void setPushToken(String pushToken) {
+        this.pushToken = pushToken;
+        if (connected && pushToken != null) {
+            bindUserUserMetadata(pushTokenKey, pushToken);
+        }
+    }
+
+    /**
+     * A peer's push token, or null if it has not bound one.
+     */
+    public String getPushToken(PeerClient peer) {
+        Record record = peer.getBoundRecords().get(pushTokenKey);
+        return record == null ? null : Serializer.deserializeString(record.getValueJson());
+    }
+
+    /**
+     * The current peer connections, for monitors such as StatsCollector.
+     */
+    public Connection[] getConnections() {
+        ConnectionCollection connections = this.connections;
+        return connections == null ? new Connection[0] : connections.getValues();
+    }
+
+    private Client warmClient;
+    /**
+     * Hands over a client already connected to this server, e.g. by
+     * SessionWarmup, so joinAsync goes straight to subscribing. If it has
+     * lost its connection by then, joinAsync connects a new one as usual.
+     */
+    public void setWarmClient(Client client) {
+        this.warmClient = client;
+    }
+
+    private OnJoinStageListener onJoinStageListener;
+    public void setOnJoinStageListener(OnJoinStageListener listener) {
+        this.onJoinStageListener = listener;
+    }
+
+    private long joinStartTime;
+
     public Signalling(String serverUrl, String sessionId, String userName, IFunction1<PeerClient, Connection> createConnection, IAction2<String, String>  onReceivedText) {
         this.serverUrl = serverUrl;
         this.sessionId = sessionId;
@@ -67,12 +175,57 @@ public abstract class Signalling {
         this.createConnection = createConnection;
         userId = Guid.newGuid().toString();
         this.onReceivedText = onReceivedText;
+        textBatcher = new TextBatcher(new IAction1<String>() {
+            public void invoke(String json) {
+                publishText(json);
+            }
+        });
 
         defineChannels();
     }
 
     protected abstract void defineChannels();
 
+    /**
+     * Binds the userId, userName and (if set) pushToken records in a single bind request.
+     *
+     * @return Future
+     */
+    protected Future<Object> bindUserMetadata() {
+        final Promise<Object> promise = new Promise<Object>();
+        String token = pushToken;
+        try {
+            Record[] records = token == null ?
+                    new Record[] {
+                        new Record(userIdKey, Serializer.serializeString(userId)),
+                        new Record(userNameKey, Serializer.serializeString(userName))
+                    } :
+                    new Record[] {
+                        new Record(userIdKey, Serializer.serializeString(userId)),
+                        new Record(userNameKey, Serializer.serializeString(userName)),
+                        new Record(pushTokenKey, Serializer.serializeString(token))
+                    };
+            client.bind(new BindArgs(records){{
+                // Bound from a callback, so the client would not restore it after a reconnect by default.
+                setAutoRebind(new NullableBoolean(true));
+                setOnSuccess(new fm.SingleAction<BindSuccessArgs>() {
+                    public void invoke(BindSuccessArgs e) {
+                        promise.resolve(null);
+                    }
+                });
+                setOnFailure(new fm.SingleAction<BindFailureArgs>() {
+                    public void invoke(BindFailureArgs e) {
+                        promise.reject(e.getException());
+                    }
+                });
+            }});
+        }
+        catch (Exception ex) {
+            promise.reject(ex);
+        }
+        return promise;
+    }
+
     protected Future<Object> bindUserUserMetadata(String key, String value) {
         final Promise<Object> promise = new Promise<Object>();
         try {
@@ -95,6 +248,31 @@ public abstract class Signalling {
         return promise;
     }
 
+    /**
+     * Binds the pushToken record, if a token is set.
+     *
+     * @return Future
+     */
+    protected Future<Object> bindPushToken() {
+        String token = pushToken;
+        if (token == null) {
+            return Promise.resolveNow(null);
+        }
+        return bindUserUserMetadata(pushTokenKey, token);
+    }
+
+    /**
+     * Unbinds the pushToken record, if a token is set, so the device is not rung for a session it left.
+     *
+     * @return Future
+     */
+    protected Future<Object> unbindPushToken() {
+        if (pushToken == null) {
+            return Promise.resolveNow(null);
+        }
+        return unbindUserMetadata(pushTokenKey);
+    }
+
     /**
      * Unbind the userId from the WebSync client making it free to be used by some other user.
      *
@@ -160,18 +338,74 @@ public abstract class Signalling {
         final Promise<Object> promise = new Promise<Object>();
         try {
             connections = new ConnectionCollection();
+            joinStartTime = System.nanoTime();
+            promise.then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object o) {
+                    raiseJoinStage("joined");
+                    // Messages left over from an earlier attempt at this session.
+                    publishPending();
+                }
+            });
+
+            // A client connected ahead of time (see SessionWarmup) skips the connect round-trips.
+            Client warm = warmClient;
+            warmClient = null;
+            if (warm != null && warm.getIsConnected()) {
+                client = warm;
+                client.addOnConnectSuccess(new fm.SingleAction<ConnectSuccessArgs>() {
+                    public void invoke(ConnectSuccessArgs e) {
+                        connected = true;
+                    }
+                });
+                client.addOnStateRestored(new fm.SingleAction<StateRestoredArgs>() {
+                    public void invoke(StateRestoredArgs e) {
+                        onStateRestored();
+                    }
+                });
+                client.addOnStreamFailure(new fm.SingleAction<StreamFailureArgs>() {
+                    public void invoke(StreamFailureArgs e) {
+                        connected = false;
+                    }
+                });
+                connected = true;
+                onConnected(promise);
+                return promise;
+            }
+            if (warm != null) {
+                // Lost its connection since; start over.
+                try {
+                    warm.disconnect();
+                }
+                catch (Exception ex) {
+                    fm.icelink.Log.debug("Could not disconnect the warm-up client.");
+                }
+            }
+
             //Create the signalling client and connect
             client = new Client(serverUrl);
+            if (LoopbackWebSyncServer.isLoopbackUrl(serverUrl)) {
+                // The loopback server only speaks long-polling.
+                client.setDisableWebSockets(true);
+            }
             client.connect(new ConnectArgs()
            {{
                setOnSuccess(new fm.SingleAction<ConnectSuccessArgs>() {
                    public void invoke(ConnectSuccessArgs e) {
-                       subscribeToMetadataChannel().then(new IAction1<Object>() {
-                           @Override
-                           public void invoke(Object o) {
-                               doJoinAsync(promise);
-                           }
-                       });
+                       connected = true;
+                       if (!e.getIsReconnect()) {
+                           onConnected(promise);
+                       }
+                   }
+               });
+               setOnStateRestored(new fm.SingleAction<StateRestoredArgs>() {
+                   public void invoke(StateRestoredArgs e) {
+                       onStateRestored();
+                   }
+               });
+               setOnStreamFailure(new fm.SingleAction<StreamFailureArgs>() {
+                   public void invoke(StreamFailureArgs e) {
+                       connected = false;
                    }
                });
                setOnFailure(new fm.SingleAction<ConnectFailureArgs>() {
@@ -192,6 +426,124 @@ public abstract class Signalling {
         return promise;
     }
 
+    private void onConnected(final Promise<Object> promise) {
+        raiseJoinStage("connect");
+        if (pipelineJoin) {
+            doPipelinedJoin(promise);
+        }
+        else {
+            joinStage(subscribeToMetadataChannel(), "metadata").then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object o) {
+                    doJoinAsync(promise);
+                }
+            }).fail(new IAction1<Exception>() {
+                @Override
+                public void invoke(Exception ex) {
+                    if (promise.getState() == FutureState.Pending) {
+                        promise.reject(ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Issues the metadata subscribe and doJoinAsync inside one client batch, so
+     * everything after connect reaches the server in a single request. The
+     * server processes batched messages in order, so binds still land before
+     * the channel subscribes that other peers observe.
+     */
+    private void doPipelinedJoin(final Promise<Object> promise) {
+        final Promise<Object> joined = new Promise<Object>();
+        Future<Object> metadata;
+
+        client.startBatch();
+        try {
+            metadata = joinStage(subscribeToMetadataChannel(), "metadata");
+            doJoinAsync(joined);
+        }
+        finally {
+            try {
+                client.endBatch();
+            }
+            catch (Exception ex) {
+                joined.reject(ex);
+            }
+        }
+
+        whenAll(metadata, joined).then(new IAction1<Object>() {
+            @Override
+            public void invoke(Object o) {
+                promise.resolve(null);
+            }
+        }).fail(new IAction1<Exception>() {
+            @Override
+            public void invoke(Exception ex) {
+                if (promise.getState() == FutureState.Pending) {
+                    promise.reject(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports the stage to the OnJoinStageListener once the future resolves.
+     *
+     * @return The future passed in.
+     */
+    protected Future<Object> joinStage(Future<Object> future, final String stage) {
+        future.then(new IAction1<Object>() {
+            @Override
+            public void invoke(Object o) {
+                raiseJoinStage(stage);
+            }
+        });
+        return future;
+    }
+
+    private void raiseJoinStage(String stage) {
+        long elapsed = (System.nanoTime() - joinStartTime) / 1000000;
+        fm.icelink.Log.debug("Join stage " + stage + " completed after " + elapsed + "ms.");
+
+        OnJoinStageListener listener = onJoinStageListener;
+        if (listener != null) {
+            listener.onJoinStage(stage, elapsed);
+        }
+    }
+
+    /**
+     * Resolves once every future has resolved, or rejects with the first failure.
+     *
+     * @return Future
+     */
+    @SafeVarargs
+    protected static Future<Object> whenAll(Future<Object>... futures) {
+        final Promise<Object> promise = new Promise<Object>();
+        final AtomicInteger remaining = new AtomicInteger(futures.length);
+        if (futures.length == 0) {
+            promise.resolve(null);
+        }
+        for (Future<Object> future : futures) {
+            future.then(new IAction1<Object>() {
+                @Override
+                public void invoke(Object o) {
+                    if (remaining.decrementAndGet() == 0) {
+                        promise.resolve(null);
+                    }
+                }
+            }).fail(new IAction1<Exception>() {
+                @Override
+                public void invoke(Exception ex) {
+                    if (promise.getState() == FutureState.Pending) {
+                        promise.reject(ex);
+                    }
+                }
+            });
+        }
+        return promise;
+    }
+
     /**
      * Calls to the abstract doLeaveAsync method, chaining disconnection
      * of the WebSync client to the returned Future. Disconnection includes
@@ -200,6 +552,9 @@ public abstract class Signalling {
      * @return Future
      */
     public Future<Object> leaveAsync() {
+        // Send any chat still waiting for its batch window.
+        textBatcher.flush();
+
         return doLeaveAsync().then(new IAction1<Object>() {
             @Override
             public void invoke(Object object) {
@@ -211,6 +566,7 @@ public abstract class Signalling {
                 final Promise<Object> promise = new Promise<Object>();
                 try {
                     //Disconnect the signalling client
+                    connected = false;
                     client.disconnect(new DisconnectArgs(){{
                         setOnComplete(new SingleAction<DisconnectCompleteArgs>(){
                             @Override
@@ -235,6 +591,8 @@ public abstract class Signalling {
                     connections.remove(connection);
                     connection.close();
                 }
+                // Unsent chat stays in the queue's file for the next join.
+                outboundQueue.close();
             }
         });
     }
@@ -243,6 +601,8 @@ public abstract class Signalling {
         final Promise promise = new Promise();
         try {
             client.subscribe(new SubscribeArgs(metadataChannel) {{
+                // Subscribed from a callback, so the client would not restore it after a reconnect by default.
+                setAutoResubscribe(new NullableBoolean(true));
                 setOnSuccess(new SingleAction<SubscribeSuccessArgs>() {
                     public void invoke(SubscribeSuccessArgs successArgs) {
                         promise.resolve(null);
@@ -257,8 +617,7 @@ public abstract class Signalling {
                     public void invoke(SubscribeReceiveArgs receiveArgs) {
                         try {
                             if (!receiveArgs.getWasSentByMe()) {
-                                JSONObject dataJson = new JSONObject(receiveArgs.getDataJson());
-                                onReceivedText.invoke(dataJson.getString(userNameKey), dataJson.getString(textMessageKey));
+                                receiveText(receiveArgs.getPublishingClient(), receiveArgs.getDataJson());
                             }
                         }
                         catch(Exception e) {
@@ -276,20 +635,192 @@ public abstract class Signalling {
         return promise;
     }
 
+    public TextBatcher getTextBatcher() {
+        return textBatcher;
+    }
+
+    /**
+     * Queues a chat message. Messages typed within the batch window are
+     * published together.
+     */
     public void writeLine(String message)
+    {
+        textBatcher.add(message);
+    }
+
+    private void publishText(String json)
+    {
+        outboundQueue.enqueue(metadataChannel, json);
+        if (connected) {
+            publishPending();
+        }
+    }
+
+    private void publish(final OutboundQueue.Message message, final int generation)
     {
         try {
-            JSONObject json = new JSONObject();
-            json.put(userNameKey, userName);
-            json.put(textMessageKey, message);
-            client.publish(new PublishArgs(metadataChannel, json.toString()));
+            client.publish(new PublishArgs(message.getChannel(), message.getJson()) {{
+                setOnSuccess(new SingleAction<PublishSuccessArgs>() {
+                    public void invoke(PublishSuccessArgs e) {
+                        outboundQueue.acknowledge(message.getSequence());
+                        published(generation, true);
+                    }
+                });
+                setOnFailure(new SingleAction<PublishFailureArgs>() {
+                    public void invoke(PublishFailureArgs e) {
+                        fm.icelink.Log.debug("Text message not sent yet, will retry on reconnect.");
+                        published(generation, false);
+                    }
+                });
+            }});
         }
         catch (Exception e) {
-            fm.icelink.Log.error("Failed to send text message.", e);
+            fm.icelink.Log.error("Failed to send text message, will retry on reconnect.", e);
+            published(generation, false);
+        }
+    }
+
+    /**
+     * Counts a publish of the batch in flight as done. Once the whole batch
+     * is, anything queued meanwhile goes out; after a failure the rest waits
+     * for the reconnect.
+     */
+    private void published(int generation, boolean succeeded)
+    {
+        synchronized (publishLock) {
+            if (generation != publishGeneration) {
+                return;
+            }
+            if (!succeeded) {
+                publishFailed = true;
+            }
+            if (--publishesInFlight > 0 || publishFailed) {
+                return;
+            }
+        }
+        if (connected) {
+            publishPending();
+        }
+    }
+
+    /**
+     * Called once a reconnected client has restored the metadata subscription
+     * and the user binds, which receivers read the sender's name from. Only
+     * what was not accepted before the drop is resent.
+     */
+    protected void onStateRestored()
+    {
+        resetPublishes();
+        publishPending();
+    }
+
+    /**
+     * Forgets the batch in flight when the client reconnects; whatever it
+     * did not get accepted is still in the queue.
+     */
+    private void resetPublishes()
+    {
+        synchronized (publishLock) {
+            publishGeneration++;
+            publishesInFlight = 0;
+            publishFailed = false;
+        }
+    }
+
+    /**
+     * Publishes every unacknowledged message, in order, as one batch, unless
+     * a batch is already in flight; what is queued meanwhile goes out when it
+     * completes. Receivers take the first sequence they see from a sender as
+     * its start, so publishes must not overtake each other on the way.
+     */
+    private void publishPending()
+    {
+        ArrayList<OutboundQueue.Message> messages;
+        int generation;
+        synchronized (publishLock) {
+            if (client == null || publishesInFlight > 0) {
+                return;
+            }
+            messages = outboundQueue.getPending();
+            if (messages.isEmpty()) {
+                return;
+            }
+            publishesInFlight = messages.size();
+            publishFailed = false;
+            generation = publishGeneration;
+        }
+
+        if (messages.size() > 1) {
+            fm.icelink.Log.debug(String.format("Publishing %d text messages.", messages.size()));
+        }
+        client.startBatch();
+        try {
+            for (OutboundQueue.Message message : messages) {
+                publish(message, generation);
+            }
+        }
+        finally {
+            try {
+                client.endBatch();
+            }
+            catch (Exception e) {
+                fm.icelink.Log.error("Failed to send text messages.", e);
+            }
+        }
+    }
+
+    private void receiveText(PublishingClient publishingClient, String json) throws Exception
+    {
+        // Batches carry only the text; older clients send one message with its user name.
+        TextBatcher.Batch batch = TextBatcher.parse(json, textMessageKey, userNameKey);
+        String name = batch.getName();
+        String senderId = batch.getSenderId();
+        ArrayList<String> messages = batch.getMessages();
+
+        if (name == null && publishingClient != null) {
+            String nameJson = publishingClient.getBoundRecordValueJson(userNameKey);
+            if (nameJson != null) {
+                name = Serializer.deserializeString(nameJson);
+            }
+        }
+        if (name == null) {
+            name = "Unknown";
+        }
+
+        // Drop resent duplicates and restore the sender's order.
+        ArrayList<ArrayList<String>> batches = new ArrayList<>();
+        if (senderId == null) {
+            batches.add(messages);
+        } else {
+            if (publishingClient != null && publishingClient.getClientId() != null) {
+                synchronized (textSenders) {
+                    textSenders.put(publishingClient.getClientId().toString(), senderId);
+                }
+            }
+        }
+
+        // Deliveries can arrive on several threads at once; hand them on in the order sequenced.
+        synchronized (textSequencer) {
+            if (senderId != null) {
+                batches = textSequencer.accept(senderId, batch.getSequence(), messages);
+            }
+            for (ArrayList<String> sequenced : batches) {
+                for (String message : sequenced) {
+                    onReceivedText.invoke(name, message);
+                }
+            }
         }
     }
 
     protected abstract void doJoinAsync(Promise<Object> promise);
     protected abstract Future<Object> doLeaveAsync();
     public abstract void reconnect(PeerClient remoteClient, Connection connection);
+
+    public interface OnJoinStageListener {
+        /**
+         * @param stage The completed stage: connect, metadata, bind, userChannel, sessionChannel or joined.
+         * @param elapsed Milliseconds since joinAsync was called.
+         */
+        void onJoinStage(String stage, long elapsed);
+    }
 }
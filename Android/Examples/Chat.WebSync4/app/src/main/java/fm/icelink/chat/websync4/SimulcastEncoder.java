@@ -0,0 +1,57 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.IVideoOutput;
+import fm.icelink.VideoFormat;
+
+/**
+ * SimulcastEncoder
+ *
+ * Produces several VP8 layers from one capture. Captured frames are converted
+ * to I420 once, then each layer scales and encodes them at its own bitrate.
+ * Connections pick a layer through a SimulcastSelector, so the cost is one
+ * encode per layer regardless of how many peers are connected.
+ */
+public class SimulcastEncoder {
+
+    private final SimulcastLayer[] layers;
+    private final fm.icelink.yuv.ImageConverter converter;
+    private final fm.icelink.yuv.ImageScaler[] scalers;
+    private final SharedVp8Encoder[] encoders;
+
+    public SimulcastEncoder(IVideoOutput source, SimulcastLayer[] layers) {
+        this.layers = layers;
+        converter = new fm.icelink.yuv.ImageConverter(source, VideoFormat.getI420());
+        scalers = new fm.icelink.yuv.ImageScaler[layers.length];
+        encoders = new SharedVp8Encoder[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            scalers[i] = new fm.icelink.yuv.ImageScaler(layers[i].getScale(), converter);
+            encoders[i] = new SharedVp8Encoder(scalers[i], LocalMedia.keyFrameInterval);
+            encoders[i].setBitrate(layers[i].getBitrate());
+        }
+    }
+
+    public SimulcastLayer[] getLayers() {
+        return layers;
+    }
+
+    SharedVp8Encoder getEncoder(int layer) {
+        return encoders[layer];
+    }
+
+    /**
+     * Creates the local video output for one connection.
+     *
+     * @param layer Index of the layer to start on.
+     */
+    public SimulcastSelector createSelector(int layer) {
+        return new SimulcastSelector(this, layer);
+    }
+
+    public void destroy() {
+        for (int i = 0; i < layers.length; i++) {
+            encoders[i].destroy();
+            scalers[i].destroy();
+        }
+        converter.destroy();
+    }
+}
@@ -0,0 +1,48 @@
+package fm.icelink.chat.websync4;
+
+/**
+ * SimulcastLayer
+ *
+ * One spatial layer produced from the local capture: the scale applied to
+ * captured frames and the target bitrate of the layer's encoder.
+ */
+public class SimulcastLayer {
+
+    /**
+     * Default layers from highest to lowest quality.
+     */
+    public static final SimulcastLayer[] Defaults = new SimulcastLayer[] {
+        new SimulcastLayer("full", 1.0, 1000),
+        new SimulcastLayer("half", 0.5, 350),
+        new SimulcastLayer("quarter", 0.25, 120)
+    };
+
+    private String name;
+    public String getName() {
+        return this.name;
+    }
+
+    private double scale;
+    public double getScale() {
+        return this.scale;
+    }
+
+    private int bitrate;
+    /**
+     * Target bitrate in kbps.
+     */
+    public int getBitrate() {
+        return this.bitrate;
+    }
+
+    public SimulcastLayer(String name, double scale, int bitrate) {
+        this.name = name;
+        this.scale = scale;
+        this.bitrate = bitrate;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + Math.round(scale * 100) + "% @ " + bitrate + "kbps)";
+    }
+}
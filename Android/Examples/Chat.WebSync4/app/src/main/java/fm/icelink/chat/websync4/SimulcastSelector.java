@@ -0,0 +1,189 @@
+package fm.icelink.chat.websync4;
+
+import fm.icelink.Log;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoEncoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoPipe;
+
+/**
+ * SimulcastSelector
+ *
+ * The local video output of a single connection. It forwards the frames of
+ * one SimulcastEncoder layer, chosen from the bandwidth measured for that
+ * connection. Moving to a lower layer happens on the first sample that no
+ * longer fits; moving up needs several consecutive samples with headroom.
+ * StatsCollector reports each of the connection's samples through onSample,
+ * from which a BandwidthEstimator keeps the bandwidth up to date.
+ */
+public class SimulcastSelector extends VideoPipe {
+
+    /**
+     * Fraction of the measured bandwidth a layer may use.
+     */
+    private static final double headroom = 0.85;
+
+    /**
+     * Consecutive samples with room for a higher layer before moving up.
+     */
+    private static final int upgradeSamples = 3;
+
+    private final SimulcastEncoder encoder;
+    private final LayerGate[] gates;
+    private final BandwidthEstimator estimator;
+    private int layer = -1;
+    private int samplesAbove;
+
+    private OnLayerChangeListener listener;
+    public void setOnLayerChangeListener(OnLayerChangeListener listener) {
+        this.listener = listener;
+    }
+
+    SimulcastSelector(SimulcastEncoder encoder, int layer) {
+        super((VideoFormat) encoder.getEncoder(0).getOutputFormat());
+        this.encoder = encoder;
+
+        gates = new LayerGate[encoder.getLayers().length];
+        for (int i = 0; i < gates.length; i++) {
+            gates[i] = new LayerGate(encoder.getEncoder(i));
+        }
+        addInputs(gates);
+
+        select(layer);
+
+        // Start where the initial layer just fits, and probe no further than the top layer needs.
+        SimulcastLayer[] layers = encoder.getLayers();
+        estimator = new BandwidthEstimator(getSelectedLayer().getBitrate() / headroom,
+                layers[layers.length - 1].getBitrate(), layers[0].getBitrate() / headroom * 1.2);
+    }
+
+    public synchronized int getLayer() {
+        return layer;
+    }
+
+    public synchronized SimulcastLayer getSelectedLayer() {
+        return encoder.getLayers()[layer];
+    }
+
+    /**
+     * Switches to the given layer and asks its encoder for a key frame so the
+     * remote decoder can follow the change in resolution.
+     */
+    public void select(int index) {
+        index = Math.max(0, Math.min(gates.length - 1, index));
+
+        SimulcastLayer selected;
+        synchronized (this) {
+            if (index == layer) {
+                return;
+            }
+            for (int i = 0; i < gates.length; i++) {
+                gates[i].open = (i == index);
+            }
+            layer = index;
+            samplesAbove = 0;
+            selected = encoder.getLayers()[index];
+        }
+
+        encoder.getEncoder(index).requestKeyFrame();
+        Log.debug("Simulcast layer changed to " + selected + ".");
+
+        OnLayerChangeListener listener = this.listener;
+        if (listener != null) {
+            listener.onLayerChange(this, selected);
+        }
+    }
+
+    /**
+     * Reports the bandwidth measured for this connection.
+     *
+     * @param kbps Available outgoing bandwidth in kbps.
+     */
+    public void setBandwidth(int kbps) {
+        SimulcastLayer[] layers = encoder.getLayers();
+        double budget = kbps * headroom;
+
+        int target = layers.length - 1;
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i].getBitrate() <= budget) {
+                target = i;
+                break;
+            }
+        }
+
+        int next;
+        synchronized (this) {
+            if (target > layer) {
+                next = target;
+            }
+            else if (target < layer && ++samplesAbove >= upgradeSamples) {
+                next = layer - 1;
+            }
+            else {
+                if (target == layer) {
+                    samplesAbove = 0;
+                }
+                return;
+            }
+        }
+        select(next);
+    }
+
+    /**
+     * Reports one stats sample of the connection, and moves to the layer that
+     * fits the updated bandwidth estimate.
+     *
+     * @param sendKbps What the connection sent since the last sample.
+     * @param packetLoss Loss the remote reported on what was sent since the last sample, in percent, or NaN if unknown.
+     */
+    public void onSample(double sendKbps, double packetLoss) {
+        setBandwidth((int) estimator.update(sendKbps, packetLoss));
+    }
+
+    @Override
+    protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+        raiseFrame(frame);
+    }
+
+    @Override
+    protected void doDestroy() {
+        for (LayerGate gate : gates) {
+            gate.destroy();
+        }
+    }
+
+    public String getLabel() {
+        return "Simulcast Selector";
+    }
+
+    public interface OnLayerChangeListener {
+        void onLayerChange(SimulcastSelector selector, SimulcastLayer layer);
+    }
+
+    /**
+     * Passes a layer's encoded frames through while it is selected.
+     */
+    private static class LayerGate extends VideoPipe {
+        volatile boolean open;
+
+        LayerGate(VideoEncoder encoder) {
+            super((VideoFormat) encoder.getOutputFormat());
+            addInput(encoder);
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            if (open) {
+                raiseFrame(frame);
+            }
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Simulcast Layer Gate";
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package fm.icelink.chat.websync4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.CandidatePairStats;
+import fm.icelink.Connection;
+import fm.icelink.ConnectionStats;
+import fm.icelink.IAction1;
+import fm.icelink.Log;
+import fm.icelink.MediaReceiverStats;
+import fm.icelink.MediaSenderStats;
+import fm.icelink.MediaStreamStats;
+import fm.icelink.MediaTrackStats;
+import fm.icelink.TransportStats;
+
+/**
+ * StatsCollector
+ *
+ * Samples every connection in a Signalling session on a fixed interval:
+ * round trip time, jitter, packet loss, send and receive bitrate, decoded
+ * frame rate and decode time. Each connection keeps its recent samples in
+ * a ConnectionSamples, and its stats callbacks are created once, so
+ * recording a sample allocates nothing beyond what IceLink's getStats does.
+ * Every report interval the rolling percentiles go to the listener and,
+ * if set, are appended to a JSONL file and written as a Prometheus text
+ * file.
+ */
+public class StatsCollector {
+
+    public static final int RoundTripTime = ConnectionSamples.RoundTripTime;
+    public static final int Jitter = ConnectionSamples.Jitter;
+    public static final int PacketLoss = ConnectionSamples.PacketLoss;
+    public static final int SendBitrate = ConnectionSamples.SendBitrate;
+    public static final int ReceiveBitrate = ConnectionSamples.ReceiveBitrate;
+    public static final int FrameRate = ConnectionSamples.FrameRate;
+    public static final int DecodeTime = ConnectionSamples.DecodeTime;
+    public static final int MetricCount = ConnectionSamples.MetricCount;
+
+    /**
+     * Metric names, with their units, as written to the JSONL and Prometheus output.
+     */
+    public static final String[] MetricNames = new String[] {
+        "rtt_ms", "jitter_ms", "packet_loss_percent", "send_kbps", "receive_kbps", "frame_rate", "decode_ms"
+    };
+
+    /**
+     * The connection's dynamic value holding its remote media's DecodeTimer.
+     */
+    public static final String DecodeTimerKey = "decodeTimer";
+
+    /**
+     * The connection's dynamic value holding its SimulcastSelector, if any,
+     * which is given every sample's send bitrate and the loss the remote
+     * reported on what was sent.
+     */
+    public static final String SimulcastSelectorKey = "simulcastSelector";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StatsCollector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The rolling percentiles of one connection. The listener receives the
+     * same instance every report, so copy what must outlive the call.
+     */
+    public static class Summary {
+        private final String connectionId;
+        private final double[] p50 = new double[MetricCount];
+        private final double[] p95 = new double[MetricCount];
+        private final double[] p99 = new double[MetricCount];
+        private final double[] last = new double[MetricCount];
+        private int sampleCount;
+
+        Summary(String connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        /**
+         * The number of samples the percentiles cover.
+         */
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * @param metric One of the metric constants, e.g. RoundTripTime. NaN if not reported.
+         */
+        public double getP50(int metric) {
+            return p50[metric];
+        }
+
+        public double getP95(int metric) {
+            return p95[metric];
+        }
+
+        public double getP99(int metric) {
+            return p99[metric];
+        }
+
+        public double getLast(int metric) {
+            return last[metric];
+        }
+    }
+
+    public interface OnStatsListener {
+        /**
+         * Called on the collector's thread once per connection every report interval.
+         */
+        void onStats(Summary summary);
+    }
+
+    private class Peer {
+        final Connection connection;
+        final ConnectionSamples samples;
+        final Summary summary;
+        boolean seen;
+        boolean pending;
+
+        final IAction1<ConnectionStats> onStats = new IAction1<ConnectionStats>() {
+            public void invoke(ConnectionStats stats) {
+                record(Peer.this, stats);
+            }
+        };
+
+        final IAction1<Exception> onFailure = new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                synchronized (StatsCollector.this) {
+                    pending = false;
+                }
+            }
+        };
+
+        Peer(Connection connection) {
+            this.connection = connection;
+            this.summary = new Summary(connection.getId());
+            this.samples = new ConnectionSamples(windowSize);
+        }
+    }
+
+    private final Signalling signalling;
+    private final HashMap<String, Peer> peers = new HashMap<>();
+    private final ArrayList<Summary> summaries = new ArrayList<>();
+    private final StringBuilder builder = new StringBuilder(1024);
+    private ScheduledFuture<?> timer;
+    private OutputStream jsonOutput;
+    private int samplesSinceReport;
+
+    private int interval = 1000;
+    public int getInterval() {
+        return this.interval;
+    }
+    /**
+     * Time between samples. Takes effect on the next start.
+     */
+    public void setInterval(int milliseconds) {
+        this.interval = milliseconds;
+    }
+
+    private int windowSize = 60;
+    public int getWindowSize() {
+        return this.windowSize;
+    }
+    /**
+     * The number of recent samples the percentiles cover. Takes effect for new connections.
+     */
+    public void setWindowSize(int samples) {
+        this.windowSize = samples;
+    }
+
+    private int reportInterval = 10;
+    public int getReportInterval() {
+        return this.reportInterval;
+    }
+    /**
+     * The number of samples between reports.
+     */
+    public void setReportInterval(int samples) {
+        this.reportInterval = samples;
+    }
+
+    private File jsonFile;
+    public File getJsonFile() {
+        return this.jsonFile;
+    }
+    /**
+     * A file each report is appended to, one JSON object per connection per line.
+     */
+    public void setJsonFile(File file) {
+        this.jsonFile = file;
+    }
+
+    private File prometheusFile;
+    public File getPrometheusFile() {
+        return this.prometheusFile;
+    }
+    /**
+     * A file replaced with the latest report in Prometheus text format, for a
+     * textfile collector or adb pull.
+     */
+    public void setPrometheusFile(File file) {
+        this.prometheusFile = file;
+    }
+
+    private volatile OnStatsListener listener;
+    public void setOnStatsListener(OnStatsListener listener) {
+        this.listener = listener;
+    }
+
+    public StatsCollector(Signalling signalling) {
+        this.signalling = signalling;
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                }
+                catch (Exception ex) {
+                    Log.error("Could not sample connection stats.", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling, writes a last report and closes the JSONL file.
+     */
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        timer.cancel(false);
+        timer = null;
+
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                report();
+                closeJson();
+            }
+        });
+    }
+
+    /**
+     * The latest report in Prometheus text format.
+     */
+    public synchronized String getPrometheusText() {
+        builder.setLength(0);
+        appendPrometheus(builder);
+        return builder.toString();
+    }
+
+    private void sample() {
+        Connection[] connections = signalling.getConnections();
+        synchronized (this) {
+            for (Peer peer : peers.values()) {
+                peer.seen = false;
+            }
+            for (Connection connection : connections) {
+                Peer peer = peers.get(connection.getId());
+                if (peer == null) {
+                    peer = new Peer(connection);
+                    peers.put(connection.getId(), peer);
+                }
+                peer.seen = true;
+            }
+        }
+
+        for (Connection connection : connections) {
+            Peer peer;
+            synchronized (this) {
+                peer = peers.get(connection.getId());
+                // Skip a connection whose last request has not come back, rather than pile them up.
+                if (peer.pending) {
+                    continue;
+                }
+                peer.pending = true;
+            }
+            connection.getStats().then(peer.onStats, peer.onFailure);
+        }
+
+        if (++samplesSinceReport >= reportInterval) {
+            samplesSinceReport = 0;
+            report();
+        }
+    }
+
+    private synchronized void record(Peer peer, ConnectionStats stats) {
+        peer.pending = false;
+
+        long time = System.nanoTime();
+        double roundTripTime = Double.NaN;
+        double jitter = Double.NaN;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long packetsLost = 0;
+        long packetsReceived = 0;
+        long packetsSent = 0;
+        long remotePacketsLost = 0;
+        long framesDecoded = 0;
+
+        for (int i = 0; i < 2; i++) {
+            MediaStreamStats stream = i == 0 ? stats.getAudioStream() : stats.getVideoStream();
+            if (stream == null) {
+                continue;
+            }
+
+            TransportStats transport = stream.getTransport();
+            CandidatePairStats pair = transport == null ? null : transport.getActiveCandidatePair();
+            if (pair != null && Double.isNaN(roundTripTime)) {
+                roundTripTime = pair.getCurrentRoundTripTime();
+            }
+
+            MediaSenderStats sender = stream.getSender();
+            if (sender != null) {
+                bytesSent += sender.getBytesSent();
+                packetsSent += sender.getPacketsSent();
+                // As the remote reported in its RTCP receiver reports.
+                remotePacketsLost += sender.getPacketsLost();
+            }
+
+            MediaReceiverStats receiver = stream.getReceiver();
+            if (receiver != null) {
+                bytesReceived += receiver.getBytesReceived();
+                packetsLost += receiver.getPacketsLost();
+                packetsReceived += receiver.getPacketsReceived();
+                // The worse of the two streams is the one that matters to the call.
+                if (Double.isNaN(jitter) || receiver.getJitter() > jitter) {
+                    jitter = receiver.getJitter();
+                }
+
+                MediaTrackStats track = receiver.getTrack();
+                if (i == 1 && track != null) {
+                    framesDecoded = track.getFramesDecoded();
+                }
+            }
+        }
+
+        DecodeTimer decodeTimer = (DecodeTimer) peer.connection.getDynamicValue(DecodeTimerKey);
+        long decodeNanos = decodeTimer == null ? 0 : decodeTimer.getTotalNanos();
+        long decodeFrames = decodeTimer == null ? 0 : decodeTimer.getFrameCount();
+
+        boolean rated = peer.samples.add(time, roundTripTime, jitter, bytesSent, bytesReceived,
+                packetsLost, packetsReceived, packetsSent, remotePacketsLost, framesDecoded, decodeNanos, decodeFrames);
+
+        // The layer is chosen from loss on what we send, which only the remote sees.
+        SimulcastSelector selector = (SimulcastSelector) peer.connection.getDynamicValue(SimulcastSelectorKey);
+        if (rated && selector != null) {
+            selector.onSample(peer.samples.getSendBitrate(), peer.samples.getSendLoss());
+        }
+    }
+
+    private void report() {
+        String json;
+        String prometheus;
+        synchronized (this) {
+            summaries.clear();
+            Iterator<Peer> iterator = peers.values().iterator();
+            while (iterator.hasNext()) {
+                Peer peer = iterator.next();
+                Summary summary = peer.summary;
+                summary.sampleCount = peer.samples.summarize(summary.p50, summary.p95, summary.p99, summary.last);
+                summaries.add(summary);
+
+                // Report a closed connection one last time, then forget it.
+                if (!peer.seen) {
+                    iterator.remove();
+                }
+            }
+
+            json = null;
+            if (jsonFile != null && summaries.size() > 0) {
+                builder.setLength(0);
+                appendJson(builder, System.currentTimeMillis());
+                json = builder.toString();
+            }
+            prometheus = null;
+            if (prometheusFile != null) {
+                builder.setLength(0);
+                appendPrometheus(builder);
+                prometheus = builder.toString();
+            }
+        }
+
+        OnStatsListener listener = this.listener;
+        if (listener != null) {
+            for (Summary summary : summaries) {
+                listener.onStats(summary);
+            }
+        }
+
+        if (json != null) {
+            writeJson(json);
+        }
+        if (prometheus != null) {
+            writePrometheus(prometheus);
+        }
+    }
+
+    private void appendJson(StringBuilder builder, long timestamp) {
+        for (Summary summary : summaries) {
+            builder.append("{\"time\":").append(timestamp)
+                    .append(",\"connection\":\"").append(summary.connectionId)
+                    .append("\",\"samples\":").append(summary.sampleCount);
+            for (int i = 0; i < MetricCount; i++) {
+                builder.append(",\"").append(MetricNames[i]).append("\":{\"p50\":");
+                appendValue(builder, summary.p50[i], "null");
+                builder.append(",\"p95\":");
+                appendValue(builder, summary.p95[i], "null");
+                builder.append(",\"p99\":");
+                appendValue(builder, summary.p99[i], "null");
+                builder.append('}');
+            }
+            builder.append("}\n");
+        }
+    }
+
+    private void appendPrometheus(StringBuilder builder) {
+        for (int i = 0; i < MetricCount; i++) {
+            builder.append("# TYPE icelink_").append(MetricNames[i]).append(" summary\n");
+            for (Summary summary : summaries) {
+                appendQuantile(builder, i, summary.connectionId, "0.5", summary.p50[i]);
+                appendQuantile(builder, i, summary.connectionId, "0.95", summary.p95[i]);
+                appendQuantile(builder, i, summary.connectionId, "0.99", summary.p99[i]);
+            }
+        }
+    }
+
+    private static void appendQuantile(StringBuilder builder, int metric, String connectionId, String quantile, double value) {
+        builder.append("icelink_").append(MetricNames[metric])
+                .append("{connection=\"").append(connectionId)
+                .append("\",quantile=\"").append(quantile).append("\"} ");
+        appendValue(builder, value, "NaN");
+        builder.append('\n');
+    }
+
+    private static void appendValue(StringBuilder builder, double value, String missing) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            builder.append(missing);
+        } else {
+            // Two decimals is plenty for any of the metrics.
+            builder.append(Math.round(value * 100) / 100.0);
+        }
+    }
+
+    // Runs on the collector's thread.
+    private void writeJson(String json) {
+        try {
+            if (jsonOutput == null) {
+                jsonOutput = new FileOutputStream(jsonFile, true);
+            }
+            jsonOutput.write(json.getBytes("UTF-8"));
+            jsonOutput.flush();
+        }
+        catch (IOException ex) {
+            Log.error("Could not write connection stats.", ex);
+            closeJson();
+        }
+    }
+
+    private void closeJson() {
+        if (jsonOutput != null) {
+            try {
+                jsonOutput.close();
+            }
+            catch (IOException ex) {
+                Log.error("Could not close connection stats.", ex);
+            }
+            jsonOutput = null;
+        }
+    }
+
+    private void writePrometheus(String text) {
+        try {
+            File temp = new File(prometheusFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write(text.getBytes("UTF-8"));
+            }
+            finally {
+                output.close();
+            }
+            if (!temp.renameTo(prometheusFile)) {
+                Log.error("Could not write connection stats.");
+            }
+        }
+        catch (IOException ex) {
+            Log.error("Could not write connection stats.", ex);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package fm.icelink.chat.websync4;
+
+import java.util.Arrays;
+
+/**
+ * StatsRing
+ *
+ * A fixed window of the most recent samples of one metric, kept in a
+ * preallocated double array. Adding a sample never allocates; percentiles
+ * sort a copy in a second preallocated array, so they are meant for the
+ * reporting thread rather than per sample. Not thread-safe.
+ */
+public class StatsRing {
+
+    private final double[] samples;
+    private final double[] sorted;
+    private int next;
+    private int count;
+    private boolean sortedValid;
+
+    /**
+     * @param capacity The number of recent samples kept.
+     */
+    public StatsRing(int capacity) {
+        samples = new double[Math.max(1, capacity)];
+        sorted = new double[samples.length];
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    /**
+     * The number of samples in the window.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public void add(double value) {
+        samples[next] = value;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        sortedValid = false;
+    }
+
+    public void clear() {
+        next = 0;
+        count = 0;
+        sortedValid = false;
+    }
+
+    /**
+     * The most recent sample, or NaN if there is none.
+     */
+    public double getLast() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return samples[(next - 1 + samples.length) % samples.length];
+    }
+
+    public double getMean() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * The nearest-rank percentile of the window, or NaN if it is empty.
+     *
+     * @param percentile 0 to 100.
+     */
+    public double getPercentile(double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (!sortedValid) {
+            // Only the first count slots hold samples until the ring fills.
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            sortedValid = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.min(count - 1, Math.max(0, rank - 1))];
+    }
+}
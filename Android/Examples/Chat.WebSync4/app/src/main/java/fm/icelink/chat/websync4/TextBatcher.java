@@ -0,0 +1,215 @@
+package fm.icelink.chat.websync4;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.IAction1;
+
+/**
+ * TextBatcher
+ *
+ * Collects outgoing chat messages and hands them to the flush callback as a
+ * single {"textMsgs":[...]} payload, either once the batch size is reached
+ * or once the batch window has elapsed since the first queued message,
+ * whichever comes first. The sender's name is not repeated in the payload;
+ * receivers take it from the publishing client's bound records.
+ */
+public class TextBatcher {
+
+    public static final String textMessagesKey = "textMsgs";
+
+    /**
+     * A received chat payload.
+     */
+    public static class Batch {
+        private final ArrayList<String> messages = new ArrayList<>();
+        public ArrayList<String> getMessages() {
+            return messages;
+        }
+
+        private String name;
+        /**
+         * The sender's name, which only older clients include, or null.
+         */
+        public String getName() {
+            return name;
+        }
+
+        private String senderId;
+        /**
+         * The OutboundQueue sender id, or null if the payload is not sequenced.
+         */
+        public String getSenderId() {
+            return senderId;
+        }
+
+        private long sequence;
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TextBatcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object lock = new Object();
+    private final ArrayList<String> pending = new ArrayList<>();
+    private final IAction1<String> onFlush;
+    private ScheduledFuture<?> timer;
+
+    private int batchWindow = 100;
+    public int getBatchWindow() {
+        return this.batchWindow;
+    }
+    public void setBatchWindow(int milliseconds) {
+        this.batchWindow = milliseconds;
+    }
+
+    private int batchSize = 20;
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    public void setBatchSize(int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * @param onFlush Invoked with the JSON payload to publish.
+     */
+    public TextBatcher(IAction1<String> onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    public void add(String message) {
+        String batch = null;
+        synchronized (lock) {
+            pending.add(message);
+
+            if (batchWindow <= 0 || pending.size() >= batchSize) {
+                batch = take();
+            } else if (timer == null) {
+                timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (batch != null) {
+            onFlush.invoke(batch);
+        }
+    }
+
+    public void flush() {
+        String batch;
+        synchronized (lock) {
+            batch = take();
+        }
+
+        if (batch != null) {
+            onFlush.invoke(batch);
+        }
+    }
+
+    private String take() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+
+        if (pending.isEmpty()) {
+            return null;
+        }
+
+        StringWriter json = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(json);
+            writer.beginObject().name(textMessagesKey).beginArray();
+            for (int i = 0; i < pending.size(); i++) {
+                writer.value(pending.get(i));
+            }
+            writer.endArray().endObject().close();
+        }
+        catch (IOException ex) {
+            // A StringWriter does not throw.
+            throw new IllegalStateException(ex);
+        }
+        finally {
+            pending.clear();
+        }
+        return json.toString();
+    }
+
+    /**
+     * Parses a payload from take, or a single message from an older client.
+     *
+     * @param textMessageKey The single-message key older clients send.
+     * @param userNameKey The user name key older clients send alongside it.
+     */
+    public static Batch parse(String json, String textMessageKey, String userNameKey) throws Exception {
+        Batch batch = new Batch();
+        String message = null;
+        boolean hasSequence = false;
+
+        // Streamed, so a batch is read without building a tree of it first.
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (name.equals(textMessagesKey)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        batch.messages.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else if (name.equals(textMessageKey)) {
+                    message = reader.nextString();
+                } else if (name.equals(userNameKey)) {
+                    batch.name = reader.nextString();
+                } else if (name.equals(OutboundQueue.senderIdKey)) {
+                    batch.senderId = reader.nextString();
+                } else if (name.equals(OutboundQueue.sequenceKey)) {
+                    batch.sequence = reader.nextLong();
+                    hasSequence = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        finally {
+            reader.close();
+        }
+
+        // An older client's single message comes after any batch, wherever it is in the object.
+        if (message != null) {
+            batch.messages.add(message);
+        }
+        if (batch.senderId != null && !hasSequence) {
+            throw new Exception("Sequenced chat without a sequence number.");
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,107 @@
+package fm.icelink.chat.websync4;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * ThreadCpuLoad
+ *
+ * Measures the CPU load of the busiest thread in this process, as a fraction
+ * of one core, from the utime and stime in each /proc/self/task/[tid]/stat.
+ * An encoder or capture thread that saturates its core drops frames while
+ * the process load, spread over every core of a phone, still looks low.
+ */
+public class ThreadCpuLoad {
+
+    // USER_HZ, the unit of utime and stime; 100 on Linux and Android.
+    private static final int clockTicksPerSecond = 100;
+
+    private final File taskDirectory;
+    private HashMap<String, Long> lastTicks = new HashMap<>();
+    private long lastTime = -1;
+
+    public ThreadCpuLoad() {
+        this(new File("/proc/self/task"));
+    }
+
+    /**
+     * @param taskDirectory Directory with a [tid]/stat file per thread.
+     */
+    public ThreadCpuLoad(File taskDirectory) {
+        this.taskDirectory = taskDirectory;
+    }
+
+    /**
+     * Reads every thread's CPU time.
+     *
+     * @param time The current time, in milliseconds.
+     * @return The busiest thread's load since the last sample, or 0 on the first.
+     */
+    public synchronized double sample(long time) {
+        HashMap<String, Long> ticks = new HashMap<>();
+        String[] tids = taskDirectory.list();
+        if (tids != null) {
+            for (String tid : tids) {
+                long threadTicks = readTicks(new File(new File(taskDirectory, tid), "stat"));
+                if (threadTicks >= 0) {
+                    ticks.put(tid, threadTicks);
+                }
+            }
+        }
+
+        double load = 0;
+        if (lastTime >= 0 && time > lastTime) {
+            long busiest = 0;
+            for (HashMap.Entry<String, Long> entry : ticks.entrySet()) {
+                // Threads started since the last sample count from the next one.
+                Long last = lastTicks.get(entry.getKey());
+                if (last != null) {
+                    busiest = Math.max(busiest, entry.getValue() - last);
+                }
+            }
+            load = Math.min(1.0, (double) busiest * 1000 / clockTicksPerSecond / (time - lastTime));
+        }
+        lastTicks = ticks;
+        lastTime = time;
+        return load;
+    }
+
+    /**
+     * utime plus stime, or -1 if the thread has gone or the file cannot be read.
+     */
+    static long readTicks(File stat) {
+        String line;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(stat));
+            try {
+                line = reader.readLine();
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException ex) {
+            return -1;
+        }
+        if (line == null) {
+            return -1;
+        }
+
+        // The thread name in parentheses may hold spaces, so count fields from the last ')'.
+        int nameEnd = line.lastIndexOf(')');
+        String[] fields = line.substring(nameEnd + 1).trim().split(" +");
+        // fields[0] is the state, field 3 of the line; utime and stime are fields 14 and 15.
+        if (fields.length < 13) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package fm.icelink.chat.websync4;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * UiEventDispatcher
+ *
+ * Collects signalling events (peers joining and leaving, chat text) from any
+ * thread in a lock-free queue and hands them to the UI thread in one batch
+ * per display frame, so a burst of events costs one layout pass instead of
+ * one per event.
+ */
+public class UiEventDispatcher {
+
+    public static class Event {
+        public static final int PeerJoined = 1;
+        public static final int PeerLeft = 2;
+        public static final int Text = 3;
+
+        private int type;
+        public int getType() {
+            return this.type;
+        }
+
+        private String name;
+        public String getName() {
+            return this.name;
+        }
+
+        private String text;
+        public String getText() {
+            return this.text;
+        }
+
+        public Event(int type, String name, String text) {
+            this.type = type;
+            this.name = name;
+            this.text = text;
+        }
+    }
+
+    private final UiEventQueue<Event> queue = new UiEventQueue<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final OnDispatchListener listener;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ArrayList<Event> events = queue.drain();
+            if (events.size() > 0) {
+                listener.onDispatch(events);
+            }
+        }
+    };
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    };
+
+    /**
+     * @param listener Receives each frame's events on the UI thread.
+     */
+    public UiEventDispatcher(OnDispatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues an event from any thread; it is dispatched on the next frame.
+     */
+    public void post(Event event) {
+        if (queue.add(event)) {
+            handler.post(scheduleFrame);
+        }
+    }
+
+    /**
+     * Drops queued events and any scheduled dispatch.
+     */
+    public void clear() {
+        handler.removeCallbacks(scheduleFrame);
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        queue.clear();
+    }
+
+    public interface OnDispatchListener {
+        /**
+         * @param events The events queued since the last frame, oldest first.
+         */
+        void onDispatch(ArrayList<Event> events);
+    }
+}
@@ -0,0 +1,51 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * UiEventQueue
+ *
+ * The Android-free half of UiEventDispatcher: a lock-free queue that any
+ * thread can add to, and a flag that makes sure only the first event since
+ * the last drain asks for a frame to be scheduled.
+ */
+public class UiEventQueue<E> {
+
+    private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Queues an event from any thread.
+     *
+     * @return Whether the caller has to schedule a drain.
+     */
+    public boolean add(E event) {
+        queue.add(event);
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Takes every queued event, oldest first. An event added while this runs
+     * is either taken now or schedules the next drain.
+     */
+    public ArrayList<E> drain() {
+        scheduled.set(false);
+
+        ArrayList<E> events = new ArrayList<>();
+        E event;
+        while ((event = queue.poll()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Drops queued events; the next event schedules a drain again.
+     */
+    public void clear() {
+        queue.clear();
+        scheduled.set(false);
+    }
+}
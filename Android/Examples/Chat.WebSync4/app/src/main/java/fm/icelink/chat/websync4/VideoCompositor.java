@@ -0,0 +1,124 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * VideoCompositor
+ *
+ * Tiles the video of several inputs into one I420 canvas. Inputs are laid
+ * out in a near-square grid in the order they were added, each scaled to
+ * fit its tile. A frame is scaled straight into the canvas when it arrives,
+ * so only the canvas is kept and an input that stalls simply shows its last
+ * frame until it is removed.
+ */
+public class VideoCompositor {
+
+    private final int width;
+    private final int height;
+    private final byte[] canvas;
+    private final ArrayList<String> ids = new ArrayList<>();
+
+    public VideoCompositor(int width, int height) {
+        this.width = width & ~1;
+        this.height = height & ~1;
+        this.canvas = new byte[this.width * this.height * 3 / 2];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Size in bytes of a composite frame.
+     */
+    public int getFrameLength() {
+        return canvas.length;
+    }
+
+    public synchronized void add(String id) {
+        if (!ids.contains(id)) {
+            ids.add(id);
+            clear();
+        }
+    }
+
+    public synchronized void remove(String id) {
+        if (ids.remove(id)) {
+            clear();
+        }
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * Draws an input's I420 frame into its tile. Frames for unknown inputs are ignored.
+     *
+     * @param planes The Y, U and V planes; they may all be the same array.
+     * @param offsets Where each plane starts.
+     * @param strides Bytes per row of each plane.
+     */
+    public synchronized void update(String id, byte[][] planes, int[] offsets, int[] strides, int frameWidth, int frameHeight) {
+        int slot = ids.indexOf(id);
+        if (slot < 0 || frameWidth < 2 || frameHeight < 2) {
+            return;
+        }
+
+        int columns = (int) Math.ceil(Math.sqrt(ids.size()));
+        int rows = (ids.size() + columns - 1) / columns;
+        int tileWidth = (width / columns) & ~1;
+        int tileHeight = (height / rows) & ~1;
+
+        // Fit the frame in the tile, keeping its aspect ratio.
+        int fitWidth = tileWidth;
+        int fitHeight = (int) ((long) tileWidth * frameHeight / frameWidth);
+        if (fitHeight > tileHeight) {
+            fitHeight = tileHeight;
+            fitWidth = (int) ((long) tileHeight * frameWidth / frameHeight);
+        }
+        fitWidth &= ~1;
+        fitHeight &= ~1;
+        if (fitWidth < 2 || fitHeight < 2) {
+            return;
+        }
+        int x = ((slot % columns) * tileWidth + (tileWidth - fitWidth) / 2) & ~1;
+        int y = ((slot / columns) * tileHeight + (tileHeight - fitHeight) / 2) & ~1;
+
+        int chromaOffset = width * height;
+        scale(planes[0], offsets[0], strides[0], frameWidth, frameHeight, 0, width, x, y, fitWidth, fitHeight);
+        scale(planes[1], offsets[1], strides[1], frameWidth / 2, frameHeight / 2, chromaOffset, width / 2, x / 2, y / 2, fitWidth / 2, fitHeight / 2);
+        scale(planes[2], offsets[2], strides[2], frameWidth / 2, frameHeight / 2, chromaOffset + chromaOffset / 4, width / 2, x / 2, y / 2, fitWidth / 2, fitHeight / 2);
+    }
+
+    /**
+     * Copies the current composite into output.
+     */
+    public synchronized void compose(byte[] output) {
+        System.arraycopy(canvas, 0, output, 0, canvas.length);
+    }
+
+    // Nearest-neighbour scale of one plane into the canvas.
+    private void scale(byte[] source, int sourceOffset, int sourceStride, int sourceWidth, int sourceHeight,
+                       int planeOffset, int planeStride, int x, int y, int targetWidth, int targetHeight) {
+        for (int row = 0; row < targetHeight; row++) {
+            int sourceRow = sourceOffset + (row * sourceHeight / targetHeight) * sourceStride;
+            int target = planeOffset + (y + row) * planeStride + x;
+            for (int column = 0; column < targetWidth; column++) {
+                canvas[target + column] = source[sourceRow + column * sourceWidth / targetWidth];
+            }
+        }
+    }
+
+    // Black: zero luma, neutral chroma.
+    private void clear() {
+        Arrays.fill(canvas, 0, width * height, (byte) 0);
+        Arrays.fill(canvas, width * height, canvas.length, (byte) 128);
+    }
+}
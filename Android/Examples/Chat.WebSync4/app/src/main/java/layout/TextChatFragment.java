@@ -2,31 +2,37 @@ package layout;
 
 import android.support.v4.app.Fragment;
 import android.content.Context;
-import android.graphics.Typeface;
 import android.os.Bundle;
-import android.text.SpannableString;
-import android.text.TextUtils;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.StyleSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.TextView;
+import android.widget.ListView;
+
+import java.util.ArrayList;
 
 import fm.icelink.chat.websync4.App;
+import fm.icelink.chat.websync4.ChatLog;
+import fm.icelink.chat.websync4.ChatLogAdapter;
 import fm.icelink.chat.websync4.R;
+import fm.icelink.chat.websync4.UiEventDispatcher;
 
-public class TextChatFragment extends Fragment implements App.OnReceivedTextListener {
+public class TextChatFragment extends Fragment implements App.OnReceivedTextListener, UiEventDispatcher.OnDispatchListener {
     private App app;
     private OnTextReadyListener listener;
-    private TextView textView;
+    private ListView logView;
+    private ChatLog log;
+    private ChatLogAdapter logAdapter;
+    private UiEventDispatcher dispatcher;
     private Button submitButton;
     private EditText editText;
 
     int peers = 0;
 
+    // Older entries are dropped once the log is full.
+    private static final int logCapacity = 500;
+
     public TextChatFragment() {
         // Required empty public constructor
     }
@@ -36,6 +42,7 @@ public class TextChatFragment extends Fragment implements App.OnReceivedTextList
         super.onCreate(savedInstanceState);
 
         app = App.getInstance(null);
+        dispatcher = new UiEventDispatcher(this);
     }
 
     @Override
@@ -49,9 +56,11 @@ public class TextChatFragment extends Fragment implements App.OnReceivedTextList
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        textView = (TextView)view.findViewById(R.id.log);
+        logView = (ListView)view.findViewById(R.id.log);
         editText = (EditText)view.findViewById(R.id.text);
-        textView.setMovementMethod(new ScrollingMovementMethod());
+        log = new ChatLog(logCapacity);
+        logAdapter = new ChatLogAdapter(log, view.getContext());
+        logView.setAdapter(logAdapter);
         submitButton = (Button)view.findViewById(R.id.send);
 
         submitButton.setOnClickListener(new View.OnClickListener() {
@@ -70,84 +79,61 @@ public class TextChatFragment extends Fragment implements App.OnReceivedTextList
         listener.onTextReady();
     }
 
+    @Override
+    public void onDestroyView() {
+        dispatcher.clear();
+        log = null;
+        logAdapter = null;
+        super.onDestroyView();
+    }
+
     @Override
     public void onDetach() {
         super.onDetach();
     }
 
-    public void onReceivedText(final String name, String message)
+    public void onReceivedText(String name, String message)
     {
-        final String concatMessage = name + ": " + message + "\n";
-        writeLine(new SpannableString(concatMessage)
-        {{
-            setSpan(new StyleSpan(Typeface.BOLD), 0, name.length(), 0);
-        }});
+        dispatcher.post(new UiEventDispatcher.Event(UiEventDispatcher.Event.Text, name, message));
     }
 
     public void onPeerJoined(String name)
     {
-        peers++;
-
-        final String message = name + " has joined.\n";
-        writeLine(new SpannableString(message)
-        {{
-            setSpan(new StyleSpan(Typeface.BOLD), 0, message.length(), 0);
-        }});
-
-        updateButton();
+        dispatcher.post(new UiEventDispatcher.Event(UiEventDispatcher.Event.PeerJoined, name, "has joined."));
     }
 
     public void onPeerLeft(String name)
     {
-        peers--;
-
-        final String message = name + " has left.\n";
-        writeLine(new SpannableString(message)
-        {{
-            setSpan(new StyleSpan(Typeface.BOLD), 0, message.length(), 0);
-        }});
-
-        updateButton();
+        dispatcher.post(new UiEventDispatcher.Event(UiEventDispatcher.Event.PeerLeft, name, "has left."));
     }
 
-    private void updateButton() {
-        if (peers > 0) {
-            if (!submitButton.isEnabled() && getActivity() != null) {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        submitButton.setEnabled(true);
-                    }
-                });
-            }
-        } else {
-            if (submitButton.isEnabled() && getActivity() != null) {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        submitButton.setEnabled(false);
-                    }
-                });
-            }
+    public void onDispatch(ArrayList<UiEventDispatcher.Event> events)
+    {
+        if (log == null) {
+            return;
         }
-    }
 
-    private void writeLine(final SpannableString str)
-    {
-        if (getActivity() != null) {
-            getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    textView.setText(TextUtils.concat(str, textView.getText()));
-                    listener.onNewMessage();
-                }
-            });
+        // Apply the whole batch, then update each view once.
+        for (UiEventDispatcher.Event event : events) {
+            switch (event.getType()) {
+                case UiEventDispatcher.Event.PeerJoined:
+                    peers++;
+                    break;
+                case UiEventDispatcher.Event.PeerLeft:
+                    peers--;
+                    break;
+            }
+            log.append(new ChatLog.Entry(event.getName(), event.getText(), event.getType() != UiEventDispatcher.Event.Text));
         }
+        logAdapter.notifyDataSetChanged();
+
+        submitButton.setEnabled(peers > 0);
+        listener.onNewMessages(events.size());
     }
 
     public interface OnTextReadyListener {
         void onTextReady();
-        void onNewMessage();
+        void onNewMessages(int count);
     }
 
     @Override
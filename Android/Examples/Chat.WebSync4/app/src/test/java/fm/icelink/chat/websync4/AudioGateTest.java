@@ -0,0 +1,89 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs AudioGate over 20ms frames of silence, room noise and speech-level
+ * tones, in both byte orders, and checks it opens on speech, holds for the
+ * hangover and closes again.
+ */
+public class AudioGateTest {
+
+    private static final int frameSamples = 48000 * 20 / 1000;
+
+    @Test
+    public void dropsSilence() {
+        AudioGate gate = new AudioGate();
+        for (int i = 0; i < 50; i++) {
+            assertFalse(gate.process(frame(0, true), 0, frameSamples * 2, true));
+        }
+    }
+
+    @Test
+    public void dropsRoomNoise() {
+        // About -60 dBFS, under the gate.
+        AudioGate gate = new AudioGate();
+        for (int i = 0; i < 50; i++) {
+            assertFalse(gate.process(frame(40, true), 0, frameSamples * 2, true));
+        }
+    }
+
+    @Test
+    public void passesSpeechAndHoldsForHangover() {
+        AudioGate gate = new AudioGate();
+        assertTrue(gate.process(frame(3000, true), 0, frameSamples * 2, true));
+        for (int i = 0; i < gate.getHangoverFrames(); i++) {
+            assertTrue("Closed " + i + " frames into the hangover.", gate.process(frame(0, true), 0, frameSamples * 2, true));
+        }
+        assertFalse(gate.process(frame(0, true), 0, frameSamples * 2, true));
+
+        // Speech again reopens it.
+        assertTrue(gate.process(frame(3000, true), 0, frameSamples * 2, true));
+    }
+
+    @Test
+    public void readsBothByteOrders() {
+        AudioGate little = new AudioGate();
+        little.setHangoverFrames(0);
+        AudioGate big = new AudioGate();
+        big.setHangoverFrames(0);
+        for (int amplitude : new int[] { 0, 40, 150, 3000, 30000 }) {
+            assertEquals(little.process(frame(amplitude, true), 0, frameSamples * 2, true),
+                    big.process(frame(amplitude, false), 0, frameSamples * 2, false));
+        }
+        assertTrue(big.process(frame(3000, false), 0, frameSamples * 2, false));
+    }
+
+    @Test
+    public void honoursOffset() {
+        byte[] loud = frame(3000, true);
+        byte[] data = new byte[loud.length + 10];
+        System.arraycopy(loud, 0, data, 10, loud.length);
+        AudioGate gate = new AudioGate();
+        assertTrue(gate.process(data, 10, loud.length, true));
+    }
+
+    @Test
+    public void zeroThresholdPassesEverything() {
+        AudioGate gate = new AudioGate();
+        gate.setThreshold(0);
+        assertTrue(gate.process(frame(0, true), 0, frameSamples * 2, true));
+    }
+
+    /**
+     * A 440Hz tone at the given peak amplitude.
+     */
+    private static byte[] frame(int amplitude, boolean littleEndian) {
+        byte[] data = new byte[frameSamples * 2];
+        for (int i = 0; i < frameSamples; i++) {
+            short value = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * i / 48000.0));
+            data[i * 2 + (littleEndian ? 0 : 1)] = (byte) value;
+            data[i * 2 + (littleEndian ? 1 : 0)] = (byte) (value >> 8);
+        }
+        return data;
+    }
+}
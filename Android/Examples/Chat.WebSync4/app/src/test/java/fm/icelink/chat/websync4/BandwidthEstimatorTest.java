@@ -0,0 +1,61 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives BandwidthEstimator with the samples StatsCollector would give a
+ * simulcast connection on the default layers.
+ */
+public class BandwidthEstimatorTest {
+
+    private static final double headroom = 0.85;
+
+    @Test
+    public void growsToTopLayerWithoutLoss() {
+        BandwidthEstimator estimator = new BandwidthEstimator(350 / headroom, 120, 1000 / headroom * 1.2);
+        int samples = 0;
+        // Sending the middle layer, with audio on top.
+        while (estimator.getEstimate() * headroom < 1000) {
+            estimator.update(390, 0);
+            samples++;
+        }
+        assertTrue("Took " + samples + " samples.", samples <= 20);
+    }
+
+    @Test
+    public void backsOffFromWhatWasSentOnHeavyLoss() {
+        BandwidthEstimator estimator = new BandwidthEstimator(1200, 120, 1400);
+        double estimate = estimator.update(1000, 20);
+        assertEquals(1000 * 0.9, estimate, 0.001);
+    }
+
+    @Test
+    public void holdsOnModerateLoss() {
+        BandwidthEstimator estimator = new BandwidthEstimator(500, 120, 1400);
+        assertEquals(500, estimator.update(480, 5), 0.001);
+    }
+
+    @Test
+    public void holdsWhenLossIsUnknown() {
+        BandwidthEstimator estimator = new BandwidthEstimator(500, 120, 1400);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(500, estimator.update(480, Double.NaN), 0.001);
+        }
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        BandwidthEstimator estimator = new BandwidthEstimator(500, 120, 1400);
+        for (int i = 0; i < 100; i++) {
+            estimator.update(100, 50);
+        }
+        assertEquals(120, estimator.getEstimate(), 0.001);
+        for (int i = 0; i < 100; i++) {
+            estimator.update(1400, 0);
+        }
+        assertEquals(1400, estimator.getEstimate(), 0.001);
+    }
+}
@@ -0,0 +1,154 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Candidate;
+import fm.icelink.Connection;
+import fm.icelink.IAction2;
+import fm.icelink.SessionDescription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Joins two ManualSignalling peers through the loopback server, once with a
+ * publish per candidate and once with the CandidateBatcher's defaults, and
+ * measures the time from the second join until both connections are
+ * Connected and the candidate publishes it took. Received candidates go
+ * through ManualSignalling.parseCandidates, which is also checked directly
+ * against a batch of candidates a real connection gathered.
+ */
+public class CandidateBatcherTest {
+
+    private static final String url = "http://loopback.websync/candidate-batcher-test.ashx";
+    private static final int latency = 20;
+    private static final int connectTimeout = 15000;
+
+    private LoopbackWebSyncServer server;
+    private final ArrayList<ManualPeer> joined = new ArrayList<>();
+
+    /**
+     * What one session took to connect its two peers.
+     */
+    private static class Run {
+        long elapsed;
+        int candidates;
+        long candidatePublishes;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = LoopbackWebSyncServer.start(url);
+        server.setLatency(latency);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.setLatency(0);
+        for (ManualPeer peer : joined) {
+            peer.leave();
+        }
+        server.stop();
+    }
+
+    @Test(timeout = 30000)
+    public void parsesBatchOfGatheredCandidates() throws Exception {
+        final LinkedBlockingQueue<String> gathered = new LinkedBlockingQueue<>();
+        Connection connection = ManualPeer.createConnection();
+        connection.addOnLocalCandidate(new IAction2<Connection, Candidate>() {
+            public void invoke(Connection c, Candidate candidate) {
+                gathered.add(candidate.toJson());
+            }
+        });
+        try {
+            SessionDescription offer = ManualPeer.await(connection.createOffer());
+            ManualPeer.await(connection.setLocalDescription(offer));
+
+            ArrayList<String> candidates = new ArrayList<>();
+            String first = gathered.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No candidates were gathered.", first);
+            candidates.add(first);
+            for (String next = gathered.poll(500, TimeUnit.MILLISECONDS); next != null; next = gathered.poll(500, TimeUnit.MILLISECONDS)) {
+                candidates.add(next);
+            }
+
+            final String[] batch = new String[1];
+            CandidateBatcher batcher = new CandidateBatcher(new IAction2<String, String>() {
+                public void invoke(String channel, String candidatesJson) {
+                    batch[0] = candidatesJson;
+                }
+            });
+            batcher.setBatchSize(candidates.size());
+            for (String candidate : candidates) {
+                batcher.add("/user/remote", candidate);
+            }
+
+            Candidate[] parsed = ManualSignalling.parseCandidates(batch[0]);
+            assertEquals(candidates.size(), parsed.length);
+            for (int i = 0; i < parsed.length; i++) {
+                assertEquals(candidates.get(i), parsed[i].toJson());
+            }
+
+            // Older clients publish one candidate at a time, not in an array.
+            assertEquals(first, ManualSignalling.parseCandidates(first)[0].toJson());
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void batchingPublishesFewerTimesWithoutDelayingConnected() throws Exception {
+        Run unbatched = join("unbatched", false);
+        Run batched = join("batched", true);
+
+        // Every candidate is a publish of its own without batching.
+        assertEquals(unbatched.candidates, unbatched.candidatePublishes);
+        // Host candidates are gathered at once, so each side's go in far fewer publishes,
+        // unless each side only has the one.
+        assertTrue(batched.candidatePublishes <= batched.candidates);
+        assertTrue(batched.candidatePublishes < batched.candidates || batched.candidates == 2);
+        // Batching costs at most a window per side, on top of the run to run spread.
+        int window = new CandidateBatcher(null).getBatchWindow();
+        assertTrue("Connected after " + batched.elapsed + "ms batched, " + unbatched.elapsed + "ms unbatched.",
+                batched.elapsed < unbatched.elapsed + 2 * window + 1000);
+    }
+
+    /**
+     * Joins Alice, then Bob, in a session of their own, and waits until
+     * both have a Connected connection.
+     */
+    private Run join(String sessionId, boolean batch) throws Exception {
+        ManualPeer alice = new ManualPeer(url, sessionId, "Alice");
+        ManualPeer bob = new ManualPeer(url, sessionId, "Bob");
+        if (!batch) {
+            alice.getSignalling().getCandidateBatcher().setBatchWindow(0);
+            bob.getSignalling().getCandidateBatcher().setBatchWindow(0);
+        }
+
+        ManualPeer.await(alice.getSignalling().joinAsync());
+        joined.add(alice);
+        long publishes = server.getPublishCount();
+        long start = System.nanoTime();
+        ManualPeer.await(bob.getSignalling().joinAsync());
+        joined.add(bob);
+
+        assertTrue("Alice did not connect.", alice.awaitConnected(connectTimeout));
+        assertTrue("Bob did not connect.", bob.awaitConnected(connectTimeout));
+        Run run = new Run();
+        run.elapsed = (Math.max(alice.getConnectedAt(), bob.getConnectedAt()) - start) / 1000000;
+
+        // Let the last batches go out, then count everything but the offer and the answer.
+        Thread.sleep(alice.getSignalling().getCandidateBatcher().getBatchWindow() + 10 * latency);
+        run.candidates = alice.getCandidateCount() + bob.getCandidateCount();
+        run.candidatePublishes = server.getPublishCount() - publishes - 2;
+        return run;
+    }
+}
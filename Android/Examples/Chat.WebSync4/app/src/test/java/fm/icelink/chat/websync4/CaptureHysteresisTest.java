@@ -0,0 +1,84 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds CaptureHysteresis a sample every two seconds, as
+ * AdaptiveCaptureController does, with its default thresholds and a ten
+ * second hold after each change.
+ */
+public class CaptureHysteresisTest {
+
+    private static final int interval = 2000;
+
+    private CaptureHysteresis hysteresis;
+    private long time;
+
+    @Before
+    public void setUp() {
+        hysteresis = new CaptureHysteresis();
+        hysteresis.hold(0);
+        time = 0;
+    }
+
+    @Test
+    public void stepsDownForPeersAndBackUpOnlyOnceFewEnough() {
+        assertEquals(0, sample(1, 0.2, 3));
+        // Held since start.
+        assertEquals(1, sample(4, 0.2, 3));
+
+        // Two peers are still too many to step up after a step down for peers.
+        assertEquals(1, sample(20, 0.2, 2));
+        assertEquals(0, sample(5, 0.2, 1));
+    }
+
+    @Test
+    public void cpuStepDownStepsBackUpWithSamePeersOnceLoadLeavesRoom() {
+        assertEquals(1, sample(5, 0.9, 2));
+
+        // The step down saved 0.6, so 0.3 would go straight back over 0.75.
+        assertEquals(1, sample(20, 0.3, 2));
+        assertEquals(0, sample(1, 0.1, 2));
+    }
+
+    @Test
+    public void needsConsecutiveHighSamples() {
+        for (int i = 0; i < 10; i++) {
+            sample(1, 0.9, 2);
+            assertEquals(0, sample(1, 0.5, 2));
+        }
+    }
+
+    @Test
+    public void holdsAfterEachChange() {
+        assertEquals(1, sample(5, 0.2, 5));
+        // Enough peers for the next step, but not for another hold time.
+        assertEquals(1, sample(4, 0.2, 5));
+        assertEquals(2, sample(1, 0.2, 5));
+    }
+
+    @Test
+    public void revertedLevelStepsAgain() {
+        assertEquals(1, sample(5, 0.2, 3));
+        hysteresis.setLevel(0);
+        assertEquals(0, hysteresis.getLevel());
+        assertEquals(1, sample(5, 0.2, 3));
+    }
+
+    /**
+     * Feeds the same sample count times.
+     *
+     * @return The level after the last.
+     */
+    private int sample(int count, double cpuLoad, int peers) {
+        int level = hysteresis.getLevel();
+        for (int i = 0; i < count; i++) {
+            time += interval;
+            level = hysteresis.sample(time, cpuLoad, peers);
+        }
+        return level;
+    }
+}
@@ -0,0 +1,92 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Appends more messages than a small ChatLog holds and checks the ring wraps:
+ * the oldest entries are evicted in order, the newest are kept, indexes run
+ * oldest to newest and getAppendedCount still counts the evicted ones.
+ */
+public class ChatLogTest {
+
+    @Test
+    public void keepsEntriesUntilFull() {
+        ChatLog log = new ChatLog(3);
+        assertEquals(3, log.getCapacity());
+        assertEquals(0, log.size());
+
+        log.append(message(0));
+        log.append(message(1));
+        assertEquals(2, log.size());
+        assertEquals(2, log.getAppendedCount());
+        assertEquals("Message 0", log.get(0).getText());
+        assertEquals("Message 1", log.get(1).getText());
+    }
+
+    @Test
+    public void wrapsAndEvictsOldest() {
+        ChatLog log = new ChatLog(3);
+        for (int i = 0; i < 8; i++) {
+            log.append(message(i));
+        }
+
+        assertEquals(3, log.size());
+        assertEquals(8, log.getAppendedCount());
+        assertEquals("Message 5", log.get(0).getText());
+        assertEquals("Message 6", log.get(1).getText());
+        assertEquals("Message 7", log.get(2).getText());
+
+        // One more evicts exactly the oldest.
+        log.append(new ChatLog.Entry(null, "Bob joined.", true));
+        assertEquals(3, log.size());
+        assertEquals(9, log.getAppendedCount());
+        assertEquals("Message 6", log.get(0).getText());
+        assertTrue(log.get(2).getIsNotice());
+    }
+
+    @Test
+    public void clearKeepsAppendedCount() {
+        ChatLog log = new ChatLog(2);
+        for (int i = 0; i < 5; i++) {
+            log.append(message(i));
+        }
+        log.clear();
+        assertEquals(0, log.size());
+        assertEquals(5, log.getAppendedCount());
+
+        log.append(message(5));
+        assertEquals(1, log.size());
+        assertEquals("Message 5", log.get(0).getText());
+    }
+
+    @Test
+    public void rejectsIndexOutsideLog() {
+        ChatLog log = new ChatLog(2);
+        log.append(message(0));
+        try {
+            log.get(1);
+            fail();
+        }
+        catch (IndexOutOfBoundsException ex) {
+        }
+        try {
+            log.get(-1);
+            fail();
+        }
+        catch (IndexOutOfBoundsException ex) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new ChatLog(0);
+    }
+
+    private static ChatLog.Entry message(int i) {
+        return new ChatLog.Entry("Alice", "Message " + i, false);
+    }
+}
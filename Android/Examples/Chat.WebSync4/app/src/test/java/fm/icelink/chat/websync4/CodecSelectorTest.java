@@ -0,0 +1,74 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CodecSelector against a fake codec list, as MediaCodecList reports one
+ * on a device with a hardware H.264 pair, a hardware VP8 decoder only and
+ * the usual Google software codecs.
+ */
+public class CodecSelectorTest {
+
+    private static final String h264 = "video/avc";
+    private static final String vp8 = "video/x-vnd.on2.vp8";
+
+    private static CodecSelector createSelector(String... failed) {
+        return new CodecSelector(Arrays.asList(
+                new CodecSelector.Codec("OMX.google.h264.encoder", h264, true, false),
+                new CodecSelector.Codec("OMX.qcom.video.encoder.avc", h264, true, true),
+                new CodecSelector.Codec("OMX.vendor.video.encoder.avc", h264, true, true),
+                new CodecSelector.Codec("OMX.qcom.video.decoder.avc", h264, false, true),
+                new CodecSelector.Codec("OMX.qcom.video.decoder.vp8", vp8, false, true),
+                new CodecSelector.Codec("OMX.google.vp8.encoder", vp8, true, false)
+        ), new ArrayList<>(Arrays.asList(failed)));
+    }
+
+    @Test
+    public void prefersFirstHardwareCodec() {
+        CodecSelector selector = createSelector();
+        assertEquals("OMX.qcom.video.encoder.avc", selector.select(h264, true).getName());
+        assertEquals("OMX.qcom.video.decoder.avc", selector.select(h264, false).getName());
+        assertEquals("OMX.qcom.video.decoder.vp8", selector.select(vp8, false).getName());
+    }
+
+    @Test
+    public void usesSoftwareWithoutHardwareCodec() {
+        CodecSelector selector = createSelector();
+        assertNull(selector.select(vp8, true));
+        assertNull(new CodecSelector(Collections.<CodecSelector.Codec>emptyList(), Collections.<String>emptyList()).select(h264, false));
+    }
+
+    @Test
+    public void matchesMimeTypeIgnoringCase() {
+        assertEquals("OMX.qcom.video.decoder.vp8", createSelector().select("VIDEO/X-VND.ON2.VP8", false).getName());
+    }
+
+    @Test
+    public void skipsFailedCodecs() {
+        CodecSelector selector = createSelector();
+        assertTrue(selector.markFailed("OMX.qcom.video.encoder.avc"));
+        assertFalse(selector.markFailed("OMX.qcom.video.encoder.avc"));
+        assertEquals("OMX.vendor.video.encoder.avc", selector.select(h264, true).getName());
+
+        selector.markFailed("OMX.vendor.video.encoder.avc");
+        assertNull(selector.select(h264, true));
+        // Failures are per codec, so the decoder is still used.
+        assertEquals("OMX.qcom.video.decoder.avc", selector.select(h264, false).getName());
+    }
+
+    @Test
+    public void remembersEarlierFailures() {
+        CodecSelector selector = createSelector("OMX.qcom.video.decoder.vp8");
+        assertTrue(selector.hasFailed("OMX.qcom.video.decoder.vp8"));
+        assertNull(selector.select(vp8, false));
+    }
+}
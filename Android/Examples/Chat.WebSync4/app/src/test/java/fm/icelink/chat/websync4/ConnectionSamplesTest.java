@@ -0,0 +1,42 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds ConnectionSamples the counters StatsCollector reads each second and
+ * checks that the loss on what is sent comes from the remote's reports, not
+ * from loss on what is received.
+ */
+public class ConnectionSamplesTest {
+
+    private static final long second = 1000000000L;
+
+    @Test
+    public void sendLossComesFromRemoteReports() {
+        ConnectionSamples samples = new ConnectionSamples(10);
+        assertTrue(Double.isNaN(samples.getSendLoss()));
+
+        samples.add(0, 40, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        // 5 of the 100 packets sent were lost; everything received arrived.
+        assertTrue(samples.add(second, 40, 5, 125000, 125000, 0, 100, 100, 5, 30, 0, 0));
+        assertEquals(5, samples.getSendLoss(), 0.001);
+        assertEquals(0, samples.getPacketLoss(), 0.001);
+        assertEquals(1000, samples.getSendBitrate(), 0.001);
+
+        // Heavy loss on what is received says nothing about what is sent.
+        assertTrue(samples.add(2 * second, 40, 5, 250000, 250000, 100, 200, 200, 5, 60, 0, 0));
+        assertEquals(0, samples.getSendLoss(), 0.001);
+        assertEquals(50, samples.getPacketLoss(), 0.001);
+    }
+
+    @Test
+    public void sendLossIsUnknownWhenNothingWasSent() {
+        ConnectionSamples samples = new ConnectionSamples(10);
+        samples.add(0, 40, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        samples.add(second, 40, 5, 0, 125000, 0, 100, 0, 0, 30, 0, 0);
+        assertTrue(Double.isNaN(samples.getSendLoss()));
+    }
+}
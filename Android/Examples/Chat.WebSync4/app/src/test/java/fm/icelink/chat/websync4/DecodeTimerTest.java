@@ -0,0 +1,90 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fm.icelink.IAction0;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives DecodeTimer as the decoders do: a software decoder timing its own
+ * call, and a hardware decoder whose outputs come back later, out of step
+ * with its inputs, and matched by timestamp.
+ */
+public class DecodeTimerTest {
+
+    private static final long millis = 1000000;
+
+    @Test
+    public void matchesOutputsToInputsByTimestamp() {
+        DecodeTimer timer = new DecodeTimer();
+        // Three frames queued 33ms apart, each out 20ms after it went in.
+        timer.start(3000, 0);
+        timer.start(6000, 33 * millis);
+        timer.start(9000, 66 * millis);
+        timer.finish(3000, 20 * millis);
+        timer.finish(6000, 53 * millis);
+        timer.finish(9000, 86 * millis);
+
+        assertEquals(3, timer.getFrameCount());
+        assertEquals(60 * millis, timer.getTotalNanos());
+    }
+
+    @Test
+    public void ignoresOutputsWithoutInput() {
+        DecodeTimer timer = new DecodeTimer();
+        timer.start(3000, 0);
+        timer.finish(4000, 10 * millis);
+        timer.finish(3000, 15 * millis);
+        // Each input is matched once.
+        timer.finish(3000, 30 * millis);
+
+        assertEquals(1, timer.getFrameCount());
+        assertEquals(15 * millis, timer.getTotalNanos());
+    }
+
+    @Test
+    public void droppedFramesAgeOut() {
+        DecodeTimer timer = new DecodeTimer();
+        // A decoder that drops the first frame and then keeps up.
+        timer.start(0, 0);
+        for (int i = 1; i <= 100; i++) {
+            timer.start(i * 3000, i * 33 * millis);
+            timer.finish(i * 3000, i * 33 * millis + 5 * millis);
+        }
+        timer.finish(0, 4000 * millis);
+
+        assertEquals(100, timer.getFrameCount());
+        assertEquals(500 * millis, timer.getTotalNanos());
+    }
+
+    @Test
+    public void clearPendingForgetsInputs() {
+        DecodeTimer timer = new DecodeTimer();
+        timer.start(3000, 0);
+        timer.clearPending();
+        timer.finish(3000, 20 * millis);
+        assertEquals(0, timer.getFrameCount());
+    }
+
+    @Test
+    public void firstFrameIsTheFirstOutput() {
+        DecodeTimer timer = new DecodeTimer();
+        final AtomicInteger firstFrames = new AtomicInteger();
+        timer.setOnFirstFrame(new IAction0() {
+            public void invoke() {
+                firstFrames.incrementAndGet();
+            }
+        });
+
+        timer.start(3000, 0);
+        timer.start(6000, 33 * millis);
+        assertEquals(0, firstFrames.get());
+        timer.finish(3000, 40 * millis);
+        timer.finish(6000, 60 * millis);
+        timer.add(5 * millis);
+        assertEquals(1, firstFrames.get());
+    }
+}
@@ -0,0 +1,96 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs DelayEstimator on synthetic captures: AecTuning's chirp delayed,
+ * attenuated, inverted and buried in noise as a phone's speaker and
+ * microphone would return it, and captures with no echo at all.
+ */
+public class DelayEstimatorTest {
+
+    private static final int clockRate = 16000;
+    private static final int leadIn = 100;
+    private static final int maxDelay = 500;
+
+    private final short[] chirp = DelayEstimator.createChirp(clockRate, 250, 300, 3400, 0.3);
+
+    @Test
+    public void findsCleanEcho() {
+        assertDelay(120, 0.5, 0, false);
+    }
+
+    @Test
+    public void findsEchoAtEveryDelay() {
+        for (int delay = 0; delay <= maxDelay - 50; delay += 45) {
+            assertDelay(delay, 0.3, 0.02, false);
+        }
+    }
+
+    @Test
+    public void findsInvertedEcho() {
+        assertDelay(200, 0.4, 0.02, true);
+    }
+
+    @Test
+    public void findsQuietEchoInNoise() {
+        // Echo at a tenth of the chirp, noise at a fifth of that.
+        assertDelay(260, 0.1, 0.02, false);
+    }
+
+    @Test
+    public void rejectsNoiseOnly() {
+        DelayEstimator estimator = new DelayEstimator();
+        short[] captured = capture(-1, 0, 0.05, false, 3);
+        assertEquals(-1, estimator.estimate(chirp, captured, captured.length - chirp.length));
+        assertTrue(estimator.getCorrelation() < DelayEstimator.minCorrelation);
+    }
+
+    @Test
+    public void rejectsSilence() {
+        DelayEstimator estimator = new DelayEstimator();
+        short[] captured = new short[clockRate * (leadIn + maxDelay) / 1000 + chirp.length];
+        assertEquals(-1, estimator.estimate(chirp, captured, captured.length - chirp.length));
+    }
+
+    @Test
+    public void rejectsShortCapture() {
+        DelayEstimator estimator = new DelayEstimator();
+        assertEquals(-1, estimator.estimate(chirp, new short[chirp.length - 1], 100));
+    }
+
+    private void assertDelay(int delay, double gain, double noise, boolean inverted) {
+        DelayEstimator estimator = new DelayEstimator();
+        short[] captured = capture(delay, gain, noise, inverted, delay);
+        int lag = estimator.estimate(chirp, captured, captured.length - chirp.length);
+
+        assertTrue("No match at " + delay + "ms (correlation " + estimator.getCorrelation() + ").", lag >= 0);
+        // Within a millisecond.
+        assertEquals(delay * clockRate / 1000.0, lag, clockRate / 1000.0);
+        assertTrue(estimator.getCorrelation() >= DelayEstimator.minCorrelation);
+    }
+
+    /**
+     * The capture from when the chirp is handed over, as AecTuning slices it.
+     *
+     * @param delay Milliseconds until the echo, or -1 for none.
+     */
+    private short[] capture(int delay, double gain, double noise, boolean inverted, long seed) {
+        short[] captured = new short[clockRate * maxDelay / 1000 + chirp.length];
+        Random random = new Random(seed);
+        int offset = delay * clockRate / 1000;
+        for (int i = 0; i < captured.length; i++) {
+            double value = random.nextGaussian() * noise * Short.MAX_VALUE;
+            if (delay >= 0 && i >= offset && i - offset < chirp.length) {
+                value += chirp[i - offset] * gain * (inverted ? -1 : 1);
+            }
+            captured[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        }
+        return captured;
+    }
+}
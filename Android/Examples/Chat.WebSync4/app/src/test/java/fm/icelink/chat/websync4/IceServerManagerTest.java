@@ -0,0 +1,275 @@
+package fm.icelink.chat.websync4;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.IceServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probes pools of LocalStunServers, some held back with a delay to play far
+ * servers, one stopped to play a dead one and one dropping UDP to play a
+ * network that blocks it. The nearest answering servers are selected per
+ * type and transport, the rest are ranked after them, and connections get
+ * the whole pool until a probe on the current network has answered. Results
+ * written to a cache file are used by a later manager on the same network
+ * within the TTL, and not on another network or once stale.
+ */
+public class IceServerManagerTest {
+
+    private final ArrayList<LocalStunServer> servers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (LocalStunServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void ranksNearestServersFirst() throws Exception {
+        LocalStunServer far = start(160);
+        LocalStunServer near = start(0);
+        LocalStunServer dead = start(0);
+        dead.stop();
+        LocalStunServer middle = start(80);
+
+        IceServer[] pool = new IceServer[] {
+                new IceServer(far.getStunUrl()),
+                new IceServer(near.getStunUrl()),
+                new IceServer(dead.getStunUrl()),
+                new IceServer(middle.getStunUrl())
+        };
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setTimeout(600);
+        manager.setMaxStunServers(2);
+
+        IceServer[] selected = await(manager.refresh());
+        assertEquals(2, selected.length);
+        assertSame(pool[1], selected[0]);
+        assertSame(pool[3], selected[1]);
+
+        IceServerManager.Probe[] probes = manager.getProbes();
+        assertEquals(4, probes.length);
+        assertEquals(near.getStunUrl(), probes[0].getUrl());
+        assertEquals(middle.getStunUrl(), probes[1].getUrl());
+        assertEquals(far.getStunUrl(), probes[2].getUrl());
+        assertEquals(dead.getStunUrl(), probes[3].getUrl());
+        assertTrue(probes[0].getRoundTripTime() >= 0);
+        assertTrue(probes[1].getRoundTripTime() >= 80);
+        assertTrue(probes[2].getRoundTripTime() >= 160);
+        assertEquals(-1, probes[3].getRoundTripTime(), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void probesTurnPerTransport() throws Exception {
+        LocalStunServer stun = start(0);
+        LocalStunServer udpBlocked = start(0);
+        udpBlocked.setDropUdp(true);
+        LocalStunServer turn = start(40);
+
+        IceServer[] pool = new IceServer[] {
+                new IceServer(stun.getStunUrl()),
+                new IceServer(udpBlocked.getTurnUrl(), "user", "secret"),
+                new IceServer(turn.getTurnUrl() + "?transport=udp", "user", "secret")
+        };
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setTimeout(600);
+
+        // The UDP-blocked server is only reachable over TCP, and the other one is only given for UDP.
+        IceServer[] selected = await(manager.refresh());
+        assertEquals(3, selected.length);
+        assertSame(pool[0], find(selected, stun.getStunUrl()));
+        IceServer tcp = find(selected, udpBlocked.getTurnUrl() + "?transport=tcp");
+        assertEquals("user", tcp.getUsername());
+        assertEquals("secret", tcp.getPassword());
+        find(selected, turn.getTurnUrl() + "?transport=udp");
+
+        // Ranked by round-trip time, with the unanswered probe last.
+        IceServerManager.Probe[] probes = manager.getProbes();
+        assertEquals(4, probes.length);
+        assertEquals(turn.getTurnUrl() + "?transport=udp", probes[2].getUrl());
+        assertTrue(probes[2].getRoundTripTime() >= 40);
+        assertEquals(udpBlocked.getTurnUrl() + "?transport=udp", probes[3].getUrl());
+        assertTrue(probes[3].getIsTurn());
+        assertEquals(IceServerManager.Udp, probes[3].getTransport());
+        assertEquals(-1, probes[3].getRoundTripTime(), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void usesPoolUntilProbedOnNetwork() throws Exception {
+        LocalStunServer near = start(0);
+        LocalStunServer far = start(60);
+        IceServer[] pool = new IceServer[] {
+                new IceServer(far.getStunUrl()),
+                new IceServer(near.getStunUrl())
+        };
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setTimeout(600);
+
+        // Setting the network starts a probe; connections made meanwhile get the whole pool.
+        manager.setNetwork("WIFI/home");
+        assertSame(pool, manager.getIceServers());
+        await(manager.refresh());
+        assertArrayEquals(new IceServer[] { pool[1] }, manager.getIceServers());
+
+        // Results from another network are not used.
+        manager.setNetwork("MOBILE/internet");
+        assertSame(pool, manager.getIceServers());
+        await(manager.refresh());
+        assertArrayEquals(new IceServer[] { pool[1] }, manager.getIceServers());
+    }
+
+    @Test(timeout = 10000)
+    public void keepsPoolWhenNothingAnswers() throws Exception {
+        LocalStunServer dead = start(0);
+        dead.stop();
+        IceServer[] pool = new IceServer[] { new IceServer(dead.getStunUrl()) };
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setTimeout(300);
+
+        assertSame(pool, await(manager.refresh()));
+        assertSame(pool, manager.getIceServers());
+    }
+
+    @Test(timeout = 10000)
+    public void cachesResultsPerNetworkUntilTtl() throws Exception {
+        LocalStunServer near = start(0);
+        LocalStunServer far = start(60);
+        IceServer[] pool = new IceServer[] {
+                new IceServer(far.getStunUrl()),
+                new IceServer(near.getStunUrl(), "user", "secret")
+        };
+        File cache = File.createTempFile("ice-servers", ".json");
+        assertTrue(cache.delete());
+        try {
+            // Nothing cached yet, so asking for servers probes once the cache has been read.
+            IceServerManager first = create(pool, cache, "WIFI/home");
+            assertSame(pool, first.getIceServers());
+            await(first.getCacheLoaded());
+            await(first.refresh());
+            JsonObject saved = readCache(cache);
+            assertEquals("WIFI/home", saved.get("network").getAsString());
+            assertEquals(1, saved.getAsJsonArray("servers").size());
+            // Credentials are not written to disk.
+            assertEquals(near.getStunUrl(), saved.getAsJsonArray("servers").get(0).getAsString());
+            assertFalse(saved.toString().contains("secret"));
+
+            // A later launch on the same network uses the cache without probing.
+            IceServerManager second = create(pool, cache, "WIFI/home");
+            await(second.getCacheLoaded());
+            IceServer[] selected = second.getIceServers();
+            assertEquals(1, selected.length);
+            assertSame(pool[1], selected[0]);
+            assertNull(second.getProbes());
+
+            // On another network the cached results are not used.
+            IceServerManager other = create(pool, cache, "MOBILE/internet");
+            await(other.getCacheLoaded());
+            assertSame(pool, other.getIceServers());
+            await(other.refresh());
+            assertNotNull(other.getProbes());
+
+            // Nor once they are older than the TTL.
+            saved.addProperty("time", System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+            writeCache(cache, saved);
+            IceServerManager stale = create(pool, cache, "WIFI/home");
+            await(stale.getCacheLoaded());
+            assertSame(pool, stale.getIceServers());
+            await(stale.refresh());
+            assertNotNull(stale.getProbes());
+            assertArrayEquals(new IceServer[] { pool[1] }, stale.getIceServers());
+        }
+        finally {
+            cache.delete();
+        }
+    }
+
+    private static IceServerManager create(IceServer[] pool, File cache, String network) {
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setTimeout(600);
+        manager.setCacheFile(cache);
+        manager.setNetwork(network);
+        return manager;
+    }
+
+    private static JsonObject readCache(File cache) throws Exception {
+        Reader reader = new InputStreamReader(new FileInputStream(cache), "UTF-8");
+        try {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static void writeCache(File cache, JsonObject json) throws Exception {
+        OutputStream output = new FileOutputStream(cache);
+        try {
+            output.write(json.toString().getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private LocalStunServer start(int delay) throws Exception {
+        LocalStunServer server = LocalStunServer.start();
+        server.setDelay(delay);
+        servers.add(server);
+        return server;
+    }
+
+    private static IceServer find(IceServer[] servers, String url) {
+        for (IceServer server : servers) {
+            if (server.getUrl().equals(url)) {
+                return server;
+            }
+        }
+        throw new AssertionError("Not selected: " + url);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final ArrayList<T> result = new ArrayList<>();
+        final Exception[] error = new Exception[1];
+        future.then(new IAction1<T>() {
+            public void invoke(T value) {
+                result.add(value);
+                done.countDown();
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result.get(0);
+    }
+}
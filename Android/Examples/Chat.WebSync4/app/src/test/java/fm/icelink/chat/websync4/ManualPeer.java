@@ -0,0 +1,136 @@
+package fm.icelink.chat.websync4;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fm.icelink.Candidate;
+import fm.icelink.Connection;
+import fm.icelink.ConnectionState;
+import fm.icelink.DataChannel;
+import fm.icelink.DataStream;
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.IAction2;
+import fm.icelink.IFunction1;
+import fm.icelink.Stream;
+import fm.icelink.websync4.PeerClient;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ManualPeer
+ *
+ * One participant in a ManualSignalling session on the loopback server, for
+ * tests. Its connections carry a single data stream, so IceLink negotiates
+ * and connects them over host candidates without any media.
+ */
+class ManualPeer {
+
+    private final ManualSignalling signalling;
+    private final ArrayList<Connection> connections = new ArrayList<>();
+    private final Semaphore connected = new Semaphore(0);
+    private final AtomicInteger candidateCount = new AtomicInteger();
+    private volatile long connectedAt;
+
+    ManualPeer(String url, String sessionId, String userName) {
+        signalling = new ManualSignalling(url, sessionId, userName, new IFunction1<PeerClient, Connection>() {
+            public Connection invoke(PeerClient remoteClient) {
+                return connection(remoteClient);
+            }
+        }, new IAction2<String, String>() {
+            public void invoke(String name, String message) { }
+        });
+    }
+
+    ManualSignalling getSignalling() {
+        return signalling;
+    }
+
+    /**
+     * The number of local candidates gathered across this peer's connections.
+     */
+    int getCandidateCount() {
+        return candidateCount.get();
+    }
+
+    /**
+     * System.nanoTime when a connection last reached Connected.
+     */
+    long getConnectedAt() {
+        return connectedAt;
+    }
+
+    /**
+     * Waits for the next connection to reach Connected.
+     */
+    boolean awaitConnected(long timeout) throws InterruptedException {
+        return connected.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes every connection this peer made, then leaves the session.
+     */
+    void leave() throws Exception {
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        await(signalling.leaveAsync());
+    }
+
+    /**
+     * A connection with one data stream, as the Signalling connection factory returns.
+     */
+    static Connection createConnection() {
+        return new Connection(new Stream[] { new DataStream(new DataChannel("test")) });
+    }
+
+    protected Connection connection(PeerClient remoteClient) {
+        Connection connection = createConnection();
+        connection.addOnLocalCandidate(new IAction2<Connection, Candidate>() {
+            public void invoke(Connection c, Candidate candidate) {
+                candidateCount.incrementAndGet();
+            }
+        });
+        connection.addOnStateChange(new IAction1<Connection>() {
+            public void invoke(Connection c) {
+                if (c.getState() == ConnectionState.Connected) {
+                    connectedAt = System.nanoTime();
+                    connected.release();
+                }
+            }
+        });
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        return connection;
+    }
+
+    static <T> T await(Future<T> future) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final Exception[] error = new Exception[1];
+        future.then(new IAction1<T>() {
+            public void invoke(T value) {
+                result[0] = value;
+                done.countDown();
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (error[0] != null) {
+            throw error[0];
+        }
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+}
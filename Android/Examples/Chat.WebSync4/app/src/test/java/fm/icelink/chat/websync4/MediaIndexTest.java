@@ -0,0 +1,147 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adds, removes and looks up media from several threads at once, as
+ * connection state changes and the UI thread do, and checks the indexes
+ * never disagree.
+ */
+public class MediaIndexTest {
+
+    private static final int threadCount = 4;
+    private static final int iterations = 20000;
+
+    @Test
+    public void reconnectKeepsNewestForPeer() {
+        MediaIndex<Object> index = new MediaIndex<>();
+        Object first = new Object();
+        Object second = new Object();
+        index.add("peer", "first", "view-1", first);
+        index.add("peer", "second", "view-2", second);
+        assertSame(second, index.getByPeer("peer"));
+
+        assertTrue(index.remove(first));
+        assertSame(second, index.getByPeer("peer"));
+        assertSame(second, index.getByView("view-2"));
+        assertNull(index.getByView("view-1"));
+        assertEquals(1, index.size());
+    }
+
+    @Test(timeout = 60000)
+    public void addRacingRemoveLeavesNoPartialEntry() throws Exception {
+        final MediaIndex<Object> index = new MediaIndex<>();
+        final CyclicBarrier start = new CyclicBarrier(2);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        for (int i = 0; i < iterations; i++) {
+            final Object media = new Object();
+            final String id = "media-" + i;
+            final boolean[] removed = new boolean[1];
+            Thread adder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start, error);
+                    index.add("peer", id, id + "-view", media);
+                }
+            });
+            Thread remover = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start, error);
+                    removed[0] = index.remove(media);
+                }
+            });
+            adder.start();
+            remover.start();
+            adder.join();
+            remover.join();
+
+            // Either the remove came first and missed, or it took the media out of every index.
+            boolean present = index.contains(media);
+            assertEquals(!removed[0], present);
+            assertEquals(present, index.getById(id) == media);
+            assertEquals(present, index.getByView(id + "-view") == media);
+            assertEquals(present, index.getByPeer("peer") == media);
+            index.remove(media);
+        }
+        assertNull(error.get());
+        assertEquals(0, index.size());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentRemoveHasOneWinner() throws Exception {
+        final MediaIndex<Object> index = new MediaIndex<>();
+        final AtomicInteger winners = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final ArrayList<Object> medias = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            Object media = new Object();
+            medias.add(media);
+            index.add("peer-" + (i % 8), "media-" + i, "view-" + i, media);
+        }
+
+        final CyclicBarrier start = new CyclicBarrier(threadCount + 1);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start, error);
+                    for (Object media : medias) {
+                        if (index.remove(media)) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // A UI thread looking up views while the media goes away.
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start, error);
+                for (int i = 0; i < iterations; i++) {
+                    Object media = index.getByView("view-" + i);
+                    if (media != null && index.getById("media-" + i) != media && index.contains(media)) {
+                        error.compareAndSet(null, new AssertionError("Indexes disagree on media-" + i + "."));
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reader.join();
+
+        assertNull(error.get());
+        assertEquals(iterations, winners.get());
+        assertEquals(0, index.size());
+        assertTrue(index.getViews().isEmpty());
+        for (int i = 0; i < 8; i++) {
+            assertNull(index.getByPeer("peer-" + i));
+        }
+    }
+
+    private static void await(CyclicBarrier barrier, AtomicReference<Throwable> error) {
+        try {
+            barrier.await();
+        }
+        catch (Exception ex) {
+            error.compareAndSet(null, ex);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the OpenH264 download against a local HTTP server that drops the
+ * connection part way through, and checks that the next attempt resumes
+ * with a Range request and ends with the whole archive, or fails without
+ * leaving a bad archive behind. Then installs small bzip2 archives and
+ * checks only one with the expected SHA-256 that unpacks to an ELF file
+ * is moved into place.
+ */
+public class OpenH264LoaderTest {
+
+    private static final int archiveLength = 256 * 1024;
+
+    // bzip2 of an ELF header followed by bytes 0 to 255 sixteen times.
+    private static final String elfArchive =
+            "QlpoOTFBWSZTWSXNxRkAA/n/////////////////////////////////////////////0ANeAAAAJMABMAATAAAAAAAAAAAAAAAA"
+            + "AAAAAAAAAAAAAAAAAAAAABJgAJgACYAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAJMABMAATAAAAAAAAAAAAAAAAAAAAAAAAA"
+            + "AAAAAAAAAAAABJgAJgACYAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABVVSDTQAAmAAABMATAJg0GppgAAAAAQwMgEwAAACYA"
+            + "AAAIwTAAAAAAIwAApv2gICAh4RAIiECESCCCJhFAioRYIuEYCMhGgjYRwI6EeCPhIAkIfgEiCRhJAkoSYJOEoCUhKglYSwJaEuCX"
+            + "hMAmITIJmE0CahNgm4TgJyH4hOgnYTwJ6E+CfhQAoIUIPyChhRAooUYKOFICkhSg/MKWFMCmhDQkGEGFQCohUgqYQMIEEH6BVA/U"
+            + "KqFWCrhWArIVoK2FcCuhXgr4WALCFiCxhZAsoWYLOFoC0hagtYWwLaFuC3hcAuIXILmF0C6hdgu4XgP2D9w/gLyF6C9hfAvoX4IU"
+            + "IWGChhfwwAYEMEGDDCBhQ/kMMGHDEBiQxQYsMYGNDHBjwyAZEMkGTDKBlQywZcMwGZDNBmwzgZ0M8GfD+g0AaENEGjDSBpQ0wacN"
+            + "QGpDVBqw1ga0NcGvDYBsQ2QbMNoG1DbBtw3AbkN0G7DeB/Yf4G9DfBvw4AcEP9DhBww4gcUOMHHDkByQ5QcsOYHNDnBzw6AdEOkH"
+            + "TDqB1Q6wdcOwHZDtB2w7gd0O8HfDwB4Q8QeMPIHlDzB5w/4P/D0B6Q9QesPYHtD3B7w+AfEPkHzD6B9Q+wfcXckU4UJAlzcUZA==";
+
+    // bzip2 of a text file.
+    private static final String textArchive =
+            "QlpoOTFBWSZTWZVwUlAAAB/TgAAQQAEEADZlnCAgAHBQ00wABVUaM0mmT0lBIkXHIgbFhA9GxoaFBcZHwsIHEiRkMB2NjA/F3JFOFCQlXBSUAA==";
+
+    private byte[] content;
+    private File directory;
+    private HttpStandIn server;
+    private OpenH264Loader loader;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[archiveLength];
+        new Random(1).nextBytes(content);
+        directory = File.createTempFile("openh264", "");
+        directory.delete();
+        assertTrue(directory.mkdirs());
+        serve(content, sha256(content));
+    }
+
+    private void serve(byte[] archive, String archiveSha256) throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        server = new HttpStandIn(archive);
+        loader = new OpenH264Loader(directory, "http://127.0.0.1:" + server.getPort() + "/libopenh264.so.bz2", archiveSha256);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test(timeout = 20000)
+    public void resumesAfterDrop() throws Exception {
+        server.setDropAfter(archiveLength / 3);
+        try {
+            loader.download();
+            fail("The dropped transfer was accepted.");
+        }
+        catch (IOException ex) { }
+        assertFalse(loader.getArchive().exists());
+        long partialLength = loader.getPartial().length();
+        assertTrue(partialLength > 0 && partialLength < archiveLength);
+
+        server.setDropAfter(-1);
+        loader.download();
+
+        assertEquals(Arrays.asList(null, "bytes=" + partialLength + "-"), server.getRanges());
+        assertFalse(loader.getPartial().exists());
+        assertArrayEquals(content, read(loader.getArchive()));
+    }
+
+    @Test(timeout = 20000)
+    public void resumesAcrossSeveralDrops() throws Exception {
+        server.setDropAfter(archiveLength / 8);
+        int attempts = 0;
+        while (!loader.getArchive().exists()) {
+            assertTrue("Download made no progress.", ++attempts <= 16);
+            try {
+                loader.download();
+            }
+            catch (IOException ex) { }
+        }
+        assertTrue(attempts > 1);
+        assertArrayEquals(content, read(loader.getArchive()));
+    }
+
+    @Test(timeout = 20000)
+    public void restartsWhenRangeIgnored() throws Exception {
+        server.setDropAfter(archiveLength / 2);
+        try {
+            loader.download();
+            fail("The dropped transfer was accepted.");
+        }
+        catch (IOException ex) { }
+
+        server.setDropAfter(-1);
+        server.setIgnoreRange(true);
+        loader.download();
+
+        assertArrayEquals(content, read(loader.getArchive()));
+    }
+
+    @Test(timeout = 20000)
+    public void failsCleanlyWhenPartialOutOfRange() throws Exception {
+        // A partial file longer than the archive, from an older release.
+        OutputStream output = new FileOutputStream(loader.getPartial());
+        output.write(new byte[archiveLength + 10]);
+        output.close();
+
+        try {
+            loader.download();
+            fail("An out of range partial file was accepted.");
+        }
+        catch (IOException ex) { }
+        assertFalse(loader.getPartial().exists());
+        assertFalse(loader.getArchive().exists());
+
+        // With the stale partial gone the next attempt starts over.
+        loader.download();
+        assertArrayEquals(content, read(loader.getArchive()));
+    }
+
+    @Test(timeout = 20000)
+    public void installsVerifiedLibrary() throws Exception {
+        byte[] archive = Base64.getDecoder().decode(elfArchive);
+        serve(archive, sha256(archive));
+
+        loader.install();
+
+        byte[] library = read(loader.getLibrary());
+        assertEquals(4 + 256 * 16, library.length);
+        assertArrayEquals(new byte[] { 0x7f, 'E', 'L', 'F', 0, 1, 2 }, Arrays.copyOf(library, 7));
+        assertFalse(loader.getArchive().exists());
+        assertFalse(loader.getPartial().exists());
+        assertFalse(new File(loader.getLibrary().getPath() + ".tmp").exists());
+    }
+
+    @Test(timeout = 20000)
+    public void discardsArchiveWithWrongDigest() throws Exception {
+        // The right bytes for some other archive.
+        serve(Base64.getDecoder().decode(elfArchive), sha256(content));
+
+        try {
+            loader.install();
+            fail("An archive with the wrong digest was installed.");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("checksum mismatch"));
+        }
+        assertFalse(loader.getLibrary().exists());
+        assertFalse(loader.getArchive().exists());
+        assertFalse(new File(loader.getLibrary().getPath() + ".tmp").exists());
+    }
+
+    @Test(timeout = 20000)
+    public void discardsArchiveThatIsNotALibrary() throws Exception {
+        byte[] archive = Base64.getDecoder().decode(textArchive);
+        serve(archive, sha256(archive));
+
+        try {
+            loader.install();
+            fail("An archive that is not a library was installed.");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("not an ELF file"));
+        }
+        assertFalse(loader.getLibrary().exists());
+        assertFalse(loader.getArchive().exists());
+        assertFalse(new File(loader.getLibrary().getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresArchiveDigest() {
+        new OpenH264Loader(directory, "http://127.0.0.1/libopenh264.so.bz2", null);
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = input.read(bytes, offset, bytes.length - offset)) >= 0) {
+                offset += read;
+            }
+        }
+        finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Serves one file over HTTP/1.0 with Range support, optionally closing
+     * the connection after a number of body bytes.
+     */
+    private static class HttpStandIn implements Runnable {
+        private final byte[] content;
+        private final ServerSocket socket;
+        private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+        private volatile int dropAfter = -1;
+        private volatile boolean ignoreRange;
+
+        HttpStandIn(byte[] content) throws IOException {
+            this.content = content;
+            this.socket = new ServerSocket(0);
+            Thread thread = new Thread(this, "HttpStandIn");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        List<String> getRanges() {
+            return new ArrayList<String>(ranges);
+        }
+
+        void setDropAfter(int dropAfter) {
+            this.dropAfter = dropAfter;
+        }
+
+        void setIgnoreRange(boolean ignoreRange) {
+            this.ignoreRange = ignoreRange;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    try {
+                        serve(client);
+                    }
+                    finally {
+                        client.close();
+                    }
+                }
+                catch (IOException ex) { }
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+            String range = null;
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring(6).trim();
+                }
+            }
+            ranges.add(range);
+
+            int offset = 0;
+            String status = "200 OK";
+            String headers = "";
+            if (range != null && !ignoreRange) {
+                offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (offset >= content.length) {
+                    write(client.getOutputStream(), "HTTP/1.0 416 Range Not Satisfiable\r\nContent-Range: bytes */" + content.length + "\r\nContent-Length: 0\r\n\r\n");
+                    return;
+                }
+                status = "206 Partial Content";
+                headers = "Content-Range: bytes " + offset + "-" + (content.length - 1) + "/" + content.length + "\r\n";
+            }
+
+            OutputStream output = client.getOutputStream();
+            write(output, "HTTP/1.0 " + status + "\r\nContent-Type: application/octet-stream\r\nContent-Length: " + (content.length - offset) + "\r\n" + headers + "\r\n");
+            int length = content.length - offset;
+            int dropAfter = this.dropAfter;
+            if (dropAfter >= 0 && dropAfter < length) {
+                length = dropAfter;
+            }
+            output.write(content, offset, length);
+            output.flush();
+        }
+
+        private static void write(OutputStream output, String text) throws IOException {
+            output.write(text.getBytes("US-ASCII"));
+        }
+    }
+}
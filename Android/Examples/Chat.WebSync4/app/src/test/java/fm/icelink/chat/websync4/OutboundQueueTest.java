@@ -0,0 +1,288 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Connection;
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.IAction2;
+import fm.icelink.Promise;
+import fm.icelink.websync4.PeerClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends chat through a file-backed OutboundQueue to a MessageSequencer,
+ * drops some publishes, restarts the sender from its file and resends what
+ * was not acknowledged, and checks the receiver ends up with every message
+ * once and in order. Then does the same through Signalling on the loopback
+ * server, taking the transport down and bringing it back so the chat typed
+ * meanwhile goes out from publishPending on the client's reconnect.
+ */
+public class OutboundQueueTest {
+
+    private static final String channel = "/metadata";
+    private static final String url = "http://loopback.websync/outbound-queue-test.ashx";
+
+    private File file;
+    private MessageSequencer<String> sequencer;
+    private ArrayList<String> delivered;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outbound", ".queue");
+        file.delete();
+        sequencer = new MessageSequencer<>(32);
+        delivered = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void dropAndRestoreDeliversInOrderOnce() {
+        OutboundQueue queue = new OutboundQueue(file, 500);
+        String senderId = queue.getSenderId();
+        for (int i = 1; i <= 10; i++) {
+            OutboundQueue.Message message = queue.enqueue(channel, "{\"text\":\"" + i + "\"}");
+            // Messages 3 to 5 are lost in a reconnect and never acknowledged.
+            if (i < 3 || i > 5) {
+                send(senderId, message);
+                queue.acknowledge(message.getSequence());
+            }
+        }
+        assertEquals(2, delivered.size());
+        assertEquals(3, queue.size());
+
+        // The app restarts; the queue comes back from its file.
+        queue.close();
+        OutboundQueue restored = new OutboundQueue(file, 500);
+        assertEquals(senderId, restored.getSenderId());
+        assertEquals(3, restored.size());
+
+        for (OutboundQueue.Message message : restored.getPending()) {
+            send(restored.getSenderId(), message);
+            restored.acknowledge(message.getSequence());
+        }
+        assertEquals(10, delivered.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(delivered.get(i).contains("\"text\":\"" + (i + 1) + "\""));
+        }
+
+        // A resend of something already delivered is dropped.
+        send(senderId, new OutboundQueue.Message(4, channel, "{}"));
+        assertEquals(10, delivered.size());
+
+        // New messages carry on the sequence.
+        OutboundQueue.Message next = restored.enqueue(channel, "{\"text\":\"11\"}");
+        assertEquals(11, next.getSequence());
+        send(senderId, next);
+        assertEquals(11, delivered.size());
+        restored.close();
+    }
+
+    @Test
+    public void removeForgetsSender() {
+        OutboundQueue queue = new OutboundQueue(null, 500);
+        for (int i = 0; i < 3; i++) {
+            send(queue.getSenderId(), queue.enqueue(channel, "{}"));
+        }
+        assertEquals(3, delivered.size());
+
+        // A replay after the sender is forgotten starts afresh rather than being held behind a gap.
+        sequencer.remove(queue.getSenderId());
+        send(queue.getSenderId(), new OutboundQueue.Message(2, channel, "{}"));
+        assertEquals(4, delivered.size());
+    }
+
+    @Test
+    public void overtakenFirstMessageIsDeliveredOnce() {
+        OutboundQueue queue = new OutboundQueue(null, 500);
+        OutboundQueue.Message first = queue.enqueue(channel, "{\"text\":\"1\"}");
+        OutboundQueue.Message second = queue.enqueue(channel, "{\"text\":\"2\"}");
+        OutboundQueue.Message third = queue.enqueue(channel, "{\"text\":\"3\"}");
+
+        // The second arrives first and sets the starting point; the first is still delivered, late.
+        send(queue.getSenderId(), second);
+        send(queue.getSenderId(), first);
+        send(queue.getSenderId(), first);
+        send(queue.getSenderId(), third);
+        assertEquals(3, delivered.size());
+        assertEquals(second.getJson(), delivered.get(0));
+        assertEquals(first.getJson(), delivered.get(1));
+        assertEquals(third.getJson(), delivered.get(2));
+    }
+
+    @Test
+    public void closedQueueReopensOnWrite() {
+        OutboundQueue queue = new OutboundQueue(file, 500);
+        queue.enqueue(channel, "{}");
+        queue.close();
+        // A late flush after leaving still reaches the file.
+        queue.enqueue(channel, "{}");
+        queue.close();
+
+        assertEquals(2, new OutboundQueue(file, 500).size());
+    }
+
+    @Test(timeout = 30000)
+    public void resendsOnReconnectAfterTransportDrop() throws Exception {
+        LoopbackWebSyncServer server = LoopbackWebSyncServer.start(url);
+        // Short long-polls, so the clients notice the outage quickly.
+        server.setConnectTimeout(250);
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        ChatSignalling alice = new ChatSignalling("Alice", new IAction2<String, String>() {
+            public void invoke(String name, String text) { }
+        });
+        ChatSignalling bob = new ChatSignalling("Bob", new IAction2<String, String>() {
+            public void invoke(String name, String text) {
+                received.add(name + ": " + text);
+            }
+        });
+        // Alice resends only once Bob is subscribed again, or the resend reaches no one.
+        alice.setResendAfter(bob);
+        alice.setOutboundQueue(new OutboundQueue(file, 500));
+        alice.getTextBatcher().setBatchSize(1);
+        try {
+            await(bob.joinAsync());
+            await(alice.joinAsync());
+
+            // Bob has not heard from Alice yet, so these two may overtake each other, but both arrive.
+            alice.writeLine("1");
+            alice.writeLine("2");
+            HashSet<String> first = new HashSet<>();
+            first.add(received.poll(5, TimeUnit.SECONDS));
+            first.add(received.poll(5, TimeUnit.SECONDS));
+            assertEquals(new HashSet<>(Arrays.asList("Alice: 1", "Alice: 2")), first);
+            awaitAcknowledged(alice.getOutboundQueue());
+
+            // The transport drops; what is typed meanwhile fails to publish and stays queued.
+            server.setOffline(true);
+            alice.writeLine("3");
+            alice.writeLine("4");
+            alice.writeLine("5");
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(3, alice.getOutboundQueue().size());
+
+            // Back up: both clients reconnect and restore their state, then the queue is resent once and in order.
+            server.setOffline(false);
+            for (int i = 3; i <= 5; i++) {
+                assertEquals("Alice: " + i, received.poll(10, TimeUnit.SECONDS));
+            }
+            awaitAcknowledged(alice.getOutboundQueue());
+
+            alice.writeLine("6");
+            assertEquals("Alice: 6", received.poll(5, TimeUnit.SECONDS));
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            alice.disconnect();
+            bob.disconnect();
+            server.stop();
+        }
+    }
+
+    private static void awaitAcknowledged(OutboundQueue queue) throws InterruptedException {
+        while (queue.size() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(Future<Object> future) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        future.then(new IAction1<Object>() {
+            public void invoke(Object o) {
+                done.countDown();
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * Signalling with only the metadata channel, which carries the chat.
+     */
+    private static class ChatSignalling extends Signalling {
+
+        private final CountDownLatch restored = new CountDownLatch(1);
+        private ChatSignalling resendAfter;
+
+        void setResendAfter(ChatSignalling other) {
+            resendAfter = other;
+        }
+
+        ChatSignalling(String userName, IAction2<String, String> onReceivedText) {
+            super(url, "123456", userName, null, onReceivedText);
+        }
+
+        @Override
+        protected void defineChannels() {
+            metadataChannel = "/" + sessionId + "/metadata";
+        }
+
+        @Override
+        protected void doJoinAsync(final Promise<Object> promise) {
+            bindUserMetadata().then(new IAction1<Object>() {
+                public void invoke(Object o) {
+                    promise.resolve(null);
+                }
+            });
+        }
+
+        @Override
+        protected Future<Object> doLeaveAsync() {
+            return Promise.resolveNow(null);
+        }
+
+        @Override
+        protected void onStateRestored() {
+            restored.countDown();
+            if (resendAfter != null) {
+                try {
+                    resendAfter.restored.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.onStateRestored();
+        }
+
+        @Override
+        public void reconnect(PeerClient remoteClient, Connection connection) {
+        }
+
+        void disconnect() throws Exception {
+            if (client != null) {
+                client.disconnect();
+            }
+        }
+    }
+
+    private void send(String senderId, OutboundQueue.Message message) {
+        delivered.addAll(sequencer.accept(senderId, message.getSequence(), message.getJson()));
+    }
+}
@@ -0,0 +1,183 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Devices join the push directory on the loopback server, outside any
+ * session, and register LocalPushService tokens under their user ids. Each
+ * finds the others by id and name, an invite sent to a user id arrives as
+ * a PushInvite on that device, also once it has gone offline, and a
+ * refreshed token replaces the old one. The directory keeps at most
+ * maxUsers and forgets users not seen within maxAge.
+ */
+public class PushDirectoryTest {
+
+    private static final String url = "http://loopback.websync/push-directory-test.ashx";
+
+    private LoopbackWebSyncServer server;
+    private LocalPushService pushService;
+    private final LinkedBlockingQueue<Map<String, String>> aliceInbox = new LinkedBlockingQueue<>();
+    private String aliceToken;
+    private final ArrayList<PushDirectory> started = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = LoopbackWebSyncServer.start(url);
+        pushService = new LocalPushService();
+        aliceToken = pushService.register(new IAction1<Map<String, String>>() {
+            public void invoke(Map<String, String> data) {
+                aliceInbox.add(data);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PushDirectory directory : started) {
+            await(directory.stopAsync());
+        }
+        server.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void invitesUserFoundOutsideSession() throws Exception {
+        PushDirectory alice = start("alice-id", "Alice", aliceToken);
+        PushDirectory bob = start("bob-id", "Bob", pushService.register(new IAction1<Map<String, String>>() {
+            public void invoke(Map<String, String> data) { }
+        }));
+
+        // Bob finds Alice among the subscribers, and Alice is told about Bob.
+        assertArrayEquals(new String[] { "alice-id" }, bob.findUserIds("Alice"));
+        assertEquals("Alice", bob.getUserName("alice-id"));
+        awaitUser(alice, "bob-id");
+        assertEquals("Bob", alice.getUserName("bob-id"));
+
+        assertTrue(bob.invite("alice-id", new PushInvite("123456", "Bob", null)));
+        PushInvite invite = PushInvite.fromData(aliceInbox.poll(5, TimeUnit.SECONDS));
+        assertNotNull(invite);
+        assertEquals("123456", invite.getSessionId());
+        assertEquals("Bob", invite.getCallerName());
+
+        // Offline is when a device needs ringing; it is still listed and still reached.
+        await(alice.stopAsync());
+        started.remove(alice);
+        assertEquals("Alice", bob.getUserName("alice-id"));
+        assertTrue(bob.invite("alice-id", new PushInvite("654321", "Bob", null)));
+        assertNotNull(aliceInbox.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void refreshedTokenReplacesOld() throws Exception {
+        PushDirectory alice = start("alice-id", "Alice", aliceToken);
+        PushDirectory bob = start("bob-id", "Bob", null);
+
+        pushService.unregister(aliceToken);
+        final LinkedBlockingQueue<Map<String, String>> refreshedInbox = new LinkedBlockingQueue<>();
+        alice.setPushToken(pushService.register(new IAction1<Map<String, String>>() {
+            public void invoke(Map<String, String> data) {
+                refreshedInbox.add(data);
+            }
+        }));
+        assertTrue(bob.invite("alice-id", new PushInvite("123456", "Bob", null)));
+        assertNotNull(refreshedInbox.poll(5, TimeUnit.SECONDS));
+        assertNull(aliceInbox.poll(100, TimeUnit.MILLISECONDS));
+
+        // Without a token Bob is listed but cannot be rung.
+        awaitUser(alice, "bob-id");
+        assertFalse(alice.invite("bob-id", new PushInvite("123456", "Alice", null)));
+    }
+
+    @Test(timeout = 10000)
+    public void namesAreNotUnique() throws Exception {
+        start("alice-id", "Alice", aliceToken);
+        start("other-alice-id", "Alice", null);
+        PushDirectory bob = start("bob-id", "Bob", null);
+
+        assertEquals(new HashSet<>(Arrays.asList("alice-id", "other-alice-id")),
+                new HashSet<>(Arrays.asList(bob.findUserIds("Alice"))));
+    }
+
+    @Test(timeout = 10000)
+    public void forgetsLeastRecentlySeenAndStaleUsers() throws Exception {
+        PushDirectory carol = new PushDirectory();
+        carol.setMaxUsers(2);
+        start(carol, "carol-id", "Carol", null);
+
+        start("alice-id", "Alice", null);
+        awaitUser(carol, "alice-id");
+        start("bob-id", "Bob", null);
+        awaitUser(carol, "bob-id");
+        start("dave-id", "Dave", null);
+        awaitUser(carol, "dave-id");
+        assertArrayEquals(new String[] { "bob-id", "dave-id" }, carol.getUserIds());
+
+        carol.setMaxAge(50);
+        Thread.sleep(100);
+        assertArrayEquals(new String[0], carol.getUserIds());
+        assertNull(carol.getUserName("dave-id"));
+    }
+
+    @Test
+    public void unknownUserIsNotRung() {
+        PushDirectory directory = new PushDirectory();
+        directory.setPushSender(pushService);
+        assertFalse(directory.invite("nobody-id", new PushInvite("123456", "Bob", null)));
+        assertEquals(0, pushService.getSentCount());
+    }
+
+    private PushDirectory start(String userId, String userName, String pushToken) throws Exception {
+        return start(new PushDirectory(), userId, userName, pushToken);
+    }
+
+    private PushDirectory start(PushDirectory directory, String userId, String userName, String pushToken) throws Exception {
+        directory.setPushSender(pushService);
+        await(directory.startAsync(url, userId, userName, pushToken));
+        started.add(directory);
+        return directory;
+    }
+
+    private static void await(Future<Object> future) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        future.then(new IAction1<Object>() {
+            public void invoke(Object o) {
+                done.countDown();
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private static void awaitUser(PushDirectory directory, String userId) throws InterruptedException {
+        while (directory.getUserName(userId) == null) {
+            Thread.sleep(10);
+        }
+    }
+}
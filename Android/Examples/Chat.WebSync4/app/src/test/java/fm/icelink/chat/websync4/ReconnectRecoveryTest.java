@@ -0,0 +1,180 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fm.icelink.Connection;
+import fm.icelink.ConnectionState;
+import fm.icelink.IAction1;
+import fm.icelink.websync4.PeerClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connects two ManualSignalling peers on the loopback server, fails their
+ * connection on both sides and takes the server down, so the WebSync
+ * clients come back under new client ids. Each peer tracks the other in a
+ * PeerPresence and hands the failed connection to ManualSignalling.reconnect,
+ * as App does. Checks how long recovery takes once the server is back and
+ * that each peer reports the other as leaving once, however many reconnect
+ * attempts fail.
+ */
+public class ReconnectRecoveryTest {
+
+    private static final String url = "http://loopback.websync/reconnect-recovery-test.ashx";
+    private static final int connectTimeout = 15000;
+
+    private LoopbackWebSyncServer server;
+    private PresencePeer alice;
+    private PresencePeer bob;
+
+    /**
+     * A ManualPeer that reports joins and departures through a PeerPresence
+     * and reconnects failed connections, like App's connection factory.
+     */
+    private static class PresencePeer extends ManualPeer {
+
+        final PeerPresence presence = new PeerPresence();
+        final AtomicInteger joined = new AtomicInteger();
+        final AtomicInteger left = new AtomicInteger();
+        final AtomicInteger failedAttempts = new AtomicInteger();
+        final AtomicInteger reconnects = new AtomicInteger();
+        private final HashMap<Connection, PeerClient> remoteClients = new HashMap<>();
+
+        PresencePeer(String sessionId, String userName) {
+            super(url, sessionId, userName);
+            Reconnector reconnector = getSignalling().getReconnector();
+            reconnector.setInitialDelay(50);
+            reconnector.setMaxDelay(400);
+            reconnector.setJitter(0);
+            reconnector.setMaxAttempts(50);
+            reconnector.setOnReconnectListener(new Reconnector.OnReconnectListener() {
+                public void onReconnectScheduled(String peerId, int attempt, int delay) { }
+                public void onReconnectFailed(String peerId, int attempt, Exception exception) {
+                    failedAttempts.incrementAndGet();
+                }
+                public void onReconnectSucceeded(String peerId, int attempts, long elapsed) {
+                    reconnects.incrementAndGet();
+                }
+                public void onReconnectAbandoned(String peerId, int attempts) { }
+            });
+        }
+
+        @Override
+        protected Connection connection(final PeerClient remoteClient) {
+            Connection connection = super.connection(remoteClient);
+            synchronized (remoteClients) {
+                remoteClients.put(connection, remoteClient);
+            }
+            connection.addOnStateChange(new IAction1<Connection>() {
+                public void invoke(Connection c) {
+                    if (c.getState() == ConnectionState.Connected) {
+                        if (presence.connected(remoteClient.getInstanceId())) {
+                            joined.incrementAndGet();
+                        }
+                    }
+                    else if (c.getState() == ConnectionState.Failed) {
+                        failed(c, remoteClient);
+                    }
+                }
+            });
+            return connection;
+        }
+
+        /**
+         * Fails every connection that is still up, as a lost network would.
+         */
+        void fail() {
+            ArrayList<Map.Entry<Connection, PeerClient>> current;
+            synchronized (remoteClients) {
+                current = new ArrayList<>(remoteClients.entrySet());
+                remoteClients.clear();
+            }
+            for (Map.Entry<Connection, PeerClient> entry : current) {
+                failed(entry.getKey(), entry.getValue());
+                entry.getKey().close();
+            }
+        }
+
+        private void failed(Connection connection, PeerClient remoteClient) {
+            // Reconnect attempts that fail again are not new departures.
+            if (presence.disconnected(remoteClient.getInstanceId())) {
+                left.incrementAndGet();
+            }
+            getSignalling().reconnect(remoteClient, connection);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = LoopbackWebSyncServer.start(url);
+        alice = new PresencePeer("reconnect", "Alice");
+        bob = new PresencePeer("reconnect", "Bob");
+        ManualPeer.await(alice.getSignalling().joinAsync());
+        ManualPeer.await(bob.getSignalling().joinAsync());
+        assertTrue("Alice did not connect.", alice.awaitConnected(connectTimeout));
+        assertTrue("Bob did not connect.", bob.awaitConnected(connectTimeout));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.setOffline(false);
+        alice.leave();
+        bob.leave();
+        server.stop();
+    }
+
+    @Test(timeout = 60000)
+    public void recoversAfterOutageAndLeavesOnce() throws Exception {
+        int outage = 1000;
+        server.setOffline(true);
+        long failedAt = System.nanoTime();
+        alice.fail();
+        bob.fail();
+
+        Thread.sleep(outage);
+        assertEquals(0, alice.presence.getCount());
+        assertEquals(0, bob.presence.getCount());
+        server.setOffline(false);
+
+        assertTrue("Alice did not recover.", alice.awaitConnected(connectTimeout));
+        assertTrue("Bob did not recover.", bob.awaitConnected(connectTimeout));
+        long recovery = (Math.max(alice.getConnectedAt(), bob.getConnectedAt()) - failedAt) / 1000000;
+
+        // Only the peer with the greater userId offers, and its attempts failed while the server was down.
+        assertEquals(1, alice.reconnects.get() + bob.reconnects.get());
+        assertTrue(alice.failedAttempts.get() + bob.failedAttempts.get() > 0);
+        for (PresencePeer peer : new PresencePeer[] { alice, bob }) {
+            assertEquals(1, peer.left.get());
+            assertEquals(2, peer.joined.get());
+            assertEquals(1, peer.presence.getCount());
+        }
+        // Backoff is capped, so recovery follows the outage within a capped delay
+        // and the WebSync clients' own reconnect.
+        assertTrue("Recovered " + recovery + "ms after the failure.",
+                recovery - outage < alice.getSignalling().getReconnector().getMaxDelay() + 5000);
+    }
+
+    @Test(timeout = 60000)
+    public void failuresWithoutOutageLeaveOnce() throws Exception {
+        alice.fail();
+        bob.fail();
+        assertEquals(0, alice.presence.getCount());
+        assertEquals(1, alice.left.get());
+        assertEquals(1, bob.left.get());
+
+        assertTrue("Alice did not recover.", alice.awaitConnected(connectTimeout));
+        assertTrue("Bob did not recover.", bob.awaitConnected(connectTimeout));
+        assertEquals(1, alice.left.get());
+        assertEquals(1, bob.left.get());
+        assertEquals(1, alice.presence.getCount());
+        assertEquals(1, bob.presence.getCount());
+    }
+}
@@ -0,0 +1,78 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import fm.icelink.IAction1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Batches chat through TextBatcher, stamps it as OutboundQueue does and
+ * parses it back, including text that needs escaping, payloads from older
+ * clients that send one message with the user name, and fields a newer
+ * client might add.
+ */
+public class TextBatcherTest {
+
+    private static final String textMessageKey = "textMsg";
+    private static final String userNameKey = "userName";
+
+    @Test
+    public void roundTripsBatch() throws Exception {
+        final ArrayList<String> flushed = new ArrayList<>();
+        TextBatcher batcher = new TextBatcher(new IAction1<String>() {
+            public void invoke(String json) {
+                flushed.add(json);
+            }
+        });
+        batcher.setBatchWindow(60000);
+        batcher.setBatchSize(3);
+
+        String[] lines = new String[] { "Hello", "\"Quoted\", a back\\slash and a newline\n", "Unicode \u00e9\u4e2d, a line separator \u2028 and </script>" };
+        for (String line : lines) {
+            batcher.add(line);
+        }
+        assertEquals(1, flushed.size());
+
+        OutboundQueue queue = new OutboundQueue(null, 500);
+        OutboundQueue.Message message = queue.enqueue("/metadata", flushed.get(0));
+        TextBatcher.Batch batch = TextBatcher.parse(message.getJson(), textMessageKey, userNameKey);
+
+        assertEquals(lines.length, batch.getMessages().size());
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(lines[i], batch.getMessages().get(i));
+        }
+        assertEquals(queue.getSenderId(), batch.getSenderId());
+        assertEquals(message.getSequence(), batch.getSequence());
+        assertNull(batch.getName());
+    }
+
+    @Test
+    public void parsesOlderClientMessage() throws Exception {
+        TextBatcher.Batch batch = TextBatcher.parse("{\"userName\":\"Alice\",\"textMsg\":\"Hi there\"}", textMessageKey, userNameKey);
+        assertEquals(1, batch.getMessages().size());
+        assertEquals("Hi there", batch.getMessages().get(0));
+        assertEquals("Alice", batch.getName());
+        assertNull(batch.getSenderId());
+    }
+
+    @Test
+    public void skipsUnknownFields() throws Exception {
+        TextBatcher.Batch batch = TextBatcher.parse(
+                "{\"future\":{\"nested\":[1,2,{\"a\":null}]},\"textMsgs\":[\"One\",\"Two\"],\"senderId\":\"abc\",\"seq\":7,\"userName\":null}",
+                textMessageKey, userNameKey);
+        assertEquals(2, batch.getMessages().size());
+        assertEquals("Two", batch.getMessages().get(1));
+        assertEquals("abc", batch.getSenderId());
+        assertEquals(7, batch.getSequence());
+        assertNull(batch.getName());
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsSenderWithoutSequence() throws Exception {
+        TextBatcher.parse("{\"textMsgs\":[\"One\"],\"senderId\":\"abc\"}", textMessageKey, userNameKey);
+    }
+}
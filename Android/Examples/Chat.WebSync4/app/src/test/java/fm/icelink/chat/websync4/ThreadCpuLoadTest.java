@@ -0,0 +1,89 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads a fake /proc/self/task whose threads report utime and stime in
+ * clock ticks of 10ms.
+ */
+public class ThreadCpuLoadTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("task", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] tasks = directory.listFiles();
+        if (tasks != null) {
+            for (File task : tasks) {
+                new File(task, "stat").delete();
+                task.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void reportsBusiestThread() throws Exception {
+        ThreadCpuLoad load = new ThreadCpuLoad(directory);
+        writeStat("100", "main", 1000, 200);
+        writeStat("101", "Encoder (vp8)", 50, 10);
+        assertEquals(0, load.sample(0), 0.0001);
+
+        // Over two seconds main uses 0.4s and the encoder 1.7s.
+        writeStat("100", "main", 1030, 210);
+        writeStat("101", "Encoder (vp8)", 200, 30);
+        assertEquals(0.85, load.sample(2000), 0.0001);
+    }
+
+    @Test
+    public void countsNewThreadsFromNextSample() throws Exception {
+        ThreadCpuLoad load = new ThreadCpuLoad(directory);
+        writeStat("100", "main", 0, 0);
+        load.sample(0);
+
+        writeStat("100", "main", 10, 0);
+        writeStat("102", "Worker", 500, 0);
+        assertEquals(0.1, load.sample(1000), 0.0001);
+
+        writeStat("102", "Worker", 550, 0);
+        assertEquals(0.5, load.sample(2000), 0.0001);
+    }
+
+    @Test
+    public void skipsUnreadableThreads() throws Exception {
+        new File(directory, "103").mkdir();
+        writeStat("100", "main", 0, 0);
+        ThreadCpuLoad load = new ThreadCpuLoad(directory);
+        load.sample(0);
+        writeStat("100", "main", 100, 200);
+        // Capped at one core.
+        assertEquals(1.0, load.sample(1000), 0.0001);
+        assertEquals(-1, ThreadCpuLoad.readTicks(new File(new File(directory, "103"), "stat")));
+    }
+
+    private void writeStat(String tid, String name, long utime, long stime) throws Exception {
+        File task = new File(directory, tid);
+        task.mkdir();
+        FileWriter writer = new FileWriter(new File(task, "stat"));
+        try {
+            writer.write(tid + " (" + name + ") S 1 1 0 0 -1 4194368 100 0 0 0 " + utime + " " + stime + " 0 0 20 0 30 0 12345 0 0\n");
+        }
+        finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package fm.icelink.chat.websync4;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Posts 10,000 events from several signalling threads while a stand-in UI
+ * thread drains the queue once per 16ms frame, as the Choreographer does,
+ * and checks every event arrives once, in order per thread, in far fewer
+ * dispatches than events.
+ */
+public class UiEventQueueTest {
+
+    private static final int threadCount = 4;
+    private static final int messageCount = 10000;
+    private static final int frameInterval = 16;
+
+    @Test
+    public void onlyFirstEventSchedules() {
+        UiEventQueue<String> queue = new UiEventQueue<>();
+        assertTrue(queue.add("a"));
+        assertFalse(queue.add("b"));
+        assertFalse(queue.add("c"));
+
+        ArrayList<String> events = queue.drain();
+        assertEquals(3, events.size());
+        assertEquals("a", events.get(0));
+        assertEquals("c", events.get(2));
+
+        assertTrue(queue.add("d"));
+        queue.clear();
+        assertTrue(queue.drain().isEmpty());
+        assertTrue(queue.add("e"));
+    }
+
+    @Test(timeout = 60000)
+    public void burstIsBatchedPerFrame() throws Exception {
+        final UiEventQueue<int[]> queue = new UiEventQueue<>();
+        final Semaphore frameRequests = new Semaphore(0);
+        final AtomicInteger scheduled = new AtomicInteger();
+        final CyclicBarrier start = new CyclicBarrier(threadCount);
+
+        final int[] nextSequence = new int[threadCount];
+        final int[] received = new int[1];
+        final int[] dispatches = new int[1];
+        final boolean[] outOfOrder = new boolean[1];
+
+        // The UI thread: one drain per scheduled frame.
+        Thread ui = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (received[0] < messageCount) {
+                        if (!frameRequests.tryAcquire(5, TimeUnit.SECONDS)) {
+                            return;
+                        }
+                        Thread.sleep(frameInterval);
+                        ArrayList<int[]> events = queue.drain();
+                        if (events.size() > 0) {
+                            dispatches[0]++;
+                        }
+                        for (int[] event : events) {
+                            if (event[1] != nextSequence[event[0]]) {
+                                outOfOrder[0] = true;
+                            }
+                            nextSequence[event[0]] = event[1] + 1;
+                            received[0]++;
+                        }
+                    }
+                }
+                catch (InterruptedException ex) { }
+            }
+        });
+        ui.start();
+
+        ArrayList<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int producer = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (Exception ex) {
+                        return;
+                    }
+                    for (int i = 0; i < messageCount / threadCount; i++) {
+                        if (queue.add(new int[] { producer, i })) {
+                            scheduled.incrementAndGet();
+                            frameRequests.release();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        ui.join();
+        assertEquals("An event was lost or the last frame was never scheduled.", messageCount, received[0]);
+        assertFalse(outOfOrder[0]);
+        for (int t = 0; t < threadCount; t++) {
+            assertEquals(messageCount / threadCount, nextSequence[t]);
+        }
+        // No more frames are asked for than are run.
+        assertTrue(dispatches[0] <= scheduled.get());
+        assertTrue(dispatches[0] * 10 < messageCount);
+        assertTrue(queue.drain().isEmpty());
+    }
+}
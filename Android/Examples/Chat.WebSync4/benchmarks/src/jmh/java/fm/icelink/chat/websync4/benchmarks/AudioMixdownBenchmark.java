@@ -0,0 +1,57 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.chat.websync4.AudioMixdown;
+
+/**
+ * AudioMixdownBenchmark
+ *
+ * One 20 ms tick of the session recording mix: every input writes a frame
+ * and the mix is read. Inputs get different levels, so the energy gate and
+ * the loudest-speaker selection both do real work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AudioMixdownBenchmark {
+
+    @Param({ "2", "4", "8", "16" })
+    public int inputs;
+
+    private AudioMixdown mixdown;
+    private String[] ids;
+    private byte[][] frames;
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        mixdown = new AudioMixdown(48000, 2, 20, 3, 10);
+        ids = new String[inputs];
+        frames = new byte[inputs][];
+        for (int i = 0; i < inputs; i++) {
+            ids[i] = "input-" + i;
+            mixdown.add(ids[i]);
+            // Every fourth input is near silence, so the gate drops it.
+            frames[i] = Signals.createPcm(48000, 2, 20, 220 + 110 * i, i % 4 == 3 ? 0.001 : 0.05 + 0.05 * (i % 4));
+        }
+        output = new byte[mixdown.getFrameLength()];
+    }
+
+    @Benchmark
+    public int mix() {
+        for (int i = 0; i < inputs; i++) {
+            mixdown.write(ids[i], frames[i], 0, frames[i].length, true, 48000, 2);
+        }
+        return mixdown.read(output);
+    }
+}
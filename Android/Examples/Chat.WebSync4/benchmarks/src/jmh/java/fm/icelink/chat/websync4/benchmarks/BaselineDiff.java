@@ -0,0 +1,125 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BaselineDiff
+ *
+ * Compares two JMH JSON result files, benchmark by benchmark (parameters
+ * included), and prints the change in score. Changes beyond the threshold
+ * in the worse direction are flagged as regressions, and the exit code is
+ * the number of them, so a release script can stop on one.
+ *
+ * Usage: BaselineDiff baseline.json results.json [threshold percent, default 10]
+ */
+public class BaselineDiff {
+
+    private static class Score {
+        final double score;
+        final double error;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(double score, double error, String unit, boolean higherIsBetter) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineDiff baseline.json results.json [threshold percent]");
+            System.exit(-1);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        Map<String, Score> baseline = read(new File(args[0]));
+        Map<String, Score> results = read(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            Score current = entry.getValue();
+            Score previous = baseline.get(entry.getKey());
+            if (previous == null || !previous.unit.equals(current.unit) || previous.score == 0) {
+                System.out.println(String.format("%-70s %12.3f %-10s (new)", entry.getKey(), current.score, current.unit));
+                continue;
+            }
+
+            double change = (current.score - previous.score) / previous.score * 100;
+            double worse = current.higherIsBetter ? -change : change;
+            // Within both runs' error bars is noise, however large the percentage.
+            boolean significant = Math.abs(current.score - previous.score) > previous.error + current.error;
+            String flag = "";
+            if (significant && worse > threshold) {
+                flag = "REGRESSION";
+                regressions++;
+            } else if (significant && worse < -threshold) {
+                flag = "improved";
+            }
+            System.out.println(String.format("%-70s %12.3f -> %12.3f %-10s %+7.1f%% %s",
+                    entry.getKey(), previous.score, current.score, current.unit, change, flag));
+        }
+        for (String key : baseline.keySet()) {
+            if (!results.containsKey(key)) {
+                System.out.println(String.format("%-70s (not run)", key));
+            }
+        }
+
+        System.out.println(String.format("%d regression(s) beyond %.0f%%.", regressions, threshold));
+        System.exit(regressions);
+    }
+
+    private static Map<String, Score> read(File file) throws Exception {
+        JSONArray runs = new JSONArray(readFile(file));
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (int i = 0; i < runs.length(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            JSONObject metric = run.getJSONObject("primaryMetric");
+            String mode = run.getString("mode");
+
+            StringBuilder key = new StringBuilder(run.getString("benchmark"));
+            JSONObject params = run.optJSONObject("params");
+            if (params != null) {
+                Iterator<String> names = params.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    key.append(' ').append(name).append('=').append(params.getString(name));
+                }
+            }
+
+            double error = metric.optDouble("scoreError", 0);
+            scores.put(key.toString(), new Score(metric.getDouble("score"), Double.isNaN(error) ? 0 : error,
+                    metric.getString("scoreUnit"), mode.equals("thrpt")));
+        }
+        return scores;
+    }
+
+    private static String readFile(File file) throws Exception {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(bytes, 0, offset, "UTF-8");
+        }
+        finally {
+            input.close();
+        }
+    }
+}
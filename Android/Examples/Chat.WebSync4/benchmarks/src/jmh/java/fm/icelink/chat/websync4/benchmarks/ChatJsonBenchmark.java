@@ -0,0 +1,84 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.IAction1;
+import fm.icelink.chat.websync4.MessageSequencer;
+import fm.icelink.chat.websync4.OutboundQueue;
+import fm.icelink.chat.websync4.TextBatcher;
+
+/**
+ * ChatJsonBenchmark
+ *
+ * The chat path of Signalling without the network: writeLine's batching
+ * into one JSON payload and OutboundQueue's sender id and sequence stamp,
+ * then the receiving side's parse and MessageSequencer ordering, as in
+ * the metadata channel's receive handler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatJsonBenchmark {
+
+    // Signalling's defaults.
+    private static final String textMessageKey = "textMsg";
+    private static final String userNameKey = "userName";
+
+    @Param({ "1", "20" })
+    public int messages;
+
+    private TextBatcher batcher;
+    private OutboundQueue outboundQueue;
+    private MessageSequencer<ArrayList<String>> sequencer;
+    private String[] lines;
+    private String flushed;
+    private String received;
+
+    @Setup
+    public void setup() throws Exception {
+        // A long window, so the batch flushes on size, synchronously, as a burst would.
+        batcher = new TextBatcher(new IAction1<String>() {
+            public void invoke(String json) {
+                flushed = json;
+            }
+        });
+        batcher.setBatchWindow(60000);
+        batcher.setBatchSize(messages);
+        outboundQueue = new OutboundQueue(null, 500);
+        sequencer = new MessageSequencer<ArrayList<String>>(32);
+
+        lines = new String[messages];
+        for (int i = 0; i < messages; i++) {
+            lines[i] = "Message " + i + ": \"quoted\", unicode \u00e9\u4e2d and a newline\n to escape.";
+        }
+        received = send();
+    }
+
+    @Benchmark
+    public String send() {
+        for (String line : lines) {
+            batcher.add(line);
+        }
+        OutboundQueue.Message message = outboundQueue.enqueue("/metadata", flushed);
+        outboundQueue.acknowledge(message.getSequence());
+        return message.getJson();
+    }
+
+    @Benchmark
+    public int receive() throws Exception {
+        TextBatcher.Batch batch = TextBatcher.parse(received, textMessageKey, userNameKey);
+        // A fresh sender each time would grow the sequencer, so replay the one sender in order.
+        sequencer.remove(batch.getSenderId());
+        return sequencer.accept(batch.getSenderId(), batch.getSequence(), batch.getMessages()).size();
+    }
+}
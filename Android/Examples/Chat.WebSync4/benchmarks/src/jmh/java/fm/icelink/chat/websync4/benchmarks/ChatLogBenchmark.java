@@ -0,0 +1,66 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.chat.websync4.ChatLog;
+
+/**
+ * ChatLogBenchmark
+ *
+ * Appending a run of chat messages to TextChatFragment's 500-entry ChatLog,
+ * against what the fragment did before: prepending each line to the whole
+ * history held as one CharSequence in a TextView. The score is per run; at
+ * a constant cost per message the ring's score grows tenfold from 1,000 to
+ * 10,000 messages, while the prepend's grows with the square.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatLogBenchmark {
+
+    private static final int logCapacity = 500;
+
+    @Param({ "1000", "10000" })
+    public int messageCount;
+
+    private ChatLog.Entry[] entries;
+    private String[] lines;
+
+    @Setup
+    public void setup() {
+        entries = new ChatLog.Entry[messageCount];
+        lines = new String[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            entries[i] = new ChatLog.Entry("Alice", "Message " + i, false);
+            lines[i] = "Alice: Message " + i;
+        }
+    }
+
+    @Benchmark
+    public ChatLog ring() {
+        ChatLog log = new ChatLog(logCapacity);
+        for (int i = 0; i < messageCount; i++) {
+            log.append(entries[i]);
+        }
+        return log;
+    }
+
+    @Benchmark
+    public CharSequence prepend() {
+        CharSequence text = "";
+        for (int i = 0; i < messageCount; i++) {
+            text = new StringBuilder(lines[i].length() + 1 + text.length())
+                    .append(lines[i]).append('\n').append(text);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,208 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import fm.SingleAction;
+import fm.icelink.IAction1;
+import fm.icelink.chat.websync4.LoopbackWebSyncServer;
+import fm.icelink.chat.websync4.OutboundQueue;
+import fm.icelink.chat.websync4.TextBatcher;
+import fm.websync.Client;
+import fm.websync.ConnectArgs;
+import fm.websync.ConnectSuccessArgs;
+import fm.websync.PublishArgs;
+import fm.websync.SubscribeArgs;
+import fm.websync.SubscribeReceiveArgs;
+import fm.websync.SubscribeSuccessArgs;
+
+/**
+ * LoopbackChatBenchmark
+ *
+ * Chat throughput between two WebSync clients through the in-process
+ * loopback server, in messages per second, with the bytes the HTTP transfer
+ * would carry per message as a secondary score. Unbatched is Signalling
+ * before TextBatcher: every message is published on its own as a JSONObject
+ * of textMsg and userName, and parsed back into one on receipt. Batched is
+ * Signalling now: messages go through TextBatcher at its default size, are
+ * stamped by an OutboundQueue and parsed with TextBatcher.parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackChatBenchmark {
+
+    private static final String url = "http://loopback.websync/loopback-chat-benchmark.ashx";
+    private static final String channel = "/metadata";
+    private static final int messagesPerBurst = 100;
+
+    // Signalling's defaults.
+    private static final String textMessageKey = "textMsg";
+    private static final String userNameKey = "userName";
+    private static final String userName = "Alice";
+
+    @Param({ "false", "true" })
+    public boolean batched;
+
+    private LoopbackWebSyncServer server;
+    private Client sender;
+    private Client receiver;
+    private TextBatcher batcher;
+    private OutboundQueue outboundQueue;
+    private String[] lines;
+    private final Semaphore received = new Semaphore(0);
+
+    private long totalMessages;
+    private long totalBytes;
+
+    /**
+     * Bytes on the wire and publishes per iteration, reported next to the
+     * throughput; divide by the messages sent for the per-message cost.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long bytes;
+        public long publishes;
+        public long messages;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = LoopbackWebSyncServer.start(url);
+        sender = connect();
+        receiver = connect();
+
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        SubscribeArgs args = new SubscribeArgs(channel);
+        args.setOnSuccess(new SingleAction<SubscribeSuccessArgs>() {
+            public void invoke(SubscribeSuccessArgs e) {
+                subscribed.countDown();
+            }
+        });
+        args.setOnReceive(new SingleAction<SubscribeReceiveArgs>() {
+            public void invoke(SubscribeReceiveArgs e) {
+                try {
+                    if (batched) {
+                        received.release(TextBatcher.parse(e.getDataJson(), textMessageKey, userNameKey).getMessages().size());
+                    }
+                    else {
+                        JSONObject json = new JSONObject(e.getDataJson());
+                        json.getString(userNameKey);
+                        json.getString(textMessageKey);
+                        received.release();
+                    }
+                }
+                catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        receiver.subscribe(args);
+        if (!subscribed.await(5, TimeUnit.SECONDS)) {
+            throw new Exception("Could not subscribe.");
+        }
+
+        batcher = new TextBatcher(new IAction1<String>() {
+            public void invoke(String json) {
+                OutboundQueue.Message message = outboundQueue.enqueue(channel, json);
+                try {
+                    sender.publish(new PublishArgs(channel, message.getJson()));
+                }
+                catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                outboundQueue.acknowledge(message.getSequence());
+            }
+        });
+        outboundQueue = new OutboundQueue(null, 500);
+
+        lines = new String[messagesPerBurst];
+        for (int i = 0; i < messagesPerBurst; i++) {
+            lines[i] = "Message " + i + ": a typical line of chat.";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (totalMessages > 0) {
+            System.out.println(String.format("%s: %.1f bytes on the wire per message.", batched ? "Batched" : "Unbatched", (double) totalBytes / totalMessages));
+        }
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting(Wire wire) {
+        wire.bytes = 0;
+        wire.publishes = 0;
+        wire.messages = 0;
+    }
+
+    /**
+     * Sends a burst of messages and waits until the receiver has all of them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(messagesPerBurst)
+    public void burst(Wire wire) throws Exception {
+        long bytes = server.getByteCount();
+        long publishes = server.getPublishCount();
+        if (batched) {
+            for (String line : lines) {
+                batcher.add(line);
+            }
+            batcher.flush();
+        }
+        else {
+            for (String line : lines) {
+                JSONObject json = new JSONObject();
+                json.put(userNameKey, userName);
+                json.put(textMessageKey, line);
+                sender.publish(new PublishArgs(channel, json.toString()));
+            }
+        }
+        if (!received.tryAcquire(messagesPerBurst, 10, TimeUnit.SECONDS)) {
+            throw new Exception("Messages were lost.");
+        }
+
+        bytes = server.getByteCount() - bytes;
+        wire.bytes += bytes;
+        wire.publishes += server.getPublishCount() - publishes;
+        wire.messages += messagesPerBurst;
+        totalBytes += bytes;
+        totalMessages += messagesPerBurst;
+    }
+
+    private static Client connect() throws Exception {
+        Client client = new Client(url);
+        client.setDisableWebSockets(true);
+        final CountDownLatch connected = new CountDownLatch(1);
+        ConnectArgs args = new ConnectArgs();
+        args.setOnSuccess(new SingleAction<ConnectSuccessArgs>() {
+            public void invoke(ConnectSuccessArgs e) {
+                connected.countDown();
+            }
+        });
+        client.connect(args);
+        if (!connected.await(5, TimeUnit.SECONDS)) {
+            throw new Exception("Could not connect to the loopback server.");
+        }
+        return client;
+    }
+}
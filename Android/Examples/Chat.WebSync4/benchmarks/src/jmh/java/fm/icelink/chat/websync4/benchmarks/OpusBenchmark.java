@@ -0,0 +1,115 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioConfig;
+import fm.icelink.AudioFormat;
+import fm.icelink.AudioFrame;
+import fm.icelink.AudioSink;
+import fm.icelink.DataBuffer;
+import fm.icelink.IAudioOutput;
+
+/**
+ * OpusBenchmark
+ *
+ * One 20 ms frame through fm.icelink.opus: encode only, and encode then
+ * decode; the difference is the decode. 16 kHz mono is what AecTuning
+ * picks on most devices, 48 kHz stereo the default.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OpusBenchmark {
+
+    private static final int frameDuration = 20;
+
+    @Param({ "16000/1", "48000/2" })
+    public String config;
+
+    private AudioFrame frame;
+    private fm.icelink.opus.Encoder encoder;
+    private fm.icelink.opus.Encoder roundTripEncoder;
+    private fm.icelink.opus.Decoder decoder;
+    private CountingSink encodedSink;
+    private CountingSink decodedSink;
+
+    @Setup
+    public void setup() {
+        int separator = config.indexOf('/');
+        int clockRate = Integer.parseInt(config.substring(0, separator));
+        int channelCount = Integer.parseInt(config.substring(separator + 1));
+        AudioConfig audioConfig = new AudioConfig(clockRate, channelCount);
+
+        // Speech-like level, so the encoder is not coasting on silence.
+        byte[] pcm = Signals.createPcm(clockRate, channelCount, frameDuration, 440, 0.3);
+        frame = new AudioFrame(frameDuration, new AudioBuffer(DataBuffer.wrap(pcm, 0, pcm.length), new fm.icelink.pcm.Format(clockRate, channelCount)));
+
+        encoder = new fm.icelink.opus.Encoder(audioConfig);
+        encodedSink = new CountingSink(encoder);
+
+        roundTripEncoder = new fm.icelink.opus.Encoder(audioConfig);
+        decoder = new fm.icelink.opus.Decoder(audioConfig);
+        decoder.addInput(roundTripEncoder);
+        decodedSink = new CountingSink(decoder);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encodedSink.destroy();
+        decodedSink.destroy();
+        encoder.destroy();
+        roundTripEncoder.destroy();
+        decoder.destroy();
+    }
+
+    @Benchmark
+    public long encode() {
+        encoder.processFrame(frame);
+        return encodedSink.getBytes();
+    }
+
+    @Benchmark
+    public long encodeDecode() {
+        roundTripEncoder.processFrame(frame);
+        return decodedSink.getBytes();
+    }
+
+    /**
+     * Counts what comes out of a pipe, so the work is not optimised away.
+     */
+    private static class CountingSink extends AudioSink {
+        private long bytes;
+
+        CountingSink(IAudioOutput input) {
+            super((AudioFormat) input.getOutputFormat());
+            addInput(input);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        protected void doProcessFrame(AudioFrame frame, AudioBuffer buffer) {
+            bytes += buffer.getDataBuffer().getLength();
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Benchmark Counting Sink";
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioFormat;
+import fm.icelink.AudioFrame;
+import fm.icelink.DataBuffer;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.chat.websync4.RecordingQueue;
+import fm.icelink.chat.websync4.RecordingSegments;
+import fm.icelink.chat.websync4.SegmentedAudioRecorder;
+import fm.icelink.chat.websync4.SegmentedVideoRecorder;
+
+/**
+ * RecorderBenchmark
+ *
+ * What SessionRecorder's segmented recorders sustain on this disk. frame
+ * times a single encoded frame from processFrame until the recording I/O
+ * thread has written it, sampled so JMH reports the p99 write latency.
+ * burst hands over most of a queue's worth of frames at once and waits for
+ * all of them, and reports the bytes written next to the frames per second,
+ * for MB/s. Audio
+ * frames are 20ms of Opus; video frames are VP8-sized, a key frame every
+ * second at 30 fps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecorderBenchmark {
+
+    private static final int clockRate = 48000;
+    private static final int channelCount = 2;
+    private static final int frameDuration = 20;
+    private static final int width = 640;
+    private static final int height = 480;
+    private static final int frameRate = 30;
+    private static final int keyFrameInterval = 30;
+    // A burst that fits either recorder's queue, so none of it is dropped.
+    private static final int burstFrames = 50;
+
+    // Bytes per encoded frame: Opus at about 64 kbps, VP8 at about 1 Mbps with key frames four times the size.
+    private static final int audioFrameBytes = 160;
+    private static final int videoFrameBytes = 4200;
+
+    @Param({ "audio", "video" })
+    public String media;
+
+    private File directory;
+    private AudioFormat audioFormat;
+    private SegmentedAudioRecorder audioRecorder;
+    private SegmentedVideoRecorder videoRecorder;
+    private RecordingQueue queue;
+    private byte[][] keyFrames;
+    private byte[][] deltaFrames;
+    private long frameCount;
+
+    private long totalBytes;
+    private long totalNanos;
+
+    /**
+     * Bytes written per iteration, reported next to the frame rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Written {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = File.createTempFile("recorder-benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+        String basePath = new File(directory, media).getPath();
+
+        if (media.equals("audio")) {
+            fm.icelink.opus.Encoder encoder = new fm.icelink.opus.Encoder(new fm.icelink.AudioConfig(clockRate, channelCount));
+            audioFormat = (AudioFormat) encoder.getOutputFormat();
+            encoder.destroy();
+            audioRecorder = new SegmentedAudioRecorder(basePath, audioFormat);
+            queue = audioRecorder.getQueue();
+        } else {
+            videoRecorder = new SegmentedVideoRecorder(basePath, VideoFormat.getVp8());
+            queue = videoRecorder.getQueue();
+        }
+
+        // A handful of distinct payloads, so the disk does not see one block repeated.
+        keyFrames = new byte[4][];
+        deltaFrames = new byte[4][];
+        for (int i = 0; i < 4; i++) {
+            keyFrames[i] = media.equals("audio") ? createPayload(audioFrameBytes, i, true) : createPayload(videoFrameBytes * 4, i, true);
+            deltaFrames[i] = createPayload(videoFrameBytes, i, false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (totalNanos > 0) {
+            System.out.println(String.format("%s: %.2f MB/s written.", media, totalBytes / (totalNanos / 1e9) / (1024 * 1024)));
+        }
+
+        if (audioRecorder != null) {
+            audioRecorder.destroy();
+        } else {
+            videoRecorder.destroy();
+        }
+        // Once the queue is empty the drain that closes the last segment is ahead of anything queued on the I/O thread.
+        while (queue.getPendingCount() > 0) {
+            Thread.sleep(10);
+        }
+        final CountDownLatch closed = new CountDownLatch(1);
+        RecordingSegments.execute(new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        closed.await(10, TimeUnit.SECONDS);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting(Written written) {
+        written.bytes = 0;
+    }
+
+    /**
+     * One frame, from the media thread's hand-off until it is on disk.
+     */
+    @Benchmark
+    public long frame(Written written) {
+        long target = queue.getWrittenCount() + 1;
+        written.bytes += process();
+        await(target);
+        return target;
+    }
+
+    /**
+     * A burst of frames, from the first hand-off until the last is on disk.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(burstFrames)
+    public long burst(Written written) {
+        long start = System.nanoTime();
+        long target = queue.getWrittenCount() + burstFrames;
+        long bytes = 0;
+        for (int i = 0; i < burstFrames; i++) {
+            bytes += process();
+        }
+        await(target);
+
+        written.bytes += bytes;
+        totalBytes += bytes;
+        totalNanos += System.nanoTime() - start;
+        return target;
+    }
+
+    private int process() {
+        long index = frameCount++;
+        boolean keyFrame = media.equals("audio") || index % keyFrameInterval == 0;
+        byte[] payload = keyFrame ? keyFrames[(int) (index % 4)] : deltaFrames[(int) (index % 4)];
+        long timestamp = index * (media.equals("audio") ? clockRate * frameDuration / 1000 : 90000 / frameRate);
+
+        if (audioRecorder != null) {
+            AudioFrame frame = new AudioFrame(frameDuration, new AudioBuffer(DataBuffer.wrap(payload, 0, payload.length), audioFormat));
+            frame.setTimestamp(timestamp);
+            audioRecorder.processFrame(frame);
+        } else {
+            VideoFrame frame = new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(payload, 0, payload.length), VideoFormat.getVp8()));
+            frame.setTimestamp(timestamp);
+            videoRecorder.processFrame(frame);
+        }
+        return payload.length;
+    }
+
+    private void await(long writtenCount) {
+        if (queue.getDroppedCount() > 0) {
+            throw new IllegalStateException("The recorder dropped frames; the disk cannot keep up.");
+        }
+        while (queue.getWrittenCount() < writtenCount) {
+            Thread.yield();
+        }
+    }
+
+    private static byte[] createPayload(int length, int seed, boolean keyFrame) {
+        byte[] payload = new byte[length];
+        long state = seed * 6364136223846793005L + 1442695040888963407L;
+        for (int i = 0; i < payload.length; i++) {
+            state = state * 6364136223846793005L + 1442695040888963407L;
+            payload[i] = (byte) (state >>> 56);
+        }
+        // VP8 frame tag: the lowest bit of the first byte is 0 for a key frame.
+        payload[0] = (byte) (keyFrame ? payload[0] & ~0x01 : payload[0] | 0x01);
+        return payload;
+    }
+}
@@ -0,0 +1,75 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.Candidate;
+import fm.icelink.SessionDescription;
+
+/**
+ * SessionDescriptionBenchmark
+ *
+ * The JSON round trips every offer, answer and candidate makes through
+ * signalling. The payloads are offer.json and candidate.json, an audio and
+ * video offer as this app sends it; replace them with a capture from a
+ * newer IceLink if its JSON changes, and setup will say if they no longer
+ * parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionDescriptionBenchmark {
+
+    private String offerJson;
+    private String candidateJson;
+
+    @Setup
+    public void setup() throws Exception {
+        offerJson = readResource("offer.json");
+        candidateJson = readResource("candidate.json");
+        if (SessionDescription.fromJson(offerJson) == null) {
+            throw new IllegalStateException("offer.json is not a SessionDescription.");
+        }
+        if (Candidate.fromJson(candidateJson) == null) {
+            throw new IllegalStateException("candidate.json is not a Candidate.");
+        }
+    }
+
+    @Benchmark
+    public String offerRoundTrip() {
+        return SessionDescription.fromJson(offerJson).toJson();
+    }
+
+    @Benchmark
+    public String candidateRoundTrip() {
+        return Candidate.fromJson(candidateJson).toJson();
+    }
+
+    private static String readResource(String name) throws Exception {
+        InputStream input = SessionDescriptionBenchmark.class.getResourceAsStream("/" + name);
+        if (input == null) {
+            throw new IllegalStateException("Missing resource " + name + ".");
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toString("UTF-8");
+        }
+        finally {
+            input.close();
+        }
+    }
+}
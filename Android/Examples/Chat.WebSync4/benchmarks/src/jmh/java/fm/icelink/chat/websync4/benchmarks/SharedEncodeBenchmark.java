@@ -0,0 +1,158 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.DataBuffer;
+import fm.icelink.IVideoOutput;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoEncoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoSink;
+import fm.icelink.chat.websync4.SharedH264Encoder;
+import fm.icelink.chat.websync4.SharedVp8Encoder;
+
+/**
+ * SharedEncodeBenchmark
+ *
+ * Video encode CPU per captured frame for 2, 4 and 8 peers, with and
+ * without App.sharedEncode. Without it local media runs a SharedVp8Encoder
+ * and a SharedH264Encoder, each encoding every frame for the peers that
+ * negotiated its codec; with it VP8 is the only one. keyFrameStorm has
+ * every peer ask for a key frame on every frame, as after a burst of loss,
+ * which the encoders' KeyFrameLimiter turns into one key frame per
+ * interval; unlimitedKeyFrameStorm sends the same requests to plain
+ * encoders. The H.264 encoder needs Cisco's libopenh264 on
+ * java.library.path, where OpenH264Loader puts it on Android.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SharedEncodeBenchmark {
+
+    private static final int width = 640;
+    private static final int height = 480;
+    private static final int keyFrameInterval = 1000;
+    // 90kHz clock at 30 frames per second.
+    private static final int frameTicks = 3000;
+
+    @Param({ "2", "4", "8" })
+    public int peers;
+
+    @Param({ "false", "true" })
+    public boolean sharedEncode;
+
+    private VideoFrame frame;
+    private long timestamp;
+    private VideoEncoder[] sharedEncoders;
+    private VideoEncoder[] plainEncoders;
+    private VideoEncoder[] peerSharedEncoders;
+    private VideoEncoder[] peerPlainEncoders;
+    private CountingSink[] sinks;
+
+    @Setup
+    public void setup() {
+        byte[] i420 = Signals.createI420(width, height, 0);
+        frame = new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(i420, 0, i420.length), VideoFormat.getI420()));
+
+        if (SharedH264Encoder.isEncoded(true, sharedEncode)) {
+            sharedEncoders = new VideoEncoder[] { new SharedVp8Encoder(keyFrameInterval), new SharedH264Encoder(keyFrameInterval) };
+            plainEncoders = new VideoEncoder[] { new fm.icelink.vp8.Encoder(), new fm.icelink.openh264.Encoder() };
+        } else {
+            sharedEncoders = new VideoEncoder[] { new SharedVp8Encoder(keyFrameInterval) };
+            plainEncoders = new VideoEncoder[] { new fm.icelink.vp8.Encoder() };
+        }
+
+        // Peers split evenly between the codecs, each fed by its codec's encoder like a connection's stream.
+        peerSharedEncoders = new VideoEncoder[peers];
+        peerPlainEncoders = new VideoEncoder[peers];
+        sinks = new CountingSink[peers * 2];
+        for (int i = 0; i < peers; i++) {
+            peerSharedEncoders[i] = sharedEncoders[i % sharedEncoders.length];
+            peerPlainEncoders[i] = plainEncoders[i % plainEncoders.length];
+            sinks[i] = new CountingSink(peerSharedEncoders[i]);
+            sinks[peers + i] = new CountingSink(peerPlainEncoders[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (CountingSink sink : sinks) {
+            sink.destroy();
+        }
+        for (VideoEncoder encoder : sharedEncoders) {
+            encoder.destroy();
+        }
+        for (VideoEncoder encoder : plainEncoders) {
+            encoder.destroy();
+        }
+    }
+
+    @Benchmark
+    public long encode() {
+        return encode(sharedEncoders, 0);
+    }
+
+    @Benchmark
+    public long keyFrameStorm() {
+        for (VideoEncoder encoder : peerSharedEncoders) {
+            encoder.setForceKeyFrame(true);
+        }
+        return encode(sharedEncoders, 0);
+    }
+
+    @Benchmark
+    public long unlimitedKeyFrameStorm() {
+        for (VideoEncoder encoder : peerPlainEncoders) {
+            encoder.setForceKeyFrame(true);
+        }
+        return encode(plainEncoders, peers);
+    }
+
+    private long encode(VideoEncoder[] encoders, int firstSink) {
+        timestamp += frameTicks;
+        frame.setTimestamp(timestamp);
+        for (VideoEncoder encoder : encoders) {
+            encoder.processFrame(frame);
+        }
+        return sinks[firstSink].getBytes();
+    }
+
+    /**
+     * Stands in for a connection's stream, counting what it is sent.
+     */
+    private static class CountingSink extends VideoSink {
+        private long bytes;
+
+        CountingSink(IVideoOutput input) {
+            super((VideoFormat) input.getOutputFormat());
+            addInput(input);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            bytes += buffer.getDataBuffer().getLength();
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Benchmark Counting Sink";
+        }
+    }
+}
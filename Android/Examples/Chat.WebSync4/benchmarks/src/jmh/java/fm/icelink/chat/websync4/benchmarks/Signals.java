@@ -0,0 +1,69 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+/**
+ * Signals
+ *
+ * Synthetic media for the benchmarks, so results do not depend on capture
+ * hardware or sample files.
+ */
+public class Signals {
+
+    /**
+     * A sine tone as interleaved 16-bit little-endian PCM.
+     *
+     * @param duration Length in milliseconds.
+     * @param amplitude Peak level, 0 to 1.
+     */
+    public static byte[] createPcm(int clockRate, int channelCount, int duration, double frequency, double amplitude) {
+        int samples = clockRate * duration / 1000;
+        byte[] pcm = new byte[samples * channelCount * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(Math.sin(2 * Math.PI * frequency * i / clockRate) * amplitude * Short.MAX_VALUE);
+            for (int channel = 0; channel < channelCount; channel++) {
+                int offset = (i * channelCount + channel) * 2;
+                pcm[offset] = (byte) value;
+                pcm[offset + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * A moving gradient as I420: luma ramps across the frame, chroma down it.
+     */
+    public static byte[] createI420(int width, int height, int frame) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        byte[] i420 = new byte[width * height + 2 * chromaWidth * chromaHeight];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                i420[y * width + x] = (byte) (x + y + frame);
+            }
+        }
+        int u = width * height;
+        int v = u + chromaWidth * chromaHeight;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                i420[u + y * chromaWidth + x] = (byte) (128 + y - frame);
+                i420[v + y * chromaWidth + x] = (byte) (128 - x + frame);
+            }
+        }
+        return i420;
+    }
+
+    /**
+     * The same gradient as NV21, the Android camera's format: luma, then interleaved V and U.
+     */
+    public static byte[] createNv21(int width, int height, int frame) {
+        byte[] i420 = createI420(width, height, frame);
+        byte[] nv21 = new byte[i420.length];
+        int lumaLength = width * height;
+        int chromaLength = lumaLength / 4;
+        System.arraycopy(i420, 0, nv21, 0, lumaLength);
+        for (int i = 0; i < chromaLength; i++) {
+            nv21[lumaLength + i * 2] = i420[lumaLength + chromaLength + i];
+            nv21[lumaLength + i * 2 + 1] = i420[lumaLength + i];
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,89 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.chat.websync4.ConnectionSamples;
+
+/**
+ * StatsRingBenchmark
+ *
+ * The overhead StatsCollector adds to a session, through the
+ * ConnectionSamples it keeps per connection: sample is one sampling tick
+ * for every connection, turning the counters IceLink's getStats returns
+ * into rates and adding every metric to its StatsRing; report is a tick
+ * followed by the percentiles of every window, as each report interval
+ * does. The stats request itself is IceLink's and is not included. Run
+ * with -prof gc to confirm a tick does not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatsRingBenchmark {
+
+    // StatsCollector's default interval.
+    private static final long interval = 1000000000L;
+
+    // A mesh session's connections, each with StatsCollector's default window and a long one.
+    @Param({ "1", "8" })
+    public int connections;
+
+    @Param({ "60", "600" })
+    public int windowSize;
+
+    private ConnectionSamples[] samples;
+    private final double[] p50 = new double[ConnectionSamples.MetricCount];
+    private final double[] p95 = new double[ConnectionSamples.MetricCount];
+    private final double[] p99 = new double[ConnectionSamples.MetricCount];
+    private final double[] last = new double[ConnectionSamples.MetricCount];
+    private long tick;
+
+    @Setup
+    public void setup() {
+        samples = new ConnectionSamples[connections];
+        for (int i = 0; i < connections; i++) {
+            samples[i] = new ConnectionSamples(windowSize);
+        }
+        // Fill every window, as in a session that has run for a while.
+        for (int j = 0; j <= windowSize; j++) {
+            sample();
+        }
+    }
+
+    @Benchmark
+    public int sample() {
+        long n = ++tick;
+        int rated = 0;
+        for (int i = 0; i < connections; i++) {
+            // About 1.5 Mbps each way at 30 fps, with a little loss and varying round trip time.
+            long variation = (n * 7919 + i * 104729) % 1000;
+            if (samples[i].add(n * interval, 40 + variation / 20.0, 5 + variation / 200.0,
+                    n * 190000 + variation * 10, n * 185000 + variation * 10,
+                    n * 2 + variation / 500, n * 160, n * 165, n * 2 + variation / 400,
+                    n * 30, n * 30 * 4000000L, n * 30)) {
+                rated++;
+            }
+        }
+        return rated;
+    }
+
+    @Benchmark
+    public double report() {
+        // A tick in between, so every report sorts afresh as it does in a session.
+        sample();
+        double sum = 0;
+        for (int i = 0; i < connections; i++) {
+            sum += samples[i].summarize(p50, p95, p99, last);
+            sum += p99[ConnectionSamples.RoundTripTime];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,102 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.chat.websync4.UiEventQueue;
+
+/**
+ * UiEventQueueBenchmark
+ *
+ * Handing a burst of 10,000 chat events to the UI thread: UiEventDispatcher's
+ * lock-free queue drained once per frame, against posting a runnable per
+ * event to a locked queue, which is what Handler.post and runOnUiThread do.
+ * The score is per burst; the dispatch count each returns is the number of
+ * times the chat list would be laid out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UiEventQueueBenchmark {
+
+    private static final int messageCount = 10000;
+
+    // Events that arrive per 16ms frame; the whole burst in one frame, or a steady trickle.
+    @Param({ "10000", "100" })
+    public int eventsPerFrame;
+
+    private UiEventQueue<String> queue;
+    private ArrayDeque<Runnable> handlerQueue;
+    private String[] events;
+    private int dispatched;
+
+    @Setup
+    public void setup() {
+        queue = new UiEventQueue<>();
+        handlerQueue = new ArrayDeque<>();
+        events = new String[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            events[i] = "Message " + i;
+        }
+    }
+
+    @Benchmark
+    public int perFrame() {
+        int dispatches = 0;
+        for (int i = 0; i < messageCount; i++) {
+            queue.add(events[i]);
+            if ((i + 1) % eventsPerFrame == 0 || i == messageCount - 1) {
+                ArrayList<String> batch = queue.drain();
+                dispatch(batch);
+                dispatches++;
+            }
+        }
+        return dispatches;
+    }
+
+    @Benchmark
+    public int perEvent() {
+        int dispatches = 0;
+        for (int i = 0; i < messageCount; i++) {
+            final String event = events[i];
+            synchronized (handlerQueue) {
+                handlerQueue.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<String> batch = new ArrayList<>(1);
+                        batch.add(event);
+                        dispatch(batch);
+                    }
+                });
+            }
+            if ((i + 1) % eventsPerFrame == 0 || i == messageCount - 1) {
+                Runnable runnable;
+                while (true) {
+                    synchronized (handlerQueue) {
+                        runnable = handlerQueue.poll();
+                    }
+                    if (runnable == null) {
+                        break;
+                    }
+                    runnable.run();
+                    dispatches++;
+                }
+            }
+        }
+        return dispatches;
+    }
+
+    private void dispatch(ArrayList<String> batch) {
+        dispatched += batch.size();
+    }
+}
@@ -0,0 +1,124 @@
+package fm.icelink.chat.websync4.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.DataBuffer;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoPipe;
+import fm.icelink.VideoSink;
+import fm.icelink.yuv.ImageConverter;
+import fm.icelink.yuv.ImageScaler;
+
+/**
+ * VideoPipeBenchmark
+ *
+ * libyuv through IceLink's pipes, one frame per operation: the camera's
+ * NV21 to I420 conversion, I420 to ARGB as for a software view, and the
+ * half-size scale a simulcast layer or a smaller capture profile uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VideoPipeBenchmark {
+
+    @Param({ "640x480", "1280x720" })
+    public String resolution;
+
+    private VideoFrame nv21Frame;
+    private VideoFrame i420Frame;
+    private ImageConverter nv21ToI420;
+    private ImageConverter i420ToArgb;
+    private ImageScaler halfScale;
+    private CountingSink i420Sink;
+    private CountingSink argbSink;
+    private CountingSink scaledSink;
+
+    @Setup
+    public void setup() {
+        int separator = resolution.indexOf('x');
+        int width = Integer.parseInt(resolution.substring(0, separator));
+        int height = Integer.parseInt(resolution.substring(separator + 1));
+
+        byte[] nv21 = Signals.createNv21(width, height, 0);
+        byte[] i420 = Signals.createI420(width, height, 0);
+        nv21Frame = new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(nv21, 0, nv21.length), VideoFormat.getNv21()));
+        i420Frame = new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(i420, 0, i420.length), VideoFormat.getI420()));
+
+        nv21ToI420 = new ImageConverter(VideoFormat.getNv21(), VideoFormat.getI420());
+        i420Sink = new CountingSink(VideoFormat.getI420(), nv21ToI420);
+
+        i420ToArgb = new ImageConverter(VideoFormat.getI420(), VideoFormat.getArgb());
+        argbSink = new CountingSink(VideoFormat.getArgb(), i420ToArgb);
+
+        halfScale = new ImageScaler(0.5);
+        scaledSink = new CountingSink(VideoFormat.getI420(), halfScale);
+    }
+
+    @TearDown
+    public void tearDown() {
+        i420Sink.destroy();
+        argbSink.destroy();
+        scaledSink.destroy();
+        nv21ToI420.destroy();
+        i420ToArgb.destroy();
+        halfScale.destroy();
+    }
+
+    @Benchmark
+    public long convertNv21ToI420() {
+        nv21ToI420.processFrame(nv21Frame);
+        return i420Sink.getPixels();
+    }
+
+    @Benchmark
+    public long convertI420ToArgb() {
+        i420ToArgb.processFrame(i420Frame);
+        return argbSink.getPixels();
+    }
+
+    @Benchmark
+    public long scaleHalf() {
+        halfScale.processFrame(i420Frame);
+        return scaledSink.getPixels();
+    }
+
+    /**
+     * Counts what comes out of a pipe, so the work is not optimised away.
+     */
+    private static class CountingSink extends VideoSink {
+        private long pixels;
+
+        CountingSink(VideoFormat format, VideoPipe input) {
+            super(format);
+            addInput(input);
+        }
+
+        long getPixels() {
+            return pixels;
+        }
+
+        @Override
+        protected void doProcessFrame(VideoFrame frame, VideoBuffer buffer) {
+            pixels += buffer.getWidth() * buffer.getHeight();
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Benchmark Counting Sink";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package fm.icelink.chat.websync4.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioConfig;
+import fm.icelink.AudioDecoder;
+import fm.icelink.AudioFormat;
+import fm.icelink.AudioFrame;
+import fm.icelink.AudioSink;
+import fm.icelink.VideoDecoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoPipe;
+import fm.icelink.VideoSink;
+import fm.icelink.ViewSink;
+
+/**
+ * HeadlessRemoteMedia
+ *
+ * Remote media for a headless participant. Audio and video are decoded as
+ * on a device, so receiving costs what it would, and then counted and
+ * dropped instead of being played or drawn.
+ */
+public class HeadlessRemoteMedia extends fm.icelink.RtcRemoteMedia<Object> {
+
+    private final AtomicLong audioFrames = new AtomicLong();
+
+    /**
+     * @param disableVideo Whether to receive audio only.
+     */
+    public HeadlessRemoteMedia(boolean disableVideo) {
+        super(false, disableVideo, null);
+
+        super.initialize();
+    }
+
+    /**
+     * Decoded audio frames received so far.
+     */
+    public long getAudioFrameCount() {
+        return audioFrames.get();
+    }
+
+    @Override
+    protected ViewSink<Object> createViewSink() {
+        return null;
+    }
+
+    @Override
+    protected AudioSink createAudioSink(AudioConfig audioConfig) {
+        return new CountingAudioSink(new fm.icelink.pcm.Format(audioConfig.getClockRate(), audioConfig.getChannelCount()));
+    }
+
+    @Override
+    protected AudioDecoder createOpusDecoder(AudioConfig audioConfig) {
+        return new fm.icelink.opus.Decoder(audioConfig);
+    }
+
+    @Override
+    protected VideoDecoder createVp8Decoder() {
+        return new fm.icelink.vp8.Decoder();
+    }
+
+    @Override
+    protected VideoDecoder createH264Decoder() {
+        return null;
+    }
+
+    @Override
+    protected VideoDecoder createVp9Decoder() {
+        return null;
+    }
+
+    @Override
+    protected VideoPipe createImageConverter(VideoFormat videoFormat) {
+        return new fm.icelink.yuv.ImageConverter(videoFormat);
+    }
+
+    @Override
+    protected AudioSink createAudioRecorder(AudioFormat audioFormat) {
+        return null;
+    }
+
+    @Override
+    protected VideoSink createVideoRecorder(VideoFormat videoFormat) {
+        return null;
+    }
+
+    /**
+     * Stands in for AudioTrackSink: counts frames instead of playing them.
+     */
+    private class CountingAudioSink extends AudioSink {
+
+        CountingAudioSink(AudioFormat format) {
+            super(format);
+        }
+
+        @Override
+        protected void doProcessFrame(AudioFrame frame, AudioBuffer buffer) {
+            audioFrames.incrementAndGet();
+        }
+
+        @Override
+        protected void doDestroy() { }
+
+        public String getLabel() {
+            return "Headless Audio Sink";
+        }
+    }
+}
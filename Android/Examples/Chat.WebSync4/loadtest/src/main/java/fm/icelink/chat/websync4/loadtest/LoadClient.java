@@ -0,0 +1,293 @@
+package fm.icelink.chat.websync4.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.IAction1;
+import fm.icelink.IceServer;
+import fm.icelink.chat.websync4.IceServerManager;
+import fm.icelink.chat.websync4.LocalStunServer;
+import fm.icelink.chat.websync4.LoopbackWebSyncServer;
+
+/**
+ * LoadClient
+ *
+ * Runs a number of headless participants against a WebSync server (or an
+ * in-process LoopbackWebSyncServer), joining them at a fixed rate into
+ * sessions of a fixed size, has them chat for a while once every
+ * connection is up, and then reports join latency, time to Connected and
+ * chat throughput.
+ */
+public class LoadClient {
+
+    private static final String usage =
+            "Usage: loadtest [options]\n" +
+            "  --participants N       participants to run (default 10)\n" +
+            "  --session-size N       participants per session (default 2)\n" +
+            "  --join-rate R          participants joining per second (default 2)\n" +
+            "  --chat-rate R          chat messages per second per participant (default 1)\n" +
+            "  --duration S           seconds to chat once every connection is up (default 30)\n" +
+            "  --server URL           WebSync server (default: in-process loopback)\n" +
+            "  --manual               use ManualSignalling instead of AutoSignalling\n" +
+            "  --video WxH@FPS        send and receive video, e.g. 320x240@15 (default: audio only)\n" +
+            "  --ice-server URL [USER PASS]  STUN/TURN server for the pool; repeatable\n" +
+            "  --local-stun N         add N in-process STUN servers, 20ms apart, to the pool\n" +
+            "  --ice-count N          servers per type and transport given to connections (default 1)\n" +
+            "  --report FILE          also write the report as JSON\n";
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LoadClient");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private int participantCount = 10;
+    private int sessionSize = 2;
+    private double joinRate = 2;
+    private double chatRate = 1;
+    private int duration = 30;
+    private String serverUrl;
+    private boolean manual;
+    private boolean disableVideo = true;
+    private int width = 320;
+    private int height = 240;
+    private int frameRate = 15;
+    private ArrayList<IceServer> iceServers = new ArrayList<>();
+    private int localStunCount;
+    private int iceCount = 1;
+    private String reportPath;
+
+    public static void main(String[] args) throws Exception {
+        LoadClient client = new LoadClient();
+        try {
+            if (!client.parse(args)) {
+                System.out.print(usage);
+                return;
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(usage);
+            System.exit(-1);
+        }
+        System.exit(client.run());
+    }
+
+    private boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.isEmpty()) {
+                continue;
+            }
+            if (arg.equals("--help") || arg.equals("-h")) {
+                return false;
+            } else if (arg.equals("--manual")) {
+                manual = true;
+            } else if (arg.equals("--ice-server")) {
+                String url = value(args, ++i, arg);
+                if (i + 2 < args.length && !args[i + 1].startsWith("--")) {
+                    iceServers.add(new IceServer(url, args[i + 1], args[i + 2]));
+                    i += 2;
+                } else {
+                    iceServers.add(new IceServer(url));
+                }
+            } else {
+                String value = value(args, ++i, arg);
+                try {
+                    if (arg.equals("--participants")) {
+                        participantCount = Integer.parseInt(value);
+                    } else if (arg.equals("--session-size")) {
+                        sessionSize = Integer.parseInt(value);
+                    } else if (arg.equals("--join-rate")) {
+                        joinRate = Double.parseDouble(value);
+                    } else if (arg.equals("--chat-rate")) {
+                        chatRate = Double.parseDouble(value);
+                    } else if (arg.equals("--duration")) {
+                        duration = Integer.parseInt(value);
+                    } else if (arg.equals("--server")) {
+                        serverUrl = value;
+                    } else if (arg.equals("--video")) {
+                        String[] size = value.split("[x@]");
+                        width = Integer.parseInt(size[0]) & ~1;
+                        height = Integer.parseInt(size[1]) & ~1;
+                        if (size.length > 2) {
+                            frameRate = Integer.parseInt(size[2]);
+                        }
+                        disableVideo = false;
+                    } else if (arg.equals("--local-stun")) {
+                        localStunCount = Integer.parseInt(value);
+                    } else if (arg.equals("--ice-count")) {
+                        iceCount = Integer.parseInt(value);
+                    } else if (arg.equals("--report")) {
+                        reportPath = value;
+                    } else {
+                        throw new IllegalArgumentException("Unknown option " + arg + ".");
+                    }
+                }
+                catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IllegalArgumentException("Invalid value " + value + " for " + arg + ".");
+                }
+            }
+        }
+        if (participantCount < 1 || sessionSize < 1 || joinRate <= 0 || duration < 0) {
+            throw new IllegalArgumentException("Participants, session size and join rate must be positive.");
+        }
+        return true;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option + ".");
+        }
+        return args[index];
+    }
+
+    private int run() throws Exception {
+        LoopbackWebSyncServer loopback = null;
+        if (serverUrl == null) {
+            loopback = LoopbackWebSyncServer.start();
+            serverUrl = loopback.getUrl();
+        }
+
+        // Each participant connects to every other one in its session.
+        int fullSessions = participantCount / sessionSize;
+        int lastSession = participantCount % sessionSize;
+        int connectionCount = fullSessions * sessionSize * (sessionSize - 1) + lastSession * (lastSession - 1);
+        final LoadReport report = new LoadReport(participantCount, connectionCount);
+        ArrayList<LocalStunServer> localStunServers = new ArrayList<>();
+        for (int i = 0; i < localStunCount; i++) {
+            LocalStunServer stunServer = LocalStunServer.start();
+            stunServer.setDelay(i * 20);
+            localStunServers.add(stunServer);
+            iceServers.add(new IceServer(stunServer.getStunUrl()));
+        }
+        IceServer[] servers = iceServers.isEmpty() ? null : selectIceServers(iceServers.toArray(new IceServer[iceServers.size()]));
+
+        System.out.println(String.format(Locale.US, "%d participant(s) in sessions of %d, joining at %.1f/s, chatting at %.2f/s each, %s, against %s.",
+                participantCount, sessionSize, joinRate, chatRate,
+                disableVideo ? "audio only" : String.format(Locale.US, "video %dx%d@%d", width, height, frameRate),
+                loopback != null ? "the loopback server" : serverUrl));
+
+        Random random = new Random();
+        final ArrayList<Participant> participants = new ArrayList<>();
+        final CountDownLatch joined = new CountDownLatch(participantCount);
+        long joinPeriod = (long) (1000000 / joinRate);
+        long start = System.nanoTime();
+        String sessionId = null;
+        for (int i = 0; i < participantCount; i++) {
+            if (i % sessionSize == 0) {
+                sessionId = String.format(Locale.US, "%06d", random.nextInt(1000000));
+            }
+            final Participant participant = new Participant(serverUrl, sessionId, "load-" + (i + 1), manual, servers,
+                    disableVideo, width, height, frameRate, report);
+            participants.add(participant);
+
+            long delay = start + i * joinPeriod * 1000 - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            participant.joinAsync().then(new IAction1<Object>() {
+                public void invoke(Object o) {
+                    participant.startChat(scheduler, chatRate);
+                    joined.countDown();
+                }
+            }, new IAction1<Exception>() {
+                public void invoke(Exception ex) {
+                    fm.icelink.Log.error("Participant " + participant.getName() + " could not join.", ex);
+                    joined.countDown();
+                }
+            });
+        }
+
+        if (!joined.await(60, TimeUnit.SECONDS)) {
+            System.err.println("Some participants had not joined or failed after 60 seconds.");
+        }
+        // Chat rates are measured with the session fully up, not over the join ramp.
+        if (!report.awaitConnected(60, TimeUnit.SECONDS)) {
+            System.err.println("Some connections had not connected after 60 seconds; chat rates are measured from now.");
+        }
+        report.startChatSpan(System.nanoTime());
+        TimeUnit.SECONDS.sleep(duration);
+
+        for (Participant participant : participants) {
+            participant.stopChat();
+        }
+        report.endChatSpan(System.nanoTime());
+
+        final CountDownLatch left = new CountDownLatch(participants.size());
+        for (Participant participant : participants) {
+            participant.leaveAsync().then(new IAction1<Object>() {
+                public void invoke(Object o) {
+                    left.countDown();
+                }
+            }, new IAction1<Exception>() {
+                public void invoke(Exception ex) {
+                    left.countDown();
+                }
+            });
+        }
+        left.await(30, TimeUnit.SECONDS);
+
+        System.out.print(report.toText());
+        for (LocalStunServer stunServer : localStunServers) {
+            stunServer.stop();
+        }
+        if (loopback != null) {
+            System.out.println(String.format(Locale.US, "Server:       %d requests, %d publishes, %d deliveries",
+                    loopback.getRequestCount(), loopback.getPublishCount(), loopback.getDeliveryCount()));
+            loopback.stop();
+        }
+        if (reportPath != null) {
+            OutputStream output = new FileOutputStream(new File(reportPath));
+            try {
+                output.write(report.toJson().getBytes("UTF-8"));
+            }
+            finally {
+                output.close();
+            }
+        }
+
+        // Non-zero when anything failed, so a script can stop on it.
+        return report.getJoinFailureCount() + report.getConnectionFailureCount() > 0 ? 1 : 0;
+    }
+
+    /**
+     * Probes the pool as the app does, and prints the ranking.
+     */
+    private IceServer[] selectIceServers(IceServer[] pool) throws Exception {
+        IceServerManager manager = new IceServerManager(pool);
+        manager.setMaxStunServers(iceCount);
+        manager.setMaxTurnServers(iceCount);
+
+        final IceServer[][] selected = new IceServer[1][];
+        final CountDownLatch probed = new CountDownLatch(1);
+        manager.refresh().then(new IAction1<IceServer[]>() {
+            public void invoke(IceServer[] servers) {
+                selected[0] = servers;
+                probed.countDown();
+            }
+        });
+        if (!probed.await(manager.getTimeout() * 2, TimeUnit.MILLISECONDS)) {
+            return pool;
+        }
+
+        for (IceServerManager.Probe probe : manager.getProbes()) {
+            System.out.println(String.format(Locale.US, "ICE server %-50s %s", probe.getUrl(),
+                    probe.getRoundTripTime() < 0 ? "no answer" : String.format(Locale.US, "%.1f ms", probe.getRoundTripTime())));
+        }
+        return selected[0];
+    }
+}
@@ -0,0 +1,211 @@
+package fm.icelink.chat.websync4.loadtest;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fm.icelink.chat.websync4.StatsRing;
+
+/**
+ * LoadReport
+ *
+ * What a load run measured: how long joins took (to the server, and to the
+ * end of the join), how long each connection took to reach Connected, and
+ * how many chat messages went out and came back. Join and first-connect
+ * latencies are kept whole for the run, sized up front from the participant
+ * and connection counts; reconnects, which a run cannot count up front, go
+ * in a ring of their own that keeps the most recent. Chat rates cover the
+ * span from the last first connect, once the session is fully up, to the
+ * end of chat.
+ */
+public class LoadReport {
+
+    private final StatsRing connectLatencies;
+    private final StatsRing joinLatencies;
+    private final StatsRing connectedLatencies;
+    private final StatsRing reconnectedLatencies;
+    private final CountDownLatch allConnected;
+
+    private final AtomicLong joinFailures = new AtomicLong();
+    private final AtomicLong reconnections = new AtomicLong();
+    private final AtomicLong connectionFailures = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong audioFramesReceived = new AtomicLong();
+
+    private long chatStartTime;
+    private long chatEndTime;
+    private long messagesSentAtStart;
+    private long messagesReceivedAtStart;
+
+    /**
+     * @param participants The most joins the run makes.
+     * @param connections The most connections the run makes.
+     */
+    public LoadReport(int participants, int connections) {
+        connectLatencies = new StatsRing(participants);
+        joinLatencies = new StatsRing(participants);
+        connectedLatencies = new StatsRing(Math.max(1, connections));
+        reconnectedLatencies = new StatsRing(Math.max(1, connections));
+        allConnected = new CountDownLatch(connections);
+    }
+
+    /**
+     * @param elapsed Milliseconds from joinAsync to the WebSync connect.
+     */
+    public synchronized void addConnectLatency(long elapsed) {
+        connectLatencies.add(elapsed);
+    }
+
+    /**
+     * @param elapsed Milliseconds from joinAsync to joined.
+     */
+    public synchronized void addJoinLatency(long elapsed) {
+        joinLatencies.add(elapsed);
+    }
+
+    public void addJoinFailure() {
+        joinFailures.incrementAndGet();
+    }
+
+    /**
+     * Records a peer's first connection. The last one starts the chat span.
+     *
+     * @param elapsed Milliseconds from creating the connection to its Connected state.
+     */
+    public synchronized void addConnectedLatency(long elapsed) {
+        connectedLatencies.add(elapsed);
+        allConnected.countDown();
+        if (allConnected.getCount() == 0) {
+            startChatSpan(System.nanoTime());
+        }
+    }
+
+    /**
+     * @param elapsed Milliseconds from creating a replacement connection to its Connected state.
+     */
+    public synchronized void addReconnectedLatency(long elapsed) {
+        reconnectedLatencies.add(elapsed);
+        reconnections.incrementAndGet();
+    }
+
+    /**
+     * Waits for every connection the run makes to have connected once.
+     *
+     * @return Whether they all did in time.
+     */
+    public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        return allConnected.await(timeout, unit);
+    }
+
+    public void addConnectionFailure() {
+        connectionFailures.incrementAndGet();
+    }
+
+    public void addMessageSent() {
+        messagesSent.incrementAndGet();
+    }
+
+    public void addMessageReceived() {
+        messagesReceived.incrementAndGet();
+    }
+
+    public void addAudioFrames(long count) {
+        audioFramesReceived.addAndGet(count);
+    }
+
+    /**
+     * Starts the span chat rates are computed over, unless the last
+     * connection already has.
+     */
+    public synchronized void startChatSpan(long time) {
+        if (chatStartTime != 0) {
+            return;
+        }
+        chatStartTime = time;
+        messagesSentAtStart = messagesSent.get();
+        messagesReceivedAtStart = messagesReceived.get();
+    }
+
+    public synchronized void endChatSpan(long time) {
+        chatEndTime = time;
+    }
+
+    public synchronized int getJoinCount() {
+        return joinLatencies.getCount();
+    }
+
+    public long getJoinFailureCount() {
+        return joinFailures.get();
+    }
+
+    public synchronized int getConnectedCount() {
+        return connectedLatencies.getCount();
+    }
+
+    public long getReconnectedCount() {
+        return reconnections.get();
+    }
+
+    public long getConnectionFailureCount() {
+        return connectionFailures.get();
+    }
+
+    public synchronized String toText() {
+        double seconds = Math.max(0.001, (chatEndTime - chatStartTime) / 1e9);
+        long sent = messagesSent.get() - messagesSentAtStart;
+        long received = messagesReceived.get() - messagesReceivedAtStart;
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "Joins:        %d ok, %d failed%n", joinLatencies.getCount(), joinFailures.get()));
+        appendLatency(text, "  connect", connectLatencies);
+        appendLatency(text, "  joined", joinLatencies);
+        text.append(String.format(Locale.US, "Connections:  %d connected, %d reconnected, %d failed%n",
+                connectedLatencies.getCount(), reconnections.get(), connectionFailures.get()));
+        appendLatency(text, "  connected", connectedLatencies);
+        appendLatency(text, "  reconnect", reconnectedLatencies);
+        text.append(String.format(Locale.US, "Chat:         %d sent, %d received; %.1f/s sent, %.1f/s received over %.1f s fully connected%n",
+                messagesSent.get(), messagesReceived.get(), sent / seconds, received / seconds, seconds));
+        text.append(String.format(Locale.US, "Audio:        %d frames received%n", audioFramesReceived.get()));
+        return text.toString();
+    }
+
+    public synchronized String toJson() {
+        double seconds = Math.max(0.001, (chatEndTime - chatStartTime) / 1e9);
+        long sent = messagesSent.get() - messagesSentAtStart;
+        long received = messagesReceived.get() - messagesReceivedAtStart;
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"joins\":").append(joinLatencies.getCount());
+        json.append(",\"joinFailures\":").append(joinFailures.get());
+        appendLatencyJson(json, "connectMs", connectLatencies);
+        appendLatencyJson(json, "joinMs", joinLatencies);
+        json.append(",\"connections\":").append(connectedLatencies.getCount());
+        json.append(",\"connectionFailures\":").append(connectionFailures.get());
+        appendLatencyJson(json, "connectedMs", connectedLatencies);
+        json.append(",\"reconnections\":").append(reconnections.get());
+        appendLatencyJson(json, "reconnectedMs", reconnectedLatencies);
+        json.append(",\"messagesSent\":").append(messagesSent.get());
+        json.append(",\"messagesReceived\":").append(messagesReceived.get());
+        json.append(",\"chatSeconds\":").append(String.format(Locale.US, "%.2f", seconds));
+        json.append(",\"messagesSentPerSecond\":").append(String.format(Locale.US, "%.2f", sent / seconds));
+        json.append(",\"messagesReceivedPerSecond\":").append(String.format(Locale.US, "%.2f", received / seconds));
+        json.append(",\"audioFramesReceived\":").append(audioFramesReceived.get());
+        return json.append("}").toString();
+    }
+
+    private static void appendLatency(StringBuilder text, String label, StatsRing latencies) {
+        if (latencies.getCount() == 0) {
+            return;
+        }
+        text.append(String.format(Locale.US, "%-13s p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, max %.0f ms%n", label + ":",
+                latencies.getPercentile(50), latencies.getPercentile(95), latencies.getPercentile(99), latencies.getPercentile(100)));
+    }
+
+    private static void appendLatencyJson(StringBuilder json, String key, StatsRing latencies) {
+        if (latencies.getCount() == 0) {
+            return;
+        }
+        json.append(String.format(Locale.US, ",\"%s\":{\"p50\":%.0f,\"p95\":%.0f,\"p99\":%.0f,\"max\":%.0f}", key,
+                latencies.getPercentile(50), latencies.getPercentile(95), latencies.getPercentile(99), latencies.getPercentile(100)));
+    }
+}
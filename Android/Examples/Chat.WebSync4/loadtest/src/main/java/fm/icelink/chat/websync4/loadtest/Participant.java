@@ -0,0 +1,224 @@
+package fm.icelink.chat.websync4.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.AudioStream;
+import fm.icelink.Connection;
+import fm.icelink.ConnectionState;
+import fm.icelink.Future;
+import fm.icelink.IAction1;
+import fm.icelink.IAction2;
+import fm.icelink.IFunction1;
+import fm.icelink.IceServer;
+import fm.icelink.Promise;
+import fm.icelink.Stream;
+import fm.icelink.VideoStream;
+import fm.icelink.chat.websync4.AutoSignalling;
+import fm.icelink.chat.websync4.ManualSignalling;
+import fm.icelink.chat.websync4.Signalling;
+import fm.icelink.websync4.PeerClient;
+
+/**
+ * Participant
+ *
+ * One headless participant: synthetic local media, a Signalling (auto or
+ * manual) joined to a session, a connection to each peer, and chat sent at
+ * a fixed rate. What it sees is recorded in the shared LoadReport.
+ */
+public class Participant {
+
+    private final String name;
+    private final LoadReport report;
+    private final IceServer[] iceServers;
+    private final boolean disableVideo;
+    private final SyntheticLocalMedia localMedia;
+    private final Signalling signalling;
+    private final ArrayList<HeadlessRemoteMedia> remoteMedias = new ArrayList<>();
+    // Instance ids of the remote clients connected to at least once, to tell
+    // reconnects apart; a reconnect is a new Connection with a new id.
+    private final HashSet<String> connectedPeers = new HashSet<>();
+
+    private ScheduledFuture<?> chatTimer;
+    private int chatSequence;
+
+    /**
+     * @param manual Whether to use ManualSignalling (offer/answer over WebSync) instead of AutoSignalling.
+     * @param iceServers STUN/TURN servers for the connections, or null for host candidates only.
+     * @param disableVideo Whether to send and receive audio only.
+     */
+    public Participant(String serverUrl, String sessionId, String name, boolean manual, IceServer[] iceServers,
+                       boolean disableVideo, int width, int height, int frameRate, LoadReport report) {
+        this.name = name;
+        this.report = report;
+        this.iceServers = iceServers;
+        this.disableVideo = disableVideo;
+
+        localMedia = new SyntheticLocalMedia(disableVideo, width, height, frameRate);
+
+        IFunction1<PeerClient, Connection> createConnection = new IFunction1<PeerClient, Connection>() {
+            public Connection invoke(PeerClient remoteClient) {
+                return connection(remoteClient);
+            }
+        };
+        IAction2<String, String> onReceivedText = new IAction2<String, String>() {
+            public void invoke(String userName, String message) {
+                Participant.this.report.addMessageReceived();
+            }
+        };
+        signalling = manual ?
+                new ManualSignalling(serverUrl, sessionId, name, createConnection, onReceivedText) :
+                new AutoSignalling(serverUrl, sessionId, name, createConnection, onReceivedText);
+        signalling.setPipelineJoin(true);
+        signalling.setOnJoinStageListener(new Signalling.OnJoinStageListener() {
+            public void onJoinStage(String stage, long elapsed) {
+                if (stage.equals("connect")) {
+                    Participant.this.report.addConnectLatency(elapsed);
+                } else if (stage.equals("joined")) {
+                    Participant.this.report.addJoinLatency(elapsed);
+                }
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Starts the synthetic media, then joins the session.
+     */
+    public Future<Object> joinAsync() {
+        final Promise<Object> promise = new Promise<Object>();
+        localMedia.start().then(new IAction1<fm.icelink.LocalMedia>() {
+            public void invoke(fm.icelink.LocalMedia media) {
+                signalling.joinAsync().then(new IAction1<Object>() {
+                    public void invoke(Object o) {
+                        promise.resolve(null);
+                    }
+                }, new IAction1<Exception>() {
+                    public void invoke(Exception ex) {
+                        report.addJoinFailure();
+                        promise.reject(ex);
+                    }
+                });
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                report.addJoinFailure();
+                promise.reject(ex);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Sends a chat message every 1/rate seconds, starting at a random
+     * point in the first period so participants do not send in lockstep.
+     */
+    public synchronized void startChat(ScheduledExecutorService scheduler, double messagesPerSecond) {
+        if (messagesPerSecond <= 0 || chatTimer != null) {
+            return;
+        }
+        long period = Math.max(1, (long) (1000000 / messagesPerSecond));
+        chatTimer = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                signalling.writeLine(name + " #" + (++chatSequence));
+                report.addMessageSent();
+            }
+        }, (long) (Math.random() * period), period, TimeUnit.MICROSECONDS);
+    }
+
+    public synchronized void stopChat() {
+        if (chatTimer != null) {
+            chatTimer.cancel(false);
+            chatTimer = null;
+        }
+    }
+
+    /**
+     * Leaves the session and releases the media.
+     */
+    public Future<Object> leaveAsync() {
+        stopChat();
+        final Promise<Object> promise = new Promise<Object>();
+        signalling.leaveAsync().then(new IAction1<Object>() {
+            public void invoke(Object o) {
+                release();
+                promise.resolve(null);
+            }
+        }, new IAction1<Exception>() {
+            public void invoke(Exception ex) {
+                release();
+                promise.reject(ex);
+            }
+        });
+        return promise;
+    }
+
+    private void release() {
+        synchronized (remoteMedias) {
+            for (HeadlessRemoteMedia remoteMedia : remoteMedias) {
+                report.addAudioFrames(remoteMedia.getAudioFrameCount());
+                remoteMedia.destroy();
+            }
+            remoteMedias.clear();
+        }
+        localMedia.stop().then(new IAction1<fm.icelink.LocalMedia>() {
+            public void invoke(fm.icelink.LocalMedia media) {
+                localMedia.destroy();
+            }
+        });
+    }
+
+    private Connection connection(final PeerClient remoteClient) {
+        final HeadlessRemoteMedia remoteMedia = new HeadlessRemoteMedia(disableVideo);
+        synchronized (remoteMedias) {
+            remoteMedias.add(remoteMedia);
+        }
+
+        final Connection connection = new Connection(new Stream[]{
+                new AudioStream(localMedia, remoteMedia),
+                new VideoStream(localMedia, remoteMedia)
+        });
+        if (iceServers != null) {
+            connection.setIceServers(iceServers);
+        }
+
+        final long createTime = System.nanoTime();
+        connection.addOnStateChange(new IAction1<Connection>() {
+            public void invoke(Connection c) {
+                if (c.getState() == ConnectionState.Connected) {
+                    long elapsed = (System.nanoTime() - createTime) / 1000000;
+                    boolean first;
+                    synchronized (connectedPeers) {
+                        first = connectedPeers.add(remoteClient.getInstanceId());
+                    }
+                    if (first) {
+                        report.addConnectedLatency(elapsed);
+                    } else {
+                        report.addReconnectedLatency(elapsed);
+                    }
+                } else if (c.getState() == ConnectionState.Closing ||
+                        c.getState() == ConnectionState.Failing) {
+                    boolean removed;
+                    synchronized (remoteMedias) {
+                        removed = remoteMedias.remove(remoteMedia);
+                    }
+                    if (removed) {
+                        report.addAudioFrames(remoteMedia.getAudioFrameCount());
+                        remoteMedia.destroy();
+                    }
+                } else if (c.getState() == ConnectionState.Failed) {
+                    report.addConnectionFailure();
+                    signalling.reconnect(remoteClient, c);
+                }
+            }
+        });
+        return connection;
+    }
+}
@@ -0,0 +1,243 @@
+package fm.icelink.chat.websync4.loadtest;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fm.icelink.AudioBuffer;
+import fm.icelink.AudioConfig;
+import fm.icelink.AudioEncoder;
+import fm.icelink.AudioFormat;
+import fm.icelink.AudioFrame;
+import fm.icelink.AudioSink;
+import fm.icelink.AudioSource;
+import fm.icelink.DataBuffer;
+import fm.icelink.Future;
+import fm.icelink.Promise;
+import fm.icelink.VideoBuffer;
+import fm.icelink.VideoEncoder;
+import fm.icelink.VideoFormat;
+import fm.icelink.VideoFrame;
+import fm.icelink.VideoPipe;
+import fm.icelink.VideoSink;
+import fm.icelink.VideoSource;
+import fm.icelink.ViewSink;
+
+/**
+ * SyntheticLocalMedia
+ *
+ * Local media for a headless participant. A tone stands in for the
+ * microphone and a moving gradient for the camera, raised on a shared
+ * timer thread at the real frame rates, and go through the same Opus and
+ * VP8 encoders as on a device, so the network sees realistic traffic.
+ * There is no preview and no recording.
+ */
+public class SyntheticLocalMedia extends fm.icelink.RtcLocalMedia<Object> {
+
+    private static final int audioFrameDuration = 20;
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SyntheticLocalMedia");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int width;
+    private final int height;
+    private final int frameRate;
+
+    /**
+     * @param disableVideo Whether to send audio only.
+     * @param width Synthetic video width; even.
+     * @param height Synthetic video height; even.
+     */
+    public SyntheticLocalMedia(boolean disableVideo, int width, int height, int frameRate) {
+        super(false, disableVideo, null);
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+
+        super.initialize();
+    }
+
+    @Override
+    protected AudioSource createAudioSource(AudioConfig audioConfig) {
+        return new ToneSource(audioConfig);
+    }
+
+    @Override
+    protected VideoSource createVideoSource() {
+        return new GradientSource(width, height, frameRate);
+    }
+
+    @Override
+    protected ViewSink<Object> createViewSink() {
+        return null;
+    }
+
+    @Override
+    protected AudioEncoder createOpusEncoder(AudioConfig audioConfig) {
+        return new fm.icelink.opus.Encoder(audioConfig);
+    }
+
+    @Override
+    protected VideoEncoder createVp8Encoder() {
+        return new fm.icelink.vp8.Encoder();
+    }
+
+    @Override
+    protected VideoEncoder createH264Encoder() {
+        return null;
+    }
+
+    @Override
+    protected VideoEncoder createVp9Encoder() {
+        return null;
+    }
+
+    @Override
+    protected VideoPipe createImageConverter(VideoFormat videoFormat) {
+        return new fm.icelink.yuv.ImageConverter(videoFormat);
+    }
+
+    @Override
+    protected VideoPipe createImageScaler() {
+        return new fm.icelink.yuv.ImageScaler(1.0);
+    }
+
+    @Override
+    protected AudioSink createAudioRecorder(AudioFormat audioFormat) {
+        return null;
+    }
+
+    @Override
+    protected VideoSink createVideoRecorder(VideoFormat videoFormat) {
+        return null;
+    }
+
+    /**
+     * A quiet 450 Hz tone, one 20 ms frame at a time.
+     */
+    private static class ToneSource extends AudioSource {
+        private final AudioFormat format;
+        private final byte[] frame;
+        private ScheduledFuture<?> timer;
+
+        ToneSource(AudioConfig config) {
+            this(new fm.icelink.pcm.Format(config.getClockRate(), config.getChannelCount()));
+        }
+
+        private ToneSource(AudioFormat format) {
+            super(format);
+            this.format = format;
+
+            // A whole number of cycles per frame, so frames join up without clicks.
+            int clockRate = format.getClockRate();
+            int channelCount = format.getChannelCount();
+            int samples = clockRate * audioFrameDuration / 1000;
+            frame = new byte[samples * channelCount * 2];
+            for (int i = 0; i < samples; i++) {
+                short value = (short) Math.round(Math.sin(2 * Math.PI * 450 * i / clockRate) * 0.1 * Short.MAX_VALUE);
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int offset = (i * channelCount + channel) * 2;
+                    frame[offset] = (byte) value;
+                    frame[offset + 1] = (byte) (value >> 8);
+                }
+            }
+        }
+
+        @Override
+        protected synchronized Future<Object> doStart() {
+            timer = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    raiseFrame(new AudioFrame(audioFrameDuration, new AudioBuffer(DataBuffer.wrap(frame, 0, frame.length), format)));
+                }
+            }, 0, audioFrameDuration, TimeUnit.MILLISECONDS);
+            return Promise.resolveNow(null);
+        }
+
+        @Override
+        protected synchronized Future<Object> doStop() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            return Promise.resolveNow(null);
+        }
+
+        public String getLabel() {
+            return "Synthetic Tone Source";
+        }
+    }
+
+    /**
+     * A gradient that moves every frame, so the encoder has motion to code.
+     * A second of frames is generated up front and looped.
+     */
+    private static class GradientSource extends VideoSource {
+        private final int width;
+        private final int height;
+        private final int frameRate;
+        private final byte[][] frames;
+        private int next;
+        private ScheduledFuture<?> timer;
+
+        GradientSource(int width, int height, int frameRate) {
+            super(VideoFormat.getI420());
+            this.width = width;
+            this.height = height;
+            this.frameRate = Math.max(1, frameRate);
+
+            frames = new byte[this.frameRate][];
+            int lumaLength = width * height;
+            int chromaLength = lumaLength / 4;
+            for (int f = 0; f < frames.length; f++) {
+                int shift = f * 256 / frames.length;
+                byte[] i420 = new byte[lumaLength + 2 * chromaLength];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        i420[y * width + x] = (byte) (x + y + shift);
+                    }
+                }
+                for (int i = 0; i < chromaLength; i++) {
+                    i420[lumaLength + i] = (byte) (128 + shift / 4);
+                    i420[lumaLength + chromaLength + i] = (byte) (128 - shift / 4);
+                }
+                frames[f] = i420;
+            }
+        }
+
+        @Override
+        protected synchronized Future<Object> doStart() {
+            timer = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] frame = frames[next];
+                    next = (next + 1) % frames.length;
+                    raiseFrame(new VideoFrame(new VideoBuffer(width, height, DataBuffer.wrap(frame, 0, frame.length), VideoFormat.getI420())));
+                }
+            }, 0, 1000 / frameRate, TimeUnit.MILLISECONDS);
+            return Promise.resolveNow(null);
+        }
+
+        @Override
+        protected synchronized Future<Object> doStop() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            return Promise.resolveNow(null);
+        }
+
+        public String getLabel() {
+            return "Synthetic Gradient Source";
+        }
+    }
+}